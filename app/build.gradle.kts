@@ -15,7 +15,13 @@ android {
         versionCode = 5
         versionName = "2.2"
 
-        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
+        // AndroidBenchmarkRunner extends AndroidJUnitRunner, so regular
+        // instrumented tests keep working. Benchmarks write their results to
+        // app/build/outputs/connected_android_test_additional_output/**/*-benchmarkData.json
+        testInstrumentationRunner = "androidx.benchmark.junit4.AndroidBenchmarkRunner"
+        // Kiosk test units are usually debug builds on emulators; keep the
+        // numbers flowing and let the JSON record the warning instead.
+        testInstrumentationRunnerArguments["androidx.benchmark.suppressErrors"] = "DEBUGGABLE,EMULATOR,LOW-BATTERY,UNLOCKED"
         vectorDrawables {
             useSupportLibrary = true
         }
@@ -68,6 +74,23 @@ android {
         kotlinCompilerExtensionVersion = "1.5.1"
     }
 
+    sourceSets {
+        // Test helpers used by both the JVM tests and the benchmarks
+        getByName("test").java.srcDir("src/sharedTest/java")
+        getByName("androidTest").java.srcDir("src/sharedTest/java")
+    }
+
+    testOptions {
+        // JVM unit tests run against the stub android.jar; let android.util.Log calls return defaults
+        unitTests.isReturnDefaultValues = true
+        // Session replay runs PaymentViewModel under Robolectric, which reads the merged manifest
+        unitTests.isIncludeAndroidResources = true
+        // Opt-in soak test: ./gradlew testDebugUnitTest -PsoakTransactions=100000
+        unitTests.all { test ->
+            project.findProperty("soakTransactions")?.let { test.systemProperty("soakTransactions", it) }
+        }
+    }
+
     packaging {
         resources {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
@@ -81,7 +104,9 @@ dependencies {
     implementation(libs.okhttp)
     implementation(libs.okhttp.logging.interceptor)
     implementation(libs.moshi)
-    implementation(libs.moshi.kotlin)
+    // Message model adapters are generated at build time (see MessageAdapters);
+    // moshi-kotlin / kotlin-reflect is intentionally not on the classpath.
+    ksp(libs.moshi.kotlin.codegen)
     implementation(libs.androidx.lifecycle.viewmodel.compose)
     implementation(libs.androidx.lifecycle.viewmodel.ktx)
     implementation("org.jetbrains.kotlinx:kotlinx-coroutines-android:1.7.1")
@@ -94,6 +119,9 @@ dependencies {
     implementation ("androidx.media3:media3-exoplayer:1.2.0")
     implementation ("androidx.media3:media3-ui:1.2.0")
     implementation ("androidx.media3:media3-common:1.2.0")
+    // Cache for streamed screensaver videos (SimpleCache, CacheDataSource)
+    implementation ("androidx.media3:media3-datasource:1.2.0")
+    implementation ("androidx.media3:media3-database:1.2.0")
 
     implementation("androidx.core:core-splashscreen:1.0.1")
     implementation(libs.androidx.core.ktx)
@@ -105,8 +133,15 @@ dependencies {
     implementation(libs.androidx.ui.tooling.preview)
     implementation(libs.androidx.material3)
     testImplementation(libs.junit)
+    // Virtual time for the session replay tests
+    testImplementation("org.jetbrains.kotlinx:kotlinx-coroutines-test:1.7.1")
+    // Room and preferences for the view model in session replay and the soak test
+    testImplementation(libs.robolectric)
+    // Local backend for the soak test
+    testImplementation(libs.okhttp.mockwebserver)
     androidTestImplementation(libs.androidx.junit)
     androidTestImplementation(libs.androidx.espresso.core)
+    androidTestImplementation(libs.androidx.benchmark.junit4)
     androidTestImplementation(platform(libs.androidx.compose.bom))
     androidTestImplementation(libs.androidx.ui.test.junit4)
     debugImplementation(libs.androidx.ui.tooling)
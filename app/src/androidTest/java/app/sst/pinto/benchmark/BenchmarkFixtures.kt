@@ -0,0 +1,20 @@
+package app.sst.pinto.benchmark
+
+/**
+ * Representative frames captured from the backend, shared by the benchmarks
+ * so every run measures the same payloads.
+ */
+object BenchmarkFixtures {
+    const val TRANSACTION_ID = "3f1c2b9e-6a43-4d0e-9a57-0d6e2f7b1c11"
+
+    const val AMOUNT_SELECT_JSON = """{"messageType":"SCREEN_CHANGE","screen":"AMOUNT_SELECT","data":{"amounts":[20,40,60,80,100],"currency":"£","showOtherOption":true},"transactionId":"$TRANSACTION_ID","timestamp":1700000000000}"""
+
+    const val DEVICE_INFO_JSON = """{"messageType":"DEVICE_INFO","screen":"CONFIG","data":{"currency":"GBP","minTransactionLimit":10.0,"maxTransactionLimit":300.0,"transactionFeeType":"FIXED","transactionFeeValue":0.5,"yaspaEnabled":false,"paymentProvider":"nnsmart","requireCardReceipt":true},"transactionId":"$TRANSACTION_ID","timestamp":1700000000000}"""
+
+    const val LIMIT_CHECK_RESULT_JSON = """{"messageType":"LIMIT_CHECK_RESULT","screen":"APPROVED","data":{"limit":500,"remaining":420},"transactionId":"$TRANSACTION_ID","timestamp":1700000000000}"""
+
+    const val UNKNOWN_TYPE_JSON = """{"messageType":"HEARTBEAT","screen":"NONE","data":{"serverTime":1700000000000,"load":[0.1,0.2,0.3]},"transactionId":"$TRANSACTION_ID","timestamp":1700000000000}"""
+
+    /** NNSmart reply envelope as delivered in the "ecrResponse" extra. */
+    const val NNSMART_SALE_RESPONSE = """{"id":"$TRANSACTION_ID","status":"COMPLETED","trxData":{"id":"TRX-000123456","state":"APPROVED","responseCode":"00","responseCodeDescription":"APPROVED","par":"V0010013021140394841643193699","cardRefId":"CR-998877","authCode":"123456","rrn":"000012345678","amount":2050,"currAlphaCode":"GBP","pan":"476173******0119"}}"""
+}
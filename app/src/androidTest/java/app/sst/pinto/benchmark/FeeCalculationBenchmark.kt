@@ -0,0 +1,79 @@
+package app.sst.pinto.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.room.Room
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import app.sst.pinto.data.AppDatabase
+import app.sst.pinto.data.DeviceInfo
+import app.sst.pinto.payment.TransactionFees
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Benchmarks calculateFinalAmountWithFee: the fee arithmetic on its own and
+ * the full path including the device_info read the view model does per tap.
+ * The read goes to an in-memory database, so the device's real
+ * configuration is never touched.
+ */
+@RunWith(AndroidJUnit4::class)
+class FeeCalculationBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private lateinit var database: AppDatabase
+
+    @Before
+    fun seedDeviceInfo() = runBlocking {
+        database = Room.inMemoryDatabaseBuilder(context, AppDatabase::class.java).build()
+        database.deviceInfoDao().insertDeviceInfo(
+            DeviceInfo(
+                currency = "GBP",
+                minTransactionLimit = 10.0,
+                maxTransactionLimit = 300.0,
+                transactionFeeType = "PERCENTAGE",
+                transactionFeeValue = 2.5,
+                yaspaEnabled = true,
+                paymentProvider = "mock"
+            )
+        )
+    }
+
+    @After
+    fun closeDatabase() {
+        database.close()
+    }
+
+    @Test
+    fun applyFee_percentage() {
+        benchmarkRule.measureRepeated {
+            TransactionFees.applyFee(40, "PERCENTAGE", 2.5)
+        }
+    }
+
+    @Test
+    fun applyFee_fixed() {
+        benchmarkRule.measureRepeated {
+            TransactionFees.applyFee(40, "FIXED", 0.5)
+        }
+    }
+
+    @Test
+    fun calculateFinalAmountWithFee_withDeviceInfoRead() {
+        val dao = database.deviceInfoDao()
+        benchmarkRule.measureRepeated {
+            runBlocking {
+                val deviceInfo = dao.getDeviceInfo().first()!!
+                TransactionFees.applyFee(40, deviceInfo.transactionFeeType, deviceInfo.transactionFeeValue)
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package app.sst.pinto.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import app.sst.pinto.utils.FileLogger
+import org.junit.After
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+
+/**
+ * Benchmarks FileLogger: building a log line, and the full d() call which
+ * also appends to the current log file. The logger writes to a temporary
+ * directory, so its storage caps never delete the device's real logs.
+ */
+@RunWith(AndroidJUnit4::class)
+class FileLoggerBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val logDir = File(
+        InstrumentationRegistry.getInstrumentation().targetContext.cacheDir,
+        "file-logger-benchmark"
+    )
+    private val logger = FileLogger(logDir)
+
+    private val message = "Sending message: ${BenchmarkFixtures.AMOUNT_SELECT_JSON}"
+
+    @After
+    fun deleteLogs() {
+        logDir.deleteRecursively()
+    }
+
+    @Test
+    fun formatLogEntry() {
+        benchmarkRule.measureRepeated {
+            logger.formatLogEntry("DEBUG", "PaymentViewModel", message)
+        }
+    }
+
+    @Test
+    fun formatLogEntry_withThrowable() {
+        val error = IllegalStateException("Terminal not ready")
+        benchmarkRule.measureRepeated {
+            logger.formatLogEntry("ERROR", "PlanetPaymentManager", "Sale failed", error)
+        }
+    }
+
+    @Test
+    fun writeDebugLine() {
+        benchmarkRule.measureRepeated {
+            logger.d("FileLoggerBenchmark", message)
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package app.sst.pinto.benchmark
+
+import android.content.Intent
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import app.sst.pinto.payment.NNSmartPaymentManager
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Benchmarks parsing of the NNSmart reply broadcast into NNSmartPaymentResult.
+ */
+@RunWith(AndroidJUnit4::class)
+class NNSmartParsingBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val saleReply = Intent("app.sst.pinto.nnsmart.REPLY.benchmark").apply {
+        putExtra("ecrResponse", BenchmarkFixtures.NNSMART_SALE_RESPONSE)
+    }
+
+    private val errorReply = Intent("app.sst.pinto.nnsmart.REPLY.benchmark").apply {
+        putExtra("ecrResponse", """{"id":"${BenchmarkFixtures.TRANSACTION_ID}","error":{"id":-7,"reason":"Reference already exists"}}""")
+    }
+
+    @Test
+    fun parseSaleResponse() {
+        benchmarkRule.measureRepeated {
+            NNSmartPaymentManager.parseTransactionResponse(saleReply)
+        }
+    }
+
+    @Test
+    fun parseErrorResponse() {
+        benchmarkRule.measureRepeated {
+            NNSmartPaymentManager.parseTransactionResponse(errorReply)
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package app.sst.pinto.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import app.sst.pinto.data.models.PaymentResultMessage
+import app.sst.pinto.data.models.ReversalResultMessage
+import app.sst.pinto.network.MessageEncoder
+import app.sst.pinto.network.buildPaymentResultJson
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Benchmarks [MessageEncoder] for PAYMENT_RESULT and REVERSAL_RESULT messages,
+ * against the string template PaymentViewModel used before it. Compare the
+ * allocationCount of encodePaymentResult_success with
+ * legacyPaymentResult_success for the allocation saving; androidx.benchmark
+ * counts allocations only, not the bytes allocated.
+ */
+@RunWith(AndroidJUnit4::class)
+class ResultJsonBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    @Test
+    fun encodePaymentResult_success() {
+        benchmarkRule.measureRepeated {
+            MessageEncoder.encode(
+                PaymentResultMessage(
+                    success = true,
+                    transactionId = BenchmarkFixtures.TRANSACTION_ID,
+                    resultCode = "A",
+                    message = "APPROVED",
+                    bankResultCode = "00"
+                )
+            )
+        }
+    }
+
+    @Test
+    fun legacyPaymentResult_success() {
+        benchmarkRule.measureRepeated {
+            buildPaymentResultJson(
+                success = true,
+                transactionId = BenchmarkFixtures.TRANSACTION_ID,
+                resultCode = "A",
+                message = "APPROVED",
+                bankResultCode = "00"
+            )
+        }
+    }
+
+    @Test
+    fun encodePaymentResult_failedWithQuotes() {
+        benchmarkRule.measureRepeated {
+            MessageEncoder.encode(
+                PaymentResultMessage(
+                    success = false,
+                    transactionId = BenchmarkFixtures.TRANSACTION_ID,
+                    resultCode = "D",
+                    message = "Card \"declined\" by issuer"
+                )
+            )
+        }
+    }
+
+    @Test
+    fun encodeReversalResult() {
+        benchmarkRule.measureRepeated {
+            MessageEncoder.encode(
+                ReversalResultMessage(
+                    success = true,
+                    transactionId = BenchmarkFixtures.TRANSACTION_ID,
+                    resultCode = "LIMIT_REVERSED",
+                    message = "Limit exceeded - sale reversed",
+                    requesterTransRefNum = "REVERSAL_${BenchmarkFixtures.TRANSACTION_ID}",
+                    originalRequesterTransRefNum = "TRX-000123456",
+                    originalTransactionId = BenchmarkFixtures.TRANSACTION_ID,
+                    reversalAmount = 20
+                )
+            )
+        }
+    }
+}
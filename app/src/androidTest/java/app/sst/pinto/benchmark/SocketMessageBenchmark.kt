@@ -0,0 +1,77 @@
+package app.sst.pinto.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.benchmark.junit4.measureRepeated
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.MessageData
+import app.sst.pinto.data.models.SocketMessage
+import app.sst.pinto.network.MessageDecoder
+import com.squareup.moshi.JsonAdapter
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Benchmarks the SocketMessage adapter on the inbound and outbound paths,
+ * and the peek-and-dispatch [MessageDecoder] PaymentViewModel now uses for
+ * inbound frames.
+ */
+@RunWith(AndroidJUnit4::class)
+class SocketMessageBenchmark {
+
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val messageAdapter: JsonAdapter<SocketMessage> = MessageAdapters.socketMessage
+
+    private val userAction = SocketMessage(
+        messageType = "USER_ACTION",
+        screen = "AMOUNT_SELECT",
+        data = MessageData(selectedAmount = 20, selectionMethod = "PRESET_BUTTON"),
+        transactionId = "3f1c2b9e-6a43-4d0e-9a57-0d6e2f7b1c11",
+        timestamp = 1_700_000_000_000L
+    )
+
+    @Test
+    fun fromJson_amountSelect() {
+        benchmarkRule.measureRepeated {
+            messageAdapter.fromJson(BenchmarkFixtures.AMOUNT_SELECT_JSON)
+        }
+    }
+
+    @Test
+    fun fromJson_deviceInfo() {
+        benchmarkRule.measureRepeated {
+            messageAdapter.fromJson(BenchmarkFixtures.DEVICE_INFO_JSON)
+        }
+    }
+
+    @Test
+    fun fromJson_limitCheckResult() {
+        benchmarkRule.measureRepeated {
+            messageAdapter.fromJson(BenchmarkFixtures.LIMIT_CHECK_RESULT_JSON)
+        }
+    }
+
+    @Test
+    fun toJson_userAction() {
+        benchmarkRule.measureRepeated {
+            messageAdapter.toJson(userAction)
+        }
+    }
+
+    @Test
+    fun decode_amountSelect() {
+        benchmarkRule.measureRepeated {
+            MessageDecoder.decode(BenchmarkFixtures.AMOUNT_SELECT_JSON)
+        }
+    }
+
+    @Test
+    fun decode_unknownType() {
+        benchmarkRule.measureRepeated {
+            MessageDecoder.decode(BenchmarkFixtures.UNKNOWN_TYPE_JSON)
+        }
+    }
+}
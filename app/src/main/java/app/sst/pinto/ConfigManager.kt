@@ -13,6 +13,16 @@ class ConfigManager private constructor(context: Context) {
         private const val KEY_SERVER_URL = "server_url"
         private const val KEY_SERVER_PORT = "server_port"
         private const val KEY_IS_FIRST_LAUNCH = "is_first_launch"
+        private const val KEY_TIMER_PREFIX = "timer_"
+        private const val KEY_SESSION_RECORDING = "session_recording"
+        private const val KEY_TIMEOUT_POLICIES = "timeout_policies"
+        private const val KEY_MEDIA_CACHE_BUDGET = "media_cache_budget_bytes"
+        private const val KEY_SCREENSAVER_STREAMING = "screensaver_streaming"
+        private const val KEY_MEDIA_MANIFEST = "media_manifest"
+        private const val KEY_PREFETCH_RATE = "prefetch_rate_bytes_per_second"
+        private const val DEFAULT_MEDIA_CACHE_BUDGET_BYTES = 512L * 1024L * 1024L
+        // 2 Mbit/s
+        private const val DEFAULT_PREFETCH_RATE_BYTES_PER_SECOND = 250_000L
         private const val DEFAULT_PORT = "5001"
 
         @Volatile
@@ -104,6 +114,105 @@ class ConfigManager private constructor(context: Context) {
         Log.d(TAG, "Server config cleared")
     }
 
+    /**
+     * Get the delay for a timed screen transition, or [defaultMillis] when
+     * the server has not overridden it
+     */
+    fun getTimerDurationMillis(site: String, defaultMillis: Long): Long {
+        return prefs.getLong(KEY_TIMER_PREFIX + site, defaultMillis)
+    }
+
+    /**
+     * Save per-site timer overrides (milliseconds, keyed by site name).
+     * Non-positive values remove the override.
+     */
+    fun saveTimerDurations(durations: Map<String, Long>) {
+        val editor = prefs.edit()
+        durations.forEach { (site, millis) ->
+            if (millis > 0) {
+                editor.putLong(KEY_TIMER_PREFIX + site, millis)
+            } else {
+                editor.remove(KEY_TIMER_PREFIX + site)
+            }
+        }
+        editor.apply()
+        Log.d(TAG, "Timer durations saved: $durations")
+    }
+
+    /**
+     * Per-screen inactivity policies from the server, as their JSON map,
+     * or null when the built-in defaults apply
+     */
+    fun getTimeoutPoliciesJson(): String? {
+        return prefs.getString(KEY_TIMEOUT_POLICIES, null)
+    }
+
+    fun saveTimeoutPoliciesJson(json: String) {
+        prefs.edit().putString(KEY_TIMEOUT_POLICIES, json).apply()
+        Log.d(TAG, "Timeout policies saved: $json")
+    }
+
+    /**
+     * Byte budget of the downloaded media cache (see MediaCache)
+     */
+    fun getMediaCacheBudgetBytes(): Long {
+        return prefs.getLong(KEY_MEDIA_CACHE_BUDGET, DEFAULT_MEDIA_CACHE_BUDGET_BYTES)
+    }
+
+    fun setMediaCacheBudgetBytes(bytes: Long) {
+        prefs.edit().putLong(KEY_MEDIA_CACHE_BUDGET, bytes).apply()
+        Log.d(TAG, "Media cache budget set to $bytes bytes")
+    }
+
+    /**
+     * Server media manifest as JSON (see MediaManifestEntry), or null
+     */
+    fun getMediaManifestJson(): String? {
+        return prefs.getString(KEY_MEDIA_MANIFEST, null)
+    }
+
+    fun saveMediaManifestJson(json: String) {
+        prefs.edit().putString(KEY_MEDIA_MANIFEST, json).apply()
+        Log.d(TAG, "Media manifest saved")
+    }
+
+    /**
+     * Rate cap of background media downloads (see MediaPrefetcher)
+     */
+    fun getPrefetchRateBytesPerSecond(): Long {
+        return prefs.getLong(KEY_PREFETCH_RATE, DEFAULT_PREFETCH_RATE_BYTES_PER_SECOND)
+    }
+
+    fun setPrefetchRateBytesPerSecond(bytesPerSecond: Long) {
+        prefs.edit().putLong(KEY_PREFETCH_RATE, bytesPerSecond).apply()
+        Log.d(TAG, "Prefetch rate set to $bytesPerSecond bytes/s")
+    }
+
+    /**
+     * Whether a new screensaver video is streamed (and cached as it plays)
+     * instead of downloaded in full first (see StreamCache)
+     */
+    fun isScreensaverStreamingEnabled(): Boolean {
+        return prefs.getBoolean(KEY_SCREENSAVER_STREAMING, false)
+    }
+
+    fun setScreensaverStreamingEnabled(enabled: Boolean) {
+        prefs.edit().putBoolean(KEY_SCREENSAVER_STREAMING, enabled).apply()
+        Log.d(TAG, "Screensaver streaming ${if (enabled) "enabled" else "disabled"}")
+    }
+
+    /**
+     * Whether sessions are recorded for replay (see SessionRecorder)
+     */
+    fun isSessionRecordingEnabled(): Boolean {
+        return prefs.getBoolean(KEY_SESSION_RECORDING, false)
+    }
+
+    fun setSessionRecordingEnabled(enabled: Boolean) {
+        prefs.edit().putBoolean(KEY_SESSION_RECORDING, enabled).apply()
+        Log.d(TAG, "Session recording ${if (enabled) "enabled" else "disabled"}")
+    }
+
     /**
      * Check if server URL is configured
      */
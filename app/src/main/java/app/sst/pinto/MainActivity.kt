@@ -30,6 +30,7 @@ import androidx.core.view.WindowInsetsCompat
 import androidx.core.view.WindowInsetsControllerCompat
 import androidx.lifecycle.viewmodel.compose.viewModel
 import app.sst.pinto.ui.components.Screensaver
+import app.sst.pinto.ui.components.TimeoutWarning
 import app.sst.pinto.ui.screens.PaymentScreen
 import app.sst.pinto.ui.theme.PintoTheme
 import app.sst.pinto.utils.TimeoutManager
@@ -42,13 +43,13 @@ import app.sst.pinto.ui.screens.SettingsScreen
 import android.content.Intent
 import android.net.Uri
 import androidx.core.splashscreen.SplashScreen.Companion.installSplashScreen
-import app.sst.pinto.data.AppDatabase
+import app.sst.pinto.data.DeviceInfoRepository
+import app.sst.pinto.data.models.MessageAdapters
 import app.sst.pinto.network.SocketManager
 import app.sst.pinto.payment.NNSmartPaymentManager
 import app.sst.pinto.utils.FileLogger
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.launch
 
 class MainActivity : ComponentActivity() {
@@ -74,6 +75,18 @@ class MainActivity : ComponentActivity() {
         NNSmartPaymentManager.configureLogging(fileLogger)
         app.sst.pinto.payment.PlanetPaymentManager.configureLogging(fileLogger)
 
+        // Load the generated message adapters before the first socket frame
+        // arrives, so the first AMOUNT_SELECT isn't paying for class loading.
+        CoroutineScope(Dispatchers.Default).launch {
+            try {
+                val start = System.currentTimeMillis()
+                MessageAdapters.warmUp()
+                Log.d(TAG, "Message adapters warmed up in ${System.currentTimeMillis() - start}ms")
+            } catch (e: Exception) {
+                fileLogger.e(TAG, "Message adapter warm-up failed", e)
+            }
+        }
+
         // Persist uncaught crashes before process exits.
         val previousHandler = Thread.getDefaultUncaughtExceptionHandler()
         Thread.setDefaultUncaughtExceptionHandler { thread, throwable ->
@@ -92,10 +105,8 @@ class MainActivity : ComponentActivity() {
         // on other providers.
         CoroutineScope(Dispatchers.IO).launch {
             val provider = try {
-                AppDatabase.getDatabase(applicationContext)
-                    .deviceInfoDao()
-                    .getDeviceInfo()
-                    .first()
+                DeviceInfoRepository.getInstance(applicationContext)
+                    .get()
                     ?.paymentProvider
                     ?.lowercase()
             } catch (e: Exception) {
@@ -240,8 +251,10 @@ fun MainScreen(configManager: ConfigManager, screensaverVideoResId: Int) {
     val TAG = "MainScreen"
     val viewModel: PaymentViewModel = viewModel()
     val screenState by viewModel.screenState.collectAsState()
+    val amountQuotes by viewModel.amountQuotes.collectAsState()
     val isScreensaverVisible by viewModel.isScreensaverVisible.collectAsState()
     val isOnAmountScreen by viewModel.isOnAmountScreen.collectAsState()
+    val isTimeoutWarningVisible by viewModel.timeoutWarning.collectAsState()
     val timeoutManager = TimeoutManager.getInstance()
 
     // Server configuration state
@@ -285,7 +298,9 @@ fun MainScreen(configManager: ConfigManager, screensaverVideoResId: Int) {
                     onCloseApp = {
                         // Close the app
                         android.os.Process.killProcess(android.os.Process.myPid())
-                    }
+                    },
+                    performanceStats = viewModel::performanceStats,
+                    pendingTimers = viewModel::pendingTimers
                 )
             }
             showServerConfig -> {
@@ -313,6 +328,7 @@ fun MainScreen(configManager: ConfigManager, screensaverVideoResId: Int) {
                 // Main app content
                 PaymentScreen(
                     screenState = screenState,
+                    quotes = amountQuotes.quotes,
                     onAmountSelected = { amount ->
                         viewModel.recordUserInteraction()
                         viewModel.selectAmount(amount)
@@ -330,6 +346,9 @@ fun MainScreen(configManager: ConfigManager, screensaverVideoResId: Int) {
                         viewModel.cancelPayment()
                     }
                 )
+                // Inactivity warning before the screen's timeout action
+                TimeoutWarning(isVisible = isTimeoutWarningVisible && !isScreensaverVisible)
+
                 // Screensaver
                 Screensaver(
                     isVisible = isScreensaverVisible,
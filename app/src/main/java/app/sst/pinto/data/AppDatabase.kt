@@ -8,12 +8,13 @@ import androidx.room.migration.Migration
 import androidx.sqlite.db.SupportSQLiteDatabase
 
 @Database(
-    entities = [DeviceInfo::class],
-    version = 2,
+    entities = [DeviceInfo::class, TransactionJournalEntry::class],
+    version = 3,
     exportSchema = false
 )
 abstract class AppDatabase : RoomDatabase() {
     abstract fun deviceInfoDao(): DeviceInfoDao
+    abstract fun transactionJournalDao(): TransactionJournalDao
     
     companion object {
         @Volatile
@@ -27,6 +28,27 @@ abstract class AppDatabase : RoomDatabase() {
             }
         }
         
+        // Migration from version 2 to 3: Add the transaction journal
+        private val MIGRATION_2_3 = object : Migration(2, 3) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `transaction_journal` (" +
+                        "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                        "`transactionId` TEXT NOT NULL, `kind` TEXT NOT NULL, `status` TEXT NOT NULL, " +
+                        "`amount` INTEGER NOT NULL, `provider` TEXT NOT NULL, `reference` TEXT NOT NULL, " +
+                        "`payload` TEXT, `createdAt` INTEGER NOT NULL)"
+                )
+                database.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_transaction_journal_transactionId_kind` " +
+                        "ON `transaction_journal` (`transactionId`, `kind`)"
+                )
+                database.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_transaction_journal_kind_status` " +
+                        "ON `transaction_journal` (`kind`, `status`)"
+                )
+            }
+        }
+        
         fun getDatabase(context: Context): AppDatabase {
             return INSTANCE ?: synchronized(this) {
                 val instance = Room.databaseBuilder(
@@ -34,7 +56,7 @@ abstract class AppDatabase : RoomDatabase() {
                     AppDatabase::class.java,
                     "pinto_database"
                 )
-                .addMigrations(MIGRATION_1_2)
+                .addMigrations(MIGRATION_1_2, MIGRATION_2_3)
                 .build()
                 INSTANCE = instance
                 instance
@@ -0,0 +1,95 @@
+package app.sst.pinto.data
+
+import android.content.Context
+import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Application-wide in-memory copy of the single [DeviceInfo] row.
+ *
+ * The row is read from Room once, when the repository is first created, and
+ * kept in [deviceInfo]. Updates go through [update], which publishes the new
+ * value immediately and then writes it to Room, so the payment path never
+ * queries SQLite. Reads only wait when they arrive before the initial load
+ * has finished.
+ */
+class DeviceInfoRepository private constructor(private val dao: DeviceInfoDao) {
+    private val TAG = "DeviceInfoRepository"
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val loaded = CompletableDeferred<Unit>()
+    private val writeLock = Mutex()
+
+    private val _deviceInfo = MutableStateFlow<DeviceInfo?>(null)
+    val deviceInfo: StateFlow<DeviceInfo?> = _deviceInfo
+
+    init {
+        scope.launch {
+            try {
+                val stored = dao.getDeviceInfo().first()
+                // An update that raced the load wins; it is newer than the stored row.
+                if (_deviceInfo.value == null) {
+                    _deviceInfo.value = stored
+                }
+                Log.d(TAG, "Device configuration loaded: provider=${stored?.paymentProvider}")
+            } catch (e: Exception) {
+                Log.e(TAG, "Error loading device configuration", e)
+            } finally {
+                loaded.complete(Unit)
+            }
+        }
+    }
+
+    /**
+     * The current configuration, or null when the device has not been configured.
+     */
+    suspend fun get(): DeviceInfo? {
+        if (!loaded.isCompleted) loaded.await()
+        return _deviceInfo.value
+    }
+
+    /**
+     * Replace the configuration with [transform] of the current one.
+     * Readers see the new value at once; the Room write follows.
+     */
+    suspend fun update(transform: (DeviceInfo?) -> DeviceInfo): DeviceInfo {
+        if (!loaded.isCompleted) loaded.await()
+        val updated = writeLock.withLock {
+            transform(_deviceInfo.value).also { _deviceInfo.value = it }
+        }
+        scope.launch {
+            writeLock.withLock {
+                // Skip writes superseded by a later update.
+                if (_deviceInfo.value !== updated) return@withLock
+                try {
+                    dao.insertDeviceInfo(updated)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Error saving device configuration", e)
+                }
+            }
+        }
+        return updated
+    }
+
+    companion object {
+        @Volatile
+        private var instance: DeviceInfoRepository? = null
+
+        fun getInstance(context: Context): DeviceInfoRepository {
+            return instance ?: synchronized(this) {
+                instance ?: DeviceInfoRepository(
+                    AppDatabase.getDatabase(context).deviceInfoDao()
+                ).also { instance = it }
+            }
+        }
+    }
+}
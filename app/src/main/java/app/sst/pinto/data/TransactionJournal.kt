@@ -0,0 +1,185 @@
+package app.sst.pinto.data
+
+import android.content.Context
+import android.util.Log
+import app.sst.pinto.data.TransactionJournalEntry.Companion.KIND_CRITICAL_MESSAGE
+import app.sst.pinto.data.TransactionJournalEntry.Companion.KIND_SALE_RECOVERY
+import app.sst.pinto.data.TransactionJournalEntry.Companion.KIND_TICKET_PRINT
+import app.sst.pinto.data.TransactionJournalEntry.Companion.STATUS_CLOSED
+import app.sst.pinto.data.TransactionJournalEntry.Companion.STATUS_OPEN
+import app.sst.pinto.data.models.MessageAdapters
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+
+/**
+ * Write-ahead journal for crash recovery, stored in [AppDatabase].
+ *
+ * Every change is a new [TransactionJournalEntry] row. Operations run one
+ * at a time, in call order, on a single writer. A close queued before an
+ * open is therefore never applied after it, and reads see every earlier
+ * write. [open] and [close] return the commit as a [Deferred]. Await it
+ * at money-moving boundaries so the row is on disk before the next step;
+ * a failed write throws from `await()`. Recovery on startup is an indexed
+ * scan of [openEntries], which throws rather than report a clean journal
+ * it could not read.
+ *
+ * Session replay builds its own journal on an in-memory database, with the
+ * writer on the test dispatcher.
+ */
+class TransactionJournal internal constructor(
+    database: AppDatabase,
+    writerDispatcher: CoroutineDispatcher = Dispatchers.IO
+) {
+    private val TAG = "TransactionJournal"
+
+    private val dao = database.transactionJournalDao()
+    private val scope = CoroutineScope(SupervisorJob() + writerDispatcher)
+    private val queue = Channel<suspend () -> Unit>(Channel.UNLIMITED)
+
+    init {
+        scope.launch {
+            for (operation in queue) {
+                // Failures reach the caller through the operation's Deferred
+                operation()
+            }
+        }
+    }
+
+    /**
+     * Append an OPEN row for [transactionId]'s [kind] item.
+     */
+    fun open(
+        kind: String,
+        transactionId: String,
+        amount: Int = 0,
+        provider: String = "",
+        reference: String = "",
+        payload: String? = null
+    ): Deferred<Unit> = enqueue {
+        dao.insert(
+            TransactionJournalEntry(
+                transactionId = transactionId,
+                kind = kind,
+                status = STATUS_OPEN,
+                amount = amount,
+                provider = provider,
+                reference = reference,
+                payload = payload
+            )
+        )
+    }
+
+    /**
+     * Append a CLOSED row for each open [kind] item of [transactionId].
+     */
+    fun close(kind: String, transactionId: String): Deferred<Unit> = enqueue {
+        // No other write runs between the read and the insert: the queue is the only writer
+        val closing = dao.openEntries(kind)
+            .filter { it.transactionId == transactionId }
+            .map { it.copy(id = 0, status = STATUS_CLOSED, payload = null, createdAt = System.currentTimeMillis()) }
+        if (closing.isNotEmpty()) dao.insertAll(closing)
+    }
+
+    /**
+     * Open [kind] items, oldest first. Throws when the journal cannot be read.
+     */
+    suspend fun openEntries(kind: String): List<TransactionJournalEntry> {
+        var entries = emptyList<TransactionJournalEntry>()
+        enqueue { entries = dao.openEntries(kind) }.await()
+        return entries
+    }
+
+    /**
+     * Move the single-slot recovery values of the old `payment_recovery`
+     * preferences into the journal, then clear them. Safe to call on
+     * every start.
+     */
+    fun importLegacyPreferences(context: Context): Deferred<Unit> = enqueue {
+        val prefs = context.getSharedPreferences(LEGACY_PREFS_NAME, Context.MODE_PRIVATE)
+        if (prefs.all.isEmpty()) return@enqueue
+
+        val entries = mutableListOf<TransactionJournalEntry>()
+        prefs.getString("pending_tx", null)?.let { raw ->
+            runCatching { MessageAdapters.pendingRecovery.fromJson(raw) }.getOrNull()?.let {
+                entries += TransactionJournalEntry(
+                    transactionId = it.transactionId,
+                    kind = KIND_SALE_RECOVERY,
+                    status = STATUS_OPEN,
+                    amount = it.amount,
+                    provider = it.provider,
+                    reference = it.originalTrxUniqueId
+                )
+            }
+        }
+        prefs.getString("pending_ticket_tx", null)?.let { raw ->
+            runCatching { MessageAdapters.pendingTicketPrint.fromJson(raw) }.getOrNull()?.let {
+                entries += TransactionJournalEntry(
+                    transactionId = it.transactionId,
+                    kind = KIND_TICKET_PRINT,
+                    status = STATUS_OPEN,
+                    amount = it.amount,
+                    provider = it.provider,
+                    reference = it.originalRequesterRef
+                )
+            }
+        }
+        prefs.getString("pending_critical_message", null)?.let { raw ->
+            entries += TransactionJournalEntry(
+                transactionId = LEGACY_TRANSACTION_ID,
+                kind = KIND_CRITICAL_MESSAGE,
+                status = STATUS_OPEN,
+                payload = raw
+            )
+        }
+        if (entries.isNotEmpty()) dao.insertAll(entries)
+        // Synchronous: the rows are committed, so dropping the old slots cannot lose them
+        prefs.edit().clear().commit()
+        Log.d(TAG, "Imported ${entries.size} legacy recovery item(s)")
+    }
+
+    /**
+     * Delete the history of fully closed transactions older than [maxAgeMillis].
+     */
+    fun prune(maxAgeMillis: Long = DEFAULT_RETENTION_MS): Deferred<Unit> = enqueue {
+        val removed = dao.pruneClosed(System.currentTimeMillis() - maxAgeMillis)
+        if (removed > 0) Log.d(TAG, "Pruned $removed journal row(s)")
+    }
+
+    private fun enqueue(operation: suspend () -> Unit): Deferred<Unit> {
+        val done = CompletableDeferred<Unit>()
+        val queued = queue.trySend {
+            try {
+                operation()
+                done.complete(Unit)
+            } catch (e: Exception) {
+                Log.e(TAG, "Journal operation failed", e)
+                done.completeExceptionally(e)
+            }
+        }
+        if (queued.isFailure) {
+            done.completeExceptionally(IllegalStateException("Journal is closed", queued.exceptionOrNull()))
+        }
+        return done
+    }
+
+    companion object {
+        private const val LEGACY_PREFS_NAME = "payment_recovery"
+        private const val LEGACY_TRANSACTION_ID = "legacy"
+        private const val DEFAULT_RETENTION_MS = 7L * 24 * 60 * 60 * 1000
+
+        @Volatile
+        private var instance: TransactionJournal? = null
+
+        fun getInstance(context: Context): TransactionJournal {
+            return instance ?: synchronized(this) {
+                instance ?: TransactionJournal(AppDatabase.getDatabase(context)).also { instance = it }
+            }
+        }
+    }
+}
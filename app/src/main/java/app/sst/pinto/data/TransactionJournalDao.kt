@@ -0,0 +1,43 @@
+package app.sst.pinto.data
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.Query
+
+@Dao
+interface TransactionJournalDao {
+    @Insert
+    suspend fun insert(entry: TransactionJournalEntry): Long
+
+    @Insert
+    suspend fun insertAll(entries: List<TransactionJournalEntry>)
+
+    // Items of [kind] whose newest row is still OPEN, oldest first
+    @Query(
+        """
+        SELECT * FROM transaction_journal AS j
+        WHERE j.kind = :kind AND j.status = 'OPEN'
+        AND NOT EXISTS (
+            SELECT 1 FROM transaction_journal AS later
+            WHERE later.transactionId = j.transactionId AND later.kind = j.kind AND later.id > j.id
+        )
+        ORDER BY j.id
+        """
+    )
+    suspend fun openEntries(kind: String): List<TransactionJournalEntry>
+
+    // Drops the history of transactions with nothing left open
+    @Query(
+        """
+        DELETE FROM transaction_journal
+        WHERE createdAt < :before AND transactionId NOT IN (
+            SELECT j.transactionId FROM transaction_journal AS j
+            WHERE j.status = 'OPEN' AND NOT EXISTS (
+                SELECT 1 FROM transaction_journal AS later
+                WHERE later.transactionId = j.transactionId AND later.kind = j.kind AND later.id > j.id
+            )
+        )
+        """
+    )
+    suspend fun pruneClosed(before: Long): Int
+}
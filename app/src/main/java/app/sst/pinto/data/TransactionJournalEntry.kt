@@ -0,0 +1,46 @@
+package app.sst.pinto.data
+
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+
+/**
+ * One row of the write-ahead transaction journal.
+ *
+ * Rows are only ever appended: opening a recovery item and closing it are
+ * separate rows, so the journal keeps the full history of a transaction.
+ * An item is pending while the newest row for its (transactionId, kind) is
+ * [STATUS_OPEN].
+ */
+@Entity(
+    tableName = "transaction_journal",
+    indices = [
+        Index(value = ["transactionId", "kind"]),
+        Index(value = ["kind", "status"])
+    ]
+)
+data class TransactionJournalEntry(
+    @PrimaryKey(autoGenerate = true) val id: Long = 0,
+    val transactionId: String,
+    val kind: String,
+    val status: String,
+    val amount: Int = 0,
+    val provider: String = "",
+    // Terminal-side reference needed to reverse the sale
+    val reference: String = "",
+    // Raw message for KIND_CRITICAL_MESSAGE rows
+    val payload: String? = null,
+    val createdAt: Long = System.currentTimeMillis()
+) {
+    companion object {
+        /** NNSmart sale taken before the backend limit verdict; reverse it on restart. */
+        const val KIND_SALE_RECOVERY = "SALE_RECOVERY"
+        /** Sale approved but the ticket is not confirmed printed yet. */
+        const val KIND_TICKET_PRINT = "TICKET_PRINT"
+        /** REVERSAL_RESULT that could not be delivered to the backend yet. */
+        const val KIND_CRITICAL_MESSAGE = "CRITICAL_MESSAGE"
+
+        const val STATUS_OPEN = "OPEN"
+        const val STATUS_CLOSED = "CLOSED"
+    }
+}
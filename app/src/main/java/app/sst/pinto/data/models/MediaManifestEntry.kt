@@ -0,0 +1,17 @@
+package app.sst.pinto.data.models
+
+import com.squareup.moshi.JsonClass
+
+/**
+ * Expected content of one media asset, as sent in DEVICE_INFO
+ * `mediaManifest` (keyed by local file name, e.g. "charlie.mp4").
+ *
+ * [sha256] is the lowercase hex SHA-256 of the file and [size] its length
+ * in bytes, if the server knows it. A downloaded file that does not match
+ * is quarantined instead of played.
+ */
+@JsonClass(generateAdapter = true)
+data class MediaManifestEntry(
+    val sha256: String,
+    val size: Long? = null
+)
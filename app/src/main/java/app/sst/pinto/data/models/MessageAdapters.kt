@@ -0,0 +1,71 @@
+package app.sst.pinto.data.models
+
+import com.squareup.moshi.JsonAdapter
+import com.squareup.moshi.Moshi
+import com.squareup.moshi.Types
+
+/**
+ * Pre-built registry of the Moshi adapters used for socket messages.
+ *
+ * Every model type is annotated with `@JsonClass(generateAdapter = true)` and
+ * its adapter is generated by moshi-kotlin-codegen (KSP) at build time. The
+ * [moshi] instance deliberately has no `KotlinJsonAdapterFactory`, so a model
+ * without a generated adapter fails loudly instead of silently falling back
+ * to kotlin-reflect (which is what made cold start slow on kiosks).
+ *
+ * When adding a new message type, add it to [registeredTypes] as well so it
+ * is warmed up at startup and covered by MessageAdaptersTest.
+ */
+object MessageAdapters {
+
+    val moshi: Moshi = Moshi.Builder().build()
+
+    val socketMessage: JsonAdapter<SocketMessage> = moshi.adapter(SocketMessage::class.java)
+
+    val messageData: JsonAdapter<MessageData> = moshi.adapter(MessageData::class.java)
+
+    val pendingRecovery: JsonAdapter<PendingRecoveryTransaction> =
+        moshi.adapter(PendingRecoveryTransaction::class.java)
+
+    val pendingTicketPrint: JsonAdapter<PendingTicketPrintTransaction> =
+        moshi.adapter(PendingTicketPrintTransaction::class.java)
+
+    val sessionRecord: JsonAdapter<SessionRecord> = moshi.adapter(SessionRecord::class.java)
+
+    val timeoutPolicies: JsonAdapter<Map<String, TimeoutPolicyConfig>> = moshi.adapter(
+        Types.newParameterizedType(Map::class.java, String::class.java, TimeoutPolicyConfig::class.java)
+    )
+
+    val mediaManifest: JsonAdapter<Map<String, MediaManifestEntry>> = moshi.adapter(
+        Types.newParameterizedType(Map::class.java, String::class.java, MediaManifestEntry::class.java)
+    )
+
+    /**
+     * All model types that cross the socket or are persisted as JSON.
+     */
+    val registeredTypes: List<Class<*>> = listOf(
+        SocketMessage::class.java,
+        MessageData::class.java,
+        PendingRecoveryTransaction::class.java,
+        PendingTicketPrintTransaction::class.java,
+        SessionRecord::class.java,
+        TimeoutPolicyConfig::class.java,
+        MediaManifestEntry::class.java
+    )
+
+    private const val WARM_UP_FRAME =
+        """{"messageType":"SCREEN_CHANGE","screen":"AMOUNT_SELECT","data":{"amounts":[20,40],"currency":"£","showOtherOption":true},"transactionId":"warm-up","timestamp":0}"""
+
+    /**
+     * Load every registered adapter and run one parse/serialize round trip so
+     * class loading and the first-use JIT happen before the first real frame.
+     * Safe to call from any thread; call it off the main thread at startup.
+     */
+    fun warmUp() {
+        registeredTypes.forEach { moshi.adapter<Any>(it) }
+        val message = socketMessage.fromJson(WARM_UP_FRAME)
+        if (message != null) {
+            socketMessage.toJson(message)
+        }
+    }
+}
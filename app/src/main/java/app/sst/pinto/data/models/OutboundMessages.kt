@@ -0,0 +1,115 @@
+package app.sst.pinto.data.models
+
+import app.sst.pinto.utils.TransactionTracer
+
+/**
+ * Typed messages the app sends to the backend outside of USER_ACTION.
+ *
+ * These are serialized by [app.sst.pinto.network.MessageEncoder], which
+ * writes the exact wire format the server expects (field names and order
+ * match the old hand-built JSON strings), with proper JSON escaping.
+ */
+sealed class OutboundMessage {
+    abstract val messageType: String
+    abstract val screen: String
+    abstract val transactionId: String
+    abstract val timestamp: Long
+}
+
+/**
+ * PAYMENT_RESULT sent after a sale completes or fails on the terminal.
+ */
+data class PaymentResultMessage(
+    val success: Boolean,
+    override val transactionId: String,
+    val resultCode: String?,
+    val message: String?,
+    val bankResultCode: String? = null,
+    override val timestamp: Long = System.currentTimeMillis()
+) : OutboundMessage() {
+    override val messageType: String get() = "PAYMENT_RESULT"
+    override val screen: String get() = if (success) "SUCCESS" else "FAILED"
+}
+
+/**
+ * REVERSAL_RESULT for any reversal / cancellation outcome.
+ *
+ * When [requesterTransRefNum] is null no reversal was attempted (e.g. there
+ * was no sale to reverse) and only the error fields are sent, with an empty
+ * `paymentDetails` object.
+ */
+data class ReversalResultMessage(
+    val success: Boolean,
+    override val transactionId: String,
+    val resultCode: String?,
+    val message: String?,
+    val bankResultCode: String? = if (success) "00" else null,
+    val requesterTransRefNum: String? = null,
+    val originalRequesterTransRefNum: String? = null,
+    val originalTransactionId: String? = null,
+    val reversalAmount: Int? = null,
+    override val timestamp: Long = System.currentTimeMillis()
+) : OutboundMessage() {
+    override val messageType: String get() = "REVERSAL_RESULT"
+    override val screen: String get() = if (success) "SUCCESS" else "FAILED"
+
+    companion object {
+        /** A failed REVERSAL_RESULT where no terminal reversal was attempted. */
+        fun notAttempted(transactionId: String, errorCode: String, errorMessage: String) =
+            ReversalResultMessage(
+                success = false,
+                transactionId = transactionId,
+                resultCode = errorCode,
+                message = errorMessage
+            )
+    }
+}
+
+/**
+ * CARD_CHECK_RESULT carrying the card token (Integra) or PAR (NNSmart) for
+ * the backend daily-limit check.
+ */
+data class CardCheckResultMessage(
+    override val transactionId: String,
+    val cardToken: String?,
+    val selectedAmount: Int,
+    override val timestamp: Long = System.currentTimeMillis()
+) : OutboundMessage() {
+    override val messageType: String get() = "CARD_CHECK_RESULT"
+    override val screen: String get() = "PROCESSING"
+}
+
+/**
+ * DEVICE_INFO reply to an INFO_SCREEN request. [screen] is DEVICE_IP or
+ * DEVICE_SERIAL; use the factory functions.
+ */
+data class DeviceDetailsMessage(
+    override val screen: String,
+    override val transactionId: String,
+    val deviceIpAddress: String? = null,
+    val deviceSerialNumber: String? = null,
+    override val timestamp: Long = System.currentTimeMillis()
+) : OutboundMessage() {
+    override val messageType: String get() = "DEVICE_INFO"
+
+    companion object {
+        fun ipAddress(transactionId: String, ipAddress: String) =
+            DeviceDetailsMessage(screen = "DEVICE_IP", transactionId = transactionId, deviceIpAddress = ipAddress)
+
+        fun serialNumber(transactionId: String, serialNumber: String) =
+            DeviceDetailsMessage(screen = "DEVICE_SERIAL", transactionId = transactionId, deviceSerialNumber = serialNumber)
+    }
+}
+
+/**
+ * TELEMETRY batch of finished latency traces. [transactionId] identifies
+ * the batch, not a payment; each trace carries its own.
+ */
+data class TelemetryMessage(
+    override val transactionId: String,
+    val traces: List<TransactionTracer.Trace>,
+    override val timestamp: Long = System.currentTimeMillis()
+) : OutboundMessage() {
+    override val messageType: String get() = "TELEMETRY"
+    override val screen: String get() = "TRACES"
+}
@@ -0,0 +1,29 @@
+package app.sst.pinto.data.models
+
+import com.squareup.moshi.JsonClass
+
+/**
+ * A sale that was captured on the terminal but not yet confirmed by the
+ * backend limit check. Persisted so it can be reversed after a restart.
+ *
+ * Defaults mirror what the old `JSONObject.optXxx` reads returned, so records
+ * written by earlier app versions still decode.
+ */
+@JsonClass(generateAdapter = true)
+data class PendingRecoveryTransaction(
+    val transactionId: String = "",
+    val amount: Int = 0,
+    val originalTrxUniqueId: String = "",
+    val provider: String = "nnsmart"
+)
+
+/**
+ * An approved sale whose ticket print has not been confirmed yet.
+ */
+@JsonClass(generateAdapter = true)
+data class PendingTicketPrintTransaction(
+    val transactionId: String = "",
+    val amount: Int = 0,
+    val originalRequesterRef: String = "",
+    val provider: String = "nnsmart"
+)
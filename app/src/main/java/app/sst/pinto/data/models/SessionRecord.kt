@@ -0,0 +1,56 @@
+package app.sst.pinto.data.models
+
+import com.squareup.moshi.JsonClass
+
+/**
+ * One line of a session recording (see app.sst.pinto.utils.SessionRecorder).
+ *
+ * [at] is milliseconds since the recording started, on the monotonic clock.
+ * Which other fields are set depends on [kind]:
+ * - IN / OUT: [frame], the raw socket frame
+ * - RESULT: [op], [transactionId], [success], [resultCode], [message]
+ * - FIRE: [event], [state], [message], [accepted], [site] (timer whose action fired it)
+ * - ARM: [site], [transactionId], [delayMillis]
+ * - TIMER: [site], [transactionId]
+ * - END: [transactionId] (its timers were cancelled)
+ * - RELEASE: the user asked to leave LIMIT_ERROR
+ * - INPUT: [op] (one of the INPUT_ names), [message] its argument if any
+ * - CONNECTION: [state], the socket connection state the view model saw
+ */
+@JsonClass(generateAdapter = true)
+data class SessionRecord(
+    val at: Long,
+    val kind: String,
+    val frame: String? = null,
+    val transactionId: String? = null,
+    val op: String? = null,
+    val success: Boolean? = null,
+    val resultCode: String? = null,
+    val message: String? = null,
+    val event: String? = null,
+    val state: String? = null,
+    val accepted: Boolean? = null,
+    val site: String? = null,
+    val delayMillis: Long? = null
+) {
+    companion object {
+        const val KIND_IN = "IN"
+        const val KIND_OUT = "OUT"
+        const val KIND_RESULT = "RESULT"
+        const val KIND_FIRE = "FIRE"
+        const val KIND_ARM = "ARM"
+        const val KIND_TIMER = "TIMER"
+        const val KIND_END = "END"
+        const val KIND_RELEASE = "RELEASE"
+        const val KIND_INPUT = "INPUT"
+        const val KIND_CONNECTION = "CONNECTION"
+
+        // What the customer (or the app shell) asked the view model to do
+        const val INPUT_CONNECT = "CONNECT"
+        const val INPUT_SELECT_AMOUNT = "SELECT_AMOUNT"
+        const val INPUT_SELECT_PAYMENT_METHOD = "SELECT_PAYMENT_METHOD"
+        const val INPUT_RECEIPT_RESPONSE = "RECEIPT_RESPONSE"
+        const val INPUT_CANCEL_PAYMENT = "CANCEL_PAYMENT"
+        const val INPUT_DISMISS_SCREENSAVER = "DISMISS_SCREENSAVER"
+    }
+}
@@ -46,6 +46,18 @@ data class MessageData(
     @Json(name = "yaspaEnabled") val yaspaEnabled: Boolean? = null,
     @Json(name = "paymentProvider") val paymentProvider: String? = null,
     @Json(name = "requireCardReceipt") val requireCardReceipt: Boolean? = null,
+    // Per-site overrides for timed screen transitions, keyed by TimerSite name (ms)
+    @Json(name = "timerDurations") val timerDurations: Map<String, Long>? = null,
+    // Per-screen inactivity policies, keyed by screen state name or "default"
+    @Json(name = "timeoutPolicies") val timeoutPolicies: Map<String, TimeoutPolicyConfig>? = null,
+    // Byte budget of the downloaded media cache, in megabytes
+    @Json(name = "mediaCacheBudgetMb") val mediaCacheBudgetMb: Int? = null,
+    // Screensaver playlist in play order: site names or video URLs
+    @Json(name = "screensaverPlaylist") val screensaverPlaylist: List<String>? = null,
+    // Expected SHA-256 and size of media assets, keyed by local file name
+    @Json(name = "mediaManifest") val mediaManifest: Map<String, MediaManifestEntry>? = null,
+    // Rate cap of background media downloads, in kilobits per second
+    @Json(name = "prefetchRateKbps") val prefetchRateKbps: Int? = null,
     
     // Card check result fields.
     // For Integra this carries the card token from CardCheckEmv.
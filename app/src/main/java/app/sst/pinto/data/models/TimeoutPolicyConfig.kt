@@ -0,0 +1,18 @@
+package app.sst.pinto.data.models
+
+import com.squareup.moshi.JsonClass
+
+/**
+ * Inactivity policy for one screen, as sent in DEVICE_INFO `timeoutPolicies`
+ * (keyed by screen state name, e.g. "AmountSelect", or "default").
+ *
+ * [idleMillis] is how long the screen may sit untouched. For the last
+ * [warningMillis] of it the kiosk shows a "still there?" prompt. [action]
+ * is SCREENSAVER, CANCEL_PAYMENT, RETURN_TO_START or NONE.
+ */
+@JsonClass(generateAdapter = true)
+data class TimeoutPolicyConfig(
+    val idleMillis: Long,
+    val warningMillis: Long? = null,
+    val action: String
+)
@@ -0,0 +1,106 @@
+package app.sst.pinto.network
+
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.MessageData
+import app.sst.pinto.data.models.SocketMessage
+import com.squareup.moshi.JsonDataException
+import com.squareup.moshi.JsonReader
+import okio.Buffer
+
+/**
+ * Two-stage decoder for inbound socket frames.
+ *
+ * Stage one peeks the frame and matches only `messageType` against the known
+ * types with [JsonReader.selectString], skipping every other value. Frames
+ * with an unknown or missing type are dropped here without materializing
+ * any strings. Stage two reads the envelope and only decodes the `data`
+ * payload with the generated [MessageData] adapter for types that use it.
+ */
+object MessageDecoder {
+
+    /**
+     * Message types the client handles. [needsPayload] is false for types
+     * whose handlers never look at `data`.
+     */
+    enum class Type(val wireName: String, val needsPayload: Boolean) {
+        SCREEN_CHANGE("SCREEN_CHANGE", true),
+        ERROR("ERROR", true),
+        STATUS_UPDATE("STATUS_UPDATE", false),
+        LIMIT_CHECK_RESULT("LIMIT_CHECK_RESULT", true),
+        DEVICE_INFO("DEVICE_INFO", true),
+        RESTART_APP("RESTART_APP", false),
+        REFUND_REQUEST("REFUND_REQUEST", true),
+        REVERSAL_REQUEST("REVERSAL_REQUEST", true)
+    }
+
+    private val types = Type.values()
+    private val typeOptions = JsonReader.Options.of(*types.map { it.wireName }.toTypedArray())
+
+    private val typeNameOption = JsonReader.Options.of("messageType")
+    private val envelopeOptions = JsonReader.Options.of("screen", "data", "transactionId", "timestamp")
+
+    /**
+     * Decode [json], or return null when the frame's type is not one the
+     * client handles. Throws [JsonDataException] / [java.io.IOException] for
+     * malformed frames of a known type, like the full adapter did.
+     */
+    fun decode(json: String): SocketMessage? {
+        val reader = JsonReader.of(Buffer().writeUtf8(json))
+        val type = peekType(reader) ?: return null
+
+        var screen: String? = null
+        var data: MessageData? = null
+        var transactionId: String? = null
+        var timestamp: Long? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.selectName(envelopeOptions)) {
+                0 -> screen = reader.nextString()
+                1 -> data = if (type.needsPayload) MessageAdapters.messageData.fromJson(reader) else skip(reader)
+                2 -> transactionId = reader.nextString()
+                3 -> timestamp = reader.nextLong()
+                else -> {
+                    reader.skipName()
+                    reader.skipValue()
+                }
+            }
+        }
+        reader.endObject()
+
+        return SocketMessage(
+            messageType = type.wireName,
+            screen = screen ?: throw missing("screen", reader),
+            data = data,
+            transactionId = transactionId ?: throw missing("transactionId", reader),
+            timestamp = timestamp ?: throw missing("timestamp", reader)
+        )
+    }
+
+    /**
+     * Stage one: find `messageType` on a peeked copy of the stream.
+     */
+    private fun peekType(reader: JsonReader): Type? {
+        val peek = reader.peekJson()
+        if (peek.peek() != JsonReader.Token.BEGIN_OBJECT) return null
+        peek.beginObject()
+        while (peek.hasNext()) {
+            if (peek.selectName(typeNameOption) == 0) {
+                if (peek.peek() != JsonReader.Token.STRING) return null
+                val index = peek.selectString(typeOptions)
+                return if (index >= 0) types[index] else null
+            }
+            peek.skipName()
+            peek.skipValue()
+        }
+        return null
+    }
+
+    private fun skip(reader: JsonReader): MessageData? {
+        reader.skipValue()
+        return null
+    }
+
+    private fun missing(name: String, reader: JsonReader) =
+        JsonDataException("Required value '$name' missing at ${reader.path}")
+}
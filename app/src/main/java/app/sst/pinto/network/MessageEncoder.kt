@@ -0,0 +1,147 @@
+package app.sst.pinto.network
+
+import app.sst.pinto.data.models.CardCheckResultMessage
+import app.sst.pinto.data.models.DeviceDetailsMessage
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.OutboundMessage
+import app.sst.pinto.data.models.PaymentResultMessage
+import app.sst.pinto.data.models.ReversalResultMessage
+import app.sst.pinto.data.models.SocketMessage
+import app.sst.pinto.data.models.TelemetryMessage
+import com.squareup.moshi.JsonWriter
+import okio.Buffer
+
+/**
+ * Single encoder shared by everything that sends to the backend.
+ *
+ * Messages are streamed with one long-lived [JsonWriter] into one reusable
+ * [Buffer], then read out as a String for [SocketManager.sendMessage]. The
+ * writer is lenient so it accepts one top-level document after another; all
+ * access is serialized on this object.
+ */
+object MessageEncoder {
+
+    private val buffer = Buffer()
+    private var writer: JsonWriter = newWriter()
+
+    private fun newWriter(): JsonWriter = JsonWriter.of(buffer).apply {
+        isLenient = true
+        // The server contract uses explicit nulls (e.g. "errorCode": null).
+        serializeNulls = true
+    }
+
+    /**
+     * Encode a typed outbound message.
+     */
+    fun encode(message: OutboundMessage): String = synchronized(this) {
+        write {
+            beginObject()
+            name("messageType").value(message.messageType)
+            name("screen").value(message.screen)
+            name("data")
+            beginObject()
+            when (message) {
+                is PaymentResultMessage -> writePaymentResult(message)
+                is ReversalResultMessage -> writeReversalResult(message)
+                is CardCheckResultMessage -> writeCardCheckResult(message)
+                is DeviceDetailsMessage -> writeDeviceDetails(message)
+                is TelemetryMessage -> writeTelemetry(message)
+            }
+            endObject()
+            name("transactionId").value(message.transactionId)
+            name("timestamp").value(message.timestamp)
+            endObject()
+        }
+    }
+
+    /**
+     * Encode a USER_ACTION style [SocketMessage] through its generated adapter.
+     * Null fields are omitted, as they always have been for these messages.
+     */
+    fun encode(message: SocketMessage): String = synchronized(this) {
+        write {
+            serializeNulls = false
+            try {
+                MessageAdapters.socketMessage.toJson(this, message)
+            } finally {
+                serializeNulls = true
+            }
+        }
+    }
+
+    private inline fun write(block: JsonWriter.() -> Unit): String {
+        try {
+            writer.block()
+            writer.flush()
+            return buffer.readUtf8()
+        } catch (e: Exception) {
+            // Never leave a half-written document behind for the next caller.
+            buffer.clear()
+            writer = newWriter()
+            throw e
+        }
+    }
+
+    private fun JsonWriter.writePaymentResult(message: PaymentResultMessage) {
+        name("errorCode").value(message.resultCode)
+        name("errorMessage").value(message.message)
+        name("paymentDetails")
+        beginObject()
+        name("Result").value(message.resultCode.orEmpty())
+        name("BankResultCode").value(message.bankResultCode.orEmpty())
+        name("Message").value(message.message.orEmpty())
+        name("RequesterTransRefNum").value(message.transactionId)
+        endObject()
+    }
+
+    private fun JsonWriter.writeReversalResult(message: ReversalResultMessage) {
+        name("errorCode").value(message.resultCode)
+        name("errorMessage").value(message.message)
+        name("paymentDetails")
+        beginObject()
+        if (message.requesterTransRefNum != null) {
+            name("Result").value(message.resultCode.orEmpty())
+            name("BankResultCode").value(message.bankResultCode.orEmpty())
+            name("Message").value(message.message.orEmpty())
+            name("RequesterTransRefNum").value(message.requesterTransRefNum)
+            name("OriginalRequesterTransRefNum").value(message.originalRequesterTransRefNum.orEmpty())
+        }
+        endObject()
+        if (message.requesterTransRefNum != null) {
+            name("originalTransactionId").value(message.originalTransactionId.orEmpty())
+            name("reversalAmount").value(message.reversalAmount?.toLong() ?: 0L)
+        }
+    }
+
+    private fun JsonWriter.writeCardCheckResult(message: CardCheckResultMessage) {
+        name("cardToken").value(message.cardToken)
+        name("selectedAmount").value(message.selectedAmount.toLong())
+    }
+
+    private fun JsonWriter.writeDeviceDetails(message: DeviceDetailsMessage) {
+        message.deviceIpAddress?.let { name("deviceIpAddress").value(it) }
+        message.deviceSerialNumber?.let { name("deviceSerialNumber").value(it) }
+    }
+
+    private fun JsonWriter.writeTelemetry(message: TelemetryMessage) {
+        name("traces")
+        beginArray()
+        for (trace in message.traces) {
+            beginObject()
+            name("transactionId").value(trace.transactionId)
+            name("startedAt").value(trace.startedAtMillis)
+            name("marks")
+            beginArray()
+            for (mark in trace.marks) {
+                beginObject()
+                name("mark").value(mark.mark.name)
+                name("offsetMs").value(mark.offsetMillis)
+                name("detail").value(mark.detail)
+                endObject()
+            }
+            endArray()
+            endObject()
+        }
+        endArray()
+    }
+}
@@ -0,0 +1,28 @@
+package app.sst.pinto.network
+
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+
+/**
+ * The backend link as PaymentViewModel uses it: raw frames in and out and
+ * the connection state. [SocketManager] is the WebSocket implementation;
+ * session replay drives the view model through an in-process one.
+ */
+interface MessageTransport {
+    val connectionState: StateFlow<SocketManager.ConnectionState>
+
+    /** Raw frames from the backend, in arrival order. */
+    val messageReceived: SharedFlow<String>
+
+    fun connect(url: String)
+
+    fun disconnect()
+
+    /** Make sure the link is up, reconnecting if it dropped. */
+    fun ensureConnected()
+
+    fun isConnected(): Boolean
+
+    /** Send [message]; false if it could not be handed to the link. */
+    fun sendMessage(message: String): Boolean
+}
@@ -2,6 +2,7 @@ package app.sst.pinto.network
 
 import android.util.Log
 import app.sst.pinto.utils.FileLogger
+import app.sst.pinto.utils.SessionRecorder
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
@@ -19,7 +20,7 @@ import okhttp3.WebSocketListener
 import org.json.JSONObject
 import java.util.concurrent.TimeUnit
 
-class SocketManager private constructor() {
+class SocketManager private constructor() : MessageTransport {
     private val TAG = "SocketManager"
     private var fileLogger: FileLogger? = null
 
@@ -56,7 +57,7 @@ class SocketManager private constructor() {
 
     // Connection state
     private val _connectionState = MutableStateFlow(ConnectionState.DISCONNECTED)
-    val connectionState: StateFlow<ConnectionState> = _connectionState
+    override val connectionState: StateFlow<ConnectionState> = _connectionState
 
     // Message receiver - use SharedFlow with buffer to queue all messages
     // StateFlow only holds latest value, which can cause messages to be lost when they arrive quickly
@@ -64,9 +65,9 @@ class SocketManager private constructor() {
         extraBufferCapacity = 64, // Buffer up to 64 messages
         onBufferOverflow = kotlinx.coroutines.channels.BufferOverflow.SUSPEND // Suspend if buffer is full
     )
-    val messageReceived: SharedFlow<String> = _messageReceived.asSharedFlow()
+    override val messageReceived: SharedFlow<String> = _messageReceived.asSharedFlow()
 
-    fun connect(url: String) {
+    override fun connect(url: String) {
         serverUrl = url
         // Don't connect if already connected or connecting
         if (_connectionState.value == ConnectionState.CONNECTED) {
@@ -88,7 +89,7 @@ class SocketManager private constructor() {
         webSocket = client.newWebSocket(request, socketListener)
     }
 
-    fun disconnect() {
+    override fun disconnect() {
         webSocket?.close(1000, "Closing connection")
         webSocket = null
         _connectionState.value = ConnectionState.DISCONNECTED
@@ -99,7 +100,7 @@ class SocketManager private constructor() {
      * Force reconnection to the server.
      * Useful after screensaver or timeout periods.
      */
-    fun ensureConnected() {
+    override fun ensureConnected() {
         logDebug("Ensuring socket connection is active")
         when (_connectionState.value) {
             ConnectionState.CONNECTED -> {
@@ -121,11 +122,12 @@ class SocketManager private constructor() {
     /**
      * Checks connection state and returns if connected
      */
-    fun isConnected(): Boolean {
+    override fun isConnected(): Boolean {
         return _connectionState.value == ConnectionState.CONNECTED
     }
-    fun sendMessage(message: String): Boolean {
+    override fun sendMessage(message: String): Boolean {
         return if (_connectionState.value == ConnectionState.CONNECTED) {
+            SessionRecorder.outbound(message)
             webSocket?.send(message) ?: false
         } else {
             logError("Cannot send message, not connected")
@@ -141,6 +143,7 @@ class SocketManager private constructor() {
 
         override fun onMessage(webSocket: WebSocket, text: String) {
             logDebug("Message received: $text")
+            SessionRecorder.inbound(text)
             // Emit message in a coroutine scope to ensure thread safety
             // tryEmit is non-blocking and thread-safe, but using emit in a coroutine is safer
             messageScope.launch {
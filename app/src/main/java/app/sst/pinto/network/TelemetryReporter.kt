@@ -0,0 +1,44 @@
+package app.sst.pinto.network
+
+import android.util.Log
+import app.sst.pinto.data.models.TelemetryMessage
+import app.sst.pinto.utils.TransactionTracer
+import java.util.UUID
+
+/**
+ * Ships finished [TransactionTracer] traces to the backend as TELEMETRY
+ * messages, [BATCH_SIZE] traces per message. A batch is acknowledged only
+ * once the socket accepted it, so unsent traces are retried on the next call
+ * for as long as they stay in the tracer's ring.
+ */
+object TelemetryReporter {
+    private const val TAG = "TelemetryReporter"
+
+    const val BATCH_SIZE = 20
+
+    /**
+     * Send every pending trace. Returns the number of traces sent.
+     */
+    fun sendPending(): Int = synchronized(this) {
+        val socketManager = SocketManager.getInstance()
+        var sent = 0
+        while (socketManager.isConnected()) {
+            val batch = TransactionTracer.pendingBatch(BATCH_SIZE)
+            if (batch.isEmpty()) break
+            val json = MessageEncoder.encode(TelemetryMessage(UUID.randomUUID().toString(), batch))
+            if (!socketManager.sendMessage(json)) break
+            TransactionTracer.markSent(batch.last().sequence)
+            sent += batch.size
+        }
+        Log.d(TAG, "Sent $sent trace(s), ${TransactionTracer.pendingCount()} pending")
+        sent
+    }
+
+    /**
+     * Send only once a full batch is waiting, so the payment flow never pays
+     * for many small messages.
+     */
+    fun sendIfBatchReady() {
+        if (TransactionTracer.pendingCount() >= BATCH_SIZE) sendPending()
+    }
+}
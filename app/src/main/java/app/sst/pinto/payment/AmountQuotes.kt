@@ -0,0 +1,98 @@
+package app.sst.pinto.payment
+
+import app.sst.pinto.data.DeviceInfo
+
+/**
+ * Everything the payment flow needs to know about one offered amount,
+ * worked out before the customer taps it.
+ *
+ * [amount] is in whole currency units, as on the wire. [feeMinor] and
+ * [finalMinor] are exact minor units. [payableAmount] is the whole-unit
+ * total sent to the backend and charged. [limitError] is the message for
+ * the LIMIT_ERROR screen when the amount may not be paid; it is null when
+ * the amount is eligible.
+ */
+data class AmountQuote(
+    val amount: Int,
+    val feeMinor: Long,
+    val finalMinor: Long,
+    val limitError: String?
+) {
+    val payableAmount: Int get() = (finalMinor / TransactionFees.MINOR_PER_MAJOR).toInt()
+}
+
+/**
+ * The quotes for the amounts of an amount screen, and the configuration
+ * they were built from. Empty before the configuration is loaded; taps
+ * are then quoted live.
+ */
+data class QuoteTable(
+    val amounts: List<Int>,
+    val config: DeviceInfo?,
+    val quotes: Map<Int, AmountQuote>
+) {
+    /** This table if it was built from [deviceInfo], otherwise the same amounts quoted again. */
+    fun quotedWith(deviceInfo: DeviceInfo?): QuoteTable =
+        if (deviceInfo == config) this else AmountQuotes.table(amounts, deviceInfo)
+
+    companion object {
+        val EMPTY = QuoteTable(emptyList(), null, emptyMap())
+    }
+}
+
+/**
+ * Builds [AmountQuote]s from the device configuration. Limits, fees and the
+ * mock daily-limit trigger are the same rules the amount tap used to apply
+ * one at a time.
+ */
+object AmountQuotes {
+    const val DEFAULT_MIN_AMOUNT = 10
+    const val DEFAULT_MAX_AMOUNT = 300
+
+    // Mock provider only: this amount simulates the daily spending limit.
+    private const val MOCK_DAILY_LIMIT_AMOUNT = 101
+
+    /**
+     * Quote every amount in [amounts] against [deviceInfo].
+     */
+    fun build(amounts: List<Int>, deviceInfo: DeviceInfo?): Map<Int, AmountQuote> =
+        amounts.associateWith { quote(it, deviceInfo) }
+
+    /**
+     * A [QuoteTable] for [amounts]; without a configuration it holds no quotes.
+     */
+    fun table(amounts: List<Int>, deviceInfo: DeviceInfo?): QuoteTable =
+        QuoteTable(amounts, deviceInfo, if (deviceInfo != null) build(amounts, deviceInfo) else emptyMap())
+
+    fun quote(amount: Int, deviceInfo: DeviceInfo?): AmountQuote {
+        val minAmount = deviceInfo?.minTransactionLimit?.toInt() ?: DEFAULT_MIN_AMOUNT
+        val maxAmount = deviceInfo?.maxTransactionLimit?.toInt() ?: DEFAULT_MAX_AMOUNT
+        val symbol = currencySymbol(deviceInfo?.currency ?: "GBP")
+        val provider = deviceInfo?.paymentProvider?.lowercase() ?: "nnsmart"
+
+        val limitError = when {
+            amount < minAmount -> "Minimum transaction limit is $symbol$minAmount"
+            amount > maxAmount -> "Maximum transaction limit is $symbol$maxAmount"
+            provider == "mock" && amount == MOCK_DAILY_LIMIT_AMOUNT -> "Daily spending limit exceeded"
+            else -> null
+        }
+
+        val amountMinor = amount * TransactionFees.MINOR_PER_MAJOR
+        val feeMinor = if (deviceInfo != null) {
+            TransactionFees.feeMinor(amountMinor, deviceInfo.transactionFeeType, deviceInfo.transactionFeeValue)
+        } else {
+            0L
+        }
+        return AmountQuote(amount, feeMinor, amountMinor + feeMinor, limitError)
+    }
+
+    /**
+     * Display symbol for a currency code; unknown codes are shown as-is.
+     */
+    fun currencySymbol(currencyCode: String): String = when (currencyCode.uppercase()) {
+        "GBP" -> "£"
+        "USD" -> "$"
+        "EUR" -> "€"
+        else -> currencyCode
+    }
+}
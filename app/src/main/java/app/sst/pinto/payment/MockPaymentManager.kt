@@ -1,6 +1,7 @@
 package app.sst.pinto.payment
 
 import android.util.Log
+import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
@@ -15,6 +16,37 @@ import java.util.UUID
  */
 object MockPaymentManager {
     private const val TAG = "MockPaymentManager"
+
+    /**
+     * Scale for the simulated terminal delays. 0 makes every call return
+     * immediately (soak tests); 1 is the realistic default.
+     */
+    @Volatile
+    var latencyScale: Double = 1.0
+
+    /**
+     * Where the simulated terminal runs. Tests that drive the view model at
+     * virtual time point this at their test dispatcher.
+     */
+    @Volatile
+    var dispatcher: CoroutineDispatcher = Dispatchers.IO
+
+    /**
+     * A terminal outcome to give instead of the simulated one.
+     */
+    data class Outcome(val success: Boolean, val resultCode: String?, val message: String?)
+
+    /**
+     * Outcomes to give instead of the simulated ones, e.g. the recorded
+     * results of a session being replayed. Called with the operation
+     * ([OP_CARD_CHECK], [OP_SALE]) and the requester reference; it may
+     * suspend for as long as the terminal took. Null keeps the simulation.
+     */
+    @Volatile
+    var outcomes: (suspend (op: String, requesterRef: String) -> Outcome?)? = null
+
+    const val OP_CARD_CHECK = "CARD_CHECK"
+    const val OP_SALE = "SALE"
     
     /**
      * Perform a mock card check (CardCheckEmv) to validate card and get token.
@@ -26,11 +58,13 @@ object MockPaymentManager {
     suspend fun performCardCheck(
         requesterRef: String,
         amountFormatted: String? = null
-    ): CardCheckResult = withContext(Dispatchers.IO) {
+    ): CardCheckResult = withContext(dispatcher) {
         Log.d(TAG, "Starting mock card check: ref=$requesterRef, amount=$amountFormatted")
         
-        // Simulate network delay (1-2 seconds)
-        delay((1000..2000).random().toLong())
+        // A scripted outcome stands in for the terminal; otherwise simulate
+        // network delay (1-2 seconds)
+        val scripted = outcomes?.invoke(OP_CARD_CHECK, requesterRef)
+        if (scripted == null) simulateLatency(1000..2000)
         
         // Generate a mock token
         val mockToken = "MOCK_TOKEN_${UUID.randomUUID().toString().substring(0, 8).uppercase()}"
@@ -38,15 +72,17 @@ object MockPaymentManager {
         
         Log.d(TAG, "Mock card check completed: token=$mockToken, sequenceNumber=$mockSequenceNumber")
         
+        val resultCode = scripted?.resultCode ?: "A"
+        val message = scripted?.message ?: "APPROVED"
         CardCheckResult(
-            success = true,
+            success = scripted?.success ?: true,
             token = mockToken,
-            resultCode = "A",
-            message = "APPROVED",
+            resultCode = resultCode,
+            message = message,
             sequenceNumber = mockSequenceNumber,
             rawOptions = mapOf(
-                "Result" to "A",
-                "Message" to "APPROVED",
+                "Result" to resultCode,
+                "Message" to message,
                 "Token" to mockToken,
                 "CardToken" to mockToken,
                 "SequenceNumber" to mockSequenceNumber
@@ -68,11 +104,24 @@ object MockPaymentManager {
     suspend fun performSale(
         amountFormatted: String,
         requesterRef: String
-    ): PlanetPaymentResult = withContext(Dispatchers.IO) {
+    ): PlanetPaymentResult = withContext(dispatcher) {
         Log.d(TAG, "Starting mock sale: amount=$amountFormatted, ref=$requesterRef")
         
-        // Simulate network delay (2-4 seconds)
-        delay((2000..4000).random().toLong())
+        // A scripted outcome stands in for the terminal; otherwise simulate
+        // network delay (2-4 seconds)
+        val scripted = outcomes?.invoke(OP_SALE, requesterRef)
+        if (scripted == null) {
+            simulateLatency(2000..4000)
+        } else {
+            val resultCode = scripted.resultCode ?: if (scripted.success) "A" else "D"
+            return@withContext PlanetPaymentResult(
+                success = scripted.success,
+                resultCode = resultCode,
+                message = scripted.message,
+                requesterTransRefNum = requesterRef,
+                rawOptions = mapOf("Result" to resultCode, "RequesterTransRefNum" to requesterRef)
+            )
+        }
         
         // Special case: amount 101.00 triggers daily limit exceeded error
         val amountValue = amountFormatted.toDoubleOrNull() ?: 0.0
@@ -120,11 +169,11 @@ object MockPaymentManager {
     suspend fun performCancel(
         requesterRef: String,
         sequenceNumberToCancel: String?
-    ): Boolean = withContext(Dispatchers.IO) {
+    ): Boolean = withContext(dispatcher) {
         Log.d(TAG, "Starting mock cancel: ref=$requesterRef, sequenceNumber=$sequenceNumberToCancel")
         
         // Simulate network delay (500ms - 1 second)
-        delay((500..1000).random().toLong())
+        simulateLatency(500..1000)
         
         Log.d(TAG, "Mock cancel: Transaction cancelled successfully")
         true
@@ -142,11 +191,11 @@ object MockPaymentManager {
         amountFormatted: String,
         requesterRef: String,
         originalRequesterRef: String
-    ): PlanetPaymentResult = withContext(Dispatchers.IO) {
+    ): PlanetPaymentResult = withContext(dispatcher) {
         Log.d(TAG, "Starting mock sale reversal: amount=$amountFormatted, ref=$requesterRef, originalRef=$originalRequesterRef")
         
         // Simulate network delay (2-4 seconds)
-        delay((2000..4000).random().toLong())
+        simulateLatency(2000..4000)
         
         // Mock reversals always succeed
         Log.d(TAG, "Mock sale reversal: Reversal successful")
@@ -165,7 +214,18 @@ object MockPaymentManager {
             )
         )
     }
-}
-
 
+    /**
+     * Keep a mock-provider screen up for [millis], scaled by [latencyScale]
+     * like the terminal delays.
+     */
+    suspend fun hold(millis: Long) {
+        val scaled = (millis * latencyScale).toLong()
+        if (scaled > 0) delay(scaled)
+    }
 
+    private suspend fun simulateLatency(rangeMillis: IntRange) {
+        val millis = (rangeMillis.random() * latencyScale).toLong()
+        if (millis > 0) delay(millis)
+    }
+}
@@ -6,6 +6,7 @@ import android.content.Intent
 import android.content.IntentFilter
 import android.os.Build
 import android.util.Log
+import androidx.annotation.VisibleForTesting
 import app.sst.pinto.utils.FileLogger
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.sync.Mutex
@@ -109,6 +110,25 @@ object NNSmartPaymentManager {
         return p == "nnsmart" || p == "newland"
     }
 
+    /**
+     * Check that the NNSmart app is installed and has receivers for both
+     * request actions. Sends nothing to the terminal, so it is safe to call
+     * while the customer is still choosing an amount.
+     */
+    fun isTerminalAppReachable(context: Context): Boolean {
+        val pm = context.applicationContext.packageManager
+        return try {
+            val reachable = listOf(ACTION_REQUEST, ACTION_REQUEST_BACKGROUND).all { action ->
+                pm.queryBroadcastReceivers(Intent(action), 0).isNotEmpty()
+            }
+            if (!reachable) logWarn("NNSmart app has no receiver for the ECR request actions")
+            reachable
+        } catch (e: Throwable) {
+            logError("Failed to query NNSmart receivers", e)
+            false
+        }
+    }
+
     /**
      * Perform a SALE on the NNSmart terminal.
      *
@@ -310,7 +330,8 @@ object NNSmartPaymentManager {
      *      that parses and contains `trxData` / `error` / `status`.
      *   3. Fall back to reading the legacy per-field extras.
      */
-    private fun parseTransactionResponse(intent: Intent): NNSmartPaymentResult {
+    @VisibleForTesting
+    internal fun parseTransactionResponse(intent: Intent): NNSmartPaymentResult {
         val extras = intent.extras
 
         // 1. Dump every extra key/value so the actual wire format is visible
@@ -0,0 +1,124 @@
+package app.sst.pinto.payment
+
+import android.util.Log
+import app.sst.pinto.utils.LatencyStats
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+
+/**
+ * Overlaps the Planet sale's session setup with the backend limit check.
+ *
+ * The sequential flow was card check, then CARD_CHECK_RESULT and a wait
+ * for LIMIT_CHECK_RESULT, then taking the terminal lock, terminal setup
+ * and request building, then the sale. With the pipeline, [limitCheckSent]
+ * starts the session in the background as soon as the card token is sent
+ * (see PlanetPaymentManager.prepareSale): it takes the lock, makes sure
+ * the Integra instance exists and builds the validated SaleRequest. On
+ * approval, [awaitPrepared] normally returns at once, so the sale request
+ * is sent right away. The mock provider has no limit-check window and no
+ * terminal, so its runs are only timed.
+ *
+ * Every phase is timed in [stats]:
+ * - card-check
+ * - limit-check (token sent to verdict)
+ * - prepare
+ * - prepare-wait (approval to prepared sale; ~0 when fully hidden)
+ * - sale
+ * - total
+ */
+class PaymentPipeline(private val scope: CoroutineScope) {
+    private val TAG = "PaymentPipeline"
+
+    /**
+     * One pipelined payment. Created when the card check starts.
+     */
+    class Run internal constructor(
+        val transactionId: String,
+        val provider: String,
+        val amountFormatted: String
+    ) {
+        internal val startedAtNanos = System.nanoTime()
+        internal var phaseStartNanos = startedAtNanos
+        internal var preparation: Deferred<PreparedSale?>? = null
+    }
+
+    private val stats = LatencyStats("payment-pipeline")
+
+    fun begin(transactionId: String, provider: String, amountFormatted: String): Run =
+        Run(transactionId, provider.lowercase(), amountFormatted)
+
+    fun cardCheckDone(run: Run) {
+        endPhase(run, PHASE_CARD_CHECK)
+    }
+
+    /**
+     * The card token is on its way to the backend: set up the sale meanwhile.
+     */
+    fun limitCheckSent(run: Run) {
+        run.phaseStartNanos = System.nanoTime()
+        if (run.provider != "integra") return
+        run.preparation = scope.async(Dispatchers.IO) {
+            val start = System.nanoTime()
+            try {
+                PlanetPaymentManager.prepareSale(run.amountFormatted, run.transactionId)
+            } finally {
+                stats.record(PHASE_PREPARE, System.nanoTime() - start)
+            }
+        }
+    }
+
+    /**
+     * The backend approved: wait for the prepared sale (normally already done).
+     * Returns null when nothing was prepared; the sale then builds its own request.
+     */
+    suspend fun awaitPrepared(run: Run): PreparedSale? {
+        endPhase(run, PHASE_LIMIT_CHECK)
+        val preparation = run.preparation ?: return null
+        val prepared = try {
+            preparation.await()
+        } catch (e: Exception) {
+            Log.w(TAG, "Sale preparation failed for tx=${run.transactionId}", e)
+            null
+        }
+        endPhase(run, PHASE_PREPARE_WAIT)
+        return prepared
+    }
+
+    /**
+     * The backend rejected or the payment was abandoned: drop the preparation
+     * and give the terminal back if the session was already set up. A
+     * preparation that finishes after the cancel gives it back itself.
+     */
+    fun abandon(run: Run) {
+        val preparation = run.preparation ?: return
+        run.preparation = null
+        preparation.cancel()
+        PlanetPaymentManager.releasePrepared(run.transactionId)
+    }
+
+    fun saleDone(run: Run, success: Boolean) {
+        endPhase(run, PHASE_SALE)
+        val totalNanos = System.nanoTime() - run.startedAtNanos
+        stats.record(PHASE_TOTAL, totalNanos)
+        Log.d(TAG, "Payment tx=${run.transactionId} success=$success in ${totalNanos / 1_000_000}ms")
+    }
+
+    fun stats(): List<LatencyStats.Summary> = stats.snapshot()
+
+    private fun endPhase(run: Run, phase: String) {
+        val now = System.nanoTime()
+        stats.record(phase, now - run.phaseStartNanos)
+        run.phaseStartNanos = now
+    }
+
+    companion object {
+        const val PHASE_CARD_CHECK = "card-check"
+        const val PHASE_LIMIT_CHECK = "limit-check"
+        const val PHASE_PREPARE = "prepare"
+        const val PHASE_PREPARE_WAIT = "prepare-wait"
+        const val PHASE_SALE = "sale"
+        const val PHASE_TOTAL = "total"
+    }
+}
@@ -2,6 +2,7 @@ package app.sst.pinto.payment
 
 import android.util.Log
 import app.sst.pinto.utils.FileLogger
+import app.sst.pinto.utils.TransactionTracer
 import app.sst.pinto.utils.getDeviceIpAddress
 import integrate_clientsdk.CommunicationContext
 import integrate_clientsdk.Error.ErrorType
@@ -25,10 +26,13 @@ import integrate_clientsdk.response.IStatusUpdateHandler
 import integrate_clientsdk.response.Response
 import integrate_clientsdk.response.StatusUpdate
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.isActive
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 
 data class PlanetPaymentResult(
     val success: Boolean,
@@ -39,6 +43,42 @@ data class PlanetPaymentResult(
     val rawOptions: Map<String, String> = emptyMap()
 )
 
+/**
+ * The terminal, held for one sale while its backend limit check runs (see
+ * [PlanetPaymentManager.prepareSale]): the transaction lock is taken, the
+ * Integra instance is ready and the SaleRequest is built.
+ * [PlanetPaymentManager.performSale] runs on it and gives the terminal
+ * back; [release] gives it back unused. Releasing twice is harmless.
+ */
+class PreparedSale internal constructor(
+    val requesterRef: String,
+    val amountFormatted: String,
+    internal val request: IRequest,
+    private val giveBack: (PreparedSale) -> Unit
+) {
+    private val state = AtomicInteger(HELD)
+
+    /**
+     * Give the terminal back unless a sale is already running on it.
+     */
+    fun release() {
+        if (state.compareAndSet(HELD, RELEASED)) giveBack(this)
+    }
+
+    // The sale takes over the held lock; false once the session was released
+    internal fun claim(): Boolean = state.compareAndSet(HELD, CLAIMED)
+
+    internal fun finish() {
+        if (state.compareAndSet(CLAIMED, RELEASED)) giveBack(this)
+    }
+
+    private companion object {
+        const val HELD = 0
+        const val CLAIMED = 1
+        const val RELEASED = 2
+    }
+}
+
 data class CardCheckResult(
     val success: Boolean,
     val token: String? = null,
@@ -96,6 +136,10 @@ object PlanetPaymentManager {
     // Mutex to ensure only one transaction runs at a time
     // (Planet SDK may not handle concurrent transactions well)
     private val transactionMutex = Mutex()
+
+    // Sale session holding the lock while its limit verdict is pending;
+    // cleared once the session is claimed or given back
+    private val heldSale = AtomicReference<PreparedSale?>(null)
     
     // Reusable Integra instance (following Planet SDK sample pattern)
     // The samples show that keeping the Integra instance alive allows it to properly
@@ -112,6 +156,17 @@ object PlanetPaymentManager {
     private var currentTerminalPort: String? = null
     @Volatile
     private var isConnected: Boolean = false
+        set(value) {
+            field = value
+            if (!value) channelDropped = true
+        }
+
+    // Whether the current instance's channel has been marked down since it
+    // was created. A new instance (e.g. a pre-warmed one) is not connected
+    // yet but is fine to use: the SDK connects on the first request. Only an
+    // instance whose channel dropped or failed is recreated.
+    @Volatile
+    private var channelDropped: Boolean = false
     
     // Track if logger has been initialized (should only be done once)
     @Volatile
@@ -234,7 +289,7 @@ object PlanetPaymentManager {
             if (sharedIntegra != null && 
                 currentTerminalIp == terminalIp && 
                 currentTerminalPort == terminalPort &&
-                isConnected) {
+                !channelDropped) {
                 Log.d(TAG, "Integra already initialized, skipping early initialization")
                 return true
             }
@@ -278,19 +333,151 @@ object PlanetPaymentManager {
         }
     }
 
+    /**
+     * Make sure an Integra instance for [terminalIp] exists before a sale needs it.
+     *
+     * Never starts a transaction and never disturbs one: the check and any
+     * creation run under the transaction lock, so it returns at once while
+     * a transaction holds the terminal and no transaction can start while
+     * it works. An existing instance for the same terminal is reused, and
+     * the instance it creates is the one the next transaction uses.
+     *
+     * @return true if an Integra instance is ready for the next transaction
+     */
+    fun prewarm(
+        terminalIp: String = getDeviceIpAddress(),
+        terminalPort: String = DEFAULT_TERMINAL_PORT
+    ): Boolean {
+        if (!transactionMutex.tryLock()) {
+            Log.d(TAG, "Planet pre-warm skipped: transaction in progress")
+            return sharedIntegra != null
+        }
+        try {
+            return initializeIntegra(terminalIp, terminalPort)
+        } finally {
+            transactionMutex.unlock()
+        }
+    }
+
+    /**
+     * Set up the sale for [requesterRef] while the backend limit check is in
+     * flight: take the transaction lock, make sure the Integra instance for
+     * the terminal exists and build the validated SaleRequest. The returned
+     * session keeps the terminal until [performSale] runs on it or it is
+     * released, and any other terminal operation makes an unused session
+     * give way first, so a lost verdict cannot hold the terminal.
+     *
+     * The channel itself is still opened by the sale request: the SDK
+     * connects on the first request it sends.
+     *
+     * Returns null if the SDK is unavailable or the request is invalid;
+     * [performSale] then does all of this itself.
+     */
+    suspend fun prepareSale(
+        amountFormatted: String,
+        requesterRef: String,
+        terminalIp: String = getDeviceIpAddress(),
+        terminalPort: String = DEFAULT_TERMINAL_PORT
+    ): PreparedSale? {
+        if (!isPlanetSdkAvailable() || !initializeLoggerOnce()) return null
+        transactionMutex.lock()
+        var session: PreparedSale? = null
+        try {
+            if (!initializeIntegra(terminalIp, terminalPort)) {
+                Log.w(TAG, "Planet: terminal not ready for the prepared sale, the sale sets it up itself")
+            }
+            val request: IRequest = SaleRequest(
+                hashMapOf(
+                    IRequest.TAG_REQUESTERTRANSREFNUM to requesterRef,
+                    IRequest.TAG_AMOUNT to amountFormatted
+                )
+            )
+            if (!request.validateOptions()) {
+                Log.w(TAG, "Planet: prepared sale request failed validation")
+                return null
+            }
+            session = PreparedSale(requesterRef, amountFormatted, request, ::giveBack)
+            heldSale.set(session)
+            // Abandoned while the terminal was being set up: the caller will
+            // never see this session, so give the terminal back here
+            if (!currentCoroutineContext().isActive) {
+                session.release()
+                return null
+            }
+            return session
+        } catch (e: Throwable) {
+            Log.w(TAG, "Planet: could not prepare sale request: ${e.javaClass.simpleName}: ${e.message}")
+            return null
+        } finally {
+            if (session == null) transactionMutex.unlock()
+        }
+    }
+
+    /**
+     * Give back the session prepared for [requesterRef], if it is still held
+     * unused. Its payment was abandoned; this does not depend on the
+     * cancelled preparation handing the session over.
+     */
+    fun releasePrepared(requesterRef: String) {
+        heldSale.get()?.takeIf { it.requesterRef == requesterRef }?.release()
+    }
+
+    private fun giveBack(session: PreparedSale) {
+        heldSale.compareAndSet(session, null)
+        transactionMutex.unlock()
+    }
+
+    /**
+     * Take the terminal for one operation. A prepared sale still waiting for
+     * its limit verdict gives way: it is released unused, and that sale
+     * takes the lock again itself if it runs.
+     */
+    private suspend fun <T> withTerminal(block: suspend () -> T): T {
+        heldSale.get()?.release()
+        return transactionMutex.withLock { block() }
+    }
+
+    /**
+     * Run a sale on [prepared]'s session when it is for this sale and still
+     * held, otherwise take the terminal as usual.
+     */
+    private suspend fun <T> withSaleTerminal(
+        prepared: PreparedSale?,
+        amountFormatted: String,
+        requesterRef: String,
+        block: suspend () -> T
+    ): T {
+        val session = prepared?.takeIf {
+            it.requesterRef == requesterRef && it.amountFormatted == amountFormatted && it.claim()
+        }
+        if (session == null) {
+            prepared?.release()
+            return withTerminal(block)
+        }
+        heldSale.compareAndSet(session, null)
+        Log.d(TAG, "Planet: sale runs on the session prepared during the limit check")
+        return try {
+            block()
+        } finally {
+            session.finish()
+        }
+    }
+
     /**
      * Perform a sale transaction on the Planet terminal.
      *
      * @param amountFormatted amount as a string in the format "10.00"
      * @param requesterRef unique reference for this transaction (e.g. transactionId from server)
+     * @param prepared session from [prepareSale]; used only if it matches the amount and reference
      */
     suspend fun performSale(
         amountFormatted: String,
         requesterRef: String,
         terminalIp: String = getDeviceIpAddress(),
         terminalPort: String = DEFAULT_TERMINAL_PORT,
-        timeoutSeconds: String = DEFAULT_TIMEOUT_SECONDS
-    ): PlanetPaymentResult = transactionMutex.withLock {
+        timeoutSeconds: String = DEFAULT_TIMEOUT_SECONDS,
+        prepared: PreparedSale? = null
+    ): PlanetPaymentResult = withSaleTerminal(prepared, amountFormatted, requesterRef) {
         withContext(Dispatchers.IO) {
             Log.d(TAG, "Starting Planet sale: amount=$amountFormatted, ref=$requesterRef, ip=$terminalIp:$terminalPort")
 
@@ -337,6 +524,7 @@ object PlanetPaymentManager {
                     statusUpdate.options?.forEach { (key, value) ->
                         if (key == "StatusMessage") {
                             Log.d(TAG, "Planet status: $value")
+                            TransactionTracer.mark(requesterRef, TransactionTracer.Mark.TERMINAL_STATUS, value)
                             // Check for terminal ready states
                             val statusLower = value?.lowercase() ?: ""
                             if (statusLower.contains("terminal ready") || 
@@ -443,14 +631,22 @@ object PlanetPaymentManager {
                     Log.d(TAG, "Planet: connection will be established when sending request")
                 }
 
-                // Build sale request
-                val requestOptions = hashMapOf(
-                    IRequest.TAG_REQUESTERTRANSREFNUM to requesterRef,
-                    IRequest.TAG_AMOUNT to amountFormatted
-                )
-
-                Log.d(TAG, "Planet: creating SaleRequest with $requestOptions")
-                val request: IRequest = SaleRequest(requestOptions)
+                // Build sale request, unless it was prepared while the limit check ran
+                val request: IRequest = if (
+                    prepared != null &&
+                    prepared.requesterRef == requesterRef &&
+                    prepared.amountFormatted == amountFormatted
+                ) {
+                    Log.d(TAG, "Planet: using prepared SaleRequest")
+                    prepared.request
+                } else {
+                    val requestOptions = hashMapOf(
+                        IRequest.TAG_REQUESTERTRANSREFNUM to requesterRef,
+                        IRequest.TAG_AMOUNT to amountFormatted
+                    )
+                    Log.d(TAG, "Planet: creating SaleRequest with $requestOptions")
+                    SaleRequest(requestOptions)
+                }
 
                 if (!request.validateOptions()) {
                     Log.e(TAG, "Planet: request validation failed")
@@ -582,11 +778,11 @@ object PlanetPaymentManager {
         channelStatusListener: IChannelStatusListener
     ): Integra? {
         synchronized(this) {
-            // Check if we need to create a new instance (first time or IP/port changed)
+            // Check if we need to create a new instance (first time, IP/port changed or channel dropped)
             val needsNewInstance = sharedIntegra == null || 
                                   currentTerminalIp != terminalIp || 
                                   currentTerminalPort != terminalPort ||
-                                  !isConnected
+                                  channelDropped
             
             if (needsNewInstance) {
                 Log.d(TAG, "Planet: creating new Integra instance (first time or connection lost)")
@@ -696,6 +892,7 @@ object PlanetPaymentManager {
                     currentTerminalIp = terminalIp
                     currentTerminalPort = terminalPort
                     isConnected = false // Will be set to true by channelStatusListener
+                    channelDropped = false
                     
                     Log.d(TAG, "Planet: Integra instance created and handlers set")
                 } catch (e: Throwable) {
@@ -730,7 +927,7 @@ object PlanetPaymentManager {
         terminalIp: String = getDeviceIpAddress(),
         terminalPort: String = DEFAULT_TERMINAL_PORT,
         timeoutSeconds: String = DEFAULT_TIMEOUT_SECONDS
-    ): CardCheckResult = transactionMutex.withLock {
+    ): CardCheckResult = withTerminal {
         withContext(Dispatchers.IO) {
             Log.d(TAG, "Starting Planet card check: ref=$requesterRef, ip=$terminalIp:$terminalPort")
 
@@ -774,6 +971,7 @@ object PlanetPaymentManager {
                     statusUpdate.options?.forEach { (key, value) ->
                         if (key == "StatusMessage") {
                             Log.d(TAG, "Planet card check status: $value")
+                            TransactionTracer.mark(requesterRef, TransactionTracer.Mark.TERMINAL_STATUS, value)
                             val statusLower = value?.lowercase() ?: ""
                             if (statusLower.contains("terminal ready") || 
                                 statusLower.contains("welcome") ||
@@ -1028,7 +1226,7 @@ object PlanetPaymentManager {
         terminalIp: String = getDeviceIpAddress(),
         terminalPort: String = DEFAULT_TERMINAL_PORT,
         timeoutSeconds: String = DEFAULT_TIMEOUT_SECONDS
-    ): Boolean = transactionMutex.withLock {
+    ): Boolean = withTerminal {
         withContext(Dispatchers.IO) {
             Log.d(TAG, "Starting Planet cancel: ref=$requesterRef, ip=$terminalIp:$terminalPort")
 
@@ -1231,7 +1429,7 @@ object PlanetPaymentManager {
         terminalIp: String = getDeviceIpAddress(),
         terminalPort: String = DEFAULT_TERMINAL_PORT,
         timeoutSeconds: String = DEFAULT_TIMEOUT_SECONDS
-    ): PlanetPaymentResult = transactionMutex.withLock {
+    ): PlanetPaymentResult = withTerminal {
         withContext(Dispatchers.IO) {
             Log.d(TAG, "Starting Planet sale reversal: amount=$amountFormatted, ref=$requesterRef, originalRef=$originalRequesterRef, ip=$terminalIp:$terminalPort")
 
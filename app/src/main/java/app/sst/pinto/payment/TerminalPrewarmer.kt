@@ -0,0 +1,83 @@
+package app.sst.pinto.payment
+
+import android.content.Context
+import android.util.Log
+import app.sst.pinto.utils.LatencyStats
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Speculative terminal setup while the customer is choosing an amount.
+ *
+ * [prewarm] runs the provider's non-transactional readiness check in the
+ * background: Planet creates or reuses the Integra channel, and NNSmart
+ * checks that the payment app can receive requests. Nothing here ever
+ * starts a transaction. At most one pre-warm runs at a time, and a
+ * successful one is not repeated within [READY_TTL_MS].
+ */
+object TerminalPrewarmer {
+    private const val TAG = "TerminalPrewarmer"
+
+    // How long a successful pre-warm is trusted before checking again.
+    private const val READY_TTL_MS = 30_000L
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val inFlight = AtomicBoolean(false)
+    private val stats = LatencyStats("terminal-prewarm")
+
+    @Volatile
+    private var readyProvider: String? = null
+    @Volatile
+    private var readyAtMillis = 0L
+
+    /**
+     * Pre-warm the terminal for [provider] ("integra", "nnsmart", ...).
+     * Returns immediately; the work runs on a background thread.
+     */
+    fun prewarm(context: Context, provider: String) {
+        val key = provider.lowercase()
+        if (key == readyProvider && System.currentTimeMillis() - readyAtMillis < READY_TTL_MS) return
+        if (!inFlight.compareAndSet(false, true)) return
+
+        val appContext = context.applicationContext
+        scope.launch {
+            val startNanos = System.nanoTime()
+            try {
+                val ready = when {
+                    key == "integra" -> PlanetPaymentManager.prewarm()
+                    NNSmartPaymentManager.isNNSmartProvider(key) ->
+                        NNSmartPaymentManager.isTerminalAppReachable(appContext)
+                    // Mock and unknown providers have nothing to warm up.
+                    else -> true
+                }
+                stats.record(key, System.nanoTime() - startNanos)
+                if (ready) {
+                    readyProvider = key
+                    readyAtMillis = System.currentTimeMillis()
+                } else {
+                    invalidate()
+                }
+                Log.d(TAG, "Pre-warm $key: ready=$ready in ${(System.nanoTime() - startNanos) / 1_000_000}ms")
+            } catch (e: Throwable) {
+                // Planet can throw linkage errors on devices without its native libraries.
+                invalidate()
+                Log.w(TAG, "Pre-warm $key failed: ${e.javaClass.simpleName}: ${e.message}")
+            } finally {
+                inFlight.set(false)
+            }
+        }
+    }
+
+    /**
+     * Forget the last successful pre-warm, e.g. after a terminal error.
+     */
+    fun invalidate() {
+        readyProvider = null
+        readyAtMillis = 0L
+    }
+
+    fun stats(): List<LatencyStats.Summary> = stats.snapshot()
+}
@@ -0,0 +1,47 @@
+package app.sst.pinto.payment
+
+import java.math.BigDecimal
+import java.math.RoundingMode
+
+/**
+ * Transaction fee arithmetic shared by the payment flow.
+ *
+ * The device configuration (see [app.sst.pinto.data.DeviceInfo]) supplies the
+ * fee type ("FIXED" or "PERCENTAGE") and value; this object only does the math
+ * so it can be benchmarked without a database in the way.
+ */
+object TransactionFees {
+
+    const val MINOR_PER_MAJOR = 100L
+
+    private val MINOR_PER_MAJOR_DECIMAL = BigDecimal.valueOf(MINOR_PER_MAJOR)
+    private val ONE_HUNDRED = BigDecimal.valueOf(100)
+
+    /**
+     * Apply the configured fee to [originalAmount] (whole currency units).
+     * Returns the original amount when the fee is disabled (value <= 0) or the
+     * fee type is unknown. The fee is worked out exactly in minor units and
+     * the total is then floored to whole units, which is what the backend
+     * contract carries.
+     */
+    fun applyFee(originalAmount: Int, feeType: String, feeValue: Double): Int {
+        val amountMinor = originalAmount * MINOR_PER_MAJOR
+        return ((amountMinor + feeMinor(amountMinor, feeType, feeValue)) / MINOR_PER_MAJOR).toInt()
+    }
+
+    /**
+     * The fee on [amountMinor], in minor units, rounded half-up.
+     * Zero when the fee is disabled or the fee type is unknown.
+     */
+    fun feeMinor(amountMinor: Long, feeType: String, feeValue: Double): Long {
+        if (feeValue <= 0) return 0
+        // BigDecimal.valueOf keeps the configured value as written (0.5, not 0.49999...).
+        val value = BigDecimal.valueOf(feeValue)
+        val fee = when (feeType.uppercase()) {
+            "FIXED" -> value.multiply(MINOR_PER_MAJOR_DECIMAL)
+            "PERCENTAGE" -> BigDecimal.valueOf(amountMinor).multiply(value).divide(ONE_HUNDRED)
+            else -> BigDecimal.ZERO
+        }
+        return fee.setScale(0, RoundingMode.HALF_UP).longValueExact()
+    }
+}
@@ -33,6 +33,7 @@ import androidx.compose.ui.unit.sp
 import androidx.compose.ui.zIndex
 import app.sst.pinto.R
 import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.payment.AmountQuote
 import coil.compose.AsyncImage
 import coil.request.ImageRequest
 import androidx.compose.animation.core.*
@@ -653,6 +654,7 @@ fun PrintingTicketScreen() {
 @Composable
 fun PaymentScreen(
     screenState: PaymentScreenState,
+    quotes: Map<Int, AmountQuote> = emptyMap(),
     onAmountSelected: (Int) -> Unit,
     onPaymentMethodSelected: (String) -> Unit,
     onReceiptResponse: (Boolean) -> Unit,
@@ -707,6 +709,7 @@ fun PaymentScreen(
                 amounts = targetState.amounts,
                 currency = targetState.currency,
                 showOtherOption = targetState.showOtherOption,
+                quotes = quotes,
                 onAmountSelected = onAmountSelected
             )
             is PaymentScreenState.KeypadEntry -> KeypadEntryScreen(
@@ -857,6 +860,7 @@ fun AmountSelectionScreen(
     amounts: List<Int>,
     currency: String,
     showOtherOption: Boolean,
+    quotes: Map<Int, AmountQuote> = emptyMap(),
     onAmountSelected: (Int) -> Unit
 ) {
     Column(
@@ -882,6 +886,8 @@ fun AmountSelectionScreen(
                 AmountButton(
                     amount = amount,
                     currency = currency,
+                    // Fee-inclusive total, only when a fee changes what is charged
+                    total = quotes[amount]?.payableAmount?.takeIf { it != amount },
                     onClick = { onAmountSelected(amount) }
                 )
             }
@@ -903,6 +909,7 @@ fun AmountSelectionScreen(
 fun AmountButton(
     amount: Int?,
     currency: String,
+    total: Int? = null,
     onClick: () -> Unit
 ) {
     var isPressed by remember { mutableStateOf(false) }
@@ -930,12 +937,21 @@ fun AmountButton(
             .padding(4.dp),
         contentAlignment = Alignment.Center
     ) {
-        Text(
-            text = if (amount != null) "$currency$amount" else "Other",
-            fontWeight = FontWeight.Bold,
-            fontSize = 28.sp, // Increased font size
-            color = MaterialTheme.colorScheme.onPrimaryContainer
-        )
+        Column(horizontalAlignment = Alignment.CenterHorizontally) {
+            Text(
+                text = if (amount != null) "$currency$amount" else "Other",
+                fontWeight = FontWeight.Bold,
+                fontSize = 28.sp, // Increased font size
+                color = MaterialTheme.colorScheme.onPrimaryContainer
+            )
+            if (total != null) {
+                Text(
+                    text = "$currency$total incl. fee",
+                    fontSize = 16.sp,
+                    color = MaterialTheme.colorScheme.onPrimaryContainer
+                )
+            }
+        }
     }
 }
 @Composable
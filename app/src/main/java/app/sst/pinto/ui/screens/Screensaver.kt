@@ -28,17 +28,31 @@ import androidx.media3.common.PlaybackException
 import androidx.media3.common.Player
 import androidx.media3.common.util.UnstableApi
 import androidx.media3.exoplayer.ExoPlayer
+import androidx.media3.exoplayer.source.ProgressiveMediaSource
 import androidx.media3.ui.PlayerView
 import app.sst.pinto.R
 import app.sst.pinto.utils.FileLogger
+import app.sst.pinto.utils.MediaCache
+import app.sst.pinto.utils.ScreensaverPlayer
+import app.sst.pinto.utils.StreamCache
 import app.sst.pinto.utils.VideoDownloadManager
 import java.io.File
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 private const val TAG = "Screensaver"
 
 /**
  * A screensaver component that plays a video in a loop.
  * Displays when user has been inactive for a certain period.
+ *
+ * Plays the playlist (see VideoDownloadManager.setPlaylist) if any of it
+ * is downloaded, else the streamed video (see VideoDownloadManager.streamVideo)
+ * if one is set, else the downloaded video, else [videoResId].
+ *
+ * The player comes from [ScreensaverPlayer] and stays warm between
+ * sessions, so a repeat session resumes without building a decoder.
  */
 @OptIn(UnstableApi::class)
 @Composable
@@ -51,94 +65,217 @@ fun Screensaver(
 
     val context = LocalContext.current
     var player by remember { mutableStateOf<ExoPlayer?>(null) }
+    // This session's listener on the shared player
+    var sessionListener by remember { mutableStateOf<Player.Listener?>(null) }
+    val scope = rememberCoroutineScope()
 
     // Handle visibility changes
     LaunchedEffect(isVisible) {
         Log.d(TAG, "Screensaver visibility changed to $isVisible")
         if (isVisible) {
-            Log.d(TAG, "Initializing ExoPlayer")
-            // Release any existing player first
-            player?.release()
-
-            // Initialize new player when screensaver becomes visible
-            player = ExoPlayer.Builder(context).build().apply {
-                // Decide whether to use cached video or default resource
-                val prefs = context.getSharedPreferences(
-                    VideoDownloadManager.PREFS_NAME,
-                    Context.MODE_PRIVATE
-                )
-                val cachedPath = prefs.getString(
-                    VideoDownloadManager.KEY_CURRENT_VIDEO_PATH,
-                    null
+            // Decide whether to stream, use cached video or default resource
+            val prefs = context.getSharedPreferences(
+                VideoDownloadManager.PREFS_NAME,
+                Context.MODE_PRIVATE
+            )
+            val streamUrl = prefs.getString(VideoDownloadManager.KEY_STREAM_URL, null)
+            val cachedPath = prefs.getString(
+                VideoDownloadManager.KEY_CURRENT_VIDEO_PATH,
+                null
+            )
+            val playlistNames = VideoDownloadManager.playlistSources(prefs).map { it.second }
+
+            // Opening the caches scans the disk, and promoting staged
+            // videos and counting plays rename and write files: all off Main
+            val media = withContext(Dispatchers.IO) {
+                // Opening the stream cache reads its index from disk
+                val streamCache = streamUrl?.let { StreamCache.getInstance(context) }
+                val mediaCache = MediaCache.getInstance(context)
+
+                // A new session: pick up videos revalidation has staged
+                var swapped = playlistNames.map { mediaCache.promoteStaged(it) }.any { it }
+                // The playlist, in order, without items not downloaded yet.
+                // ExoPlayer buffers the next item while one plays, so they
+                // follow each other without a gap
+                val playlist = playlistNames
+                    .filter { mediaCache.get(it) != null }
+                    .map { name ->
+                        MediaItem.Builder()
+                            .setMediaId(name)
+                            .setUri(Uri.fromFile(mediaCache.fileFor(name)))
+                            .build()
+                    }
+
+                if (playlist.isEmpty() && !cachedPath.isNullOrBlank()) {
+                    val name = File(cachedPath).name
+                    if (mediaCache.promoteStaged(name)) {
+                        FileLogger.getInstance(context).i(TAG, "Updated screensaver video swapped in: $cachedPath")
+                        swapped = true
+                    }
+                    mediaCache.markPlayed(name)
+                }
+
+                // A video quarantined since it was chosen is not played
+                val cachedName = cachedPath?.takeIf { it.isNotBlank() }?.let { File(it).name }
+                    ?.takeIf { mediaCache.get(it) != null }
+
+                SessionMedia(mediaCache, streamCache, playlist, swapped, cachedName)
+            }
+            val mediaCache = media.mediaCache
+            val streamCache = media.streamCache
+            val playlist = media.playlist
+            val swapped = media.swapped
+            val cachedName = media.cachedName
+            var playingPlaylist = playlist.isNotEmpty()
+            val defaultUriString = "android.resource://${context.packageName}/$videoResId"
+            var videoUriString = if (cachedName != null) {
+                Uri.fromFile(File(cachedPath!!)).toString()
+            } else {
+                defaultUriString
+            }
+
+            // A streamed video plays from disk as far as it is cached and
+            // from the network beyond that, caching as it plays
+            var streaming = !playingPlaylist && streamUrl != null && streamCache != null
+            fun ExoPlayer.setStreamSource() {
+                setMediaSource(
+                    ProgressiveMediaSource.Factory(streamCache!!.dataSourceFactory())
+                        .createMediaSource(MediaItem.fromUri(Uri.parse(streamUrl)))
                 )
+            }
 
-                val videoUriString = if (!cachedPath.isNullOrBlank()) {
+            // Identifies the media so a warm player that already holds it
+            // just resumes
+            val mediaKey = when {
+                playingPlaylist -> "playlist:${playlist.joinToString(",") { it.mediaId }}"
+                streaming -> "stream:$streamUrl"
+                else -> videoUriString
+            }
+
+            val exoPlayer = ScreensaverPlayer.show(context, mediaKey, reload = swapped) {
+                if (playingPlaylist) {
+                    FileLogger.getInstance(context).i(
+                        TAG,
+                        "Playing screensaver playlist: ${playlist.map { it.mediaId }}" +
+                            " (${playlistNames.size - playlist.size} item(s) not downloaded yet)"
+                    )
+                    setMediaItems(playlist)
+                } else if (streaming) {
                     FileLogger.getInstance(context).i(
                         TAG,
-                        "Using cached screensaver video: $cachedPath"
+                        "Streaming screensaver video: $streamUrl " +
+                            "(${streamCache!!.cachedBytes(streamUrl!!)} bytes cached" +
+                            "${if (streamCache.isFullyCached(streamUrl)) ", plays offline" else ""})"
                     )
-                    Uri.fromFile(File(cachedPath)).toString()
+                    setStreamSource()
                 } else {
-                    Log.d(TAG, "Using default screensaver video from resources")
-                    "android.resource://${context.packageName}/$videoResId"
+                    FileLogger.getInstance(context).i(TAG, "Using screensaver video: $videoUriString")
+                    setMediaItem(MediaItem.fromUri(Uri.parse(videoUriString)))
                 }
+            }
 
-                Log.d(TAG, "Setting media item: $videoUriString")
-                setMediaItem(MediaItem.fromUri(Uri.parse(videoUriString)))
-
-                // Configure player
-                repeatMode = Player.REPEAT_MODE_ALL
-                playWhenReady = true
-
-                // Add listener to handle playback state changes
-                addListener(object : Player.Listener {
-                    override fun onPlaybackStateChanged(playbackState: Int) {
-                        Log.d(TAG, "Playback state changed: $playbackState")
-                        when (playbackState) {
-                            Player.STATE_ENDED -> {
-                                Log.d(TAG, "Video ended, seeking to start")
-                                seekTo(0)
-                                play()
-                            }
-                            Player.STATE_READY -> {
-                                Log.d(TAG, "Video ready to play")
-                            }
-                            Player.STATE_BUFFERING -> {
-                                Log.d(TAG, "Video buffering")
-                            }
-                            Player.STATE_IDLE -> {
-                                Log.d(TAG, "Video idle")
-                            }
+            // Listener for this session only; the player outlives it
+            val listener = object : Player.Listener {
+                override fun onPlaybackStateChanged(playbackState: Int) {
+                    Log.d(TAG, "Playback state changed: $playbackState")
+                    when (playbackState) {
+                        Player.STATE_ENDED -> {
+                            Log.d(TAG, "Video ended, seeking to start")
+                            exoPlayer.seekTo(0)
+                            exoPlayer.play()
+                        }
+                        Player.STATE_READY -> {
+                            Log.d(TAG, "Video ready to play")
+                        }
+                        Player.STATE_BUFFERING -> {
+                            Log.d(TAG, "Video buffering")
+                        }
+                        Player.STATE_IDLE -> {
+                            Log.d(TAG, "Video idle")
                         }
                     }
+                }
 
-                    override fun onPlayerError(error: PlaybackException) {
-                        Log.e(TAG, "Player error: ${error.message}")
-                        // Try to recover by recreating the media item
-                        setMediaItem(MediaItem.fromUri(Uri.parse(videoUriString)))
-                        prepare()
-                        play()
+                override fun onMediaItemTransition(mediaItem: MediaItem?, reason: Int) {
+                    // Every start of a playlist item counts as one play
+                    if (playingPlaylist) {
+                        // Writes the item's sidecar
+                        mediaItem?.mediaId?.let { name ->
+                            scope.launch(Dispatchers.IO) { mediaCache.markPlayed(name) }
+                        }
                     }
-                })
+                }
 
-                // Don't call prepare() here — wait until the PlayerView
-                // surface is attached (in the AndroidView update block)
-                // to avoid a surface swap that corrupts the decoder.
-                Log.d(TAG, "ExoPlayer created, waiting for surface before prepare")
+                override fun onPlayerError(error: PlaybackException) {
+                    Log.e(TAG, "Player error: ${error.message}")
+                    // What plays from here on is not what the key describes
+                    ScreensaverPlayer.invalidate()
+                    if (playingPlaylist) {
+                        // Skip the item that failed; play the rest
+                        val failed = exoPlayer.currentMediaItem?.mediaId
+                        FileLogger.getInstance(context).i(TAG, "Skipping playlist item $failed after error")
+                        // A corrupt file is quarantined and downloaded again
+                        failed?.let { VideoDownloadManager(context).repairInBackground(it) }
+                        exoPlayer.removeMediaItem(exoPlayer.currentMediaItemIndex)
+                        if (exoPlayer.mediaItemCount > 0) {
+                            exoPlayer.prepare()
+                            exoPlayer.play()
+                            return
+                        }
+                        playingPlaylist = false
+                    }
+                    if (streaming && !streamCache!!.isFullyCached(streamUrl!!)) {
+                        // Most likely offline before the stream was cached:
+                        // play the fallback this session rather than retry
+                        FileLogger.getInstance(context).i(
+                            TAG,
+                            "Stream unavailable, falling back to $videoUriString"
+                        )
+                        streaming = false
+                    } else if (!streaming && cachedName != null && videoUriString != defaultUriString) {
+                        // Check the cached file rather than retrying it in a
+                        // loop; play the bundled video this session
+                        FileLogger.getInstance(context).i(
+                            TAG,
+                            "Cached video failed to play, checking it: $cachedName"
+                        )
+                        VideoDownloadManager(context).repairInBackground(cachedName)
+                        videoUriString = defaultUriString
+                    }
+                    // Try to recover by recreating the media item
+                    if (streaming) {
+                        exoPlayer.setStreamSource()
+                    } else {
+                        exoPlayer.setMediaItem(MediaItem.fromUri(Uri.parse(videoUriString)))
+                    }
+                    exoPlayer.prepare()
+                    exoPlayer.play()
+                }
             }
+            sessionListener?.let { exoPlayer.removeListener(it) }
+            exoPlayer.addListener(listener)
+            sessionListener = listener
+
+            // A cold player is prepared once the PlayerView surface is
+            // attached (in the AndroidView update block) to avoid a
+            // surface swap that corrupts the decoder; a warm one resumes
+            player = exoPlayer
         } else {
-            // Release player when screensaver is hidden
-            Log.d(TAG, "Releasing ExoPlayer")
-            player?.release()
+            // Keep the player warm for the next session
+            Log.d(TAG, "Pausing screensaver player")
+            player?.let { exoPlayer -> sessionListener?.let { exoPlayer.removeListener(it) } }
+            sessionListener = null
+            ScreensaverPlayer.pause()
             player = null
         }
     }
 
-    // Ensure player is released when component is disposed
+    // The player is application scoped: pause it rather than release it
     DisposableEffect(Unit) {
         onDispose {
-            Log.d(TAG, "Screensaver component disposed, releasing player")
-            player?.release()
+            Log.d(TAG, "Screensaver component disposed, pausing player")
+            player?.let { exoPlayer -> sessionListener?.let { exoPlayer.removeListener(it) } }
+            ScreensaverPlayer.pause()
             player = null
         }
     }
@@ -190,6 +327,8 @@ fun Screensaver(
                                 }
                             }
                         },
+                        // Detach the surface; the warm player keeps its decoder
+                        onRelease = { playerView -> playerView.player = null },
                         modifier = Modifier.fillMaxSize()
                     )
                 }
@@ -205,4 +344,13 @@ fun Screensaver(
             }
         }
     }
-}
\ No newline at end of file
+}
+
+// What a screensaver session plays, worked out off the main thread
+private class SessionMedia(
+    val mediaCache: MediaCache,
+    val streamCache: StreamCache?,
+    val playlist: List<MediaItem>,
+    val swapped: Boolean,
+    val cachedName: String?
+)
@@ -40,8 +40,14 @@ import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.text.font.FontWeight
 import androidx.compose.ui.unit.dp
-import app.sst.pinto.data.AppDatabase
+import app.sst.pinto.config.ConfigManager
+import app.sst.pinto.data.DeviceInfoRepository
+import app.sst.pinto.network.TelemetryReporter
 import app.sst.pinto.utils.FileLogger
+import app.sst.pinto.utils.LatencyStats
+import app.sst.pinto.utils.SessionRecorder
+import app.sst.pinto.utils.TransactionTimerScheduler
+import app.sst.pinto.utils.TransactionTracer
 import app.sst.pinto.utils.VideoDownloadManager
 import app.sst.pinto.utils.getDeviceIpAddress
 import app.sst.pinto.utils.getDeviceSerialNumber
@@ -54,10 +60,11 @@ fun SettingsScreen(
     context: Context,
     onOpenServerConfig: () -> Unit,
     onClose: () -> Unit,
-    onCloseApp: () -> Unit
+    onCloseApp: () -> Unit,
+    performanceStats: () -> Map<String, List<LatencyStats.Summary>> = { emptyMap() },
+    pendingTimers: () -> List<TransactionTimerScheduler.PendingTimer> = { emptyList() }
 ) {
-    val database = AppDatabase.getDatabase(context)
-    val deviceInfo by database.deviceInfoDao().getDeviceInfo().collectAsState(initial = null)
+    val deviceInfo by DeviceInfoRepository.getInstance(context).deviceInfo.collectAsState()
     
     // Device information
     var deviceIpAddress by remember { mutableStateOf<String?>(null) }
@@ -68,6 +75,16 @@ fun SettingsScreen(
     var siteNameOrUrl by remember { mutableStateOf("") }
     var isDownloading by remember { mutableStateOf(false) }
     var downloadMessage by remember { mutableStateOf<String?>(null) }
+    // Playlist dialog state
+    var showPlaylistDialog by remember { mutableStateOf(false) }
+    var playlistText by remember { mutableStateOf("") }
+    var isSavingPlaylist by remember { mutableStateOf(false) }
+    var playlistMessage by remember { mutableStateOf<String?>(null) }
+    var telemetryMessage by remember { mutableStateOf<String?>(null) }
+    var isRecordingSession by remember { mutableStateOf(SessionRecorder.isRecording) }
+    var isStreamingScreensaver by remember {
+        mutableStateOf(ConfigManager.getInstance(context).isScreensaverStreamingEnabled())
+    }
     val coroutineScope = rememberCoroutineScope()
     val videoDownloadManager = remember { VideoDownloadManager(context) }
     val logger = remember { FileLogger.getInstance(context) }
@@ -189,6 +206,139 @@ fun SettingsScreen(
                 }
             }
 
+            // Transaction latency (p50 / p95 per phase over recent transactions)
+            item {
+                val phases = remember { TransactionTracer.phaseSummary() }
+                Card(
+                    modifier = Modifier.fillMaxWidth(),
+                    colors = CardDefaults.cardColors(
+                        containerColor = MaterialTheme.colorScheme.primaryContainer
+                    )
+                ) {
+                    Column(
+                        modifier = Modifier
+                            .fillMaxWidth()
+                            .padding(16.dp),
+                        verticalArrangement = Arrangement.spacedBy(12.dp)
+                    ) {
+                        Text(
+                            text = "Transaction Latency",
+                            style = MaterialTheme.typography.titleLarge,
+                            fontWeight = FontWeight.Bold,
+                            color = MaterialTheme.colorScheme.onPrimaryContainer
+                        )
+
+                        if (phases.isEmpty()) {
+                            Text(
+                                text = "No completed transactions traced yet.",
+                                style = MaterialTheme.typography.bodyMedium,
+                                color = MaterialTheme.colorScheme.onPrimaryContainer
+                            )
+                        }
+                        phases.forEach { phase ->
+                            DeviceInfoRow(
+                                label = "${phase.phase} (n=${phase.count})",
+                                value = "p50 ${phase.p50Millis} ms / p95 ${phase.p95Millis} ms"
+                            )
+                        }
+                    }
+                }
+            }
+
+            // Where the time goes: per-key average / max since startup, and timers still armed
+            item {
+                val sections = remember { performanceStats() }
+                val timers = remember { pendingTimers() }
+                Card(
+                    modifier = Modifier.fillMaxWidth(),
+                    colors = CardDefaults.cardColors(
+                        containerColor = MaterialTheme.colorScheme.primaryContainer
+                    )
+                ) {
+                    Column(
+                        modifier = Modifier
+                            .fillMaxWidth()
+                            .padding(16.dp),
+                        verticalArrangement = Arrangement.spacedBy(12.dp)
+                    ) {
+                        Text(
+                            text = "Performance",
+                            style = MaterialTheme.typography.titleLarge,
+                            fontWeight = FontWeight.Bold,
+                            color = MaterialTheme.colorScheme.onPrimaryContainer
+                        )
+
+                        sections.filterValues { it.isNotEmpty() }.forEach { (title, summaries) ->
+                            Text(
+                                text = title,
+                                style = MaterialTheme.typography.titleMedium,
+                                color = MaterialTheme.colorScheme.onPrimaryContainer
+                            )
+                            summaries.forEach { summary ->
+                                DeviceInfoRow(
+                                    label = "${summary.key} (n=${summary.count})",
+                                    value = "avg ${summary.averageMicros} us / max ${summary.maxMicros} us"
+                                )
+                            }
+                        }
+
+                        Text(
+                            text = "Pending Timers",
+                            style = MaterialTheme.typography.titleMedium,
+                            color = MaterialTheme.colorScheme.onPrimaryContainer
+                        )
+                        if (timers.isEmpty()) {
+                            Text(
+                                text = "None",
+                                style = MaterialTheme.typography.bodyMedium,
+                                color = MaterialTheme.colorScheme.onPrimaryContainer
+                            )
+                        }
+                        timers.forEach { timer ->
+                            DeviceInfoRow(
+                                label = "${timer.site} (tx ${timer.transactionId.take(8)})",
+                                value = "${timer.remainingMillis} ms"
+                            )
+                        }
+                    }
+                }
+            }
+
+            item {
+                SettingItemCard(
+                    title = "Send Traces",
+                    description = telemetryMessage ?: "Send transaction traces to the server",
+                    onClick = {
+                        val sent = TelemetryReporter.sendPending()
+                        val pending = TransactionTracer.pendingCount()
+                        telemetryMessage = if (pending == 0) "Sent $sent trace(s)" else "Sent $sent trace(s), $pending waiting for connection"
+                        logger.i("SettingsScreen", "Sent $sent transaction trace(s), $pending pending")
+                    }
+                )
+            }
+
+            item {
+                SettingItemCard(
+                    title = "Session Recording",
+                    description = if (isRecordingSession) {
+                        "On: socket frames and screen changes are recorded for replay"
+                    } else {
+                        "Off: tap to record this kiosk's sessions for replay"
+                    },
+                    onClick = {
+                        val enable = !SessionRecorder.isRecording
+                        ConfigManager.getInstance(context).setSessionRecordingEnabled(enable)
+                        if (enable) {
+                            SessionRecorder.start(SessionRecorder.directory(context))
+                        } else {
+                            SessionRecorder.stop()
+                        }
+                        isRecordingSession = enable
+                        logger.i("SettingsScreen", "Session recording ${if (enable) "started" else "stopped"}")
+                    }
+                )
+            }
+
             // Settings Options
             item {
                 SettingItemCard(
@@ -198,6 +348,23 @@ fun SettingsScreen(
                 )
             }
             
+            item {
+                SettingItemCard(
+                    title = "Stream Screensaver Video",
+                    description = if (isStreamingScreensaver) {
+                        "On: new videos play within seconds and are cached as they play"
+                    } else {
+                        "Off: new videos are downloaded in full before they play"
+                    },
+                    onClick = {
+                        val enable = !isStreamingScreensaver
+                        ConfigManager.getInstance(context).setScreensaverStreamingEnabled(enable)
+                        isStreamingScreensaver = enable
+                        logger.i("SettingsScreen", "Screensaver streaming ${if (enable) "enabled" else "disabled"}")
+                    }
+                )
+            }
+
             item {
                 SettingItemCard(
                     title = "Download Video",
@@ -211,6 +378,22 @@ fun SettingsScreen(
                 )
             }
             
+            item {
+                SettingItemCard(
+                    title = "Screensaver Playlist",
+                    description = "Rotate several screensaver videos in order",
+                    onClick = {
+                        playlistMessage = null
+                        playlistText = context.getSharedPreferences(
+                            VideoDownloadManager.PREFS_NAME,
+                            Context.MODE_PRIVATE
+                        ).getString(VideoDownloadManager.KEY_PLAYLIST, null).orEmpty()
+                        showPlaylistDialog = true
+                        logger.i("SettingsScreen", "Screensaver playlist option selected")
+                    }
+                )
+            }
+
             item {
                 SettingItemCard(
                     title = "Close App",
@@ -278,9 +461,17 @@ fun SettingsScreen(
                                 "SettingsScreen",
                                 "Starting screensaver video download for input: $input"
                             )
-                            val result = videoDownloadManager.downloadVideo(input)
+                            val result = if (isStreamingScreensaver) {
+                                videoDownloadManager.streamVideo(input)
+                            } else {
+                                videoDownloadManager.downloadVideo(input)
+                            }
                             if (result.isSuccess) {
-                                val msg = "Downloaded and cached for \"$input\""
+                                val msg = if (isStreamingScreensaver) {
+                                    "Streaming for \"$input\", cached as it plays"
+                                } else {
+                                    "Downloaded and cached for \"$input\""
+                                }
                                 downloadMessage = msg
                                 logger.i("SettingsScreen", msg)
                                 isDownloading = false
@@ -322,6 +513,92 @@ fun SettingsScreen(
             }
         )
     }
+
+    if (showPlaylistDialog) {
+        AlertDialog(
+            onDismissRequest = {
+                if (!isSavingPlaylist) {
+                    showPlaylistDialog = false
+                }
+            },
+            title = { Text("Screensaver playlist") },
+            text = {
+                Column(
+                    verticalArrangement = Arrangement.spacedBy(8.dp)
+                ) {
+                    Text(
+                        text = "One site name or video URL per line, in play order. Leave empty to play a single video.",
+                        style = MaterialTheme.typography.bodyMedium
+                    )
+                    OutlinedTextField(
+                        value = playlistText,
+                        onValueChange = { playlistText = it },
+                        label = { Text("Playlist") },
+                        placeholder = { Text("e.g., charlie\nhttps://.../promo.mp4") },
+                        modifier = Modifier.fillMaxWidth(),
+                        minLines = 3
+                    )
+                    if (!playlistMessage.isNullOrBlank()) {
+                        Text(
+                            text = playlistMessage!!,
+                            style = MaterialTheme.typography.bodySmall,
+                            color = MaterialTheme.colorScheme.error
+                        )
+                    }
+                }
+            },
+            confirmButton = {
+                Button(
+                    onClick = {
+                        if (isSavingPlaylist) {
+                            return@Button
+                        }
+                        isSavingPlaylist = true
+                        playlistMessage = null
+                        val entries = playlistText.lines()
+
+                        coroutineScope.launch {
+                            val result = videoDownloadManager.setPlaylist(entries)
+                            if (result.isSuccess) {
+                                logger.i("SettingsScreen", "Screensaver playlist saved, ${result.getOrNull()} item(s) ready")
+                                isSavingPlaylist = false
+                                showPlaylistDialog = false
+                            } else {
+                                val error = result.exceptionOrNull()
+                                val msg = "Could not save playlist: ${error?.message ?: "Unknown error"}"
+                                playlistMessage = msg
+                                logger.e("SettingsScreen", msg, error)
+                                isSavingPlaylist = false
+                            }
+                        }
+                    },
+                    enabled = !isSavingPlaylist
+                ) {
+                    if (isSavingPlaylist) {
+                        CircularProgressIndicator(
+                            modifier = Modifier.height(16.dp),
+                            strokeWidth = 2.dp
+                        )
+                        Spacer(modifier = Modifier.height(4.dp))
+                        Text("Downloading...")
+                    } else {
+                        Text("Save")
+                    }
+                }
+            },
+            dismissButton = {
+                TextButton(
+                    onClick = {
+                        if (!isSavingPlaylist) {
+                            showPlaylistDialog = false
+                        }
+                    }
+                ) {
+                    Text("Cancel")
+                }
+            }
+        )
+    }
 }
 
 @Composable
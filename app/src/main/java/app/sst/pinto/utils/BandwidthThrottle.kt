@@ -0,0 +1,50 @@
+package app.sst.pinto.utils
+
+import kotlinx.coroutines.delay
+
+/**
+ * Caps the rate of background transfers so that they leave room on the
+ * link for payment traffic.
+ *
+ * A token bucket: [bytesPerSecond] tokens accrue every second, up to one
+ * second's worth, and each chunk transferred spends its size. A transfer
+ * that runs ahead of the rate is suspended until it is back on it. The
+ * rate is read on every call, so a new setting applies mid-transfer; zero
+ * or less means no cap.
+ */
+class BandwidthThrottle(
+    private val bytesPerSecond: () -> Long,
+    private val nanoTime: () -> Long = System::nanoTime
+) {
+    private val lock = Any()
+    private var tokens = 0.0
+    private var lastNanos = 0L
+    private var started = false
+
+    /**
+     * [bytes] were just transferred: suspend for as long as it takes the
+     * rate to cover them. Cancellable.
+     */
+    suspend fun acquire(bytes: Int) {
+        val rate = bytesPerSecond()
+        if (rate <= 0) return
+        val waitMillis = synchronized(lock) {
+            val now = nanoTime()
+            tokens = if (started) {
+                minOf(rate.toDouble(), tokens + (now - lastNanos) * rate / NANOS_PER_SECOND)
+            } else {
+                // Start with a full bucket: short transfers are not slowed
+                rate.toDouble()
+            }
+            started = true
+            lastNanos = now
+            tokens -= bytes
+            if (tokens < 0) Math.ceil(-tokens * 1000 / rate).toLong() else 0L
+        }
+        if (waitMillis > 0) delay(waitMillis)
+    }
+
+    companion object {
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+    }
+}
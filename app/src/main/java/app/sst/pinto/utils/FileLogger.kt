@@ -2,6 +2,7 @@ package app.sst.pinto.utils
 
 import android.content.Context
 import android.util.Log
+import androidx.annotation.VisibleForTesting
 import java.io.File
 import java.io.FileWriter
 import java.io.IOException
@@ -19,11 +20,11 @@ import kotlin.concurrent.withLock
  * - Automatically cleans up logs older than 60 days (2 months)
  * - Enforces max total size and max file count caps
  */
-class FileLogger private constructor(context: Context) {
+class FileLogger @VisibleForTesting internal constructor(private val logDir: File) {
     private val TAG = "FileLogger"
-    
-    private val context: Context = context.applicationContext
-    private val logDir: File = File(context.getExternalFilesDir(null), "logs")
+
+    private constructor(context: Context) : this(File(context.getExternalFilesDir(null), "logs"))
+
     private val maxFileSizeBytes = 4 * 1024 * 1024L // 4 MB
     private val maxTotalSizeBytes = 200L * 1024L * 1024L // 200 MB cap across all log files
     private val maxFileCount = 120 // hard cap to avoid file explosion
@@ -139,25 +140,39 @@ class FileLogger private constructor(context: Context) {
         }
     }
     
+    /**
+     * Format a single log line as it is written to the file:
+     * [timestamp] [level] [thread] [tag] message, followed by the stack trace if any.
+     */
+    internal fun formatLogEntry(
+        level: String,
+        tag: String,
+        message: String,
+        throwable: Throwable? = null,
+        time: Date = Date(),
+        threadName: String = Thread.currentThread().name
+    ): String {
+        val timestamp = timeFormat.format(time)
+        val logEntry = StringBuilder()
+        logEntry.append("[$timestamp] [$level] [$threadName] [$tag] $message")
+        if (throwable != null) {
+            logEntry.append("\n")
+            logEntry.append(throwable.stackTraceToString())
+        }
+        logEntry.append("\n")
+        return logEntry.toString()
+    }
+
     /**
      * Write a log entry to the file
      */
     private fun writeLog(level: String, tag: String, message: String, throwable: Throwable? = null) {
         try {
             val logFile = getCurrentLogFile()
-            val timestamp = timeFormat.format(Date())
-            val threadName = Thread.currentThread().name
-            
-            val logEntry = StringBuilder()
-            logEntry.append("[$timestamp] [$level] [$threadName] [$tag] $message")
-            if (throwable != null) {
-                logEntry.append("\n")
-                logEntry.append(throwable.stackTraceToString())
-            }
-            logEntry.append("\n")
-            
+            val logEntry = formatLogEntry(level, tag, message, throwable)
+
             FileWriter(logFile, true).use { writer ->
-                writer.append(logEntry.toString())
+                writer.append(logEntry)
                 writer.flush()
             }
 
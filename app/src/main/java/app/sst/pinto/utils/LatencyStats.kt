@@ -0,0 +1,63 @@
+package app.sst.pinto.utils
+
+/**
+ * Small thread-safe accumulator of timings grouped by a string key
+ * (message type, state transition, ...).
+ *
+ * Only count / total / max are kept per key, so recording is allocation
+ * free once a key has been seen.
+ */
+class LatencyStats(val name: String) {
+
+    data class Summary(
+        val key: String,
+        val count: Long,
+        val totalNanos: Long,
+        val maxNanos: Long
+    ) {
+        val averageMicros: Long get() = if (count == 0L) 0L else totalNanos / count / 1_000L
+        val maxMicros: Long get() = maxNanos / 1_000L
+
+        override fun toString(): String =
+            "$key n=$count avg=${averageMicros}us max=${maxMicros}us"
+    }
+
+    private class Entry {
+        var count = 0L
+        var totalNanos = 0L
+        var maxNanos = 0L
+    }
+
+    private val entries = HashMap<String, Entry>()
+
+    fun record(key: String, nanos: Long) {
+        synchronized(entries) {
+            val entry = entries.getOrPut(key) { Entry() }
+            entry.count++
+            entry.totalNanos += nanos
+            if (nanos > entry.maxNanos) entry.maxNanos = nanos
+        }
+    }
+
+    /**
+     * Time [block] and record it under [key].
+     */
+    inline fun <T> measure(key: String, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(key, System.nanoTime() - start)
+        }
+    }
+
+    fun snapshot(): List<Summary> = synchronized(entries) {
+        entries.map { (key, e) -> Summary(key, e.count, e.totalNanos, e.maxNanos) }
+    }.sortedBy { it.key }
+
+    fun reset() {
+        synchronized(entries) { entries.clear() }
+    }
+
+    override fun toString(): String = "$name: " + snapshot().joinToString("; ")
+}
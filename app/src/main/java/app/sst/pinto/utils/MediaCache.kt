@@ -0,0 +1,590 @@
+package app.sst.pinto.utils
+
+import android.content.Context
+import android.util.Log
+import app.sst.pinto.config.ConfigManager
+import java.io.File
+import java.io.IOException
+import java.util.Properties
+
+/**
+ * Size-bounded cache of downloaded media (screensaver videos) under
+ * external files/screensaver.
+ *
+ * Every asset is a file named after it plus a `<name>.meta` sidecar with its
+ * source URL, ETag / Last-Modified, SHA-256 and length, when it was last
+ * revalidated and when it was last played. A newer version waiting to be
+ * swapped in lives next to it as `<name>.next` (with its own sidecar), and
+ * an unfinished download as `<name>.part`; all of these count towards the
+ * asset's size.
+ *
+ * Content is de-duplicated by hash: a name whose content is already cached
+ * under another name (several site names pointing at the same clip) only
+ * gets a sidecar that names the original ([Entry.aliasOf]), and [fileFor]
+ * resolves it. Files that fail an integrity check are moved to the
+ * `quarantine` directory instead of being played again.
+ *
+ * The directory is scanned once; after that lookups are answered from an
+ * in-memory index. When the total goes over [budgetBytes], assets are
+ * evicted least recently played first. Pinned assets (the active
+ * screensaver video, see [setActive], and playlist items) are never
+ * evicted. Logs share the same external storage, so the budget also
+ * keeps room for them. Each asset also counts how often it was played.
+ */
+class MediaCache internal constructor(
+    val directory: File,
+    budgetBytes: Long,
+    activeName: String? = null,
+    pinnedNames: Collection<String> = emptyList(),
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+    private val TAG = "MediaCache"
+
+    /**
+     * One cached asset as the index sees it. [stagedValidators] and
+     * [stagedSha256] are set while a newer version waits in
+     * [stagedFileFor]. [length] is the content length, -1 if unknown.
+     */
+    data class Entry(
+        val name: String,
+        val url: String?,
+        val validators: Validators,
+        val checkedAtMillis: Long,
+        val lastPlayedMillis: Long,
+        val sizeBytes: Long,
+        val stagedValidators: Validators? = null,
+        val playCount: Int = 0,
+        val sha256: String? = null,
+        val length: Long = -1L,
+        val aliasOf: String? = null,
+        val stagedSha256: String? = null
+    )
+
+    private val lock = Any()
+    private val index = HashMap<String, Entry>()
+    private val pinned = HashSet<String>(pinnedNames)
+    private var active: String? = activeName?.also { pinned.add(it) }
+
+    @Volatile
+    var budgetBytes: Long = budgetBytes
+        set(value) {
+            field = value
+            trim()
+        }
+
+    // Runs after every trim: StreamCache shrinks into what is left of the budget
+    @Volatile
+    var onTrim: (() -> Unit)? = null
+
+    /**
+     * Share of [budgetBytes] that unpinned downloads are trimmed to leave
+     * free for StreamCache, so streaming keeps room even when downloads
+     * would fill the budget. 0 when nothing streams.
+     */
+    @Volatile
+    var streamReserveFraction: Double = 0.0
+        set(value) {
+            field = value
+            trim()
+        }
+
+    fun streamReserveBytes(): Long = (budgetBytes * streamReserveFraction).toLong()
+
+    init {
+        directory.mkdirs()
+        scan()
+        trim()
+    }
+
+    fun get(name: String): Entry? = synchronized(lock) { index[name] }
+
+    /**
+     * The file holding [name]'s content: its own, or for a de-duplicated
+     * name the original's.
+     */
+    fun fileFor(name: String): File = ownFile(synchronized(lock) { index[name]?.aliasOf } ?: name)
+
+    fun stagedFileFor(name: String): File = File(directory, name + STAGED_SUFFIX)
+
+    fun entries(): List<Entry> = synchronized(lock) { index.values.sortedByDescending { it.lastPlayedMillis } }
+
+    fun totalBytes(): Long = synchronized(lock) { index.values.sumOf { it.sizeBytes } }
+
+    /**
+     * Record a completed download of [name] with its [sha256]. Counts as a
+     * play, so a fresh download is not the first thing evicted. If the same
+     * content is already cached under another name, the new file is
+     * dropped and [name] becomes an alias of that one.
+     */
+    fun put(name: String, url: String, validators: Validators, sha256: String? = null): Entry {
+        val now = clock()
+        val own = ownFile(name)
+        val entry = synchronized(lock) {
+            val previous = index[name]
+            val length = own.length()
+            val original = sha256?.let { findBySha256Locked(it, except = name) }
+            if (original != null) {
+                own.delete()
+                Log.d(TAG, "$name has the same content as ${original.name}, keeping one copy")
+            }
+            Entry(
+                name, url, validators, now, maxOf(now, previous?.lastPlayedMillis ?: 0L), 0L,
+                playCount = previous?.playCount ?: 0,
+                sha256 = sha256,
+                length = length,
+                aliasOf = original?.name
+            ).also { index[name] = it }
+        }
+        writeInfo(own, entry)
+        updateSize(name)
+        trim()
+        return get(name) ?: entry
+    }
+
+    /**
+     * Record [name] (from [url]) as having the same content as the cached
+     * [original], without downloading it. Returns null if [original] is
+     * not cached.
+     */
+    fun alias(name: String, url: String, original: String): Entry? {
+        val now = clock()
+        val entry = synchronized(lock) {
+            val target = index[original]?.takeIf { it.aliasOf == null } ?: return null
+            val previous = index[name]
+            Entry(
+                name, url, Validators(null, null), now, maxOf(now, previous?.lastPlayedMillis ?: 0L), 0L,
+                playCount = previous?.playCount ?: 0,
+                sha256 = target.sha256,
+                length = target.length,
+                aliasOf = target.name
+            ).also { index[name] = it }
+        }
+        writeInfo(ownFile(name), entry)
+        updateSize(name)
+        return get(name)
+    }
+
+    /**
+     * Adopt a file that is already complete on disk (cached before the
+     * index kept its URL, or from another URL) under [url]. Its validators
+     * are unknown, so the next revalidation fetches it unconditionally.
+     */
+    fun adopt(name: String, url: String): Entry? {
+        val entry = synchronized(lock) {
+            val current = index[name] ?: return null
+            if (current.url == url) return current
+            current.copy(url = url, validators = Validators(null, null), checkedAtMillis = 0L)
+                .also { index[name] = it }
+        }
+        writeInfo(ownFile(name), entry)
+        return entry
+    }
+
+    /**
+     * The server confirmed the newest copy of [name] is current.
+     */
+    fun markChecked(name: String) {
+        val now = clock()
+        val entry = synchronized(lock) {
+            val current = index[name] ?: return
+            current.copy(checkedAtMillis = now).also { index[name] = it }
+        }
+        // The staged copy's sidecar is the one a swap will keep
+        if (entry.stagedValidators != null) {
+            writeStagedInfo(entry)
+        } else {
+            writeInfo(ownFile(name), entry)
+        }
+    }
+
+    /**
+     * Record a newer version of [name] downloaded to [stagedFileFor].
+     */
+    fun putStaged(name: String, validators: Validators, sha256: String? = null) {
+        val entry = synchronized(lock) {
+            val current = index[name] ?: return
+            current.copy(sizeBytes = sizeOf(name), stagedValidators = validators, stagedSha256 = sha256)
+                .also { index[name] = it }
+        }
+        writeStagedInfo(entry.copy(checkedAtMillis = clock()))
+        trim()
+    }
+
+    /**
+     * Swap the staged copy of [name] in, if there is one. Call between
+     * screensaver sessions, before the file is opened. Returns true if the
+     * file changed. A de-duplicated name gets its own file.
+     */
+    fun promoteStaged(name: String): Boolean = synchronized(lock) {
+        val staged = stagedFileFor(name)
+        if (!staged.exists()) return false
+        val video = ownFile(name)
+        // The video first, then its validators: a crash in between only
+        // costs one extra download at the next revalidation
+        if (!staged.renameTo(video)) {
+            Log.e(TAG, "Could not swap in updated media ${staged.name}")
+            return false
+        }
+        File(staged.path + META_SUFFIX).renameTo(File(video.path + META_SUFFIX))
+        val previous = index[name]
+        val promoted = readEntry(name) ?: return true
+        index[name] = promoted.copy(
+            lastPlayedMillis = maxOf(promoted.lastPlayedMillis, previous?.lastPlayedMillis ?: 0L),
+            playCount = maxOf(promoted.playCount, previous?.playCount ?: 0)
+        )
+        Log.d(TAG, "Swapped in updated media $name")
+        true
+    }
+
+    /**
+     * [name] started playing. Counts one play.
+     */
+    fun markPlayed(name: String) {
+        val now = clock()
+        val entry = synchronized(lock) {
+            val current = index[name] ?: return
+            current.copy(lastPlayedMillis = now, playCount = current.playCount + 1).also { index[name] = it }
+        }
+        writeInfo(ownFile(name), entry)
+    }
+
+    /**
+     * A cached asset with content [sha256], if any.
+     */
+    fun findBySha256(sha256: String): Entry? = synchronized(lock) { findBySha256Locked(sha256, except = null) }
+
+    /**
+     * Hash [name]'s content again and compare it with [expectedSha256], or
+     * with the recorded hash. On a mismatch the content is quarantined and
+     * false is returned. Content cached before hashes were kept has its
+     * hash recorded. Blocks on one read of the file.
+     */
+    fun verify(name: String, expectedSha256: String? = null): Boolean {
+        val entry = get(name) ?: return false
+        val original = entry.aliasOf?.let { get(it) } ?: entry
+        val file = ownFile(original.name)
+        if (!file.exists()) {
+            remove(original.name)
+            return false
+        }
+        val actual = try {
+            Sha256.of(file)
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not read ${file.name} to verify it", e)
+            null
+        }
+        val expected = expectedSha256 ?: original.sha256
+        if (actual == null || (expected != null && !expected.equals(actual, ignoreCase = true))) {
+            Log.e(TAG, "${original.name} failed verification: expected $expected, got $actual")
+            quarantine(original.name)
+            return false
+        }
+        if (original.sha256 == null) {
+            val updated = synchronized(lock) {
+                val current = index[original.name] ?: return true
+                current.copy(sha256 = actual, length = file.length()).also { index[original.name] = it }
+            }
+            writeInfo(file, updated)
+        }
+        return true
+    }
+
+    /**
+     * Move [name]'s content to the quarantine directory and drop it from
+     * the index, with every name de-duplicated onto it. Pins stay, so a
+     * fresh download is protected again. Returns the quarantined file.
+     */
+    fun quarantine(name: String): File? {
+        val quarantined = synchronized(lock) {
+            val original = index[name]?.aliasOf ?: name
+            val moved = moveToQuarantine(original, ownFile(original))
+            val names = listOf(original) + index.values.filter { it.aliasOf == original }.map { it.name }
+            names.forEach { dropLocked(it) }
+            moved
+        }
+        pruneQuarantine()
+        return quarantined
+    }
+
+    /**
+     * Move a downloaded [file] for [name] that failed its integrity check
+     * to the quarantine directory. The index is not touched.
+     */
+    fun quarantineFile(name: String, file: File): File? {
+        val moved = synchronized(lock) { moveToQuarantine(name, file) }
+        pruneQuarantine()
+        return moved
+    }
+
+    /**
+     * Make [name] the active asset: pinned until another one replaces it.
+     * Null when the screensaver plays something not held here (a stream).
+     */
+    fun setActive(name: String?) {
+        synchronized(lock) {
+            active?.let { pinned.remove(it) }
+            active = name
+            name?.let { pinned.add(it) }
+        }
+    }
+
+    fun pin(name: String) {
+        synchronized(lock) { pinned.add(name) }
+    }
+
+    fun unpin(name: String) {
+        synchronized(lock) {
+            if (name != active) pinned.remove(name)
+        }
+    }
+
+    fun isPinned(name: String): Boolean = synchronized(lock) { name in pinned }
+
+    /**
+     * Evict least recently played, unpinned assets until the cache fits
+     * its budget less the stream reserve. An original goes together with
+     * the names de-duplicated onto it, and is kept if any of them is
+     * pinned or recently played. Returns the evicted names.
+     */
+    fun trim(): List<String> = trimFiles().also { onTrim?.invoke() }
+
+    private fun trimFiles(): List<String> {
+        val evicted = ArrayList<String>()
+        synchronized(lock) {
+            val limit = budgetBytes - streamReserveBytes()
+            var total = index.values.sumOf { it.sizeBytes }
+            if (total <= limit) return evicted
+            val aliases = index.values.filter { it.aliasOf != null }.groupBy { it.aliasOf!! }
+            val candidates = index.values
+                .filter { it.aliasOf == null }
+                .filter { entry -> entry.name !in pinned && aliases[entry.name].orEmpty().none { it.name in pinned } }
+                .sortedBy { entry ->
+                    maxOf(entry.lastPlayedMillis, aliases[entry.name].orEmpty().maxOfOrNull { it.lastPlayedMillis } ?: 0L)
+                }
+            for (entry in candidates) {
+                if (total <= limit) break
+                for (gone in listOf(entry) + aliases[entry.name].orEmpty()) {
+                    deleteFiles(gone.name)
+                    index.remove(gone.name)
+                    total -= gone.sizeBytes
+                    evicted += gone.name
+                }
+            }
+            if (total > limit) {
+                Log.w(TAG, "Media cache at $total bytes is over its $limit byte share of the budget; the rest is pinned")
+            }
+        }
+        if (evicted.isNotEmpty()) Log.d(TAG, "Evicted $evicted")
+        return evicted
+    }
+
+    /**
+     * Drop [name] and everything stored for it, and any names
+     * de-duplicated onto it. Pins stay.
+     */
+    fun remove(name: String) {
+        synchronized(lock) {
+            val names = listOf(name) + index.values.filter { it.aliasOf == name }.map { it.name }
+            names.forEach { dropLocked(it) }
+        }
+    }
+
+    private fun dropLocked(name: String) {
+        deleteFiles(name)
+        index.remove(name)
+    }
+
+    private fun findBySha256Locked(sha256: String, except: String?): Entry? =
+        index.values.firstOrNull {
+            it.aliasOf == null && it.name != except &&
+                it.sha256.equals(sha256, ignoreCase = true) && ownFile(it.name).exists()
+        }
+
+    private fun moveToQuarantine(name: String, file: File): File? {
+        if (!file.exists()) return null
+        val dir = File(directory, QUARANTINE_DIR).apply { mkdirs() }
+        val moved = File(dir, "$name.${clock()}")
+        if (!file.renameTo(moved)) {
+            Log.e(TAG, "Could not quarantine ${file.name}, deleting it")
+            file.delete()
+            return null
+        }
+        Log.w(TAG, "Quarantined ${file.name} as ${moved.name}")
+        return moved
+    }
+
+    // Keep only the newest few quarantined files, for diagnosis
+    private fun pruneQuarantine() {
+        File(directory, QUARANTINE_DIR).listFiles()
+            ?.sortedByDescending { it.lastModified() }
+            ?.drop(QUARANTINE_KEEP)
+            ?.forEach { it.delete() }
+    }
+
+    private fun scan() = synchronized(lock) {
+        index.clear()
+        val names = HashSet<String>()
+        directory.listFiles()?.filter { it.isFile }?.forEach { file ->
+            if (isAssetName(file.name)) {
+                names += file.name
+            } else if (file.name.endsWith(META_SUFFIX)) {
+                // A de-duplicated name has only its sidecar
+                file.name.removeSuffix(META_SUFFIX).takeIf { isAssetName(it) }?.let { names += it }
+            }
+        }
+        names.forEach { name -> readEntry(name)?.let { index[name] = it } }
+        // Aliases whose original is gone have no content
+        index.values
+            .filter { alias -> alias.aliasOf != null && index[alias.aliasOf]?.aliasOf != null }
+            .plus(index.values.filter { it.aliasOf != null && it.aliasOf !in index })
+            .forEach { dropLocked(it.name) }
+        Log.d(TAG, "Indexed ${index.size} media file(s), ${index.values.sumOf { it.sizeBytes }} bytes")
+    }
+
+    private fun readEntry(name: String): Entry? {
+        val video = ownFile(name)
+        val props = readInfo(video)
+        val aliasOf = props?.getProperty(KEY_ALIAS_OF)?.takeUnless { video.exists() }
+        if (!video.exists() && aliasOf == null) return null
+        val staged = stagedFileFor(name)
+        val stagedProps = if (staged.exists()) readInfo(staged) else null
+        return Entry(
+            name = name,
+            url = props?.getProperty(KEY_URL),
+            validators = Validators(props?.getProperty(KEY_ETAG), props?.getProperty(KEY_LAST_MODIFIED)),
+            checkedAtMillis = props?.getProperty(KEY_CHECKED_AT)?.toLongOrNull() ?: 0L,
+            lastPlayedMillis = props?.getProperty(KEY_LAST_PLAYED)?.toLongOrNull() ?: video.lastModified(),
+            sizeBytes = sizeOf(name),
+            stagedValidators = if (staged.exists()) {
+                Validators(stagedProps?.getProperty(KEY_ETAG), stagedProps?.getProperty(KEY_LAST_MODIFIED))
+            } else {
+                null
+            },
+            playCount = props?.getProperty(KEY_PLAY_COUNT)?.toIntOrNull() ?: 0,
+            sha256 = props?.getProperty(KEY_SHA256),
+            length = props?.getProperty(KEY_LENGTH)?.toLongOrNull() ?: if (video.exists()) video.length() else -1L,
+            aliasOf = aliasOf,
+            stagedSha256 = stagedProps?.getProperty(KEY_SHA256)
+        )
+    }
+
+    /**
+     * Validators of the newest copy of [name] held: the staged one if any.
+     */
+    fun newestValidators(name: String): Validators? = synchronized(lock) {
+        val entry = index[name] ?: return null
+        entry.stagedValidators ?: entry.validators
+    }
+
+    private fun ownFile(name: String): File = File(directory, name)
+
+    private fun updateSize(name: String) = synchronized(lock) {
+        index[name]?.let { index[name] = it.copy(sizeBytes = sizeOf(name)) }
+    }
+
+    // The asset plus its staged copy, partial downloads and sidecars. Only
+    // these exact names: a prefix match would also take in "video.mp4"
+    // when evicting an extensionless "video".
+    private fun filesOf(name: String): List<File> = OWN_SUFFIXES.map { File(directory, name + it) }
+
+    private fun sizeOf(name: String): Long = filesOf(name).sumOf { it.length() }
+
+    private fun deleteFiles(name: String) {
+        filesOf(name).forEach { it.delete() }
+    }
+
+    private fun isAssetName(name: String): Boolean =
+        SIDE_SUFFIXES.none { name.endsWith(it) }
+
+    private fun readInfo(file: File): Properties? {
+        val meta = File(file.path + META_SUFFIX)
+        if (!meta.exists()) return null
+        return try {
+            Properties().apply { meta.inputStream().use { load(it) } }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    // The sidecar of the staged copy: what the entry becomes once swapped in
+    private fun writeStagedInfo(entry: Entry) {
+        val staged = stagedFileFor(entry.name)
+        writeInfo(
+            staged,
+            entry.copy(
+                validators = entry.stagedValidators ?: Validators(null, null),
+                sha256 = entry.stagedSha256,
+                length = staged.length(),
+                aliasOf = null
+            )
+        )
+    }
+
+    private fun writeInfo(file: File, entry: Entry) {
+        val props = Properties()
+        props.setProperty(KEY_URL, entry.url.orEmpty())
+        entry.validators.etag?.let { props.setProperty(KEY_ETAG, it) }
+        entry.validators.lastModified?.let { props.setProperty(KEY_LAST_MODIFIED, it) }
+        props.setProperty(KEY_CHECKED_AT, entry.checkedAtMillis.toString())
+        props.setProperty(KEY_LAST_PLAYED, entry.lastPlayedMillis.toString())
+        props.setProperty(KEY_PLAY_COUNT, entry.playCount.toString())
+        entry.sha256?.let { props.setProperty(KEY_SHA256, it) }
+        if (entry.length >= 0) props.setProperty(KEY_LENGTH, entry.length.toString())
+        entry.aliasOf?.let { props.setProperty(KEY_ALIAS_OF, it) }
+        try {
+            File(file.path + META_SUFFIX).outputStream().use { props.store(it, null) }
+        } catch (e: IOException) {
+            Log.e(TAG, "Could not write media info for ${file.name}", e)
+        }
+    }
+
+    companion object {
+        // Directory under external files where media is cached
+        const val MEDIA_DIR = "screensaver"
+
+        private const val STAGED_SUFFIX = ".next"
+        private const val META_SUFFIX = ".meta"
+        private val SIDE_SUFFIXES = listOf(META_SUFFIX, STAGED_SUFFIX, ResumableDownloader.PART_SUFFIX)
+        private val OWN_SUFFIXES = listOf(
+            "",
+            META_SUFFIX,
+            ResumableDownloader.PART_SUFFIX,
+            ResumableDownloader.PART_SUFFIX + META_SUFFIX,
+            STAGED_SUFFIX,
+            STAGED_SUFFIX + META_SUFFIX,
+            STAGED_SUFFIX + ResumableDownloader.PART_SUFFIX,
+            STAGED_SUFFIX + ResumableDownloader.PART_SUFFIX + META_SUFFIX
+        )
+
+        // Subdirectory for files that failed an integrity check, and how many are kept
+        private const val QUARANTINE_DIR = "quarantine"
+        private const val QUARANTINE_KEEP = 3
+
+        private const val KEY_URL = "url"
+        private const val KEY_ETAG = "etag"
+        private const val KEY_LAST_MODIFIED = "lastModified"
+        private const val KEY_CHECKED_AT = "checkedAt"
+        private const val KEY_LAST_PLAYED = "lastPlayed"
+        private const val KEY_PLAY_COUNT = "playCount"
+        private const val KEY_SHA256 = "sha256"
+        private const val KEY_LENGTH = "length"
+        private const val KEY_ALIAS_OF = "aliasOf"
+
+        @Volatile
+        private var instance: MediaCache? = null
+
+        fun getInstance(context: Context): MediaCache {
+            return instance ?: synchronized(this) {
+                val prefs = context.getSharedPreferences(VideoDownloadManager.PREFS_NAME, Context.MODE_PRIVATE)
+                val activePath = prefs.getString(VideoDownloadManager.KEY_CURRENT_VIDEO_PATH, null)
+                instance ?: MediaCache(
+                    File(context.applicationContext.getExternalFilesDir(null), MEDIA_DIR),
+                    ConfigManager.getInstance(context).getMediaCacheBudgetBytes(),
+                    activeName = activePath?.let { File(it).name },
+                    // Playlist items stay while they are listed
+                    pinnedNames = VideoDownloadManager.playlistSources(prefs).map { it.second }
+                ).also { instance = it }
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package app.sst.pinto.utils
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import app.sst.pinto.config.ConfigManager
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Background media downloads that stay out of the way of payments.
+ *
+ * Media work (VideoDownloadManager.syncPendingMedia: re-downloads, missing
+ * playlist items, revalidation) only runs while the kiosk is idle, i.e.
+ * the screensaver is showing and no transaction is in flight (see
+ * [setIdle]). The moment that stops being true the running pass is
+ * cancelled; downloads stop after the chunk in hand and keep their part
+ * files, and the pass starts over once the kiosk is idle again, resuming
+ * them with Range requests. Downloads are capped at the rate set in
+ * ConfigManager (getPrefetchRateBytesPerSecond).
+ *
+ * A pass runs every [PASS_INTERVAL_MILLIS] of idle time, and as soon as
+ * possible after [requestPass] (new playlist, manifest or corrupt file).
+ */
+object MediaPrefetcher {
+    private const val TAG = "MediaPrefetcher"
+
+    // Idle time before a pass starts: a customer often taps the
+    // screensaver away within seconds
+    private const val IDLE_SETTLE_MILLIS = 10_000L
+    private const val PASS_INTERVAL_MILLIS = 6 * 60 * 60 * 1000L
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private val idle = MutableStateFlow(false)
+    private val wakeups = Channel<Unit>(Channel.CONFLATED)
+    private val passStats = LatencyStats("media-prefetch-pass")
+
+    @Volatile
+    private var started = false
+
+    // A pass is owed while requested > completed; the first one is owed at start
+    private val requestedPasses = AtomicInteger(1)
+    @Volatile
+    private var completedPasses = 0
+    @Volatile
+    private var lastPassAtMillis = 0L
+
+    /**
+     * Start scheduling passes for the lifetime of the process. Idempotent.
+     */
+    fun start(context: Context) {
+        synchronized(this) {
+            if (started) return
+            started = true
+        }
+        val appContext = context.applicationContext
+        val config = ConfigManager.getInstance(appContext)
+        val videos = VideoDownloadManager(
+            appContext,
+            BandwidthThrottle({ config.getPrefetchRateBytesPerSecond() })
+        )
+        val logger = FileLogger.getInstance(appContext)
+
+        scope.launch {
+            idle.distinctUntilChanged().collectLatest { isIdle ->
+                if (!isIdle) {
+                    Log.d(TAG, "Kiosk busy, media prefetch paused")
+                    return@collectLatest
+                }
+                delay(IDLE_SETTLE_MILLIS)
+                while (true) {
+                    val owed = requestedPasses.get()
+                    val wait = if (owed > completedPasses) {
+                        0L
+                    } else {
+                        lastPassAtMillis + PASS_INTERVAL_MILLIS - SystemClock.elapsedRealtime()
+                    }
+                    if (wait > 0) {
+                        withTimeoutOrNull(wait) { wakeups.receive() }
+                        continue
+                    }
+
+                    logger.i(TAG, "Kiosk idle, starting media prefetch pass")
+                    val startNanos = System.nanoTime()
+                    try {
+                        videos.syncPendingMedia()
+                    } catch (e: CancellationException) {
+                        logger.i(TAG, "Media prefetch pass paused, it resumes when the kiosk is idle again")
+                        throw e
+                    } catch (e: Exception) {
+                        logger.e(TAG, "Media prefetch pass failed", e)
+                    }
+                    passStats.record("pass", System.nanoTime() - startNanos)
+                    completedPasses = owed
+                    lastPassAtMillis = SystemClock.elapsedRealtime()
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the kiosk is idle: the screensaver is showing and no
+     * transaction is in flight. Going busy pauses a running pass at once.
+     */
+    fun setIdle(isIdle: Boolean) {
+        idle.value = isIdle
+    }
+
+    /**
+     * There is new media to fetch: run a pass as soon as the kiosk is idle.
+     */
+    fun requestPass() {
+        requestedPasses.incrementAndGet()
+        wakeups.trySend(Unit)
+    }
+}
@@ -0,0 +1,356 @@
+package app.sst.pinto.utils
+
+import android.util.Log
+import app.sst.pinto.utils.Sha256.toHex
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.launch
+import okhttp3.Call
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.security.MessageDigest
+import java.util.Properties
+import kotlin.coroutines.coroutineContext
+
+/**
+ * A download failure. [retryable] is false when trying again cannot help
+ * (e.g. HTTP 404).
+ */
+open class DownloadException(message: String, val retryable: Boolean = true) : IOException(message)
+
+/**
+ * The download completed but its SHA-256 is not the expected one. The bytes
+ * are left in [file] (not at the target) for the caller to quarantine.
+ */
+class IntegrityException(val file: File, val expectedSha256: String, val actualSha256: String) :
+    DownloadException("SHA-256 mismatch: expected $expectedSha256, got $actualSha256", retryable = false)
+
+/**
+ * Cache validators the server sent with a file.
+ */
+data class Validators(val etag: String?, val lastModified: String?) {
+    /** The validator If-Range may use: a strong ETag, else Last-Modified. */
+    val forRange: String? get() = etag?.takeUnless { it.startsWith("W/") } ?: lastModified
+
+    val isEmpty: Boolean get() = etag == null && lastModified == null
+}
+
+/**
+ * A completed download. [sha256] is the lowercase hex hash of the file.
+ */
+data class Downloaded(val length: Long, val validators: Validators, val sha256: String)
+
+/**
+ * Downloads a URL to a file so that the file only ever appears complete.
+ *
+ * Bytes go to `<target>.part`. A small `<target>.part.meta` sidecar keeps
+ * the URL, the server validators (ETag, Last-Modified) and the expected
+ * length. An interrupted transfer, whether in this call or after an app
+ * restart, continues from the last byte with an HTTP Range request;
+ * If-Range makes the server send the whole file instead when it changed
+ * in between. When the server sent no usable validator (no strong ETag,
+ * no Last-Modified) the transfer starts over instead. Once the length
+ * matches the expected Content-Length the part file is synced and renamed
+ * over [target] in one step.
+ *
+ * The SHA-256 is computed while the body streams to disk, so there is no
+ * second read pass. Only when resuming a part file this call did not
+ * write (e.g. after an app restart) is the part read once to catch up.
+ *
+ * With a [throttle] the body is read no faster than its rate. Cancelling
+ * the calling coroutine cancels the HTTP call at once, even while a
+ * connect or read is blocked; the part file keeps what arrived, so the
+ * next call resumes where it stopped.
+ */
+class ResumableDownloader(
+    private val client: OkHttpClient,
+    private val maxAttemptsWithoutProgress: Int = 5,
+    private val retryDelayMillis: Long = 2_000L,
+    private val throttle: BandwidthThrottle? = null
+) {
+    private val TAG = "ResumableDownloader"
+
+    private data class PartInfo(val url: String, val validators: Validators, val length: Long)
+
+    // Running hash of the first [bytes] bytes of the part file
+    private class PartHash {
+        var digest: MessageDigest = Sha256.newDigest()
+        var bytes = 0L
+
+        fun reset() {
+            digest = Sha256.newDigest()
+            bytes = 0L
+        }
+
+        /** Make the hash cover exactly the first [length] bytes of [part]. */
+        fun catchUp(part: File, length: Long) {
+            if (bytes == length) return
+            reset()
+            if (length > 0) Sha256.update(digest, part, length)
+            bytes = length
+        }
+    }
+
+    /**
+     * Download [url] into [target], resuming any earlier partial download.
+     * Retries as long as each attempt makes progress.
+     *
+     * With [ifChanged] (the validators of the copy already held) a fresh
+     * download is a conditional GET, and null is returned when the server
+     * answers 304 Not Modified; [target] is then left untouched.
+     *
+     * With [expectedSha256] a file with any other hash is not moved to
+     * [target]; an [IntegrityException] is thrown instead.
+     */
+    suspend fun download(
+        url: String,
+        target: File,
+        ifChanged: Validators? = null,
+        expectedSha256: String? = null
+    ): Downloaded? {
+        target.parentFile?.mkdirs()
+        val part = partFile(target)
+        val meta = metaFile(target)
+
+        if (readInfo(meta)?.url != url) {
+            // Different (or unknown) source: the bytes on disk cannot be reused
+            part.delete()
+            meta.delete()
+        }
+
+        val hash = PartHash()
+        var failuresWithoutProgress = 0
+        while (true) {
+            coroutineContext.ensureActive()
+            val before = part.length()
+            try {
+                if (!fetch(url, part, meta, ifChanged, hash)) return null
+                break
+            } catch (e: IOException) {
+                if (e is DownloadException && !e.retryable) throw e
+                if (part.length() > before) {
+                    failuresWithoutProgress = 0
+                } else {
+                    failuresWithoutProgress++
+                }
+                if (failuresWithoutProgress >= maxAttemptsWithoutProgress) throw e
+                Log.d(TAG, "Download interrupted at ${part.length()} bytes, resuming: ${e.message}")
+                delay(retryDelayMillis * maxOf(1, failuresWithoutProgress))
+            }
+        }
+
+        val validators = readInfo(meta)?.validators ?: Validators(null, null)
+        hash.catchUp(part, part.length())
+        val sha256 = hash.digest.toHex()
+        if (expectedSha256 != null && !expectedSha256.equals(sha256, ignoreCase = true)) {
+            // Not resumable: these bytes are whole, just not the right ones
+            meta.delete()
+            throw IntegrityException(part, expectedSha256.lowercase(), sha256)
+        }
+        if (!part.renameTo(target)) {
+            throw IOException("Could not move ${part.name} to ${target.name}")
+        }
+        meta.delete()
+        return Downloaded(target.length(), validators, sha256)
+    }
+
+    /**
+     * The length of [url] as a HEAD request reports it, -1 if the server
+     * does not say. A cheap change check for a server that sends no
+     * validators to make a GET conditional.
+     */
+    suspend fun contentLength(url: String): Long {
+        val call = client.newCall(Request.Builder().url(url).head().build())
+        return cancelledWithCaller(call) {
+            call.execute().use { response ->
+                if (!response.isSuccessful) {
+                    throw DownloadException(
+                        "HEAD failed: HTTP ${response.code}",
+                        retryable = response.code >= 500 || response.code == 408 || response.code == 429
+                    )
+                }
+                response.header("Content-Length")?.toLongOrNull() ?: -1L
+            }
+        }
+    }
+
+    /**
+     * Discard any partial download of [target].
+     */
+    fun discardPartial(target: File) {
+        partFile(target).delete()
+        metaFile(target).delete()
+    }
+
+    /**
+     * One request. Returns true when [part] holds the whole file and false
+     * on 304 Not Modified; anything else throws.
+     */
+    private suspend fun fetch(url: String, part: File, meta: File, ifChanged: Validators?, hash: PartHash): Boolean {
+        val info = readInfo(meta)
+        // Without a validator for If-Range a changed file would be spliced
+        // onto the old prefix: start again from the first byte instead
+        val offset = if (info?.validators?.forRange != null) part.length() else 0L
+
+        val request = Request.Builder().url(url).apply {
+            if (offset > 0) {
+                header("Range", "bytes=$offset-")
+                info?.validators?.forRange?.let { header("If-Range", it) }
+            } else if (ifChanged != null) {
+                ifChanged.etag?.let { header("If-None-Match", it) }
+                ifChanged.lastModified?.let { header("If-Modified-Since", it) }
+            }
+        }.build()
+
+        val call = client.newCall(request)
+        return cancelledWithCaller(call) {
+            call.execute().use { response ->
+                val append: Boolean
+                val expected: Long
+                when (response.code) {
+                    206 -> {
+                        val range = parseContentRange(response.header("Content-Range"))
+                        if (range == null || range.first != offset) {
+                            part.delete()
+                            meta.delete()
+                            throw DownloadException("Unexpected Content-Range ${response.header("Content-Range")}")
+                        }
+                        append = true
+                        expected = range.second
+                        hash.catchUp(part, offset)
+                    }
+                    200 -> {
+                        append = false
+                        hash.reset()
+                        expected = response.body?.contentLength() ?: -1L
+                        val validators = Validators(response.header("ETag"), response.header("Last-Modified"))
+                        writeInfo(meta, PartInfo(url, validators, expected))
+                    }
+                    304 -> return@use false
+                    416 -> {
+                        // Nothing left to send: either we already have it all or the file shrank
+                        if (info != null && info.length >= 0 && offset == info.length) return@use true
+                        part.delete()
+                        meta.delete()
+                        throw DownloadException("Range not satisfiable, restarting")
+                    }
+                    else -> throw DownloadException(
+                        "Download failed: HTTP ${response.code}",
+                        retryable = response.code >= 500 || response.code == 408 || response.code == 429
+                    )
+                }
+
+                val body = response.body ?: throw DownloadException("Empty response body")
+                FileOutputStream(part, append).use { output ->
+                    body.byteStream().use { input ->
+                        val buffer = ByteArray(BUFFER_SIZE)
+                        while (true) {
+                            val read = input.read(buffer)
+                            if (read < 0) break
+                            output.write(buffer, 0, read)
+                            // Hash what reached the file, so an interrupted
+                            // transfer leaves the hash in step with the part
+                            hash.digest.update(buffer, 0, read)
+                            hash.bytes += read
+                            coroutineContext.ensureActive()
+                            throttle?.acquire(read)
+                        }
+                    }
+                    output.fd.sync()
+                }
+
+                val length = part.length()
+                when {
+                    expected >= 0 && length < expected ->
+                        throw DownloadException("Short download: $length of $expected bytes")
+                    expected >= 0 && length > expected -> {
+                        part.delete()
+                        meta.delete()
+                        throw DownloadException("Download overran: $length of $expected bytes")
+                    }
+                    length == 0L -> throw DownloadException("Downloaded file is empty", retryable = false)
+                }
+                true
+            }
+        }
+    }
+
+    /**
+     * Run [block], which blocks on [call], so that cancelling the calling
+     * coroutine cancels the call right away. Blocked I/O does not see a
+     * coroutine cancellation, so without this a pause would wait for the
+     * current read to return or time out.
+     */
+    private suspend fun <T> cancelledWithCaller(call: Call, block: suspend () -> T): T = coroutineScope {
+        // Unconfined: on cancellation the finally block runs on the
+        // cancelling thread, not on this one, which is blocked
+        val canceller = launch(Dispatchers.Unconfined) {
+            try {
+                awaitCancellation()
+            } finally {
+                call.cancel()
+            }
+        }
+        try {
+            block()
+        } catch (e: IOException) {
+            // The cancelled call's IOException stands for the cancellation
+            ensureActive()
+            throw e
+        } finally {
+            canceller.cancel()
+        }
+    }
+
+    // "bytes 100-999/1000" -> (100, 1000); total is -1 for "*"
+    private fun parseContentRange(header: String?): Pair<Long, Long>? {
+        val match = CONTENT_RANGE.matchEntire(header?.trim() ?: return null) ?: return null
+        val start = match.groupValues[1].toLong()
+        val total = match.groupValues[3].toLongOrNull() ?: -1L
+        return start to total
+    }
+
+    private fun readInfo(meta: File): PartInfo? {
+        if (!meta.exists()) return null
+        return try {
+            val props = Properties().apply { meta.inputStream().use { load(it) } }
+            PartInfo(
+                url = props.getProperty(KEY_URL) ?: return null,
+                validators = Validators(props.getProperty(KEY_ETAG), props.getProperty(KEY_LAST_MODIFIED)),
+                length = props.getProperty(KEY_LENGTH)?.toLongOrNull() ?: -1L
+            )
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun writeInfo(meta: File, info: PartInfo) {
+        val props = Properties()
+        props.setProperty(KEY_URL, info.url)
+        info.validators.etag?.let { props.setProperty(KEY_ETAG, it) }
+        info.validators.lastModified?.let { props.setProperty(KEY_LAST_MODIFIED, it) }
+        props.setProperty(KEY_LENGTH, info.length.toString())
+        meta.outputStream().use { props.store(it, null) }
+    }
+
+    private fun partFile(target: File) = File(target.parentFile, target.name + PART_SUFFIX)
+
+    private fun metaFile(target: File) = File(target.parentFile, target.name + PART_SUFFIX + META_SUFFIX)
+
+    companion object {
+        const val PART_SUFFIX = ".part"
+        private const val BUFFER_SIZE = 64 * 1024
+        private const val META_SUFFIX = ".meta"
+        private const val KEY_URL = "url"
+        private const val KEY_ETAG = "etag"
+        private const val KEY_LAST_MODIFIED = "lastModified"
+        private const val KEY_LENGTH = "length"
+        private val CONTENT_RANGE = Regex("""bytes (\d+)-(\d+)/(\d+|\*)""")
+    }
+}
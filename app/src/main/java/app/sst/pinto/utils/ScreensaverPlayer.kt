@@ -0,0 +1,141 @@
+package app.sst.pinto.utils
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.util.Log
+import androidx.annotation.OptIn
+import androidx.media3.common.Player
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.exoplayer.ExoPlayer
+
+/**
+ * Application-scoped ExoPlayer for the screensaver, kept warm between
+ * sessions.
+ *
+ * Building a player, allocating the video decoder and preparing the media
+ * take long enough on kiosk SoCs that a fresh player per session starts on
+ * a black frame. This holder keeps one player alive from one session to the
+ * next, with its decoder and prepared media: [pause] stops playback when
+ * the screensaver is dismissed (the view detaches the surface), and [show]
+ * resumes it. The media is only reloaded when the source changed. Under
+ * memory pressure the player is released while hidden and rebuilt by the
+ * next [show].
+ *
+ * Show-to-first-frame latency is recorded in [firstFrameStats], keyed
+ * "warm" or "cold". Main thread only.
+ */
+@OptIn(UnstableApi::class)
+object ScreensaverPlayer {
+    private const val TAG = "ScreensaverPlayer"
+
+    private var player: ExoPlayer? = null
+    // Identifies the media the player has loaded; null forces a reload
+    private var loadedKey: String? = null
+    private var showing = false
+    private var callbacksRegistered = false
+
+    private var shownAtNanos = 0L
+    private var warmStart = false
+    private var firstFrameRecorded = true
+
+    val firstFrameStats = LatencyStats("screensaver-first-frame")
+
+    private val firstFrameListener = object : Player.Listener {
+        override fun onRenderedFirstFrame() {
+            if (firstFrameRecorded) return
+            firstFrameRecorded = true
+            val key = if (warmStart) "warm" else "cold"
+            val nanos = System.nanoTime() - shownAtNanos
+            firstFrameStats.record(key, nanos)
+            Log.d(TAG, "First frame ${nanos / 1_000_000} ms after show ($key)")
+        }
+    }
+
+    private val memoryCallbacks = object : ComponentCallbacks2 {
+        override fun onTrimMemory(level: Int) {
+            // UI_HIDDEN is not memory pressure; the RUNNING_* levels and
+            // BACKGROUND and above are
+            if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL ||
+                level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+            ) {
+                releaseIfHidden("trim memory level $level")
+            }
+        }
+
+        override fun onLowMemory() = releaseIfHidden("low memory")
+
+        override fun onConfigurationChanged(newConfig: Configuration) = Unit
+    }
+
+    /**
+     * The screensaver is being shown. Returns the player, built if needed.
+     * [load] sets the media for [key]; it only runs when the player does not
+     * already hold that media, or when [reload] is set (e.g. the file was
+     * replaced). The caller prepares the player once its surface is attached.
+     */
+    fun show(context: Context, key: String, reload: Boolean, load: ExoPlayer.() -> Unit): ExoPlayer {
+        showing = true
+        shownAtNanos = System.nanoTime()
+        firstFrameRecorded = false
+
+        val current = player
+        warmStart = current != null && !reload && key == loadedKey &&
+            current.playbackState != Player.STATE_IDLE
+        val exo = current ?: build(context)
+        if (!warmStart) {
+            Log.d(TAG, "Loading screensaver media: $key")
+            exo.load()
+            loadedKey = key
+        } else {
+            Log.d(TAG, "Resuming warm screensaver player: $key")
+        }
+        exo.playWhenReady = true
+        return exo
+    }
+
+    /**
+     * The screensaver was dismissed: stop playback but keep the decoder and
+     * the prepared media for the next session.
+     */
+    fun pause() {
+        showing = false
+        player?.pause()
+    }
+
+    /**
+     * The loaded media no longer matches its key (e.g. a playlist item was
+     * dropped after an error): the next [show] loads it again.
+     */
+    fun invalidate() {
+        loadedKey = null
+    }
+
+    fun release() {
+        player?.let {
+            it.removeListener(firstFrameListener)
+            it.release()
+        }
+        player = null
+        loadedKey = null
+    }
+
+    private fun releaseIfHidden(reason: String) {
+        if (showing || player == null) return
+        Log.d(TAG, "Releasing warm screensaver player: $reason")
+        release()
+    }
+
+    private fun build(context: Context): ExoPlayer {
+        val appContext = context.applicationContext
+        if (!callbacksRegistered) {
+            appContext.registerComponentCallbacks(memoryCallbacks)
+            callbacksRegistered = true
+        }
+        return ExoPlayer.Builder(appContext).build().apply {
+            repeatMode = Player.REPEAT_MODE_ALL
+            addListener(firstFrameListener)
+        }.also { player = it }
+    }
+}
@@ -0,0 +1,257 @@
+package app.sst.pinto.utils
+
+import android.content.Context
+import android.util.Log
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.SessionRecord
+import com.squareup.moshi.JsonDataException
+import com.squareup.moshi.JsonReader
+import com.squareup.moshi.JsonWriter
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import okio.Buffer
+import java.io.File
+import java.math.BigDecimal
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.LongSupplier
+
+/**
+ * Records a kiosk session for offline replay: raw socket frames in and out,
+ * payment-manager results, user inputs, connection changes, and every
+ * state-machine fire and timer. The file is JSON lines of [SessionRecord],
+ * written in the background.
+ *
+ * Recording is off unless [start] is called (see ConfigManager's session
+ * recording switch). Each session is capped at [MAX_RECORDS] lines, and only
+ * the newest [MAX_FILES] recordings are kept.
+ *
+ * Frames are stored in plain text, so card and payment fields
+ * ([REDACTED_FIELDS], at any depth) are replaced before they are queued.
+ */
+object SessionRecorder {
+    private const val TAG = "SessionRecorder"
+
+    private const val MAX_RECORDS = 200_000
+    private const val MAX_FILES = 5
+    private const val FILE_PREFIX = "session-"
+    private const val FILE_SUFFIX = ".jsonl"
+    private const val DIR_NAME = "replay"
+
+    private val MONOTONIC_MILLIS = LongSupplier { System.nanoTime() / 1_000_000L }
+
+    // Card tokens/PARs, terminal payment results and payment links
+    private val REDACTED_FIELDS = setOf(
+        "cardToken", "paymentDetails", "paymentUrl", "originalRequesterTransRefNum"
+    )
+    private const val REDACTED = "[redacted]"
+    private const val UNPARSED = "[unparsed frame]"
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    // No file when a test records the view model in memory
+    private class Session(val file: File?, val clock: LongSupplier = MONOTONIC_MILLIS) {
+        val startMillis = clock.asLong
+        val queue = Channel<SessionRecord>(Channel.UNLIMITED)
+        val count = AtomicInteger(0)
+    }
+
+    @Volatile
+    private var session: Session? = null
+
+    val isRecording: Boolean get() = session != null
+
+    /**
+     * Where recordings are kept on the device.
+     */
+    fun directory(context: Context): File = File(context.filesDir, DIR_NAME)
+
+    /**
+     * Start a new recording in [dir]; a running one is stopped first.
+     * Returns the file being written.
+     */
+    fun start(dir: File): File = synchronized(this) {
+        stop()
+        dir.mkdirs()
+        val stamp = SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(Date())
+        val file = File(dir, "$FILE_PREFIX$stamp$FILE_SUFFIX")
+        val next = Session(file)
+        session = next
+        scope.launch {
+            try {
+                file.bufferedWriter().use { writer ->
+                    for (record in next.queue) {
+                        writer.write(MessageAdapters.sessionRecord.toJson(record))
+                        writer.newLine()
+                        // Flush whenever the queue drains, so a crash loses little.
+                        if (next.queue.isEmpty) writer.flush()
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Recording to ${file.name} failed", e)
+            }
+        }
+        pruneOldRecordings(dir)
+        Log.d(TAG, "Recording session to ${file.absolutePath}")
+        file
+    }
+
+    fun stop() = synchronized(this) {
+        session?.queue?.close()
+        session = null
+    }
+
+    /**
+     * Start a recording kept in memory, for tests that record and replay
+     * the view model at virtual time. Records are stamped from [clock]
+     * (milliseconds). Take the records with [drain].
+     */
+    internal fun startInMemory(clock: LongSupplier) = synchronized(this) {
+        stop()
+        session = Session(null, clock)
+    }
+
+    /**
+     * The records of the in-memory recording since the last call.
+     */
+    internal fun drain(): List<SessionRecord> {
+        val current = session?.takeIf { it.file == null } ?: return emptyList()
+        val records = ArrayList<SessionRecord>()
+        while (true) records += current.queue.tryReceive().getOrNull() ?: break
+        return records
+    }
+
+    fun inbound(frame: String) = record { at -> SessionRecord(at, SessionRecord.KIND_IN, frame = redact(frame)) }
+
+    fun outbound(frame: String) = record { at -> SessionRecord(at, SessionRecord.KIND_OUT, frame = redact(frame)) }
+
+    fun result(op: String, transactionId: String, success: Boolean, resultCode: String?, message: String?) =
+        record { at ->
+            SessionRecord(
+                at, SessionRecord.KIND_RESULT,
+                op = op, transactionId = transactionId, success = success, resultCode = resultCode, message = message
+            )
+        }
+
+    fun fire(event: String, state: String, message: String?, accepted: Boolean, timer: String?) =
+        record { at ->
+            SessionRecord(
+                at, SessionRecord.KIND_FIRE,
+                event = event, state = state, message = message, accepted = accepted, site = timer
+            )
+        }
+
+    fun timerArmed(site: String, transactionId: String, delayMillis: Long) =
+        record { at ->
+            SessionRecord(at, SessionRecord.KIND_ARM, site = site, transactionId = transactionId, delayMillis = delayMillis)
+        }
+
+    fun timerFired(site: String, transactionId: String) =
+        record { at ->
+            SessionRecord(at, SessionRecord.KIND_TIMER, site = site, transactionId = transactionId)
+        }
+
+    fun transactionEnded(transactionId: String) =
+        record { at -> SessionRecord(at, SessionRecord.KIND_END, transactionId = transactionId) }
+
+    fun limitErrorReleased() = record { at -> SessionRecord(at, SessionRecord.KIND_RELEASE) }
+
+    /** [action] is one of SessionRecord's INPUT_ names. */
+    fun input(action: String, argument: String? = null) =
+        record { at -> SessionRecord(at, SessionRecord.KIND_INPUT, op = action, message = argument) }
+
+    fun connection(state: String) = record { at -> SessionRecord(at, SessionRecord.KIND_CONNECTION, state = state) }
+
+    /**
+     * Read a recording back. Lines that do not parse are skipped.
+     */
+    fun read(file: File): List<SessionRecord> = file.useLines { lines ->
+        lines.mapNotNull { line ->
+            if (line.isBlank()) null else runCatching { MessageAdapters.sessionRecord.fromJson(line) }.getOrNull()
+        }.toList()
+    }
+
+    /**
+     * [frame] with the values of [REDACTED_FIELDS] replaced: objects and
+     * arrays by empty ones, anything else by a marker string. The rest of
+     * the frame is kept as it is, so it still decodes for replay. A frame
+     * that is not JSON is not kept at all.
+     */
+    internal fun redact(frame: String): String {
+        return try {
+            val out = Buffer()
+            JsonWriter.of(out).use { writer ->
+                writer.serializeNulls = true
+                copy(JsonReader.of(Buffer().writeUtf8(frame)), writer)
+            }
+            out.readUtf8()
+        } catch (e: Exception) {
+            UNPARSED
+        }
+    }
+
+    private fun copy(reader: JsonReader, writer: JsonWriter) {
+        when (reader.peek()) {
+            JsonReader.Token.BEGIN_OBJECT -> {
+                reader.beginObject()
+                writer.beginObject()
+                while (reader.hasNext()) {
+                    val name = reader.nextName()
+                    writer.name(name)
+                    if (name in REDACTED_FIELDS) redactValue(reader, writer) else copy(reader, writer)
+                }
+                reader.endObject()
+                writer.endObject()
+            }
+            JsonReader.Token.BEGIN_ARRAY -> {
+                reader.beginArray()
+                writer.beginArray()
+                while (reader.hasNext()) copy(reader, writer)
+                reader.endArray()
+                writer.endArray()
+            }
+            JsonReader.Token.STRING -> writer.value(reader.nextString())
+            // Keeps the literal: 20 stays 20, not 20.0
+            JsonReader.Token.NUMBER -> writer.value(BigDecimal(reader.nextString()))
+            JsonReader.Token.BOOLEAN -> writer.value(reader.nextBoolean())
+            JsonReader.Token.NULL -> {
+                reader.nextNull<Unit>()
+                writer.nullValue()
+            }
+            else -> throw JsonDataException("Unexpected ${reader.peek()} at ${reader.path}")
+        }
+    }
+
+    private fun redactValue(reader: JsonReader, writer: JsonWriter) {
+        val token = reader.peek()
+        reader.skipValue()
+        when (token) {
+            JsonReader.Token.NULL -> writer.nullValue()
+            JsonReader.Token.BEGIN_OBJECT -> writer.beginObject().endObject()
+            JsonReader.Token.BEGIN_ARRAY -> writer.beginArray().endArray()
+            else -> writer.value(REDACTED)
+        }
+    }
+
+    // Cheap when not recording: no record is built.
+    private inline fun record(build: (Long) -> SessionRecord) {
+        val current = session ?: return
+        if (current.count.incrementAndGet() > MAX_RECORDS) {
+            if (current.count.get() == MAX_RECORDS + 1) Log.w(TAG, "Recording reached $MAX_RECORDS records; dropping the rest")
+            return
+        }
+        current.queue.trySend(build(current.clock.asLong - current.startMillis))
+    }
+
+    private fun pruneOldRecordings(dir: File) {
+        val recordings = dir.listFiles { file ->
+            file.name.startsWith(FILE_PREFIX) && file.name.endsWith(FILE_SUFFIX)
+        } ?: return
+        recordings.sortedByDescending { it.name }.drop(MAX_FILES).forEach { it.delete() }
+    }
+}
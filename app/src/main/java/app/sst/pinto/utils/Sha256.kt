@@ -0,0 +1,35 @@
+package app.sst.pinto.utils
+
+import java.io.File
+import java.security.MessageDigest
+
+/**
+ * SHA-256 helpers for media integrity checks. Hashes are lowercase hex.
+ */
+object Sha256 {
+    private const val BUFFER_SIZE = 64 * 1024
+
+    fun newDigest(): MessageDigest = MessageDigest.getInstance("SHA-256")
+
+    /**
+     * Feed the first [length] bytes of [file] (all of it by default) into
+     * [digest].
+     */
+    fun update(digest: MessageDigest, file: File, length: Long = Long.MAX_VALUE) {
+        file.inputStream().use { input ->
+            val buffer = ByteArray(BUFFER_SIZE)
+            var remaining = length
+            while (remaining > 0) {
+                val read = input.read(buffer, 0, minOf(buffer.size.toLong(), remaining).toInt())
+                if (read < 0) break
+                digest.update(buffer, 0, read)
+                remaining -= read
+            }
+        }
+    }
+
+    fun of(file: File): String = newDigest().also { update(it, file) }.toHex()
+
+    /** Completes the digest (it is reset afterwards). */
+    fun MessageDigest.toHex(): String = digest().joinToString("") { "%02x".format(it) }
+}
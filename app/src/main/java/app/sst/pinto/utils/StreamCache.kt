@@ -0,0 +1,175 @@
+package app.sst.pinto.utils
+
+import android.content.Context
+import android.util.Log
+import androidx.annotation.OptIn
+import androidx.media3.common.C
+import androidx.media3.common.util.UnstableApi
+import androidx.media3.database.StandaloneDatabaseProvider
+import androidx.media3.datasource.DataSource
+import androidx.media3.datasource.DefaultHttpDataSource
+import androidx.media3.datasource.cache.Cache
+import androidx.media3.datasource.cache.CacheDataSource
+import androidx.media3.datasource.cache.CacheEvictor
+import androidx.media3.datasource.cache.CacheSpan
+import androidx.media3.datasource.cache.ContentMetadata
+import androidx.media3.datasource.cache.SimpleCache
+import java.io.File
+import java.util.TreeSet
+
+/**
+ * On-disk cache for screensaver videos that are streamed rather than
+ * downloaded first.
+ *
+ * The player reads through a [CacheDataSource]: bytes come from disk where
+ * they are already cached and from the network otherwise, and every byte
+ * fetched is written to the cache as it plays. Playback starts as soon as
+ * the first few seconds are buffered, and once the video has played
+ * through once later sessions play it without the network.
+ *
+ * The cache lives in the `stream` directory of the [MediaCache] directory
+ * and shares its byte budget: it may use whatever the downloaded media
+ * leaves free, and shrinks (least recently used spans first) whenever
+ * MediaCache trims, e.g. after a download or a budget change. A quarter of
+ * the budget is reserved for it: MediaCache evicts unpinned downloads to
+ * keep it free, and when pinned media fill the rest the stream still gets
+ * it, so a streamed video can be kept for offline replay. Only the
+ * video being streamed is kept (see [retainOnly]); a fully downloaded
+ * video goes back to [MediaCache].
+ */
+@OptIn(UnstableApi::class)
+class StreamCache private constructor(context: Context, val directory: File, private val media: MediaCache) {
+    private val TAG = "StreamCache"
+
+    private val evictor = BudgetEvictor {
+        maxOf(media.budgetBytes - media.totalBytes(), media.streamReserveBytes())
+    }
+
+    // SimpleCache locks its directory: there must only ever be one
+    private val cache = SimpleCache(
+        directory,
+        evictor,
+        StandaloneDatabaseProvider(context)
+    )
+
+    init {
+        media.onTrim = { trim() }
+        media.streamReserveFraction = STREAM_RESERVE_FRACTION
+    }
+
+    private val upstream = DefaultHttpDataSource.Factory()
+        .setConnectTimeoutMs(CONNECT_TIMEOUT_MILLIS)
+        .setReadTimeoutMs(READ_TIMEOUT_MILLIS)
+        .setAllowCrossProtocolRedirects(true)
+
+    /**
+     * Data sources for the player: cache first, then the network, writing
+     * what the network returns to the cache. A cache read error falls back
+     * to the network rather than failing playback.
+     */
+    fun dataSourceFactory(): DataSource.Factory =
+        CacheDataSource.Factory()
+            .setCache(cache)
+            .setUpstreamDataSourceFactory(upstream)
+            .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR)
+
+    /**
+     * Whether all of [url] is on disk, i.e. it can play offline.
+     */
+    fun isFullyCached(url: String): Boolean {
+        val length = ContentMetadata.getContentLength(cache.getContentMetadata(url))
+        return length > 0 && cache.isCached(url, 0, length)
+    }
+
+    /**
+     * Bytes of [url] held on disk.
+     */
+    fun cachedBytes(url: String): Long = cache.getCachedBytes(url, 0, Long.MAX_VALUE)
+
+    /**
+     * Drop every cached stream except [url]. Blocks on disk I/O.
+     */
+    fun retainOnly(url: String?) {
+        cache.keys.filter { it != url }.forEach { key ->
+            cache.removeResource(key)
+            Log.d(TAG, "Removed cached stream $key")
+        }
+    }
+
+    /**
+     * Shrink to what the downloaded media leaves of the budget, or to the
+     * stream reserve if that is more. Blocks on disk I/O.
+     */
+    fun trim() {
+        val before = cache.cacheSpace
+        // SimpleCache calls the evictor under its own lock
+        synchronized(cache) { evictor.evict(cache, 0L) }
+        if (cache.cacheSpace < before) {
+            Log.d(TAG, "Trimmed stream cache from $before to ${cache.cacheSpace} bytes")
+        }
+    }
+
+    /**
+     * [LeastRecentlyUsedCacheEvictor][androidx.media3.datasource.cache.LeastRecentlyUsedCacheEvictor]
+     * with a limit read on every check, so the share of the budget follows
+     * the downloaded media and budget changes.
+     */
+    private class BudgetEvictor(private val maxBytes: () -> Long) : CacheEvictor {
+        private val leastRecentlyUsed = TreeSet<CacheSpan> { a, b ->
+            val byTouch = a.lastTouchTimestamp.compareTo(b.lastTouchTimestamp)
+            if (byTouch != 0) byTouch else a.compareTo(b)
+        }
+        private var currentSize = 0L
+
+        override fun requiresCacheSpanTouches(): Boolean = true
+
+        override fun onCacheInitialized() = Unit
+
+        override fun onStartFile(cache: Cache, key: String, position: Long, length: Long) {
+            if (length != C.LENGTH_UNSET.toLong()) evict(cache, length)
+        }
+
+        override fun onSpanAdded(cache: Cache, span: CacheSpan) {
+            leastRecentlyUsed.add(span)
+            currentSize += span.length
+            evict(cache, 0L)
+        }
+
+        override fun onSpanRemoved(cache: Cache, span: CacheSpan) {
+            leastRecentlyUsed.remove(span)
+            currentSize -= span.length
+        }
+
+        override fun onSpanTouched(cache: Cache, oldSpan: CacheSpan, newSpan: CacheSpan) {
+            onSpanRemoved(cache, oldSpan)
+            onSpanAdded(cache, newSpan)
+        }
+
+        fun evict(cache: Cache, requiredBytes: Long) {
+            while (currentSize + requiredBytes > maxBytes() && leastRecentlyUsed.isNotEmpty()) {
+                cache.removeSpan(leastRecentlyUsed.first())
+            }
+        }
+    }
+
+    companion object {
+        // Under MediaCache.directory; MediaCache only indexes files, not directories
+        private const val STREAM_DIR = "stream"
+
+        private const val STREAM_RESERVE_FRACTION = 0.25
+
+        private const val CONNECT_TIMEOUT_MILLIS = 30_000
+        private const val READ_TIMEOUT_MILLIS = 30_000
+
+        @Volatile
+        private var instance: StreamCache? = null
+
+        fun getInstance(context: Context): StreamCache {
+            return instance ?: synchronized(this) {
+                instance ?: MediaCache.getInstance(context).let { media ->
+                    StreamCache(context.applicationContext, File(media.directory, STREAM_DIR), media)
+                }.also { instance = it }
+            }
+        }
+    }
+}
@@ -1,42 +1,87 @@
 package app.sst.pinto.utils
 
+import android.os.SystemClock
 import android.util.Log
-import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
-import kotlinx.coroutines.isActive
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.merge
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
 
 /**
  * Manages timeout functionality for the application.
  * Handles inactivity detection and automatic timeout.
+ *
+ * How long a screen may sit idle, whether a warning is shown first and
+ * what happens at the end come from the current [TimeoutPolicy] (see
+ * [applyPolicy] and TimeoutPolicies).
+ *
+ * A touch only stores the time it happened ([recordUserInteraction] is a
+ * single volatile write). One long-lived timer coroutine sleeps until the
+ * next point of interest (warning start or deadline); when it wakes it
+ * checks the stored time again and, if there was a touch in the meantime,
+ * sleeps for the remainder instead of acting. Touch handling therefore
+ * allocates nothing and never cancels or launches coroutines.
  */
-class TimeoutManager private constructor() {
+class TimeoutManager internal constructor(
+    dispatcher: CoroutineDispatcher = Dispatchers.Main,
+    private val clock: Clock = Clock { SystemClock.elapsedRealtime() }
+) {
     private val TAG = "TimeoutManager"
 
-    // Timeout duration before triggering screensaver (30 seconds)
-    private val timeoutDuration = 30 * 1000L
+    /**
+     * Monotonic milliseconds, unaffected by wall-clock changes. An interface
+     * rather than a `() -> Long` so reading it returns a primitive long
+     * instead of boxing one on every touch and deadline check.
+     */
+    fun interface Clock {
+        fun nowMillis(): Long
+    }
 
     // State flows for tracking timeout state
     private val _timeoutOccurred = MutableStateFlow(false)
     val timeoutOccurred: StateFlow<Boolean> = _timeoutOccurred
 
-    // Job for tracking timeout
-    private var timeoutJob: Job? = null
+    // True during the policy's warning period
+    private val _warningActive = MutableStateFlow(false)
+    val warningActive: StateFlow<Boolean> = _warningActive
+
+    // Lives as long as the manager; the timer loop is its only child
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher)
+    private var timerJob: Job? = null
+
+    // Written on every touch; read by the timer when it wakes
+    @Volatile
+    private var lastInteractionMillis = clock.nowMillis()
 
-    // Callback for timeout events
-    private var onTimeoutCallback: (() -> Unit)? = null
+    // False while paused, cancelled, or after the timeout fired
+    private val armed = MutableStateFlow(false)
+
+    // Paused for the screensaver or cancelled; a new screen does not re-arm
+    @Volatile
+    private var paused = false
+
+    private val policy = MutableStateFlow(DEFAULT_POLICY)
+
+    // Callback for timeout events, with the policy that timed out
+    private var onTimeoutCallback: ((TimeoutPolicy) -> Unit)? = null
 
     /**
      * Set up the timeout manager with a callback for timeout events.
      */
-    fun setup(onTimeout: () -> Unit) {
+    fun setup(onTimeout: (TimeoutPolicy) -> Unit) {
         Log.d(TAG, "Setting up TimeoutManager with callback")
         this.onTimeoutCallback = onTimeout
+        if (timerJob == null) {
+            timerJob = scope.launch { runTimer() }
+        }
         resetTimer()
     }
 
@@ -53,45 +98,100 @@ class TimeoutManager private constructor() {
     }
 
     /**
-     * Resets the timeout timer.
+     * Switch to the policy of a newly shown screen. The screen gets its
+     * full idle time, and a timer that already fired is re-armed unless it
+     * is paused for the screensaver.
+     */
+    fun applyPolicy(newPolicy: TimeoutPolicy) {
+        lastInteractionMillis = clock.nowMillis()
+        policy.value = newPolicy
+        if (_warningActive.value) {
+            _warningActive.value = false
+        }
+        if (!paused && !armed.value) {
+            armed.value = true
+        }
+    }
+
+    /**
+     * Moves the deadline and re-arms the timer if it was stopped. The
+     * flows compare before writing, so a touch on an armed timer is just
+     * the timestamp store.
      */
     private fun resetTimer() {
-        // Cancel any existing timeout job
-        timeoutJob?.cancel()
-
-        // Start a new timeout job.
-        //
-        // NOTE: We deliberately don't wrap `delay(...)` in a catch-all.
-        // Coroutine cancellation is a cooperative `CancellationException`,
-        // so every time `recordUserInteraction()` cancels the previous
-        // job the old code logged a misleading "Error in timeout timer"
-        // entry. We now only log truly unexpected failures and always
-        // rethrow cancellation to preserve structured concurrency.
-        timeoutJob = CoroutineScope(Dispatchers.Main).launch {
-            try {
-                delay(timeoutDuration)
-                if (isActive) {
-                    Log.d(TAG, "Timeout occurred after $timeoutDuration ms")
-                    _timeoutOccurred.value = true
-                    onTimeoutCallback?.invoke()
+        lastInteractionMillis = clock.nowMillis()
+        if (_warningActive.value) {
+            _warningActive.value = false
+        }
+        if (!armed.value) {
+            paused = false
+            armed.value = true
+        }
+    }
+
+    /**
+     * The single timer. Waits while disarmed, otherwise sleeps until the
+     * warning or the deadline and acts only if no interaction moved it.
+     */
+    private suspend fun runTimer() {
+        while (true) {
+            val current = policy.value
+            if (!armed.value || current.action == TimeoutAction.NONE) {
+                _warningActive.value = false
+                awaitChange(current, null)
+                continue
+            }
+
+            val idle = clock.nowMillis() - lastInteractionMillis
+            val warnAt = current.idleMillis - current.warningMillis
+            when {
+                idle < warnAt -> {
+                    _warningActive.value = false
+                    awaitChange(current, warnAt - idle)
                 }
-            } catch (e: CancellationException) {
-                // Expected: the timer was reset or paused. Rethrow so the
-                // coroutine machinery treats it as a normal cancellation.
-                throw e
-            } catch (e: Exception) {
-                Log.e(TAG, "Unexpected error in timeout timer", e)
+                idle < current.idleMillis -> {
+                    _warningActive.value = true
+                    awaitChange(current, current.idleMillis - idle)
+                }
+                else -> fire(current)
             }
         }
     }
 
+    /**
+     * Sleep for [millis] (forever when null), waking early if the policy
+     * changes or the timer is paused or re-armed.
+     */
+    private suspend fun awaitChange(current: TimeoutPolicy, millis: Long?) {
+        val wasArmed = armed.value
+        val change = merge(policy.filter { it != current }, armed.filter { it != wasArmed })
+        if (millis == null) {
+            change.first()
+        } else {
+            withTimeoutOrNull(millis) { change.first() }
+        }
+    }
+
+    private fun fire(current: TimeoutPolicy) {
+        Log.d(TAG, "Timeout occurred after ${current.idleMillis} ms, action=${current.action}")
+        // Disarm first: the callback may record an interaction to re-arm
+        armed.value = false
+        _warningActive.value = false
+        _timeoutOccurred.value = true
+        try {
+            onTimeoutCallback?.invoke(current)
+        } catch (e: Exception) {
+            Log.e(TAG, "Unexpected error in timeout callback", e)
+        }
+    }
+
     /**
      * Pause timers when showing screensaver.
      */
     fun pauseTimersForScreensaver() {
         Log.d(TAG, "Pausing timers for screensaver")
-        timeoutJob?.cancel()
-        timeoutJob = null
+        paused = true
+        armed.value = false
     }
 
     /**
@@ -107,11 +207,14 @@ class TimeoutManager private constructor() {
      */
     fun cancelTimers() {
         Log.d(TAG, "Canceling all timers")
-        timeoutJob?.cancel()
-        timeoutJob = null
+        paused = true
+        armed.value = false
     }
 
     companion object {
+        // Until a screen applies its own policy: 30 seconds to the screensaver
+        val DEFAULT_POLICY = TimeoutPolicy(30_000L, 0L, TimeoutAction.SCREENSAVER)
+
         @Volatile
         private var instance: TimeoutManager? = null
 
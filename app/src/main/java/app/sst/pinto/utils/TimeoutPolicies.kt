@@ -0,0 +1,110 @@
+package app.sst.pinto.utils
+
+import android.util.Log
+import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.data.models.TimeoutPolicyConfig
+
+/**
+ * What the kiosk does when a screen has been left untouched too long.
+ */
+enum class TimeoutAction {
+    /** Show the screensaver (cancelling any open transaction). */
+    SCREENSAVER,
+
+    /** Cancel the open transaction and ask the server for the start screen. */
+    CANCEL_PAYMENT,
+
+    /** Ask the server for the start screen without cancelling anything. */
+    RETURN_TO_START,
+
+    /** Never time out on this screen. */
+    NONE
+}
+
+/**
+ * Inactivity policy for one screen. The warning shows for the last
+ * [warningMillis] of [idleMillis].
+ */
+data class TimeoutPolicy(
+    val idleMillis: Long,
+    val warningMillis: Long,
+    val action: TimeoutAction
+) {
+    companion object {
+        val NEVER = TimeoutPolicy(0, 0, TimeoutAction.NONE)
+    }
+}
+
+/**
+ * Inactivity policies keyed by [PaymentScreenState] type name.
+ *
+ * The built-in defaults reproduce the old behaviour: only the amount
+ * screen times out, after 30 seconds, into the screensaver. The server can
+ * replace or extend them through DEVICE_INFO `timeoutPolicies`; a
+ * "default" entry applies to every screen without its own policy.
+ *
+ * Screens where a payment is in flight never time out, whatever the
+ * server sends: a customer waiting on the terminal does not touch the
+ * screen, and a timeout there would drop a captured sale.
+ */
+object TimeoutPolicies {
+    private const val TAG = "TimeoutPolicies"
+
+    const val DEFAULT_KEY = "default"
+
+    private val BUILT_IN: Map<String, TimeoutPolicy> = mapOf(
+        "AmountSelect" to TimeoutPolicy(30_000L, 0L, TimeoutAction.SCREENSAVER)
+    )
+
+    private val PAYMENT_IN_FLIGHT: Set<String> = setOf(
+        PaymentScreenState.Processing::class.java.simpleName,
+        PaymentScreenState.MockPaymentCard::class.java.simpleName,
+        PaymentScreenState.ReversingTransaction::class.java.simpleName,
+        PaymentScreenState.RefundProcessing::class.java.simpleName,
+        PaymentScreenState.TransactionSuccess::class.java.simpleName,
+        PaymentScreenState.PrintingTicket::class.java.simpleName
+    )
+
+    @Volatile
+    private var policies: Map<String, TimeoutPolicy> = BUILT_IN
+
+    fun policyFor(state: PaymentScreenState): TimeoutPolicy {
+        val screen = state::class.java.simpleName
+        if (screen in PAYMENT_IN_FLIGHT) return TimeoutPolicy.NEVER
+        val current = policies
+        return current[screen] ?: current[DEFAULT_KEY] ?: TimeoutPolicy.NEVER
+    }
+
+    /**
+     * Apply server policies on top of the built-in defaults. Invalid
+     * entries (unknown action, non-positive idle time) are skipped.
+     */
+    fun configure(configs: Map<String, TimeoutPolicyConfig>) {
+        val parsed = HashMap(BUILT_IN)
+        configs.forEach { (screen, config) ->
+            val policy = parse(config)
+            if (policy == null) {
+                Log.e(TAG, "Ignoring invalid timeout policy for $screen: $config")
+            } else if (screen in PAYMENT_IN_FLIGHT) {
+                Log.e(TAG, "Ignoring timeout policy for $screen: a payment is in flight there")
+            } else {
+                parsed[screen] = policy
+            }
+        }
+        policies = parsed
+        Log.d(TAG, "Timeout policies: $parsed")
+    }
+
+    fun reset() {
+        policies = BUILT_IN
+    }
+
+    private fun parse(config: TimeoutPolicyConfig): TimeoutPolicy? {
+        val action = TimeoutAction.values().firstOrNull { it.name.equals(config.action, ignoreCase = true) }
+            ?: return null
+        if (action == TimeoutAction.NONE) return TimeoutPolicy.NEVER
+        if (config.idleMillis <= 0) return null
+        val warning = (config.warningMillis ?: 0L).coerceIn(0L, config.idleMillis)
+        return TimeoutPolicy(config.idleMillis, warning, action)
+    }
+}
@@ -0,0 +1,171 @@
+package app.sst.pinto.utils
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+
+/**
+ * Hashed-wheel timer for delayed screen transitions, indexed by transaction.
+ *
+ * Timers live in [wheelSize] buckets of [tickMillis] each; one ticker
+ * coroutine advances the wheel while anything is pending and stops when the
+ * wheel is empty. Scheduling, cancelling and rescheduling are O(1), and
+ * every timer of a transaction can be dropped in one call with [cancelAll].
+ * Resolution is one tick, which is plenty for screen timeouts.
+ */
+class TransactionTimerScheduler(
+    private val scope: CoroutineScope,
+    private val tickMillis: Long = 100L,
+    private val wheelSize: Int = 64
+) {
+
+    /**
+     * Handle for one scheduled timer.
+     */
+    class Timer internal constructor(
+        val transactionId: String,
+        val site: String,
+        internal val action: suspend () -> Unit
+    ) {
+        internal var deadlineTick = 0L
+        internal var scheduled = false
+    }
+
+    /**
+     * Diagnostics view of a pending timer.
+     */
+    data class PendingTimer(
+        val transactionId: String,
+        val site: String,
+        val remainingMillis: Long
+    )
+
+    private val wheel = Array(wheelSize) { LinkedHashSet<Timer>() }
+    private val byTransaction = HashMap<String, LinkedHashSet<Timer>>()
+    private var currentTick = 0L
+    private var ticker: Job? = null
+
+    /**
+     * Run [action] on [scope] after about [delayMillis].
+     */
+    fun schedule(transactionId: String?, site: String, delayMillis: Long, action: suspend () -> Unit): Timer {
+        val timer = Timer(transactionId.orEmpty(), site, action)
+        synchronized(this) {
+            insert(timer, delayMillis)
+            byTransaction.getOrPut(timer.transactionId) { LinkedHashSet() }.add(timer)
+            ensureTicker()
+        }
+        return timer
+    }
+
+    /**
+     * Cancel [timer]. Returns false if it already fired or was cancelled.
+     */
+    fun cancel(timer: Timer): Boolean = synchronized(this) {
+        if (!timer.scheduled) return false
+        remove(timer)
+        true
+    }
+
+    /**
+     * Cancel every pending timer of [transactionId]; returns how many.
+     */
+    fun cancelAll(transactionId: String?): Int = synchronized(this) {
+        val timers = byTransaction.remove(transactionId.orEmpty()) ?: return 0
+        timers.forEach { timer ->
+            wheel[bucketOf(timer.deadlineTick)].remove(timer)
+            timer.scheduled = false
+        }
+        timers.size
+    }
+
+    /**
+     * Move a pending [timer] so it fires [delayMillis] from now. Returns false
+     * if it already fired or was cancelled.
+     */
+    fun reschedule(timer: Timer, delayMillis: Long): Boolean = synchronized(this) {
+        if (!timer.scheduled) return false
+        wheel[bucketOf(timer.deadlineTick)].remove(timer)
+        insert(timer, delayMillis)
+        true
+    }
+
+    /**
+     * Pending timers, soonest first.
+     */
+    fun pending(): List<PendingTimer> = synchronized(this) {
+        byTransaction.values.flatten()
+            .sortedBy { it.deadlineTick }
+            .map { PendingTimer(it.transactionId, it.site, (it.deadlineTick - currentTick) * tickMillis) }
+    }
+
+    fun cancelEverything() {
+        synchronized(this) {
+            wheel.forEach { it.clear() }
+            byTransaction.values.forEach { timers -> timers.forEach { it.scheduled = false } }
+            byTransaction.clear()
+            ticker?.cancel()
+            ticker = null
+        }
+    }
+
+    private fun insert(timer: Timer, delayMillis: Long) {
+        // Always at least one tick out, so a timer never fires inside schedule().
+        val ticks = maxOf(1L, (delayMillis + tickMillis - 1) / tickMillis)
+        timer.deadlineTick = currentTick + ticks
+        timer.scheduled = true
+        wheel[bucketOf(timer.deadlineTick)].add(timer)
+    }
+
+    private fun remove(timer: Timer) {
+        wheel[bucketOf(timer.deadlineTick)].remove(timer)
+        byTransaction[timer.transactionId]?.let { timers ->
+            timers.remove(timer)
+            if (timers.isEmpty()) byTransaction.remove(timer.transactionId)
+        }
+        timer.scheduled = false
+    }
+
+    private fun bucketOf(tick: Long): Int = (tick % wheelSize).toInt()
+
+    private fun ensureTicker() {
+        if (ticker?.isActive == true) return
+        ticker = scope.launch {
+            while (true) {
+                delay(tickMillis)
+                val expired = advance() ?: break
+                expired.forEach { timer -> scope.launch { timer.action() } }
+            }
+        }
+    }
+
+    /**
+     * Advance one tick and collect what expired. Returns null (and stops the
+     * ticker) once nothing is pending.
+     */
+    private fun advance(): List<Timer>? = synchronized(this) {
+        currentTick++
+        val bucket = wheel[bucketOf(currentTick)]
+        var expired: MutableList<Timer>? = null
+        val iterator = bucket.iterator()
+        while (iterator.hasNext()) {
+            val timer = iterator.next()
+            // Timers further out than one revolution share the bucket; wait for their round.
+            if (timer.deadlineTick <= currentTick) {
+                iterator.remove()
+                byTransaction[timer.transactionId]?.let { timers ->
+                    timers.remove(timer)
+                    if (timers.isEmpty()) byTransaction.remove(timer.transactionId)
+                }
+                timer.scheduled = false
+                (expired ?: mutableListOf<Timer>().also { expired = it }).add(timer)
+            }
+        }
+        if (expired == null && byTransaction.isEmpty()) {
+            ticker = null
+            return null
+        }
+        expired ?: emptyList()
+    }
+}
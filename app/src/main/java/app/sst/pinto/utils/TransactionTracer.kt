@@ -0,0 +1,195 @@
+package app.sst.pinto.utils
+
+import android.util.Log
+
+/**
+ * Per-transaction latency traces, to answer "where did the time go" for a
+ * slow transaction.
+ *
+ * A trace is a list of [Mark]s with monotonic ([System.nanoTime]) offsets
+ * from the start of the transaction. Live traces are keyed by transaction
+ * ID. A finished trace goes into a ring that holds the last
+ * [RING_CAPACITY] traces. [phaseSummary] reports p50/p95 per [Phase] over
+ * the ring, and [pendingBatch] / [markSent] feed the TELEMETRY export.
+ *
+ * Marks for a transaction that has no live trace are dropped, unless the
+ * caller asks to start one. Idle screens therefore never create traces.
+ */
+object TransactionTracer {
+    private const val TAG = "TransactionTracer"
+
+    private const val RING_CAPACITY = 100
+    private const val MAX_ACTIVE = 4
+    // Terminal status updates can be chatty; cap each trace.
+    private const val MAX_MARKS = 48
+    private const val MAX_DETAIL_LENGTH = 64
+
+    enum class Mark {
+        SCREEN_RECEIVED,
+        AMOUNT_TAPPED,
+        CARD_CHECK_SENT,
+        CARD_CHECK_RETURNED,
+        LIMIT_CHECK_SENT,
+        LIMIT_CHECK_RETURNED,
+        SALE_SENT,
+        TERMINAL_STATUS,
+        RESULT,
+        RECEIPT,
+        TICKET_PRINTED
+    }
+
+    /**
+     * Time between the first [from] mark and the first [to] mark after it.
+     * A null [from] / [to] means the first / last mark of the trace.
+     */
+    enum class Phase(val label: String, val from: Mark?, val to: Mark?) {
+        SCREEN_TO_TAP("screen-to-tap", Mark.SCREEN_RECEIVED, Mark.AMOUNT_TAPPED),
+        CARD_CHECK("card-check", Mark.CARD_CHECK_SENT, Mark.CARD_CHECK_RETURNED),
+        LIMIT_CHECK("limit-check", Mark.LIMIT_CHECK_SENT, Mark.LIMIT_CHECK_RETURNED),
+        SALE("sale", Mark.SALE_SENT, Mark.RESULT),
+        TAP_TO_RESULT("tap-to-result", Mark.AMOUNT_TAPPED, Mark.RESULT),
+        RESULT_TO_TICKET("result-to-ticket", Mark.RESULT, Mark.TICKET_PRINTED),
+        TOTAL("total", null, null)
+    }
+
+    data class MarkAt(val mark: Mark, val offsetNanos: Long, val detail: String?) {
+        val offsetMillis: Long get() = offsetNanos / 1_000_000L
+    }
+
+    /**
+     * A finished trace. [sequence] increases by one per finished trace and
+     * is what [markSent] acknowledges.
+     */
+    data class Trace(
+        val sequence: Long,
+        val transactionId: String,
+        val startedAtMillis: Long,
+        val marks: List<MarkAt>
+    ) {
+        /** Duration of [phase] in nanoseconds, or null if the trace does not cover it. */
+        fun durationNanos(phase: Phase): Long? {
+            if (marks.isEmpty()) return null
+            val fromIndex = if (phase.from == null) 0 else marks.indexOfFirst { it.mark == phase.from }
+            if (fromIndex < 0) return null
+            val to = if (phase.to == null) {
+                marks.last()
+            } else {
+                marks.subList(fromIndex, marks.size).firstOrNull { it.mark == phase.to } ?: return null
+            }
+            return to.offsetNanos - marks[fromIndex].offsetNanos
+        }
+    }
+
+    data class PhaseSummary(
+        val phase: String,
+        val count: Int,
+        val p50Millis: Long,
+        val p95Millis: Long
+    ) {
+        override fun toString(): String = "$phase n=$count p50=${p50Millis}ms p95=${p95Millis}ms"
+    }
+
+    private class Live(val transactionId: String) {
+        val startedAtMillis = System.currentTimeMillis()
+        val startNanos = System.nanoTime()
+        val marks = ArrayList<MarkAt>()
+    }
+
+    private val lock = Any()
+    private val active = LinkedHashMap<String, Live>()
+    private val ring = ArrayDeque<Trace>(RING_CAPACITY)
+    private var nextSequence = 1L
+    private var lastSentSequence = 0L
+
+    /**
+     * Start a fresh trace for [transactionId]. Any other live trace is
+     * finished first: only one transaction is on screen at a time.
+     */
+    fun begin(transactionId: String) = synchronized(lock) {
+        active.keys.toList().forEach { finishLocked(it) }
+        active[transactionId] = Live(transactionId)
+    }
+
+    /**
+     * Record [mark] now. With [start], a missing trace is created first.
+     */
+    fun mark(transactionId: String?, mark: Mark, detail: String? = null, start: Boolean = false) {
+        if (transactionId == null) return
+        val now = System.nanoTime()
+        synchronized(lock) {
+            val live = active[transactionId] ?: if (start) {
+                // Drop the oldest live trace rather than grow without bound.
+                if (active.size >= MAX_ACTIVE) active.keys.firstOrNull()?.let { finishLocked(it) }
+                Live(transactionId).also { active[transactionId] = it }
+            } else {
+                return
+            }
+            if (live.marks.size >= MAX_MARKS) return
+            live.marks.add(MarkAt(mark, now - live.startNanos, detail?.take(MAX_DETAIL_LENGTH)))
+        }
+    }
+
+    /**
+     * Finish [transactionId]'s trace and move it into the ring.
+     */
+    fun finish(transactionId: String?) {
+        if (transactionId == null) return
+        synchronized(lock) { finishLocked(transactionId) }
+    }
+
+    private fun finishLocked(transactionId: String) {
+        val live = active.remove(transactionId) ?: return
+        // An amount screen nobody used is not a transaction.
+        if (live.marks.none { it.mark == Mark.AMOUNT_TAPPED }) return
+        val trace = Trace(nextSequence++, live.transactionId, live.startedAtMillis, live.marks.toList())
+        if (ring.size >= RING_CAPACITY) ring.removeFirst()
+        ring.addLast(trace)
+        Log.d(TAG, "Trace tx=$transactionId: " + Phase.values().mapNotNull { phase ->
+            trace.durationNanos(phase)?.let { "${phase.label}=${it / 1_000_000}ms" }
+        }.joinToString(" "))
+    }
+
+    /**
+     * Finished traces, oldest first.
+     */
+    fun traces(): List<Trace> = synchronized(lock) { ring.toList() }
+
+    /**
+     * p50/p95 per phase over the ring. Phases no trace covers are left out.
+     */
+    fun phaseSummary(): List<PhaseSummary> {
+        val traces = traces()
+        return Phase.values().mapNotNull { phase ->
+            val durations = traces.mapNotNull { it.durationNanos(phase) }.sorted()
+            if (durations.isEmpty()) return@mapNotNull null
+            PhaseSummary(
+                phase = phase.label,
+                count = durations.size,
+                p50Millis = percentile(durations, 50) / 1_000_000L,
+                p95Millis = percentile(durations, 95) / 1_000_000L
+            )
+        }
+    }
+
+    /**
+     * Up to [max] finished traces not yet acknowledged with [markSent], oldest first.
+     */
+    fun pendingBatch(max: Int): List<Trace> = synchronized(lock) {
+        ring.filter { it.sequence > lastSentSequence }.take(max)
+    }
+
+    fun pendingCount(): Int = synchronized(lock) { ring.count { it.sequence > lastSentSequence } }
+
+    /**
+     * Acknowledge every trace up to and including [sequence] as exported.
+     */
+    fun markSent(sequence: Long) = synchronized(lock) {
+        if (sequence > lastSentSequence) lastSentSequence = sequence
+    }
+
+    // Nearest-rank percentile of an ascending list.
+    private fun percentile(sorted: List<Long>, p: Int): Long {
+        val rank = (p * sorted.size + 99) / 100
+        return sorted[(rank - 1).coerceIn(0, sorted.size - 1)]
+    }
+}
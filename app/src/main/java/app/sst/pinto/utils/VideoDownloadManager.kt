@@ -1,15 +1,22 @@
 package app.sst.pinto.utils
 
 import android.content.Context
+import android.content.SharedPreferences
 import android.net.Uri
+import app.sst.pinto.config.ConfigManager
+import app.sst.pinto.data.models.MediaManifestEntry
+import app.sst.pinto.data.models.MessageAdapters
 import java.io.File
-import java.io.FileOutputStream
+import java.io.IOException
 import java.util.Locale
 import java.util.concurrent.TimeUnit
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
 import okhttp3.OkHttpClient
-import okhttp3.Request
 
 /**
  * Downloads and caches the idle/screensaver video for the Pinto app.
@@ -18,14 +25,34 @@ import okhttp3.Request
  *   /Android/data/app.sst.pinto/files/screensaver/[sitename].mp4
  * - The most recently downloaded video path is stored in shared preferences so
  *   the screensaver can play the cached file instead of the default resource.
+ * - Downloads go through [ResumableDownloader]: the video file only appears
+ *   once it is complete, and an interrupted download resumes from the last
+ *   byte on the next attempt.
+ * - Files live in the size-bounded [MediaCache], which keeps each video's
+ *   source URL and validators. [syncPendingMedia] re-checks the current
+ *   video with a conditional GET; a changed video is downloaded to
+ *   `<name>.next` and swapped in (MediaCache.promoteStaged) when the next
+ *   screensaver session starts.
+ * - [setPlaylist] sets an ordered playlist of cached videos that the
+ *   screensaver rotates through instead of the single video.
+ * - Background work (revalidation, playlist items, re-downloads) runs
+ *   through [MediaPrefetcher], only while the kiosk is idle and with the
+ *   downloads capped by a [BandwidthThrottle].
+ * - Every download is hashed (SHA-256) as it streams to disk and checked
+ *   against the server's media manifest; mismatches are quarantined, and
+ *   a video whose content is already cached under another name is not
+ *   downloaded again.
+ * - Alternatively [streamVideo] has the screensaver stream the video
+ *   through [StreamCache], caching it as it plays.
  *
  * Supports:
  * - Site name input (e.g. "charlie") which maps to a configured cloud library
  * - Full video URL input (https://...) for direct downloads
  */
-class VideoDownloadManager(private val context: Context) {
+class VideoDownloadManager(private val context: Context, throttle: BandwidthThrottle? = null) {
 
     private val logger = FileLogger.getInstance(context)
+    private val cache = MediaCache.getInstance(context)
 
     companion object {
         private const val TAG = "VideoDownloadManager"
@@ -38,30 +65,80 @@ class VideoDownloadManager(private val context: Context) {
         private const val BASE_URL =
             "https://selfservicetechnology.blob.core.windows.net/pinto-assets"
 
-        // Directory under external files where videos are cached
-        private const val VIDEO_DIR = "screensaver"
-
         // Network timeouts
         private const val CONNECT_TIMEOUT_SECONDS = 30L
         private const val READ_TIMEOUT_SECONDS = 180L // matches spec: 180s timeout
 
+        // Background checks of corrupt media outlive the caller
+        private val repairScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
         // SharedPreferences used to store current cached video path
         const val PREFS_NAME = "screensaver_video_prefs"
         const val KEY_CURRENT_VIDEO_PATH = "current_video_path"
+
+        // URL the current video was downloaded from, to fetch it again if dropped
+        const val KEY_CURRENT_VIDEO_URL = "current_video_url"
+
+        // URL the screensaver streams through StreamCache, when streaming
+        const val KEY_STREAM_URL = "stream_url"
+
+        // Ordered screensaver playlist: one site name or URL per line
+        const val KEY_PLAYLIST = "playlist"
+
+        /**
+         * The screensaver playlist in order, as (video URL, local file name).
+         */
+        fun playlistSources(prefs: SharedPreferences): List<Pair<String, String>> =
+            prefs.getString(KEY_PLAYLIST, null).orEmpty()
+                .lines()
+                .map { it.trim() }
+                .filter { it.isNotEmpty() }
+                .map { resolveSource(it) }
+
+        /**
+         * Map the input to the video URL and the local file name:
+         * - Full URL -> itself, named after its last path segment
+         * - Site name -> $BASE_URL/<name>.mp4 ("screensaver" maps to screensaver.mp4)
+         */
+        private fun resolveSource(input: String): Pair<String, String> {
+            if (input.startsWith("http://", ignoreCase = true) ||
+                input.startsWith("https://", ignoreCase = true)
+            ) {
+                val uri = Uri.parse(input)
+                val nameFromUrl = uri.lastPathSegment
+                    ?.takeIf { it.isNotBlank() }
+                    ?: "screensaver.mp4"
+                return input to nameFromUrl
+            }
+
+            // Name-based download (no protocol). Handle special defaults and arbitrary names.
+            val safeName = input.lowercase(Locale.ROOT)
+
+            // Special-case: "screensaver" maps directly to screensaver.mp4 in root
+            val (path, localFileName) = if (safeName == "screensaver") {
+                "screensaver.mp4" to "screensaver.mp4"
+            } else {
+                // If user included an extension, keep it; otherwise assume .mp4
+                val hasExtension = safeName.contains('.')
+                val filePart = if (hasExtension) safeName else "$safeName.mp4"
+                filePart to filePart
+            }
+
+            return "$BASE_URL/$path" to localFileName
+        }
     }
 
+    /**
+     * Outcome of one revalidation of the current video.
+     */
+    enum class Revalidation { NOT_MODIFIED, UPDATE_STAGED, NO_VIDEO, FAILED }
+
     private val httpClient: OkHttpClient = OkHttpClient.Builder()
         .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
         .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
         .build()
 
-    /**
-     * Directory where cached screensaver videos are stored:
-     * /Android/data/app.sst.pinto/files/screensaver
-     */
-    private val videoDir: File by lazy {
-        File(context.getExternalFilesDir(null), VIDEO_DIR).apply { mkdirs() }
-    }
+    private val downloader = ResumableDownloader(httpClient, throttle = throttle)
 
     /**
      * Download a screensaver video either by:
@@ -80,103 +157,358 @@ class VideoDownloadManager(private val context: Context) {
             }
 
             try {
-                // Decide if the user entered a full URL or just a site name
-                val (videoUrl, fileName) =
-                    if (input.startsWith("http://", ignoreCase = true) ||
-                        input.startsWith("https://", ignoreCase = true)
-                    ) {
-                        val uri = Uri.parse(input)
-                        val nameFromUrl = uri.lastPathSegment
-                            ?.takeIf { it.isNotBlank() }
-                            ?: "screensaver.mp4"
-                        input to nameFromUrl
-                    } else {
-                        // Name-based download (no protocol). Handle special defaults and arbitrary names.
-                        val safeName = input.lowercase(Locale.ROOT)
-
-                        // Special-case: "screensaver" maps directly to screensaver.mp4 in root
-                        val (path, localFileName) = if (safeName == "screensaver") {
-                            "screensaver.mp4" to "screensaver.mp4"
-                        } else {
-                            // If user included an extension, keep it; otherwise assume .mp4
-                            val hasExtension = safeName.contains('.')
-                            val filePart = if (hasExtension) safeName else "$safeName.mp4"
-                            filePart to filePart
-                        }
-
-                        val url = "$BASE_URL/$path"
-                        url to localFileName
-                    }
-
-                val localFile = File(videoDir, fileName)
-
-                // If file is already cached and non-empty, reuse it
-                if (localFile.exists() && localFile.length() > 0) {
+                val (videoUrl, fileName) = resolveSource(input)
+
+                // Only complete downloads are ever renamed into the cache, so
+                // a cached entry is a finished video
+                cache.promoteStaged(fileName)
+                if (cache.get(fileName) != null) {
+                    val localFile = cache.fileFor(fileName)
                     logger.i(TAG, "Screensaver video already cached: ${localFile.absolutePath}")
-                    saveCurrentVideoPath(localFile)
+                    // Cached before validators were kept, or from another URL:
+                    // the next revalidation fetches it unconditionally
+                    cache.adopt(fileName, videoUrl)
+                    saveCurrentVideoPath(fileName, videoUrl, localFile)
                     return@withContext Result.success(localFile)
                 }
 
                 logger.i(TAG, "Downloading screensaver video from: $videoUrl")
 
-                val request = Request.Builder()
-                    .url(videoUrl)
-                    .build()
+                val entry = fetchIntoCache(videoUrl, fileName)
+                    ?: return@withContext Result.failure(IOException("Unexpected 304 for $videoUrl"))
+                val localFile = cache.fileFor(fileName)
+                saveCurrentVideoPath(fileName, videoUrl, localFile)
 
-                val response = httpClient.newCall(request).execute()
+                logger.i(
+                    TAG,
+                    "Screensaver video downloaded successfully: ${localFile.absolutePath} (${entry.length} bytes)"
+                )
 
-                if (!response.isSuccessful) {
-                    logger.e(TAG, "Failed to download video. HTTP ${response.code}")
-                    return@withContext Result.failure(
-                        Exception("Download failed: HTTP ${response.code}")
-                    )
-                }
+                Result.success(localFile)
+            } catch (e: CancellationException) {
+                // Paused: the part file is kept for the next attempt
+                throw e
+            } catch (e: Exception) {
+                logger.e(TAG, "Error downloading screensaver video", e)
+                Result.failure(e)
+            }
+        }
 
-                val responseBody = response.body
-                if (responseBody == null) {
-                    logger.e(TAG, "Response body is null while downloading video")
-                    return@withContext Result.failure(Exception("Empty response body"))
-                }
+    /**
+     * Make the screensaver stream [siteNameOrUrl] (site name or URL, as for
+     * [downloadVideo]) through [StreamCache] instead of downloading it
+     * first. Nothing is fetched here: the screensaver starts playing it
+     * within seconds and caches it as it plays. A video already downloaded
+     * in full is played from [MediaCache] instead.
+     *
+     * Returns Result<String> with the URL that will be streamed, or the
+     * path of the cached file.
+     */
+    suspend fun streamVideo(siteNameOrUrl: String): Result<String> =
+        withContext(Dispatchers.IO) {
+            val input = siteNameOrUrl.trim()
+            if (input.isEmpty()) {
+                return@withContext Result.failure(
+                    IllegalArgumentException("Site name or URL is empty")
+                )
+            }
 
-                // Ensure parent directory exists
-                localFile.parentFile?.mkdirs()
+            try {
+                val (videoUrl, fileName) = resolveSource(input)
 
-                // Stream response body to file
-                FileOutputStream(localFile).use { output ->
-                    responseBody.byteStream().use { inputStream ->
-                        inputStream.copyTo(output)
-                    }
+                cache.promoteStaged(fileName)
+                if (cache.get(fileName) != null) {
+                    logger.i(TAG, "Screensaver video already cached: ${cache.fileFor(fileName).absolutePath}")
+                    cache.adopt(fileName, videoUrl)
+                    saveCurrentVideoPath(fileName, videoUrl, cache.fileFor(fileName))
+                    return@withContext Result.success(cache.fileFor(fileName).absolutePath)
                 }
 
-                if (localFile.length() <= 0) {
-                    logger.e(TAG, "Downloaded file is empty: ${localFile.absolutePath}")
-                    return@withContext Result.failure(Exception("Downloaded file is empty"))
-                }
+                // Keep the disk for this one stream
+                StreamCache.getInstance(context).retainOnly(videoUrl)
+                cache.setActive(null)
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                    .putString(KEY_STREAM_URL, videoUrl)
+                    .remove(KEY_CURRENT_VIDEO_PATH)
+                    .remove(KEY_CURRENT_VIDEO_URL)
+                    .apply()
+                logger.i(TAG, "Screensaver video will stream from: $videoUrl")
+                Result.success(videoUrl)
+            } catch (e: Exception) {
+                logger.e(TAG, "Error setting up screensaver video stream", e)
+                Result.failure(e)
+            }
+        }
 
-                logger.i(
-                    TAG,
-                    "Screensaver video downloaded successfully: ${localFile.absolutePath} (${localFile.length()} bytes)"
-                )
+    /**
+     * Set the screensaver playlist: [entries] (site names or URLs, as for
+     * [downloadVideo]) play in order, gaplessly, instead of the single
+     * video. An empty list goes back to the single video.
+     *
+     * The list takes effect straight away and its items are pinned in
+     * [MediaCache]. Items not cached yet are then downloaded one by one,
+     * or with [downloadNow] false left to the next [MediaPrefetcher] pass.
+     * The screensaver skips items that are not downloaded yet.
+     *
+     * Returns Result<Int> with the number of items ready to play.
+     */
+    suspend fun setPlaylist(entries: List<String>, downloadNow: Boolean = true): Result<Int> =
+        withContext(Dispatchers.IO) {
+            try {
+                val lines = entries.map { it.trim() }.filter { it.isNotEmpty() }
+                val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                val previous = playlistSources(prefs).map { it.second }
+                val names = lines.map { resolveSource(it).second }
 
-                saveCurrentVideoPath(localFile)
-                Result.success(localFile)
+                prefs.edit().apply {
+                    if (lines.isEmpty()) remove(KEY_PLAYLIST) else putString(KEY_PLAYLIST, lines.joinToString("\n"))
+                }.apply()
+                (previous - names.toSet()).forEach { cache.unpin(it) }
+                names.forEach { cache.pin(it) }
+                logger.i(TAG, "Screensaver playlist set: $names")
+
+                if (downloadNow) {
+                    Result.success(downloadMissingPlaylistItems())
+                } else {
+                    names.forEach { cache.promoteStaged(it) }
+                    Result.success(names.count { cache.get(it) != null })
+                }
             } catch (e: Exception) {
-                logger.e(TAG, "Error downloading screensaver video", e)
+                logger.e(TAG, "Error setting screensaver playlist", e)
                 Result.failure(e)
             }
         }
 
+    /**
+     * Download the playlist items not cached yet, in order. An item that
+     * fails is left for the next pass. Returns the number of items ready
+     * to play.
+     */
+    suspend fun downloadMissingPlaylistItems(): Int = withContext(Dispatchers.IO) {
+        val sources = playlistSources(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE))
+        var ready = 0
+        for ((url, name) in sources) {
+            cache.promoteStaged(name)
+            if (cache.get(name) != null) {
+                cache.adopt(name, url)
+                ready++
+                continue
+            }
+            try {
+                logger.i(TAG, "Downloading playlist item from: $url")
+                fetchIntoCache(url, name) ?: continue
+                ready++
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                logger.e(TAG, "Error downloading playlist item $url", e)
+            }
+        }
+        ready
+    }
+
+    /**
+     * Get [name] from [url] into the cache and pin it. If the manifest
+     * gives its hash and that content is already cached under another
+     * name, nothing is downloaded. A download whose hash does not match
+     * the manifest is quarantined and its [IntegrityException] rethrown.
+     * Returns null on an unexpected 304.
+     */
+    private suspend fun fetchIntoCache(url: String, name: String): MediaCache.Entry? {
+        val expected = manifest()[name]
+        // Pin before indexing so making room never evicts the new video
+        cache.pin(name)
+        expected?.let { cache.findBySha256(it.sha256) }?.let { original ->
+            logger.i(TAG, "$name has the same content as ${original.name}, not downloading it")
+            cache.alias(name, url, original.name)?.let { return it }
+        }
+        val downloaded = try {
+            downloader.download(url, cache.fileFor(name), expectedSha256 = expected?.sha256)
+        } catch (e: IntegrityException) {
+            cache.quarantineFile(name, e.file)
+            throw e
+        } ?: return null
+        logger.i(TAG, "Downloaded $name, sha256 ${downloaded.sha256}")
+        return cache.put(name, url, downloaded.validators, downloaded.sha256)
+    }
+
+    /**
+     * The server's media manifest, keyed by file name (empty if none).
+     */
+    private fun manifest(): Map<String, MediaManifestEntry> {
+        val json = ConfigManager.getInstance(context).getMediaManifestJson() ?: return emptyMap()
+        return try {
+            MessageAdapters.mediaManifest.fromJson(json).orEmpty()
+        } catch (e: Exception) {
+            logger.e(TAG, "Stored media manifest is invalid, ignoring it", e)
+            emptyMap()
+        }
+    }
+
+    /**
+     * Check the cache against a new [manifest] (already saved in
+     * ConfigManager). Content whose recorded hash or length differs is
+     * dropped; content cached before hashes were kept is hashed once.
+     * Dropped videos that are in use (the current video, playlist items)
+     * are downloaded again by the next [syncPendingMedia].
+     */
+    suspend fun applyManifest(manifest: Map<String, MediaManifestEntry>) {
+        withContext(Dispatchers.IO) {
+            rememberCurrentVideoUrl()
+            for ((name, expected) in manifest) {
+                val entry = cache.get(name) ?: continue
+                val original = entry.aliasOf?.let { cache.get(it) } ?: entry
+                val matches = when {
+                    expected.size != null && original.length >= 0 && expected.size != original.length -> false
+                    original.sha256 != null -> original.sha256.equals(expected.sha256, ignoreCase = true)
+                    // Cached before hashes were kept: one read to find out
+                    else -> cache.verify(name, expected.sha256)
+                }
+                // A failed verify has already quarantined it
+                if (matches || cache.get(name) == null) continue
+
+                logger.i(TAG, "Cached $name does not match the media manifest, dropping it")
+                if (entry.aliasOf != null) cache.remove(name) else cache.quarantine(name)
+            }
+        }
+    }
+
+    /**
+     * The screensaver could not play [name]: check its content in the
+     * background; if it is corrupt it is quarantined and [MediaPrefetcher]
+     * downloads it again when the kiosk is idle.
+     */
+    fun repairInBackground(name: String) {
+        repairScope.launch {
+            if (cache.get(name) == null) return@launch
+            rememberCurrentVideoUrl()
+            if (cache.verify(name)) return@launch
+            logger.i(TAG, "Cached $name was corrupt and is quarantined, downloading it again when idle")
+            MediaPrefetcher.requestPass()
+        }
+    }
+
+    /**
+     * One pass over the media the screensaver needs: download the current
+     * video again if it was dropped, download the playlist items not
+     * cached yet, then revalidate the current video and the playlist.
+     * Anything that fails is left for the next pass. Cancelling stops the
+     * pass promptly; interrupted downloads resume on the next one.
+     */
+    suspend fun syncPendingMedia() {
+        val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        val currentUrl = prefs.getString(KEY_CURRENT_VIDEO_URL, null)
+        val current = getCurrentVideoPath()?.let { File(it).name }
+        if (currentUrl != null && current != null && cache.get(current) == null) {
+            logger.i(TAG, "Current screensaver video is not cached, downloading it again")
+            downloadVideo(currentUrl)
+        }
+        downloadMissingPlaylistItems()
+        revalidateCurrentVideo()
+        playlistSources(prefs)
+            .map { it.second }
+            .filter { it != current }
+            .forEach { revalidate(it) }
+    }
+
+    /**
+     * Ask the server whether the current video changed (a conditional GET,
+     * a few hundred bytes when it did not). A changed video is downloaded
+     * in the background to `<name>.next`; the playing file is not touched.
+     */
+    suspend fun revalidateCurrentVideo(): Revalidation {
+        val path = getCurrentVideoPath() ?: return Revalidation.NO_VIDEO
+        return revalidate(File(path).name)
+    }
+
+    private suspend fun revalidate(name: String): Revalidation = withContext(Dispatchers.IO) {
+        val entry = cache.get(name)
+        val url = entry?.url ?: return@withContext Revalidation.NO_VIDEO
+        // A de-duplicated name follows its original; the manifest tells
+        // when its own content changes
+        if (entry.aliasOf != null) return@withContext Revalidation.NOT_MODIFIED
+
+        try {
+            // Compare against the newest copy we hold, staged or live
+            val validators = cache.newestValidators(name)?.takeUnless { it.isEmpty }
+            if (validators == null && unchangedWithoutValidators(name, entry, url)) {
+                cache.markChecked(name)
+                logger.i(TAG, "Screensaver video unchanged (no validators, checked by hash or length): $url")
+                return@withContext Revalidation.NOT_MODIFIED
+            }
+            val downloaded = try {
+                downloader.download(
+                    url,
+                    cache.stagedFileFor(name),
+                    ifChanged = validators,
+                    expectedSha256 = manifest()[name]?.sha256
+                )
+            } catch (e: IntegrityException) {
+                // Keep playing the copy we have; the next pass tries again
+                cache.quarantineFile(name, e.file)
+                throw e
+            }
+            if (downloaded == null) {
+                cache.markChecked(name)
+                logger.i(TAG, "Screensaver video unchanged: $url")
+                Revalidation.NOT_MODIFIED
+            } else {
+                cache.putStaged(name, downloaded.validators, downloaded.sha256)
+                logger.i(TAG, "Screensaver video changed, staged ${downloaded.length} bytes for the next session")
+                Revalidation.UPDATE_STAGED
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            logger.e(TAG, "Error revalidating screensaver video", e)
+            Revalidation.FAILED
+        }
+    }
+
+    // Without validators a GET cannot be conditional. The manifest hash,
+    // else the length a HEAD reports, tells whether the newest copy held
+    // is current; only when neither can be compared is it downloaded again
+    private suspend fun unchangedWithoutValidators(name: String, entry: MediaCache.Entry, url: String): Boolean {
+        val staged = entry.stagedValidators != null
+        val heldSha256 = if (staged) entry.stagedSha256 else entry.sha256
+        val heldLength = if (staged) cache.stagedFileFor(name).length() else entry.length
+        manifest()[name]?.let { expected ->
+            if (expected.size != null && heldLength >= 0 && expected.size != heldLength) return false
+            if (heldSha256 != null) return heldSha256.equals(expected.sha256, ignoreCase = true)
+        }
+        if (heldLength < 0) return false
+        val length = downloader.contentLength(url)
+        return length >= 0 && length == heldLength
+    }
+
     /**
      * Persist the last successfully downloaded video path so the screensaver
-     * can load the cached video.
+     * can load the cached video. [name] is its cache name, downloaded from
+     * [url]; [file] may be another name's when the content was
+     * de-duplicated. Blocks on disk I/O.
      */
-    private fun saveCurrentVideoPath(file: File) {
+    private fun saveCurrentVideoPath(name: String, url: String, file: File) {
+        cache.setActive(name)
+        // A downloaded video replaces any stream
+        StreamCache.getInstance(context).retainOnly(null)
         val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
         prefs.edit()
             .putString(KEY_CURRENT_VIDEO_PATH, file.absolutePath)
+            .putString(KEY_CURRENT_VIDEO_URL, url)
+            .remove(KEY_STREAM_URL)
             .apply()
     }
 
+    // Videos saved before their URL was kept: take it from the cache entry
+    // while there is one, so a dropped current video can be fetched again
+    private fun rememberCurrentVideoUrl() {
+        val prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+        if (prefs.contains(KEY_CURRENT_VIDEO_URL)) return
+        val name = getCurrentVideoPath()?.let { File(it).name } ?: return
+        val url = cache.get(name)?.url ?: return
+        prefs.edit().putString(KEY_CURRENT_VIDEO_URL, url).apply()
+    }
+
     /**
      * Get the currently cached video path, if any.
      */
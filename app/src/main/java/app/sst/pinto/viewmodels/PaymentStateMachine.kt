@@ -0,0 +1,279 @@
+package app.sst.pinto.viewmodels
+
+import android.util.Log
+import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.utils.LatencyStats
+import app.sst.pinto.utils.TransactionTimerScheduler
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlin.reflect.KClass
+
+/**
+ * Events that move the payment UI between [PaymentScreenState]s.
+ */
+enum class PaymentEvent {
+    /** SCREEN_CHANGE sent by the backend. */
+    SERVER_SCREEN,
+    /** ERROR sent by the backend; not held back by LIMIT_ERROR. */
+    SERVER_ERROR,
+    CONNECTING,
+    CONNECTION_LOST,
+    /** Back to Loading while a fresh screen is requested from the backend. */
+    SESSION_RESET,
+    /** Screensaver dismissed; the saved screen comes back. */
+    RESTORE,
+    /** Client-side navigation driven by user input (e.g. the keypad). */
+    USER_INPUT,
+    PAYMENT_STARTED,
+    PAYMENT_APPROVED,
+    PAYMENT_FAILED,
+    LIMIT_REJECTED,
+    REVERSAL_STARTED,
+    REVERSAL_COMPLETED,
+    REFUND_STARTED,
+    INVALID_MESSAGE
+}
+
+/**
+ * Delayed transitions, one per call site. The delay is how long the
+ * current screen stays up before the timer's action runs; [defaultMillis]
+ * can be overridden per site (see ConfigManager.getTimerDurationMillis).
+ */
+enum class TimerSite(val defaultMillis: Long) {
+    /** Failed / error result screen before returning to amount selection. */
+    FAILED_RESULT(4000),
+    /** Refund reversed: success screen before returning to amount selection. */
+    REFUND_SUCCESS(3000),
+    LIMIT_REVERSAL_SUCCESS(2500),
+    LIMIT_REVERSAL_FAILED(6000),
+    RECOVERY_SUCCESS(2200),
+    RECOVERY_FAILED(3000),
+    /** YASPA disabled: Timeout interstitial before starting the card payment. */
+    YASPA_BYPASS(3000),
+    /** Still Loading after requesting the initial screen: reconnect and retry. */
+    LOADING_FALLBACK(3000),
+    /** Still Loading after connecting: request the initial screen. */
+    CONNECT_FALLBACK(5000)
+}
+
+/**
+ * Owns the payment screen state and every change to it.
+ *
+ * Each [PaymentEvent] has a [Rule] in [table]: the source and target screen
+ * types it may connect and a guard. [fire] rejects anything the table does
+ * not allow, so the allowed flow is declared in one place instead of being
+ * implied by scattered assignments.
+ *
+ * Timed transitions are armed with [after] on a [TransactionTimerScheduler].
+ * A timer belongs to the transaction it was armed for and to the state that
+ * was current at the time. Leaving that state, or ending the transaction
+ * with [endTransaction], cancels the timer, so a result-screen timer can no
+ * longer reset a later flow. Delays come from [durationOf], so each
+ * [TimerSite] can be tuned per venue.
+ *
+ * For each edge, the time spent in the source state is recorded in
+ * [transitionStats]. For example, Processing->TransactionSuccess is the
+ * terminal round trip.
+ *
+ * A [Listener] sees every fire (accepted or not) and every timer, which is
+ * what session recording and replay are built on.
+ *
+ * All calls are expected on the main thread (view-model scope).
+ */
+class PaymentStateMachine(
+    scope: CoroutineScope,
+    initial: PaymentScreenState = PaymentScreenState.Loading,
+    private val durationOf: (TimerSite) -> Long = { it.defaultMillis }
+) {
+    private val TAG = "PaymentStateMachine"
+
+    /**
+     * Observer of transitions and timers. [timer] is the site whose action
+     * was running when the event fired, or null for a direct fire.
+     */
+    interface Listener {
+        fun onFire(event: PaymentEvent, from: PaymentScreenState, to: PaymentScreenState, accepted: Boolean, timer: TimerSite?) {}
+        fun onTimerArmed(site: TimerSite, transactionId: String, delayMillis: Long) {}
+        fun onTimerFired(site: TimerSite, transactionId: String) {}
+        fun onTransactionEnded(transactionId: String) {}
+        fun onLimitErrorReleased() {}
+    }
+
+    var listener: Listener? = null
+
+    private class Rule(
+        val to: Set<KClass<out PaymentScreenState>>? = null,
+        val from: Set<KClass<out PaymentScreenState>>? = null,
+        val guard: (from: PaymentScreenState, to: PaymentScreenState) -> Boolean = { _, _ -> true }
+    )
+
+    private val table: Map<PaymentEvent, Rule> = mapOf(
+        PaymentEvent.SERVER_SCREEN to Rule(guard = { from, to -> !isLimitErrorHeld(from, to) }),
+        PaymentEvent.SERVER_ERROR to Rule(to = setOf(PaymentScreenState.TransactionFailed::class)),
+        PaymentEvent.CONNECTING to Rule(
+            to = setOf(PaymentScreenState.Loading::class),
+            // Don't hide a connection error behind a spinner
+            guard = { from, _ -> from !is PaymentScreenState.ConnectionError }
+        ),
+        PaymentEvent.CONNECTION_LOST to Rule(to = setOf(PaymentScreenState.ConnectionError::class)),
+        PaymentEvent.SESSION_RESET to Rule(to = setOf(PaymentScreenState.Loading::class)),
+        PaymentEvent.RESTORE to Rule(),
+        PaymentEvent.USER_INPUT to Rule(to = setOf(PaymentScreenState.KeypadEntry::class)),
+        PaymentEvent.PAYMENT_STARTED to Rule(
+            to = setOf(
+                PaymentScreenState.Processing::class,
+                PaymentScreenState.MockPaymentCard::class,
+                PaymentScreenState.Timeout::class
+            )
+        ),
+        PaymentEvent.PAYMENT_APPROVED to Rule(to = setOf(PaymentScreenState.TransactionSuccess::class)),
+        PaymentEvent.PAYMENT_FAILED to Rule(to = setOf(PaymentScreenState.TransactionFailed::class)),
+        PaymentEvent.LIMIT_REJECTED to Rule(to = setOf(PaymentScreenState.LimitError::class)),
+        PaymentEvent.REVERSAL_STARTED to Rule(to = setOf(PaymentScreenState.ReversingTransaction::class)),
+        PaymentEvent.REVERSAL_COMPLETED to Rule(
+            to = setOf(
+                PaymentScreenState.ReversalSuccess::class,
+                PaymentScreenState.TransactionSuccess::class,
+                PaymentScreenState.TransactionFailed::class
+            )
+        ),
+        PaymentEvent.REFUND_STARTED to Rule(to = setOf(PaymentScreenState.RefundProcessing::class)),
+        PaymentEvent.INVALID_MESSAGE to Rule(to = setOf(PaymentScreenState.DeviceError::class))
+    )
+
+    private val _state = MutableStateFlow(initial)
+    val state: StateFlow<PaymentScreenState> = _state
+
+    val current: PaymentScreenState get() = _state.value
+
+    private val edgeStats = LatencyStats("payment-transitions")
+
+    // Incremented on every state change; timers remember the epoch they were armed in.
+    private var epoch = 0L
+    private var enteredAtNanos = System.nanoTime()
+
+    // LIMIT_ERROR stays up until the user explicitly resets (see releaseLimitError).
+    private var limitErrorReleased = false
+
+    private val scheduler = TransactionTimerScheduler(scope)
+
+    // Timers this machine armed, with the epoch they were armed in.
+    private class Armed(val site: TimerSite, val epoch: Long, val timer: TransactionTimerScheduler.Timer)
+
+    private val armed = mutableListOf<Armed>()
+
+    // Site of the timer action currently running, for Listener.onFire.
+    private var runningTimer: TimerSite? = null
+
+    /**
+     * Apply [event] moving to [target]. Returns false when the table rejects
+     * it; the current state is then left unchanged.
+     */
+    fun fire(event: PaymentEvent, target: PaymentScreenState): Boolean {
+        val from = _state.value
+        val rule = table.getValue(event)
+        val allowed = (rule.to == null || target::class in rule.to) &&
+            (rule.from == null || from::class in rule.from) &&
+            rule.guard(from, target)
+        listener?.onFire(event, from, target, allowed, runningTimer)
+        if (!allowed) {
+            Log.d(TAG, "Rejected $event: ${from::class.simpleName} -> ${target::class.simpleName}")
+            return false
+        }
+        if (from == target) return true
+
+        val now = System.nanoTime()
+        edgeStats.record("${from::class.simpleName}->${target::class.simpleName}", now - enteredAtNanos)
+        enteredAtNanos = now
+
+        if (from is PaymentScreenState.LimitError || target is PaymentScreenState.LimitError) {
+            limitErrorReleased = false
+        }
+        epoch++
+        cancelTimersArmedBefore(epoch)
+        _state.value = target
+        return true
+    }
+
+    /**
+     * True while LIMIT_ERROR is showing and the user has not reset it;
+     * server screens other than LIMIT_ERROR are ignored meanwhile.
+     */
+    fun isLimitErrorHeld(): Boolean =
+        _state.value is PaymentScreenState.LimitError && !limitErrorReleased
+
+    private fun isLimitErrorHeld(from: PaymentScreenState, to: PaymentScreenState): Boolean =
+        from is PaymentScreenState.LimitError && to !is PaymentScreenState.LimitError && !limitErrorReleased
+
+    /**
+     * The user asked to leave LIMIT_ERROR; the next server screen may replace it.
+     */
+    fun releaseLimitError() {
+        listener?.onLimitErrorReleased()
+        limitErrorReleased = true
+    }
+
+    /**
+     * Run [action] after [site]'s configured delay unless the current state
+     * is left or [transactionId]'s timers are cancelled first. Arming a site
+     * that is already pending for the same transaction and state restarts
+     * that timer instead of adding a second one.
+     */
+    fun after(site: TimerSite, transactionId: String?, action: suspend () -> Unit) {
+        val delayMillis = durationOf(site)
+        val key = transactionId.orEmpty()
+        val existing = armed.firstOrNull {
+            it.site == site && it.epoch == epoch && it.timer.transactionId == key
+        }
+        listener?.onTimerArmed(site, key, delayMillis)
+        if (existing != null && scheduler.reschedule(existing.timer, delayMillis)) return
+        existing?.let { armed.remove(it) }
+
+        lateinit var entry: Armed
+        val timer = scheduler.schedule(key, site.name, delayMillis) {
+            // Once fired the action owns itself; a transition it causes must not cancel it.
+            armed.remove(entry)
+            listener?.onTimerFired(site, key)
+            runningTimer = site
+            try {
+                action()
+            } finally {
+                runningTimer = null
+            }
+        }
+        entry = Armed(site, epoch, timer)
+        armed.add(entry)
+    }
+
+    /**
+     * Cancel every pending timer of [transactionId].
+     */
+    fun endTransaction(transactionId: String?) {
+        listener?.onTransactionEnded(transactionId.orEmpty())
+        val cancelled = scheduler.cancelAll(transactionId)
+        val key = transactionId.orEmpty()
+        armed.removeAll { it.timer.transactionId == key }
+        if (cancelled > 0) {
+            Log.d(TAG, "Cancelled $cancelled timer(s) for tx=$transactionId")
+        }
+    }
+
+    fun cancelAllTimers() {
+        scheduler.cancelEverything()
+        armed.clear()
+    }
+
+    /**
+     * Pending timed transitions, for diagnostics.
+     */
+    fun pendingTimers(): List<TransactionTimerScheduler.PendingTimer> = scheduler.pending()
+
+    fun transitionStats(): List<LatencyStats.Summary> = edgeStats.snapshot()
+
+    private fun cancelTimersArmedBefore(currentEpoch: Long) {
+        armed.removeAll { entry ->
+            (entry.epoch < currentEpoch).also { stale -> if (stale) scheduler.cancel(entry.timer) }
+        }
+    }
+}
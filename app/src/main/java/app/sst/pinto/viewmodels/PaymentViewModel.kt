@@ -2,39 +2,89 @@ package app.sst.pinto.viewmodels
 
 import android.app.Application
 import android.content.Intent
-import android.content.SharedPreferences
 import android.util.Log
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
+import app.sst.pinto.data.models.CardCheckResultMessage
+import app.sst.pinto.data.models.DeviceDetailsMessage
 import app.sst.pinto.data.models.MessageData
+import app.sst.pinto.data.models.PaymentResultMessage
 import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.data.models.PendingRecoveryTransaction
+import app.sst.pinto.data.models.PendingTicketPrintTransaction
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.ReversalResultMessage
+import app.sst.pinto.data.models.SessionRecord
 import app.sst.pinto.data.models.SocketMessage
+import app.sst.pinto.network.MessageDecoder
+import app.sst.pinto.network.MessageEncoder
+import app.sst.pinto.network.MessageTransport
 import app.sst.pinto.network.SocketManager
+import app.sst.pinto.network.TelemetryReporter
+import app.sst.pinto.utils.TimeoutAction
 import app.sst.pinto.utils.TimeoutManager
+import app.sst.pinto.utils.TimeoutPolicies
+import app.sst.pinto.utils.TimeoutPolicy
 import app.sst.pinto.utils.FileLogger
+import app.sst.pinto.utils.LatencyStats
+import app.sst.pinto.utils.MediaCache
+import app.sst.pinto.utils.MediaPrefetcher
+import app.sst.pinto.utils.ScreensaverPlayer
+import app.sst.pinto.utils.SessionRecorder
+import app.sst.pinto.utils.TransactionTimerScheduler
+import app.sst.pinto.utils.TransactionTracer
+import app.sst.pinto.utils.TransactionTracer.Mark
+import app.sst.pinto.utils.VideoDownloadManager
 import app.sst.pinto.payment.PlanetPaymentManager
 import app.sst.pinto.payment.MockPaymentManager
 import app.sst.pinto.payment.NNSmartPaymentManager
 import app.sst.pinto.payment.NNSmartPaymentResult
-import app.sst.pinto.data.AppDatabase
+import app.sst.pinto.payment.PaymentPipeline
+import app.sst.pinto.payment.TerminalPrewarmer
+import app.sst.pinto.payment.AmountQuotes
+import app.sst.pinto.payment.QuoteTable
+import app.sst.pinto.data.DeviceInfoRepository
+import app.sst.pinto.data.TransactionJournal
+import app.sst.pinto.data.TransactionJournalEntry
 import app.sst.pinto.utils.getDeviceIpAddress
 import app.sst.pinto.utils.getDeviceSerialNumber
-import com.squareup.moshi.JsonAdapter
-import com.squareup.moshi.Moshi
-import com.squareup.moshi.kotlin.reflect.KotlinJsonAdapterFactory
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
-import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.mapNotNull
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
-import org.json.JSONObject
 import java.util.UUID
 import app.sst.pinto.config.ConfigManager
 
-class PaymentViewModel(application: Application) : AndroidViewModel(application) {
+/**
+ * [socketManager], [timeoutManager], [journal] and [decodeDispatcher] are
+ * injected by session replay, which runs the view model at virtual time
+ * and feeds it a recorded session.
+ */
+class PaymentViewModel internal constructor(
+    application: Application,
+    private val socketManager: MessageTransport,
+    private val timeoutManager: TimeoutManager,
+    private val journal: TransactionJournal,
+    private val decodeDispatcher: CoroutineDispatcher
+) : AndroidViewModel(application) {
     private val TAG = "PaymentViewModel"
 
+    constructor(application: Application) : this(
+        application,
+        SocketManager.getInstance(),
+        TimeoutManager.getInstance(),
+        TransactionJournal.getInstance(application),
+        Dispatchers.Default
+    )
+
     /**
      * Fallback PAR value used when the NNSmart / Newland terminal does not
      * populate the real PAR on the sale response (common on dev terminals).
@@ -42,18 +92,23 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
      */
     private val NNSMART_DEV_MOCK_PAR = "V0010013021140394841643193699"
 
-    private val socketManager = SocketManager.getInstance()
-    private val timeoutManager = TimeoutManager.getInstance()
     private val configManager = ConfigManager.getInstance(getApplication())
+    private val deviceInfoRepository = DeviceInfoRepository.getInstance(getApplication())
     private val fileLogger = FileLogger.getInstance(getApplication())
-    private val recoveryPrefs: SharedPreferences =
-        getApplication<Application>().getSharedPreferences("payment_recovery", 0)
 
     // Store the server URL as a class property
     private var serverUrl: String = configManager.getServerUrl()
 
-    private val _screenState = MutableStateFlow<PaymentScreenState>(PaymentScreenState.Loading)
-    val screenState: StateFlow<PaymentScreenState> = _screenState
+    // Owns the screen state, its transition rules and all delayed transitions.
+    private val stateMachine = PaymentStateMachine(viewModelScope) { site ->
+        configManager.getTimerDurationMillis(site.name, site.defaultMillis)
+    }
+    val screenState: StateFlow<PaymentScreenState> = stateMachine.state
+
+    // Fee and limit quotes for the offered amounts, kept current with the
+    // configuration. Not screen state: re-quoting is not a transition.
+    private val _amountQuotes = MutableStateFlow(QuoteTable.EMPTY)
+    val amountQuotes: StateFlow<QuoteTable> = _amountQuotes
 
     // State for screensaver visibility
     private val _isScreensaverVisible = MutableStateFlow(false)
@@ -63,6 +118,11 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     private val _isOnAmountScreen = MutableStateFlow(false)
     val isOnAmountScreen: StateFlow<Boolean> = _isOnAmountScreen
 
+    // True while the current screen's inactivity warning is showing
+    val timeoutWarning: StateFlow<Boolean> = timeoutManager.warningActive
+
+    // The transaction replies are sent for. Only a transaction boundary
+    // (see beginTransaction) drops the timers the previous one armed.
     private var currentTransactionId: String? = null
     private var currentAmount: Int = 0 // Track the current amount
     private var lastActiveState: PaymentScreenState? = null // Track the state before timeout
@@ -70,6 +130,10 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     // Payment processing state
     private var pendingCardCheckResult: app.sst.pinto.payment.CardCheckResult? = null
 
+    // Overlaps sale preparation with the backend limit check (card-check-first providers)
+    private val paymentPipeline = PaymentPipeline(viewModelScope)
+    private var pipelineRun: PaymentPipeline.Run? = null
+
     // For NNSmart / Newland: the SALE is executed BEFORE the backend limit
     // check (since PAR is only available after a sale). If the backend rejects
     // the limit we use this to run a Cancellation on the terminal.
@@ -77,7 +141,6 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
 
     private var isProcessingPayment: Boolean = false
     private var isHandlingPaymentLocally: Boolean = false // Flag to track if we're handling payment locally (YASPA disabled)
-    private var allowNavigationFromLimitError: Boolean = false // Flag to allow navigation away from LIMIT_ERROR after user reset
     
     // Track last successful sale transaction for refund/reversal
     data class SuccessfulSaleTransaction(
@@ -87,33 +150,64 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     )
     private var lastSuccessfulSale: SuccessfulSaleTransaction? = null
 
-    private val moshi by lazy {
-        Moshi.Builder()
-            .addLast(KotlinJsonAdapterFactory())
-            .build()
-    }
-
-    private val messageAdapter: JsonAdapter<SocketMessage> by lazy {
-        moshi.adapter(SocketMessage::class.java)
-    }
-
-    private data class PendingRecoveryTransaction(
-        val transactionId: String,
-        val amount: Int,
-        val originalTrxUniqueId: String,
-        val provider: String
+    // Per inbound message type: decode time (background) and time spent
+    // applying the result on the main thread.
+    private val messageStats = LatencyStats("socket-decode")
+    private val mainThreadStats = LatencyStats("socket-main-thread")
+    private val UNHANDLED_MESSAGE_KEY = "UNHANDLED"
+    private val INVALID_MESSAGE_KEY = "INVALID"
+    private val FRAME_BUDGET_NANOS = 16_000_000L
+
+    // Inbound types that belong to the transaction the server is driving
+    private val TRANSACTION_MESSAGE_TYPES = setOf(
+        "SCREEN_CHANGE", "LIMIT_CHECK_RESULT", "REFUND_REQUEST", "REVERSAL_REQUEST"
     )
 
-    private data class PendingTicketPrintTransaction(
-        val transactionId: String,
-        val amount: Int,
-        val originalRequesterRef: String,
-        val provider: String
-    )
+    private sealed class InboundFrame {
+        class Decoded(
+            val message: SocketMessage,
+            val targetState: PaymentScreenState?,
+            // Built with the decode for AMOUNT_SELECT, so an amount tap is a lookup
+            val quotes: QuoteTable? = null
+        ) : InboundFrame()
+        class Invalid(val raw: String, val error: Exception) : InboundFrame()
+    }
 
     private var disconnectRecoveryJob: Job? = null
     private var isRecoveryInProgress: Boolean = false
 
+    // Feeds state-machine activity to the SessionRecorder while it is recording.
+    private val sessionRecordingListener = object : PaymentStateMachine.Listener {
+        override fun onFire(event: PaymentEvent, from: PaymentScreenState, to: PaymentScreenState, accepted: Boolean, timer: TimerSite?) {
+            if (!SessionRecorder.isRecording) return
+            SessionRecorder.fire(event.name, to::class.simpleName.orEmpty(), screenMessage(to), accepted, timer?.name)
+        }
+
+        override fun onTimerArmed(site: TimerSite, transactionId: String, delayMillis: Long) {
+            SessionRecorder.timerArmed(site.name, transactionId, delayMillis)
+        }
+
+        override fun onTimerFired(site: TimerSite, transactionId: String) {
+            SessionRecorder.timerFired(site.name, transactionId)
+        }
+
+        override fun onTransactionEnded(transactionId: String) {
+            SessionRecorder.transactionEnded(transactionId)
+        }
+
+        override fun onLimitErrorReleased() {
+            SessionRecorder.limitErrorReleased()
+        }
+    }
+
+    private fun screenMessage(state: PaymentScreenState): String? = when (state) {
+        is PaymentScreenState.TransactionFailed -> state.errorMessage
+        is PaymentScreenState.LimitError -> state.errorMessage
+        is PaymentScreenState.DeviceError -> state.errorMessage
+        is PaymentScreenState.RefundProcessing -> state.errorMessage
+        else -> null
+    }
+
     private fun audit(message: String) {
         fileLogger.i(TAG, message)
     }
@@ -121,17 +215,38 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     init {
         Log.d(TAG, "Initializing PaymentViewModel")
 
+        if (configManager.isSessionRecordingEnabled()) {
+            SessionRecorder.start(SessionRecorder.directory(getApplication()))
+        }
+        stateMachine.listener = sessionRecordingListener
+
+        // Server-configured per-screen timeout policies, if any
+        configManager.getTimeoutPoliciesJson()?.let { json ->
+            try {
+                MessageAdapters.timeoutPolicies.fromJson(json)?.let { TimeoutPolicies.configure(it) }
+            } catch (e: Exception) {
+                Log.e(TAG, "Stored timeout policies are invalid, using defaults", e)
+            }
+        }
+
         // Setup timeout manager with callback for timeout events
-        timeoutManager.setup {
+        timeoutManager.setup { policy ->
             Log.d(TAG, "Timeout occurred, handling in ViewModel")
-            handleTimeout()
+            handleTimeout(policy)
+        }
+
+        // Each screen gets its own idle time, warning and action
+        viewModelScope.launch {
+            screenState.collect { state ->
+                timeoutManager.applyPolicy(TimeoutPolicies.policyFor(state))
+            }
         }
 
         // Monitor timeout state to show screensaver directly
         viewModelScope.launch {
             timeoutManager.timeoutOccurred.collect { occurred ->
                 Log.d(TAG, "Timeout state changed: $occurred")
-                if (occurred && _isOnAmountScreen.value) {
+                if (occurred && TimeoutPolicies.policyFor(stateMachine.current).action == TimeoutAction.SCREENSAVER) {
                     Log.d(TAG, "Timeout occurred while on amount screen, showing screensaver")
                     // Pause timers when showing screensaver
                     timeoutManager.pauseTimersForScreensaver()
@@ -153,31 +268,51 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             }
         }
 
-        // Monitor socket messages
+        // Keep the screensaver media in step with the server, downloading
+        // only while the kiosk is idle so payments have the link to themselves
+        MediaPrefetcher.start(getApplication())
         viewModelScope.launch {
-            socketManager.messageReceived.collect { message ->
-                Log.d(TAG, "Received socket message: $message")
-                processSocketMessage(message)
+            combine(_isScreensaverVisible, screenState) { visible, state ->
+                visible && !isTransactionInFlight(state)
+            }.collect { idle -> MediaPrefetcher.setIdle(idle) }
+        }
+
+        // Pre-warm the terminal while the customer is choosing an amount
+        viewModelScope.launch {
+            screenState.collect { state ->
+                if (state is PaymentScreenState.AmountSelect || state is PaymentScreenState.KeypadEntry) {
+                    val provider = deviceInfoRepository.get()?.paymentProvider ?: "nnsmart"
+                    TerminalPrewarmer.prewarm(getApplication(), provider)
+                }
             }
         }
 
+        // Monitor socket messages: decode in the background, apply on Main
+        viewModelScope.launch {
+            socketManager.messageReceived
+                .mapNotNull { message -> decodeInbound(message) }
+                .flowOn(decodeDispatcher)
+                .collect { frame -> applyInbound(frame) }
+        }
+
         // Monitor socket connection state
         viewModelScope.launch {
             socketManager.connectionState.collect { state ->
                 Log.d(TAG, "Socket connection state changed: $state")
+                SessionRecorder.connection(state.name)
                 when (state) {
                     SocketManager.ConnectionState.DISCONNECTED -> {
                         Log.d(TAG, "Socket disconnected, updating screen state")
-                        audit("Socket DISCONNECTED while state=${_screenState.value::class.simpleName}")
+                        audit("Socket DISCONNECTED while state=${stateMachine.current::class.simpleName}")
                         // Immediately set to ConnectionError, don't go through Loading
-                        _screenState.value = PaymentScreenState.ConnectionError
+                        stateMachine.fire(PaymentEvent.CONNECTION_LOST, PaymentScreenState.ConnectionError)
                         scheduleDisconnectRecoveryIfNeeded()
                     }
                     SocketManager.ConnectionState.CONNECTING -> {
                         // Only set Loading if we're not already in ConnectionError state
-                        if (_screenState.value !is PaymentScreenState.ConnectionError) {
+                        if (stateMachine.current !is PaymentScreenState.ConnectionError) {
                             Log.d(TAG, "Socket connecting, updating screen state")
-                            _screenState.value = PaymentScreenState.Loading
+                            stateMachine.fire(PaymentEvent.CONNECTING, PaymentScreenState.Loading)
                         }
                     }
                     SocketManager.ConnectionState.CONNECTED -> {
@@ -193,23 +328,66 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         viewModelScope.launch {
             delay(1500)
             audit("Startup recovery check begin")
-            recoverPendingTransactionIfAny()
-            recoverPendingTicketNotPrintedIfAny()
-            audit("Startup recovery check complete")
+            journal.importLegacyPreferences(getApplication()).committed("legacy recovery import")
+            journal.prune()
+            try {
+                recoverPendingTransactionIfAny()
+                recoverPendingTicketNotPrintedIfAny()
+                audit("Startup recovery check complete")
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                // Never report a journal we could not read as clean
+                Log.e(TAG, "Startup recovery check failed", e)
+                audit("Startup recovery check FAILED, journal unreadable: ${e.message}")
+            }
         }
     }
 
+    /**
+     * Per-type socket message decode times since startup.
+     */
+    fun messageProcessingStats(): List<LatencyStats.Summary> = messageStats.snapshot()
+
+    /**
+     * Per-type main-thread time spent applying socket messages.
+     */
+    fun mainThreadMessageStats(): List<LatencyStats.Summary> = mainThreadStats.snapshot()
+
+    /**
+     * Time spent in the source state for each screen transition edge.
+     */
+    fun transitionStats(): List<LatencyStats.Summary> = stateMachine.transitionStats()
+
+    /**
+     * Timed screen transitions still pending, soonest first.
+     */
+    fun pendingTimers(): List<TransactionTimerScheduler.PendingTimer> = stateMachine.pendingTimers()
+
+    /**
+     * Every timing breakdown above, by section title, for the Settings
+     * diagnostics.
+     */
+    fun performanceStats(): Map<String, List<LatencyStats.Summary>> = linkedMapOf(
+        "Socket decode" to messageProcessingStats(),
+        "Socket main thread" to mainThreadMessageStats(),
+        "Screen transitions" to transitionStats(),
+        "Payment pipeline" to paymentPipelineStats(),
+        "Terminal pre-warm" to TerminalPrewarmer.stats(),
+        "Screensaver first frame" to ScreensaverPlayer.firstFrameStats.snapshot()
+    )
+
     fun connectToBackend(url: String) {
         Log.d(TAG, "Connecting to backend: $url")
+        SessionRecorder.input(SessionRecord.INPUT_CONNECT, url)
         // Store the URL for later use
         this.serverUrl = url
         socketManager.connect(url)
 
         // Set a timeout to ensure we get an initial screen
-        viewModelScope.launch {
-            delay(5000) // Wait 5 seconds
-            if (_screenState.value is PaymentScreenState.Loading) {
-                Log.d(TAG, "Still in loading state after 5 seconds, requesting initial screen")
+        stateMachine.after(TimerSite.CONNECT_FALLBACK, currentTransactionId) {
+            if (stateMachine.current is PaymentScreenState.Loading) {
+                Log.d(TAG, "Still in loading state after connecting, requesting initial screen")
                 requestInitialScreen()
             }
         }
@@ -229,92 +407,60 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             // If we have a saved state, restore it
             lastActiveState?.let {
                 Log.d(TAG, "Restoring last active state: ${it::class.simpleName}")
-                _screenState.value = it
+                stateMachine.fire(PaymentEvent.RESTORE, it)
             }
         }
     }
 
     /**
-     * Handles a timeout event by canceling any active transaction.
+     * Handles a timeout event with the action of the screen's policy.
      */
-    private fun handleTimeout() {
-        Log.d(TAG, "Handling timeout event")
-        // Only trigger screensaver if on the amount selection screen
-        if (_isOnAmountScreen.value) {
-            // Save current state before changing to screensaver
-            if (_screenState.value !is PaymentScreenState.DeviceError &&
-                _screenState.value !is PaymentScreenState.ConnectionError) {
-                lastActiveState = _screenState.value
-                Log.d(TAG, "Saved last active state: ${lastActiveState?.javaClass?.simpleName}")
-            }
-
-            // Cancel any active transaction
-            cancelPayment(isTimeout = true)
-        } else {
-            Log.d(TAG, "Not on amount screen, ignoring timeout")
-            // Reset the timeout timer
+    private fun handleTimeout(policy: TimeoutPolicy) {
+        Log.d(TAG, "Handling timeout event: ${policy.action} on ${stateMachine.current::class.simpleName}")
+        if (isProcessingPayment || pendingNnsmartSale != null) {
+            // The customer is waiting on the terminal; a timeout would drop the sale
+            Log.d(TAG, "Payment in flight, ignoring timeout")
             timeoutManager.recordUserInteraction()
+            return
         }
-    }
+        when (policy.action) {
+            TimeoutAction.SCREENSAVER -> {
+                // Save current state before changing to screensaver
+                if (stateMachine.current !is PaymentScreenState.DeviceError &&
+                    stateMachine.current !is PaymentScreenState.ConnectionError) {
+                    lastActiveState = stateMachine.current
+                    Log.d(TAG, "Saved last active state: ${lastActiveState?.javaClass?.simpleName}")
+                }
 
-    /**
-     * Calculate the final amount including transaction fee.
-     * Returns the original amount if device configuration is not available or fee is disabled (value is 0).
-     */
-    private suspend fun calculateFinalAmountWithFee(originalAmount: Int): Int {
-        return try {
-            val database = AppDatabase.getDatabase(getApplication())
-            val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
-            
-            if (deviceInfo == null) {
-                Log.w(TAG, "Device configuration not found, using original amount without fee")
-                return originalAmount
+                // Cancel any active transaction, then show the screensaver
+                cancelPayment(isTimeout = true, showScreensaver = true)
             }
-            
-            val feeType = deviceInfo.transactionFeeType
-            val feeValue = deviceInfo.transactionFeeValue
-            val originalAmountDouble = originalAmount.toDouble()
-            
-            // Only add fee if feeValue is greater than 0
-            if (feeValue <= 0) {
-                Log.d(TAG, "Fee value is 0 or negative, using original amount: $originalAmount")
-                return originalAmount
+            TimeoutAction.CANCEL_PAYMENT -> {
+                cancelPayment(isTimeout = true, showScreensaver = false)
+                requestInitialScreen()
             }
-            
-            val finalAmount = when (feeType.uppercase()) {
-                "FIXED" -> {
-                    originalAmountDouble + feeValue
-                }
-                "PERCENTAGE" -> {
-                    originalAmountDouble + (originalAmountDouble * feeValue / 100.0)
-                }
-                else -> {
-                    Log.w(TAG, "Unknown fee type: $feeType, using original amount")
-                    originalAmountDouble
-                }
+            TimeoutAction.RETURN_TO_START -> requestInitialScreen()
+            TimeoutAction.NONE -> {
+                Log.d(TAG, "No timeout action for this screen, ignoring timeout")
+                // Reset the timeout timer
+                timeoutManager.recordUserInteraction()
             }
-            
-            val roundedAmount = finalAmount.toInt()
-            Log.d(TAG, "Fee calculation: original=$originalAmount, feeType=$feeType, feeValue=$feeValue, final=$roundedAmount")
-            roundedAmount
-        } catch (e: Exception) {
-            Log.e(TAG, "Error calculating fee, using original amount", e)
-            originalAmount
         }
     }
-    
+
     fun selectAmount(amount: Int) {
         Log.d(TAG, "Amount selected: $amount")
+        SessionRecorder.input(SessionRecord.INPUT_SELECT_AMOUNT, amount.toString())
         recordUserInteraction()
 
         // Special code -2 is used to return to amount selection from limit error
         if (amount == -2) {
             val transactionId = UUID.randomUUID().toString()
-            currentTransactionId = transactionId
+            beginTransaction(transactionId)
             Log.d(TAG, "Reset requested (code -2), new transaction ID: $transactionId")
             
             // Allow navigation away from LIMIT_ERROR screen after user-initiated reset
-            allowNavigationFromLimitError = true
+            stateMachine.releaseLimitError()
 
             val message = SocketMessage(
                 messageType = "USER_ACTION",
@@ -332,25 +478,17 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         if (amount == -1) {
             Log.d(TAG, "Other option selected - showing keypad screen")
             viewModelScope.launch {
-                val database = AppDatabase.getDatabase(getApplication())
-                val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
-                val currencyCode = deviceInfo?.currency ?: "GBP"
-                // Convert currency code to symbol for display
-                val currencySymbol = when (currencyCode.uppercase()) {
-                    "GBP" -> "£"
-                    "USD" -> "$"
-                    "EUR" -> "€"
-                    else -> currencyCode
-                }
-                val minAmount = deviceInfo?.minTransactionLimit?.toInt() ?: 10
-                val maxAmount = deviceInfo?.maxTransactionLimit?.toInt() ?: 300
+                val deviceInfo = deviceInfoRepository.get()
+                val currencySymbol = AmountQuotes.currencySymbol(deviceInfo?.currency ?: "GBP")
+                val minAmount = deviceInfo?.minTransactionLimit?.toInt() ?: AmountQuotes.DEFAULT_MIN_AMOUNT
+                val maxAmount = deviceInfo?.maxTransactionLimit?.toInt() ?: AmountQuotes.DEFAULT_MAX_AMOUNT
                 
                 // Show keypad screen locally (client-controlled screen)
-                _screenState.value = PaymentScreenState.KeypadEntry(
+                stateMachine.fire(PaymentEvent.USER_INPUT, PaymentScreenState.KeypadEntry(
                     currency = currencySymbol,
                     minAmount = minAmount,
                     maxAmount = maxAmount
-                )
+                ))
                 _isOnAmountScreen.value = false
             }
             return
@@ -360,56 +498,29 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             currentTransactionId = it
             Log.d(TAG, "Generated new transaction ID: $it")
         }
+        TransactionTracer.mark(transactionId, Mark.AMOUNT_TAPPED, amount.toString(), start = true)
+
+        // Preset amounts were quoted when AMOUNT_SELECT arrived; keypad amounts are quoted now
+        val table = _amountQuotes.value
 
         // Validate amount against min/max transaction limits locally
         viewModelScope.launch {
-            val database = AppDatabase.getDatabase(getApplication())
-            val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
-            
-            // Check min/max transaction limits locally
-            val minAmount = deviceInfo?.minTransactionLimit?.toInt() ?: 10
-            val maxAmount = deviceInfo?.maxTransactionLimit?.toInt() ?: 300
-            
-            // Get currency symbol for error messages
-            val currencyCode = deviceInfo?.currency ?: "GBP"
-            val currencySymbol = when (currencyCode.uppercase()) {
-                "GBP" -> "£"
-                "USD" -> "$"
-                "EUR" -> "€"
-                else -> currencyCode
-            }
-            
-            if (amount < minAmount) {
-                Log.w(TAG, "Amount $amount is below minimum limit $minAmount")
-                _screenState.value = PaymentScreenState.LimitError(
-                    errorMessage = "Minimum transaction limit is $currencySymbol$minAmount"
-                )
-                allowNavigationFromLimitError = false // Reset flag when showing LIMIT_ERROR
-                return@launch
-            }
-            
-            if (amount > maxAmount) {
-                Log.w(TAG, "Amount $amount exceeds maximum limit $maxAmount")
-                _screenState.value = PaymentScreenState.LimitError(
-                    errorMessage = "Maximum transaction limit is $currencySymbol$maxAmount"
-                )
-                allowNavigationFromLimitError = false // Reset flag when showing LIMIT_ERROR
-                return@launch
-            }
-            
-            // For Mock payment provider, check if amount is 101 (daily limit trigger)
-            val paymentProvider = deviceInfo?.paymentProvider?.lowercase() ?: "nnsmart"
-            if (paymentProvider == "mock" && amount == 101) {
-                Log.d(TAG, "Mock payment: Amount 101 triggers daily limit exceeded")
-                _screenState.value = PaymentScreenState.LimitError(
-                    errorMessage = "Daily spending limit exceeded"
-                )
-                allowNavigationFromLimitError = false // Reset flag when showing LIMIT_ERROR
+            val deviceInfo = deviceInfoRepository.get()
+            // A preset quote only stands if the configuration has not changed since
+            val quote = table.quotes[amount]?.takeIf { table.config == deviceInfo }
+                ?: AmountQuotes.quote(amount, deviceInfo)
+
+            if (quote.limitError != null) {
+                Log.w(TAG, "Amount $amount rejected locally: ${quote.limitError}")
+                stateMachine.fire(PaymentEvent.LIMIT_REJECTED, PaymentScreenState.LimitError(
+                    errorMessage = quote.limitError
+                ))
                 return@launch
             }
 
-            // Calculate final amount with fee and store both original and final amounts
-            val finalAmount = calculateFinalAmountWithFee(amount)
+            // Final amount includes the fee (see AmountQuote.payableAmount)
+            val finalAmount = quote.payableAmount
+            Log.d(TAG, "Fee: original=$amount, fee=${quote.feeMinor} minor, final=$finalAmount")
             
             // Store the original amount for display, but use final amount for payment
             if (amount > 0) {
@@ -448,15 +559,15 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 sendMessage(message)
                 
                 // Show timeout screen locally
-                _screenState.value = PaymentScreenState.Timeout
+                stateMachine.fire(PaymentEvent.PAYMENT_STARTED, PaymentScreenState.Timeout)
                 _isOnAmountScreen.value = false
                 
                 // After showing timeout screen briefly, proceed directly to payment
-                delay(3000) // Show timeout screen for 3 seconds
-                
-                // Proceed directly to payment (as if DEBIT_CARD was selected)
-                Log.d(TAG, "YASPA disabled - proceeding directly to payment after timeout screen")
-                processLocalPayment("DEBIT_CARD", transactionId)
+                // (as if DEBIT_CARD was selected). Dropped if the flow moves on first.
+                stateMachine.after(TimerSite.YASPA_BYPASS, transactionId) {
+                    Log.d(TAG, "YASPA disabled - proceeding directly to payment after timeout screen")
+                    processLocalPayment("DEBIT_CARD", transactionId)
+                }
             } else {
                 // YASPA enabled: Normal flow - send message and wait for server response (PAYMENT_METHOD screen)
                 val message = SocketMessage(
@@ -483,6 +594,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
 
     fun selectPaymentMethod(method: String) {
         Log.d(TAG, "Payment method selected: $method")
+        SessionRecorder.input(SessionRecord.INPUT_SELECT_PAYMENT_METHOD, method)
         recordUserInteraction()
 
         val transactionId = currentTransactionId
@@ -531,31 +643,28 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         // Clear any stale per-provider state from a previous attempt.
         pendingCardCheckResult = null
         pendingNnsmartSale = null
+        abandonPipelineRun()
 
         // Step 1: Show PROCESSING screen automatically
         Log.d(TAG, "Showing PROCESSING screen for local payment")
-        _screenState.value = PaymentScreenState.Processing
+        stateMachine.fire(PaymentEvent.PAYMENT_STARTED, PaymentScreenState.Processing)
         _isOnAmountScreen.value = false
         
         viewModelScope.launch {
             try {
                 // Get device configuration to determine payment provider
-                val database = AppDatabase.getDatabase(getApplication())
-                val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
+                val deviceInfo = deviceInfoRepository.get()
                 
                 if (deviceInfo == null) {
                     Log.e(TAG, "Device configuration not found, cannot process payment")
-                    _screenState.value = PaymentScreenState.TransactionFailed(
+                    stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                         errorMessage = "Device configuration not found"
-                    )
+                    ))
                     isProcessingPayment = false
                     isHandlingPaymentLocally = false // Reset flag on error
                     
-                    // Auto-return to amount selection after 4 seconds
-                    viewModelScope.launch {
-                        delay(4000)
-                        requestInitialScreen()
-                    }
+                    // Auto-return to amount selection
+                    stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
                     return@launch
                 }
                 
@@ -588,16 +697,19 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 // For MOCK payment provider, show MockPaymentCard screen after Processing screen
                 if (paymentProvider == "mock") {
                     Log.d(TAG, "Mock payment: Showing MockPaymentCard screen after Processing")
-                    delay(2000) // Show Processing screen for 2 seconds
-                    _screenState.value = PaymentScreenState.MockPaymentCard(
+                    MockPaymentManager.hold(2000) // Show Processing screen for 2 seconds
+                    stateMachine.fire(PaymentEvent.PAYMENT_STARTED, PaymentScreenState.MockPaymentCard(
                         amount = currentAmount,
                         currency = currencySymbol
-                    )
-                    delay(3000) // Show MockPaymentCard screen for 3 seconds before proceeding
+                    ))
+                    MockPaymentManager.hold(3000) // Show MockPaymentCard screen for 3 seconds before proceeding
                 }
                 
                 // Step 2: Perform CardCheckEmv locally with amount including fee
                 Log.d(TAG, "Performing card check with provider: $paymentProvider, amount (including fee): $amountFormatted")
+                val run = paymentPipeline.begin(transactionId, paymentProvider, amountFormatted)
+                pipelineRun = run
+                TransactionTracer.mark(transactionId, Mark.CARD_CHECK_SENT)
                 val cardCheckResult = if (paymentProvider == "mock") {
                     MockPaymentManager.performCardCheck(transactionId, amountFormatted)
                 } else {
@@ -608,20 +720,21 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 }
                 
                 pendingCardCheckResult = cardCheckResult
+                paymentPipeline.cardCheckDone(run)
+                SessionRecorder.result("CARD_CHECK", transactionId, cardCheckResult.success, cardCheckResult.resultCode, cardCheckResult.message)
+                TransactionTracer.mark(transactionId, Mark.CARD_CHECK_RETURNED, cardCheckResult.resultCode)
                 
                 if (!cardCheckResult.success) {
+                    abandonPipelineRun()
                     Log.e(TAG, "Card check failed: ${cardCheckResult.message}")
-                    _screenState.value = PaymentScreenState.TransactionFailed(
+                    stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                         errorMessage = cardCheckResult.message ?: "Card check failed"
-                    )
+                    ))
                     isProcessingPayment = false
                     isHandlingPaymentLocally = false // Reset flag on failure
                     
-                    // Auto-return to amount selection after 4 seconds
-                    viewModelScope.launch {
-                        delay(4000)
-                        requestInitialScreen()
-                    }
+                    // Auto-return to amount selection
+                    stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
                     return@launch
                 }
                 
@@ -631,42 +744,38 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                     Log.d(TAG, "Sending card check result to server for daily limit validation: token=${cardCheckResult.token}")
                     
                     // Create a custom message with cardToken for daily limit check
-                    val cardCheckJson = """
-                        {
-                            "messageType": "CARD_CHECK_RESULT",
-                            "screen": "PROCESSING",
-                            "data": {
-                                "cardToken": "${cardCheckResult.token}",
-                                "selectedAmount": $currentAmount
-                            },
-                            "transactionId": "$transactionId",
-                            "timestamp": ${System.currentTimeMillis()}
-                        }
-                    """.trimIndent()
+                    val cardCheckJson = MessageEncoder.encode(
+                        CardCheckResultMessage(
+                            transactionId = transactionId,
+                            cardToken = cardCheckResult.token,
+                            selectedAmount = currentAmount
+                        )
+                    )
                     
                     socketManager.sendMessage(cardCheckJson)
+                    TransactionTracer.mark(transactionId, Mark.LIMIT_CHECK_SENT)
+                    // Prepare the sale while the backend checks the limit
+                    paymentPipeline.limitCheckSent(run)
                     
                     // Step 4: Wait for LIMIT_CHECK_RESULT from server
-                    // This will be handled in processSocketMessage when LIMIT_CHECK_RESULT is received
+                    // This will be handled in dispatchMessage when LIMIT_CHECK_RESULT is received
                 } else {
                     // For Mock payment, skip server limit check and proceed directly to sale
                     Log.d(TAG, "Mock payment: Skipping server limit check, proceeding directly to sale")
+                    paymentPipeline.limitCheckSent(run)
                     continuePaymentAfterLimitCheck(true, transactionId, "")
                 }
                 
             } catch (e: Exception) {
                 Log.e(TAG, "Error processing local payment", e)
-                _screenState.value = PaymentScreenState.TransactionFailed(
+                stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                     errorMessage = "Payment processing error: ${e.message}"
-                )
+                ))
                 isProcessingPayment = false
                 isHandlingPaymentLocally = false // Reset flag on error
                 
-                // Auto-return to amount selection after 4 seconds
-                viewModelScope.launch {
-                    delay(4000)
-                    requestInitialScreen()
-                }
+                // Auto-return to amount selection
+                stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
             }
         }
     }
@@ -685,6 +794,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     ) {
         try {
             Log.d(TAG, "NNSmart: performing up-front sale amount=$amountFormatted ref=$transactionId")
+            TransactionTracer.mark(transactionId, Mark.SALE_SENT)
             val saleResult = NNSmartPaymentManager.performSale(
                 context = getApplication(),
                 amountFormatted = amountFormatted,
@@ -692,44 +802,50 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 currencyAlphaCode = currencyCode,
                 showReceipts = false
             )
+            TransactionTracer.mark(transactionId, Mark.RESULT, saleResult.resultCode)
+            SessionRecorder.result("NNSMART_SALE", transactionId, saleResult.success, saleResult.resultCode, saleResult.message)
 
             if (!saleResult.success) {
                 Log.w(TAG, "NNSmart sale failed: code=${saleResult.resultCode} msg=${saleResult.message}")
-                _screenState.value = PaymentScreenState.TransactionFailed(
+                stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                     errorMessage = saleResult.message ?: "Payment failed"
-                )
+                ))
                 isProcessingPayment = false
                 isHandlingPaymentLocally = false
 
                 // Still notify server that the attempt failed.
-                val paymentResultJson = buildPaymentResultJson(
-                    success = false,
-                    transactionId = transactionId,
-                    resultCode = saleResult.resultCode,
-                    message = saleResult.message
+                val paymentResultJson = MessageEncoder.encode(
+                    PaymentResultMessage(
+                        success = false,
+                        transactionId = transactionId,
+                        resultCode = saleResult.resultCode,
+                        message = saleResult.message
+                    )
                 )
                 Log.d(TAG, "NNSmart: sending PAYMENT_RESULT (sale-failed) to backend")
                 Log.d(TAG, "NNSmart: PAYMENT_RESULT payload: $paymentResultJson")
                 val sent = socketManager.sendMessage(paymentResultJson)
                 Log.d(TAG, "NNSmart: PAYMENT_RESULT send result: $sent")
 
-                viewModelScope.launch {
-                    delay(4000)
-                    requestInitialScreen()
-                }
+                stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
                 return
             }
 
             // Sale succeeded on the terminal. Keep the result so we can
             // reverse it later if the backend rejects the limit check.
             pendingNnsmartSale = saleResult
+            // Money has moved: the recovery row must be committed before we go on.
             saleResult.originalTrxUniqueId?.let { trxId ->
-                savePendingRecoveryTransaction(
+                val journaled = savePendingRecoveryTransaction(
                     transactionId = transactionId,
                     amount = currentAmount,
                     originalTrxUniqueId = trxId,
                     provider = "nnsmart"
-                )
+                ).committed("SALE_RECOVERY tx=$transactionId")
+                if (!journaled) {
+                    reverseUnjournaledSale(transactionId, currentAmount, "nnsmart", trxId)
+                    return
+                }
             }
 
             // NNSmart returns a PAR (Payment Account Reference) on the sale
@@ -747,166 +863,92 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
 
             Log.d(TAG, "NNSmart: sale approved. par='$rawPar' cardRefId=${saleResult.cardRefId} trxId=${saleResult.originalTrxUniqueId} tokenUsed=$tokenForLimitCheck")
 
-            val cardCheckJson = """
-                {
-                    "messageType": "CARD_CHECK_RESULT",
-                    "screen": "PROCESSING",
-                    "data": {
-                        "cardToken": "$tokenForLimitCheck",
-                        "selectedAmount": $currentAmount
-                    },
-                    "transactionId": "$transactionId",
-                    "timestamp": ${System.currentTimeMillis()}
-                }
-            """.trimIndent()
+            val cardCheckJson = MessageEncoder.encode(
+                CardCheckResultMessage(
+                    transactionId = transactionId,
+                    cardToken = tokenForLimitCheck,
+                    selectedAmount = currentAmount
+                )
+            )
             Log.d(TAG, "NNSmart: sending CARD_CHECK_RESULT to backend for limit validation")
             Log.d(TAG, "NNSmart: CARD_CHECK_RESULT payload: $cardCheckJson")
             val sent = socketManager.sendMessage(cardCheckJson)
+            TransactionTracer.mark(transactionId, Mark.LIMIT_CHECK_SENT)
             Log.d(TAG, "NNSmart: CARD_CHECK_RESULT send result: $sent")
 
             // Stay on Processing until LIMIT_CHECK_RESULT arrives; the rest
             // of the flow is handled in continuePaymentAfterLimitCheck.
         } catch (e: Exception) {
             Log.e(TAG, "NNSmart: error during sale", e)
-            _screenState.value = PaymentScreenState.TransactionFailed(
+            stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                 errorMessage = "Payment error: ${e.message}"
-            )
+            ))
             isProcessingPayment = false
             isHandlingPaymentLocally = false
-            viewModelScope.launch {
-                delay(4000)
-                requestInitialScreen()
-            }
+            stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
         }
     }
 
     /**
-     * Build a PAYMENT_RESULT JSON matching the server's expected contract.
-     */
-    private fun buildPaymentResultJson(
-        success: Boolean,
-        transactionId: String,
-        resultCode: String?,
-        message: String?,
-        bankResultCode: String? = null
-    ): String {
-        val screen = if (success) "SUCCESS" else "FAILED"
-        val errCodeJson = if (resultCode != null) "\"$resultCode\"" else "null"
-        val errMsgJson = if (message != null) "\"${message.replace("\"", "\\\"")}\"" else "null"
-        return """
-            {
-                "messageType": "PAYMENT_RESULT",
-                "screen": "$screen",
-                "data": {
-                    "errorCode": $errCodeJson,
-                    "errorMessage": $errMsgJson,
-                    "paymentDetails": {
-                        "Result": "${resultCode ?: ""}",
-                        "BankResultCode": "${bankResultCode ?: ""}",
-                        "Message": "${(message ?: "").replace("\"", "\\\"")}",
-                        "RequesterTransRefNum": "$transactionId"
-                    }
-                },
-                "transactionId": "$transactionId",
-                "timestamp": ${System.currentTimeMillis()}
-            }
-        """.trimIndent()
-    }
-
-    /**
-     * Build a REVERSAL_RESULT JSON for any reversal/cancellation outcome.
+     * Journal a sale taken before the backend limit verdict. Await the
+     * result (see [committed]) to be sure the row is on disk.
      */
-    private fun buildReversalResultJson(
-        success: Boolean,
-        transactionId: String,
-        resultCode: String?,
-        message: String?,
-        requesterTransRefNum: String,
-        originalRequesterTransRefNum: String,
-        originalTransactionId: String,
-        reversalAmount: Int
-    ): String {
-        val screen = if (success) "SUCCESS" else "FAILED"
-        val errCodeJson = if (resultCode != null) "\"$resultCode\"" else "null"
-        val errMsgJson = if (message != null) "\"${message.replace("\"", "\\\"")}\"" else "null"
-        return """
-            {
-                "messageType": "REVERSAL_RESULT",
-                "screen": "$screen",
-                "data": {
-                    "errorCode": $errCodeJson,
-                    "errorMessage": $errMsgJson,
-                    "paymentDetails": {
-                        "Result": "${resultCode ?: ""}",
-                        "BankResultCode": "${if (success) "00" else ""}",
-                        "Message": "${(message ?: "").replace("\"", "\\\"")}",
-                        "RequesterTransRefNum": "$requesterTransRefNum",
-                        "OriginalRequesterTransRefNum": "$originalRequesterTransRefNum"
-                    },
-                    "originalTransactionId": "$originalTransactionId",
-                    "reversalAmount": $reversalAmount
-                },
-                "transactionId": "$transactionId",
-                "timestamp": ${System.currentTimeMillis()}
-            }
-        """.trimIndent()
-    }
-
     private fun savePendingRecoveryTransaction(
         transactionId: String,
         amount: Int,
         originalTrxUniqueId: String,
         provider: String
-    ) {
-        val json = JSONObject().apply {
-            put("transactionId", transactionId)
-            put("amount", amount)
-            put("originalTrxUniqueId", originalTrxUniqueId)
-            put("provider", provider)
-        }.toString()
-        recoveryPrefs.edit().putString("pending_tx", json).apply()
-        Log.d(TAG, "Saved pending recovery transaction for tx=$transactionId provider=$provider")
-        audit("Persisted pending_tx tx=$transactionId provider=$provider amount=$amount originalTrxId=$originalTrxUniqueId")
+    ): Deferred<Unit> {
+        Log.d(TAG, "Saving pending recovery transaction for tx=$transactionId provider=$provider")
+        audit("Journal open SALE_RECOVERY tx=$transactionId provider=$provider amount=$amount originalTrxId=$originalTrxUniqueId")
+        return journal.open(
+            kind = TransactionJournalEntry.KIND_SALE_RECOVERY,
+            transactionId = transactionId,
+            amount = amount,
+            provider = provider,
+            reference = originalTrxUniqueId
+        )
     }
 
-    private fun clearPendingRecoveryTransaction() {
-        recoveryPrefs.edit().remove("pending_tx").apply()
-        audit("Cleared pending_tx")
+    /**
+     * Close the pending recovery item of [transactionId].
+     */
+    private fun clearPendingRecoveryTransaction(transactionId: String): Deferred<Unit> {
+        audit("Journal close SALE_RECOVERY tx=$transactionId")
+        return journal.close(TransactionJournalEntry.KIND_SALE_RECOVERY, transactionId)
     }
 
-    private fun readPendingRecoveryTransaction(): PendingRecoveryTransaction? {
-        val raw = recoveryPrefs.getString("pending_tx", null) ?: return null
-        return try {
-            val json = JSONObject(raw)
+    private suspend fun readPendingRecoveryTransactions(): List<PendingRecoveryTransaction> =
+        journal.openEntries(TransactionJournalEntry.KIND_SALE_RECOVERY).map {
             PendingRecoveryTransaction(
-                transactionId = json.optString("transactionId"),
-                amount = json.optInt("amount"),
-                originalTrxUniqueId = json.optString("originalTrxUniqueId"),
-                provider = json.optString("provider", "nnsmart")
+                transactionId = it.transactionId,
+                amount = it.amount,
+                originalTrxUniqueId = it.reference,
+                provider = it.provider
             )
-        } catch (e: Exception) {
-            Log.e(TAG, "Invalid pending recovery payload, clearing", e)
-            clearPendingRecoveryTransaction()
-            null
         }
-    }
 
     private suspend fun recoverPendingTransactionIfAny() {
-        val pending = readPendingRecoveryTransaction() ?: return
+        for (pending in readPendingRecoveryTransactions()) {
+            recoverPendingTransaction(pending)
+        }
+    }
+
+    private suspend fun recoverPendingTransaction(pending: PendingRecoveryTransaction) {
         if (pending.transactionId.isBlank() || pending.originalTrxUniqueId.isBlank()) {
             Log.w(TAG, "Pending recovery transaction missing required fields, clearing")
-            clearPendingRecoveryTransaction()
+            clearPendingRecoveryTransaction(pending.transactionId).committed("SALE_RECOVERY close tx=${pending.transactionId}")
             return
         }
         if (!NNSmartPaymentManager.isNNSmartProvider(pending.provider)) {
-            clearPendingRecoveryTransaction()
+            clearPendingRecoveryTransaction(pending.transactionId).committed("SALE_RECOVERY close tx=${pending.transactionId}")
             return
         }
 
         Log.w(TAG, "Recovering pending NNSmart transaction after restart: tx=${pending.transactionId}")
-        _screenState.value = PaymentScreenState.ReversingTransaction(
+        stateMachine.fire(PaymentEvent.REVERSAL_STARTED, PaymentScreenState.ReversingTransaction(
             message = "Recovering previous transaction..."
-        )
+        ))
         ensureSocketConnection()
 
         val requesterRef = "RECOVERY_REVERSAL_${pending.transactionId}"
@@ -927,139 +969,264 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         } else {
             "Recovered after app restart - reversal failed"
         }
-        val reversalResultJson = buildReversalResultJson(
-            success = cancelOk,
-            transactionId = pending.transactionId,
-            resultCode = resultCode,
-            message = resultMessage,
-            requesterTransRefNum = requesterRef,
-            originalRequesterTransRefNum = pending.originalTrxUniqueId,
-            originalTransactionId = pending.transactionId,
-            reversalAmount = pending.amount
+        val reversalResultJson = MessageEncoder.encode(
+            ReversalResultMessage(
+                success = cancelOk,
+                transactionId = pending.transactionId,
+                resultCode = resultCode,
+                message = resultMessage,
+                requesterTransRefNum = requesterRef,
+                originalRequesterTransRefNum = pending.originalTrxUniqueId,
+                originalTransactionId = pending.transactionId,
+                reversalAmount = pending.amount
+            )
         )
         sendCriticalReversalResult(
+            transactionId = pending.transactionId,
             reversalResultJson = reversalResultJson,
             reason = "Sale recovery"
         )
-        clearPendingRecoveryTransaction()
+        // A close that fails leaves the row open: the reversal is retried on the next start
+        clearPendingRecoveryTransaction(pending.transactionId).committed("SALE_RECOVERY close tx=${pending.transactionId}")
 
         if (cancelOk) {
-            _screenState.value = PaymentScreenState.ReversalSuccess(
+            stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.ReversalSuccess(
                 message = "Recovered previous transaction successfully."
-            )
-            delay(2200)
+            ))
+            stateMachine.after(TimerSite.RECOVERY_SUCCESS, pending.transactionId) { requestInitialScreen() }
         } else {
-            _screenState.value = PaymentScreenState.TransactionFailed(
+            stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.TransactionFailed(
                 errorMessage = "Recovery reversal failed - please contact staff"
-            )
-            delay(3000)
+            ))
+            stateMachine.after(TimerSite.RECOVERY_FAILED, pending.transactionId) { requestInitialScreen() }
         }
-        requestInitialScreen()
     }
 
+    /**
+     * Journal an approved sale whose ticket is not confirmed yet. Await the
+     * result (see [committed]) to be sure the row is on disk.
+     */
     private fun savePendingTicketPrintTransaction(
         transactionId: String,
         amount: Int,
         originalRequesterRef: String,
         provider: String
-    ) {
-        val json = JSONObject().apply {
-            put("transactionId", transactionId)
-            put("amount", amount)
-            put("originalRequesterRef", originalRequesterRef)
-            put("provider", provider)
-        }.toString()
-        recoveryPrefs.edit().putString("pending_ticket_tx", json).apply()
-        Log.d(TAG, "Saved pending ticket-print transaction for tx=$transactionId")
-        audit("Persisted pending_ticket_tx tx=$transactionId provider=$provider amount=$amount originalRef=$originalRequesterRef")
+    ): Deferred<Unit> {
+        Log.d(TAG, "Saving pending ticket-print transaction for tx=$transactionId")
+        audit("Journal open TICKET_PRINT tx=$transactionId provider=$provider amount=$amount originalRef=$originalRequesterRef")
+        return journal.open(
+            kind = TransactionJournalEntry.KIND_TICKET_PRINT,
+            transactionId = transactionId,
+            amount = amount,
+            provider = provider,
+            reference = originalRequesterRef
+        )
     }
 
-    private fun clearPendingTicketPrintTransaction() {
-        recoveryPrefs.edit().remove("pending_ticket_tx").apply()
-        audit("Cleared pending_ticket_tx")
+    /**
+     * Close the pending ticket-print item of [transactionId].
+     */
+    private fun clearPendingTicketPrintTransaction(transactionId: String): Deferred<Unit> {
+        audit("Journal close TICKET_PRINT tx=$transactionId")
+        return journal.close(TransactionJournalEntry.KIND_TICKET_PRINT, transactionId)
     }
 
-    private fun savePendingCriticalMessage(rawJson: String) {
-        recoveryPrefs.edit().putString("pending_critical_message", rawJson).apply()
-        audit("Persisted pending_critical_message bytes=${rawJson.length}")
+    /**
+     * Wait for a journal write. False when it failed; the failure is logged
+     * and audited, and the caller decides how to go on without the row.
+     */
+    private suspend fun Deferred<Unit>.committed(what: String): Boolean = try {
+        await()
+        true
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        Log.e(TAG, "Journal write failed: $what", e)
+        audit("Journal write FAILED $what: ${e.message}")
+        false
     }
 
-    private fun readPendingCriticalMessage(): String? =
-        recoveryPrefs.getString("pending_critical_message", null)
+    /**
+     * A sale went through but its journal row could not be written, so a
+     * crash from here on would leave it beyond recovery. Reverse it now
+     * rather than carry on unprotected, and report both outcomes.
+     */
+    private suspend fun reverseUnjournaledSale(
+        transactionId: String,
+        amount: Int,
+        provider: String,
+        originalRequesterRef: String
+    ) {
+        Log.e(TAG, "Sale tx=$transactionId could not be journaled, reversing it")
+        audit("Unjournaled sale tx=$transactionId provider=$provider; reversing")
+        stateMachine.fire(PaymentEvent.REVERSAL_STARTED, PaymentScreenState.ReversingTransaction(
+            message = "Payment could not be recorded. Reversing transaction..."
+        ))
+
+        val requesterRef = "JOURNAL_REVERSAL_$transactionId"
+        val amountFormatted = String.format("%.2f", amount.toDouble())
+        val reversed = try {
+            when {
+                provider == "mock" -> MockPaymentManager.performSaleReversal(
+                    amountFormatted = amountFormatted,
+                    requesterRef = requesterRef,
+                    originalRequesterRef = originalRequesterRef
+                ).success
+                NNSmartPaymentManager.isNNSmartProvider(provider) -> NNSmartPaymentManager.performCancel(
+                    context = getApplication(),
+                    requesterRef = requesterRef,
+                    originalTrxUniqueId = originalRequesterRef
+                )
+                else -> PlanetPaymentManager.performSaleReversal(
+                    amountFormatted = amountFormatted,
+                    requesterRef = requesterRef,
+                    originalRequesterRef = originalRequesterRef
+                ).success
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Reversal of unjournaled sale failed", e)
+            false
+        }
 
-    private fun clearPendingCriticalMessage() {
-        recoveryPrefs.edit().remove("pending_critical_message").apply()
-        audit("Cleared pending_critical_message")
+        socketManager.sendMessage(
+            MessageEncoder.encode(
+                PaymentResultMessage(
+                    success = false,
+                    transactionId = transactionId,
+                    resultCode = "JOURNAL_WRITE_FAILED",
+                    message = "Payment could not be recorded on the kiosk"
+                )
+            )
+        )
+        sendCriticalReversalResult(
+            transactionId = transactionId,
+            reversalResultJson = MessageEncoder.encode(
+                ReversalResultMessage(
+                    success = reversed,
+                    transactionId = transactionId,
+                    resultCode = if (reversed) "JOURNAL_FAILED_REVERSED" else "JOURNAL_FAILED_REVERSAL_FAILED",
+                    message = if (reversed) "Payment not recorded - sale reversed" else "Payment not recorded - reversal failed",
+                    requesterTransRefNum = requesterRef,
+                    originalRequesterTransRefNum = originalRequesterRef,
+                    originalTransactionId = transactionId,
+                    reversalAmount = amount
+                )
+            ),
+            reason = "Unjournaled sale"
+        )
+
+        lastSuccessfulSale = null
+        pendingNnsmartSale = null
+        isProcessingPayment = false
+        isHandlingPaymentLocally = false
+        if (reversed) {
+            stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.ReversalSuccess(
+                message = "Payment could not be recorded and was reversed."
+            ))
+            stateMachine.after(TimerSite.RECOVERY_SUCCESS, transactionId) { requestInitialScreen() }
+        } else {
+            stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.TransactionFailed(
+                errorMessage = "Payment could not be recorded - please contact staff"
+            ))
+            stateMachine.after(TimerSite.RECOVERY_FAILED, transactionId) { requestInitialScreen() }
+        }
     }
 
-    private fun sendCriticalReversalResult(reversalResultJson: String, reason: String) {
+    private suspend fun sendCriticalReversalResult(transactionId: String, reversalResultJson: String, reason: String) {
         val sent = socketManager.sendMessage(reversalResultJson)
         Log.d(TAG, "$reason REVERSAL_RESULT send result: $sent")
         audit("$reason REVERSAL_RESULT send attempted sent=$sent payload=$reversalResultJson")
         if (!sent) {
-            Log.w(TAG, "Failed to deliver REVERSAL_RESULT, persisting for retry")
-            savePendingCriticalMessage(reversalResultJson)
-        } else {
-            clearPendingCriticalMessage()
+            Log.w(TAG, "Failed to deliver REVERSAL_RESULT, journaling for retry")
+            val journaled = journal.open(
+                kind = TransactionJournalEntry.KIND_CRITICAL_MESSAGE,
+                transactionId = transactionId,
+                payload = reversalResultJson
+            ).committed("CRITICAL_MESSAGE tx=$transactionId")
+            if (journaled) {
+                audit("Journal open CRITICAL_MESSAGE tx=$transactionId bytes=${reversalResultJson.length}")
+            } else {
+                audit("REVERSAL_RESULT for tx=$transactionId was neither delivered nor journaled: $reversalResultJson")
+            }
         }
     }
 
     private fun flushPendingCriticalMessages() {
-        val pendingMessage = readPendingCriticalMessage() ?: return
-        if (!socketManager.isConnected()) return
-        val sent = socketManager.sendMessage(pendingMessage)
-        Log.d(TAG, "Retry pending critical message send result: $sent")
-        audit("Retry pending_critical_message sent=$sent bytes=${pendingMessage.length}")
-        if (sent) {
-            clearPendingCriticalMessage()
+        viewModelScope.launch {
+            val pending = try {
+                journal.openEntries(TransactionJournalEntry.KIND_CRITICAL_MESSAGE)
+            } catch (e: Exception) {
+                Log.e(TAG, "Cannot read pending critical messages", e)
+                audit("Pending critical messages unreadable: ${e.message}")
+                return@launch
+            }
+            for (entry in pending) {
+                val payload = entry.payload
+                if (payload == null) {
+                    journal.close(entry.kind, entry.transactionId)
+                    continue
+                }
+                if (!socketManager.isConnected()) return@launch
+                val sent = socketManager.sendMessage(payload)
+                Log.d(TAG, "Retry pending critical message send result: $sent")
+                audit("Retry CRITICAL_MESSAGE tx=${entry.transactionId} sent=$sent bytes=${payload.length}")
+                if (!sent) return@launch
+                // Unclosed, the message is sent again on the next connect: a duplicate, not a loss
+                journal.close(entry.kind, entry.transactionId).committed("CRITICAL_MESSAGE close tx=${entry.transactionId}")
+            }
         }
     }
 
-    private fun readPendingTicketPrintTransaction(): PendingTicketPrintTransaction? {
-        val raw = recoveryPrefs.getString("pending_ticket_tx", null) ?: return null
-        return try {
-            val json = JSONObject(raw)
+    private suspend fun readPendingTicketPrintTransactions(): List<PendingTicketPrintTransaction> =
+        journal.openEntries(TransactionJournalEntry.KIND_TICKET_PRINT).map {
             PendingTicketPrintTransaction(
-                transactionId = json.optString("transactionId"),
-                amount = json.optInt("amount"),
-                originalRequesterRef = json.optString("originalRequesterRef"),
-                provider = json.optString("provider", "nnsmart")
+                transactionId = it.transactionId,
+                amount = it.amount,
+                originalRequesterRef = it.reference,
+                provider = it.provider
             )
-        } catch (e: Exception) {
-            Log.e(TAG, "Invalid pending ticket-print payload, clearing", e)
-            clearPendingTicketPrintTransaction()
-            null
         }
-    }
 
     private fun scheduleDisconnectRecoveryIfNeeded() {
         if (disconnectRecoveryJob?.isActive == true) return
-        if (readPendingTicketPrintTransaction() == null) return
         disconnectRecoveryJob = viewModelScope.launch {
-            // Grace period for brief network blips.
-            delay(20000)
-            if (!socketManager.isConnected() && readPendingTicketPrintTransaction() != null) {
-                Log.w(TAG, "Prolonged disconnect with pending ticket state; starting protective reversal")
-                audit("Prolonged disconnect threshold reached; protective reversal starts")
-                recoverPendingTicketNotPrintedIfAny()
+            try {
+                if (readPendingTicketPrintTransactions().isEmpty()) return@launch
+                // Grace period for brief network blips.
+                delay(20000)
+                if (!socketManager.isConnected() && readPendingTicketPrintTransactions().isNotEmpty()) {
+                    Log.w(TAG, "Prolonged disconnect with pending ticket state; starting protective reversal")
+                    audit("Prolonged disconnect threshold reached; protective reversal starts")
+                    recoverPendingTicketNotPrintedIfAny()
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.e(TAG, "Disconnect recovery check failed", e)
+                audit("Disconnect recovery check FAILED, journal unreadable: ${e.message}")
             }
         }
     }
 
     private suspend fun recoverPendingTicketNotPrintedIfAny() {
+        for (pending in readPendingTicketPrintTransactions()) {
+            recoverPendingTicketNotPrinted(pending)
+        }
+    }
+
+    private suspend fun recoverPendingTicketNotPrinted(pending: PendingTicketPrintTransaction) {
         if (isRecoveryInProgress) return
-        val pending = readPendingTicketPrintTransaction() ?: return
         if (pending.transactionId.isBlank() || pending.originalRequesterRef.isBlank()) {
-            clearPendingTicketPrintTransaction()
+            clearPendingTicketPrintTransaction(pending.transactionId).committed("TICKET_PRINT close tx=${pending.transactionId}")
             return
         }
         isRecoveryInProgress = true
 
         try {
             Log.w(TAG, "Recovering ticket-not-printed transaction: tx=${pending.transactionId}")
-            _screenState.value = PaymentScreenState.ReversingTransaction(
+            stateMachine.fire(PaymentEvent.REVERSAL_STARTED, PaymentScreenState.ReversingTransaction(
                 message = "Ticket not confirmed. Reversing transaction..."
-            )
+            ))
             ensureSocketConnection()
 
             val recoveryRef = "RECOVERY_TICKET_REVERSAL_${pending.transactionId}"
@@ -1103,35 +1270,37 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 )
             }
 
-            val reversalResultJson = buildReversalResultJson(
-                success = reversalResult.success,
-                transactionId = pending.transactionId,
-                resultCode = reversalResult.resultCode,
-                message = reversalResult.message,
-                requesterTransRefNum = recoveryRef,
-                originalRequesterTransRefNum = pending.originalRequesterRef,
-                originalTransactionId = pending.transactionId,
-                reversalAmount = pending.amount
+            val reversalResultJson = MessageEncoder.encode(
+                ReversalResultMessage(
+                    success = reversalResult.success,
+                    transactionId = pending.transactionId,
+                    resultCode = reversalResult.resultCode,
+                    message = reversalResult.message,
+                    requesterTransRefNum = recoveryRef,
+                    originalRequesterTransRefNum = pending.originalRequesterRef,
+                    originalTransactionId = pending.transactionId,
+                    reversalAmount = pending.amount
+                )
             )
             sendCriticalReversalResult(
+                transactionId = pending.transactionId,
                 reversalResultJson = reversalResultJson,
                 reason = "Ticket recovery"
             )
-            clearPendingTicketPrintTransaction()
+            clearPendingTicketPrintTransaction(pending.transactionId).committed("TICKET_PRINT close tx=${pending.transactionId}")
             lastSuccessfulSale = null
 
             if (reversalResult.success) {
-                _screenState.value = PaymentScreenState.ReversalSuccess(
+                stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.ReversalSuccess(
                     message = "Previous transaction reversed (ticket not confirmed)."
-                )
-                delay(2200)
+                ))
+                stateMachine.after(TimerSite.RECOVERY_SUCCESS, pending.transactionId) { requestInitialScreen() }
             } else {
-                _screenState.value = PaymentScreenState.TransactionFailed(
+                stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.TransactionFailed(
                     errorMessage = "Ticket recovery reversal failed - contact staff"
-                )
-                delay(3000)
+                ))
+                stateMachine.after(TimerSite.RECOVERY_FAILED, pending.transactionId) { requestInitialScreen() }
             }
-            requestInitialScreen()
         } finally {
             isRecoveryInProgress = false
         }
@@ -1157,37 +1326,51 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         if (approved) {
             Log.d(TAG, "NNSmart: limit approved, completing success flow")
 
+            val amount = currentAmount
+            val originalRequesterRef = saleResult.originalTrxUniqueId ?: transactionId
             // Record the sale so a later server-initiated refund can reverse it.
             lastSuccessfulSale = SuccessfulSaleTransaction(
                 transactionId = transactionId,
-                amount = currentAmount,
-                requesterTransRefNum = saleResult.originalTrxUniqueId ?: transactionId
-            )
-            savePendingTicketPrintTransaction(
-                transactionId = transactionId,
-                amount = currentAmount,
-                originalRequesterRef = saleResult.originalTrxUniqueId ?: transactionId,
-                provider = "nnsmart"
+                amount = amount,
+                requesterTransRefNum = originalRequesterRef
             )
+            viewModelScope.launch {
+                // As on the Integra path, the ticket-print row is on disk
+                // before the sale is reported
+                val journaled = savePendingTicketPrintTransaction(
+                    transactionId = transactionId,
+                    amount = amount,
+                    originalRequesterRef = originalRequesterRef,
+                    provider = "nnsmart"
+                ).committed("TICKET_PRINT tx=$transactionId")
+                if (!journaled) {
+                    reverseUnjournaledSale(transactionId, amount, "nnsmart", originalRequesterRef)
+                    clearPendingRecoveryTransaction(transactionId)
+                    return@launch
+                }
 
-            // Tell the server the payment succeeded.
-            val paymentResultJson = buildPaymentResultJson(
-                success = true,
-                transactionId = transactionId,
-                resultCode = saleResult.resultCode ?: "A",
-                message = saleResult.message ?: "APPROVED",
-                bankResultCode = "00"
-            )
-            Log.d(TAG, "NNSmart: sending PAYMENT_RESULT (success) to backend")
-            Log.d(TAG, "NNSmart: PAYMENT_RESULT payload: $paymentResultJson")
-            val sent = socketManager.sendMessage(paymentResultJson)
-            Log.d(TAG, "NNSmart: PAYMENT_RESULT send result: $sent")
+                // Tell the server the payment succeeded.
+                val paymentResultJson = MessageEncoder.encode(
+                    PaymentResultMessage(
+                        success = true,
+                        transactionId = transactionId,
+                        resultCode = saleResult.resultCode ?: "A",
+                        message = saleResult.message ?: "APPROVED",
+                        bankResultCode = "00"
+                    )
+                )
+                Log.d(TAG, "NNSmart: sending PAYMENT_RESULT (success) to backend")
+                Log.d(TAG, "NNSmart: PAYMENT_RESULT payload: $paymentResultJson")
+                val sent = socketManager.sendMessage(paymentResultJson)
+                Log.d(TAG, "NNSmart: PAYMENT_RESULT send result: $sent")
 
-            _screenState.value = PaymentScreenState.TransactionSuccess(showReceipt = true)
-            pendingNnsmartSale = null
-            clearPendingRecoveryTransaction()
-            isProcessingPayment = false
-            isHandlingPaymentLocally = false
+                stateMachine.fire(PaymentEvent.PAYMENT_APPROVED, PaymentScreenState.TransactionSuccess(showReceipt = true))
+                pendingNnsmartSale = null
+                // The ticket-print row is committed, so the sale is never left unjournaled
+                clearPendingRecoveryTransaction(transactionId)
+                isProcessingPayment = false
+                isHandlingPaymentLocally = false
+            }
             return
         }
 
@@ -1196,15 +1379,14 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         // 2) show reversal in progress
         // 3) show reversal outcome
         Log.d(TAG, "NNSmart: limit rejected, showing limit error before reversal")
-        _screenState.value = PaymentScreenState.LimitError(
+        stateMachine.fire(PaymentEvent.LIMIT_REJECTED, PaymentScreenState.LimitError(
             errorMessage = errorMessage
-        )
-        allowNavigationFromLimitError = false
+        ))
         viewModelScope.launch {
             delay(1200)
-            _screenState.value = PaymentScreenState.ReversingTransaction(
+            stateMachine.fire(PaymentEvent.REVERSAL_STARTED, PaymentScreenState.ReversingTransaction(
                 message = "Limit exceeded. Reversing card transaction..."
-            )
+            ))
 
             val cancelOk = try {
                 val trxId = saleResult.originalTrxUniqueId
@@ -1226,15 +1408,17 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             // Notify the server reversal outcome via REVERSAL_RESULT.
             val reversalResultCode = if (cancelOk) "LIMIT_REVERSED" else "LIMIT_REVERSAL_FAILED"
             val reversalMessage = if (cancelOk) "Limit exceeded - sale reversed" else "Limit exceeded - REVERSAL FAILED"
-            val reversalResultJson = buildReversalResultJson(
-                success = cancelOk,
-                transactionId = transactionId,
-                resultCode = reversalResultCode,
-                message = reversalMessage,
-                requesterTransRefNum = "REVERSAL_$transactionId",
-                originalRequesterTransRefNum = saleResult.originalTrxUniqueId ?: transactionId,
-                originalTransactionId = transactionId,
-                reversalAmount = currentAmount
+            val reversalResultJson = MessageEncoder.encode(
+                ReversalResultMessage(
+                    success = cancelOk,
+                    transactionId = transactionId,
+                    resultCode = reversalResultCode,
+                    message = reversalMessage,
+                    requesterTransRefNum = "REVERSAL_$transactionId",
+                    originalRequesterTransRefNum = saleResult.originalTrxUniqueId ?: transactionId,
+                    originalTransactionId = transactionId,
+                    reversalAmount = currentAmount
+                )
             )
             Log.d(TAG, "NNSmart: sending REVERSAL_RESULT (limit-rejected) to backend")
             Log.d(TAG, "NNSmart: REVERSAL_RESULT payload: $reversalResultJson")
@@ -1242,28 +1426,22 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             Log.d(TAG, "NNSmart: REVERSAL_RESULT send result: $sent")
 
             if (cancelOk) {
-                clearPendingTicketPrintTransaction()
-                _screenState.value = PaymentScreenState.ReversalSuccess(
+                clearPendingTicketPrintTransaction(transactionId)
+                stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.ReversalSuccess(
                     message = "Limit exceeded. Card transaction reversed successfully."
-                )
-                viewModelScope.launch {
-                    delay(2500)
-                    requestInitialScreen()
-                }
+                ))
+                stateMachine.after(TimerSite.LIMIT_REVERSAL_SUCCESS, transactionId) { requestInitialScreen() }
             } else {
-                clearPendingTicketPrintTransaction()
+                clearPendingTicketPrintTransaction(transactionId)
                 // Reversal failed — this is rare but needs operator attention.
-                _screenState.value = PaymentScreenState.TransactionFailed(
+                stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.TransactionFailed(
                     errorMessage = "Please contact staff - reversal failed"
-                )
-                viewModelScope.launch {
-                    delay(6000)
-                    requestInitialScreen()
-                }
+                ))
+                stateMachine.after(TimerSite.LIMIT_REVERSAL_FAILED, transactionId) { requestInitialScreen() }
             }
 
             pendingNnsmartSale = null
-            clearPendingRecoveryTransaction()
+            clearPendingRecoveryTransaction(transactionId).committed("SALE_RECOVERY close tx=$transactionId")
             isProcessingPayment = false
             isHandlingPaymentLocally = false
         }
@@ -1292,10 +1470,9 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         // This can happen if ViewModel was recreated (e.g., after activity restart)
         if (!approved && !isProcessingPayment) {
             Log.w(TAG, "Received LIMIT_ERROR but payment not in progress - showing error screen anyway")
-            _screenState.value = PaymentScreenState.LimitError(
+            stateMachine.fire(PaymentEvent.LIMIT_REJECTED, PaymentScreenState.LimitError(
                 errorMessage = errorMessage
-            )
-            allowNavigationFromLimitError = false // Reset flag when showing LIMIT_ERROR
+            ))
             return
         }
         
@@ -1309,10 +1486,9 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             Log.e(TAG, "No pending card check result found")
             // If we have an error message, still show it
             if (!approved) {
-                _screenState.value = PaymentScreenState.LimitError(
+                stateMachine.fire(PaymentEvent.LIMIT_REJECTED, PaymentScreenState.LimitError(
                     errorMessage = errorMessage
-                )
-                allowNavigationFromLimitError = false // Reset flag when showing LIMIT_ERROR
+                ))
             }
             isProcessingPayment = false
             return
@@ -1320,11 +1496,11 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         
         if (!approved) {
             Log.d(TAG, "Limit check rejected, cancelling payment")
+            abandonPipelineRun()
             // Cancel the card check on terminal - MUST complete before showing error screen
             viewModelScope.launch {
                 try {
-                    val database = AppDatabase.getDatabase(getApplication())
-                    val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
+                    val deviceInfo = deviceInfoRepository.get()
                     if (deviceInfo != null && deviceInfo.paymentProvider.lowercase() == "integra") {
                         // Only cancel if using real terminal
                         Log.d(TAG, "Cancelling transaction on terminal with sequenceNumber: ${cardCheckResult.sequenceNumber}")
@@ -1345,12 +1521,11 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 } finally {
                     // Always show error screen after cancel attempt completes
                     // Show error screen BEFORE resetting flags to ensure it's displayed
-                    _screenState.value = PaymentScreenState.LimitError(
+                    stateMachine.fire(PaymentEvent.LIMIT_REJECTED, PaymentScreenState.LimitError(
                         errorMessage = errorMessage
-                    )
+                    ))
                     isProcessingPayment = false
                     isHandlingPaymentLocally = false // Reset flag on limit error
-                    allowNavigationFromLimitError = false // Reset flag when showing LIMIT_ERROR
                     Log.d(TAG, "Limit error screen displayed: $errorMessage")
                 }
             }
@@ -1361,38 +1536,43 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         Log.d(TAG, "Limit check approved, performing sale transaction")
         viewModelScope.launch {
             try {
-                val database = AppDatabase.getDatabase(getApplication())
-                val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
+                val deviceInfo = deviceInfoRepository.get()
                 
                 if (deviceInfo == null) {
                     Log.e(TAG, "Device configuration not found")
-                    _screenState.value = PaymentScreenState.TransactionFailed(
+                    stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                         errorMessage = "Device configuration not found"
-                    )
+                    ))
                     isProcessingPayment = false
                     isHandlingPaymentLocally = false // Reset flag on error
                     
-                    // Auto-return to amount selection after 4 seconds
-                    viewModelScope.launch {
-                        delay(4000)
-                        requestInitialScreen()
-                    }
+                    // Auto-return to amount selection
+                    stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
                     return@launch
                 }
                 
                 val paymentProvider = deviceInfo.paymentProvider.lowercase()
                 val amountFormatted = String.format("%.2f", currentAmount.toDouble())
+                val run = pipelineRun?.takeIf { it.transactionId == transactionId }
+                // Normally ready already: it was prepared while the limit check was in flight
+                val prepared = run?.let { paymentPipeline.awaitPrepared(it) }
                 
                 // Perform Sale with amount including fee
                 Log.d(TAG, "Performing sale transaction with provider: $paymentProvider, amount (including fee): $amountFormatted")
+                TransactionTracer.mark(transactionId, Mark.SALE_SENT)
                 val saleResult = if (paymentProvider == "mock") {
                     MockPaymentManager.performSale(amountFormatted, transactionId)
                 } else {
                     PlanetPaymentManager.performSale(
                         amountFormatted = amountFormatted, // Amount includes transaction fee
-                        requesterRef = transactionId
+                        requesterRef = transactionId,
+                        prepared = prepared
                     )
                 }
+                run?.let { paymentPipeline.saleDone(it, saleResult.success) }
+                TransactionTracer.mark(transactionId, Mark.RESULT, saleResult.resultCode)
+                SessionRecorder.result("SALE", transactionId, saleResult.success, saleResult.resultCode, saleResult.message)
+                if (pipelineRun === run) pipelineRun = null
                 
                 // Step 6: Show SUCCESS or FAILED screen immediately
                 if (saleResult.success) {
@@ -1403,46 +1583,43 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                         amount = currentAmount,
                         requesterTransRefNum = saleResult.requesterTransRefNum ?: transactionId
                     )
-                    savePendingTicketPrintTransaction(
+                    val journaled = savePendingTicketPrintTransaction(
                         transactionId = transactionId,
                         amount = currentAmount,
                         originalRequesterRef = saleResult.requesterTransRefNum ?: transactionId,
                         provider = paymentProvider
-                    )
+                    ).committed("TICKET_PRINT tx=$transactionId")
+                    if (!journaled) {
+                        reverseUnjournaledSale(
+                            transactionId = transactionId,
+                            amount = currentAmount,
+                            provider = paymentProvider,
+                            originalRequesterRef = saleResult.requesterTransRefNum ?: transactionId
+                        )
+                        return@launch
+                    }
                     Log.d(TAG, "Stored successful sale transaction: $lastSuccessfulSale")
-                    _screenState.value = PaymentScreenState.TransactionSuccess(showReceipt = true)
+                    stateMachine.fire(PaymentEvent.PAYMENT_APPROVED, PaymentScreenState.TransactionSuccess(showReceipt = true))
                 } else {
                     Log.d(TAG, "Payment failed: ${saleResult.message}")
-                    _screenState.value = PaymentScreenState.TransactionFailed(
+                    stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                         errorMessage = saleResult.message ?: "Payment failed"
-                    )
+                    ))
                     
-                    // Auto-return to amount selection after 4 seconds
-                    viewModelScope.launch {
-                        delay(4000)
-                        requestInitialScreen()
-                    }
+                    // Auto-return to amount selection
+                    stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
                 }
                 
                 // Step 7: Send PAYMENT_RESULT to server (informational)
-                val paymentResultJson = """
-                    {
-                        "messageType": "PAYMENT_RESULT",
-                        "screen": "${if (saleResult.success) "SUCCESS" else "FAILED"}",
-                        "data": {
-                            "errorCode": ${if (saleResult.resultCode != null) "\"${saleResult.resultCode}\"" else "null"},
-                            "errorMessage": ${if (saleResult.message != null) "\"${saleResult.message}\"" else "null"},
-                            "paymentDetails": {
-                                "Result": "${saleResult.resultCode ?: ""}",
-                                "BankResultCode": "${saleResult.bankResultCode ?: ""}",
-                                "Message": "${saleResult.message ?: ""}",
-                                "RequesterTransRefNum": "$transactionId"
-                            }
-                        },
-                        "transactionId": "$transactionId",
-                        "timestamp": ${System.currentTimeMillis()}
-                    }
-                """.trimIndent()
+                val paymentResultJson = MessageEncoder.encode(
+                    PaymentResultMessage(
+                        success = saleResult.success,
+                        transactionId = transactionId,
+                        resultCode = saleResult.resultCode,
+                        message = saleResult.message,
+                        bankResultCode = saleResult.bankResultCode
+                    )
+                )
                 
                 socketManager.sendMessage(paymentResultJson)
                 
@@ -1450,22 +1627,33 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 isHandlingPaymentLocally = false // Reset flag when payment completes
             } catch (e: Exception) {
                 Log.e(TAG, "Error performing sale transaction", e)
-                _screenState.value = PaymentScreenState.TransactionFailed(
+                stateMachine.fire(PaymentEvent.PAYMENT_FAILED, PaymentScreenState.TransactionFailed(
                     errorMessage = "Sale transaction error: ${e.message}"
-                )
+                ))
                 isProcessingPayment = false
                 isHandlingPaymentLocally = false // Reset flag on error
                 
-                // Auto-return to amount selection after 4 seconds
-                viewModelScope.launch {
-                    delay(4000)
-                    requestInitialScreen()
-                }
+                // Auto-return to amount selection
+                stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
             }
         }
     }
 
-    fun cancelPayment(isTimeout: Boolean = false) {
+    private fun abandonPipelineRun() {
+        pipelineRun?.let { paymentPipeline.abandon(it) }
+        pipelineRun = null
+    }
+
+    /**
+     * Per-phase timings of pipelined (card-check-first) payments.
+     */
+    fun paymentPipelineStats(): List<LatencyStats.Summary> = paymentPipeline.stats()
+
+    fun cancelPayment(
+        isTimeout: Boolean = false,
+        showScreensaver: Boolean = isTimeout && _isOnAmountScreen.value
+    ) {
+        if (!isTimeout) SessionRecorder.input(SessionRecord.INPUT_CANCEL_PAYMENT)
         val transactionId = currentTransactionId
         if (transactionId == null) {
             Log.d(TAG, "Cannot cancel payment: No active transaction ID")
@@ -1473,8 +1661,8 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             isProcessingPayment = false
             isHandlingPaymentLocally = false
             // If there's no active transaction but this is a timeout,
-            // we should still show the screensaver if on amount screen
-            if (isTimeout && _isOnAmountScreen.value) {
+            // we should still show the screensaver if asked to
+            if (showScreensaver) {
                 Log.d(TAG, "No active transaction, but showing screensaver due to timeout")
                 forceShowScreensaver()
             }
@@ -1486,7 +1674,8 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         isHandlingPaymentLocally = false
         pendingCardCheckResult = null
         pendingNnsmartSale = null
-        clearPendingRecoveryTransaction()
+        abandonPipelineRun()
+        clearPendingRecoveryTransaction(transactionId)
 
         if (isTimeout) {
             Log.d(TAG, "Canceling payment due to timeout")
@@ -1523,8 +1712,8 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             sendMessage(resetMessage)
         }
 
-        // If this is a timeout and we're on the amount screen, show the screensaver
-        if (isTimeout && _isOnAmountScreen.value) {
+        // If this is a timeout that ends in the screensaver, show it
+        if (showScreensaver) {
             forceShowScreensaver()
         }
     }
@@ -1536,9 +1725,9 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     fun forceShowScreensaver() {
         Log.d(TAG, "Forcing screensaver to show immediately")
         // Save current state
-        if (_screenState.value !is PaymentScreenState.DeviceError &&
-            _screenState.value !is PaymentScreenState.ConnectionError) {
-            lastActiveState = _screenState.value
+        if (stateMachine.current !is PaymentScreenState.DeviceError &&
+            stateMachine.current !is PaymentScreenState.ConnectionError) {
+            lastActiveState = stateMachine.current
             Log.d(TAG, "Saved last active state: ${lastActiveState?.javaClass?.simpleName}")
         }
 
@@ -1554,6 +1743,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
      */
     fun dismissScreensaver() {
         Log.d(TAG, "Dismissing screensaver")
+        SessionRecorder.input(SessionRecord.INPUT_DISMISS_SCREENSAVER)
         _isScreensaverVisible.value = false
 
         // Resume timers after screensaver is dismissed
@@ -1581,12 +1771,12 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         isProcessingPayment = false
         isHandlingPaymentLocally = false
         pendingNnsmartSale = null
-        clearPendingRecoveryTransaction()
+        currentTransactionId?.let { clearPendingRecoveryTransaction(it) }
 
         // Check if we have a valid server URL
         if (serverUrl.isEmpty()) {
             Log.e(TAG, "Cannot request initial screen: Server URL is empty")
-            _screenState.value = PaymentScreenState.ConnectionError
+            stateMachine.fire(PaymentEvent.CONNECTION_LOST, PaymentScreenState.ConnectionError)
             return
         }
 
@@ -1595,7 +1785,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
 
         // Generate a new transaction ID for the new session
         val transactionId = UUID.randomUUID().toString()
-        currentTransactionId = transactionId
+        beginTransaction(transactionId)
         Log.d(TAG, "Generated new transaction ID for reset: $transactionId")
 
         // Send RESET message to get back to amount selection
@@ -1610,14 +1800,13 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         sendMessage(resetMessage)
 
         // Set a temporary loading state until we receive the response
-        _screenState.value = PaymentScreenState.Loading
+        stateMachine.fire(PaymentEvent.SESSION_RESET, PaymentScreenState.Loading)
         Log.d(TAG, "Set temporary loading state while waiting for screen response")
 
         // Set up a fallback in case we don't get a response
-        viewModelScope.launch {
-            delay(3000) // Wait 3 seconds for response
-            if (_screenState.value is PaymentScreenState.Loading) {
-                Log.d(TAG, "No response received after 3 seconds, retrying connection")
+        stateMachine.after(TimerSite.LOADING_FALLBACK, transactionId) {
+            if (stateMachine.current is PaymentScreenState.Loading) {
+                Log.d(TAG, "No response received, retrying connection")
                 socketManager.disconnect() // Force disconnect to get a fresh connection
                 delay(500) // Short delay
                 socketManager.connect(serverUrl) // Reconnect
@@ -1625,7 +1814,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
 
                 // Try again
                 val newTransactionId = UUID.randomUUID().toString()
-                currentTransactionId = newTransactionId
+                beginTransaction(newTransactionId)
                 val retryMessage = SocketMessage(
                     messageType = "USER_ACTION",
                     screen = "RESET",
@@ -1645,7 +1834,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         // Check if we have a valid server URL
         if (serverUrl.isEmpty()) {
             Log.e(TAG, "Cannot ensure socket connection: Server URL is empty")
-            _screenState.value = PaymentScreenState.ConnectionError
+            stateMachine.fire(PaymentEvent.CONNECTION_LOST, PaymentScreenState.ConnectionError)
             return
         }
 
@@ -1655,7 +1844,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
 
     fun retryConnection() {
         Log.d(TAG, "Retrying connection to $serverUrl")
-        _screenState.value = PaymentScreenState.Loading
+        stateMachine.fire(PaymentEvent.SESSION_RESET, PaymentScreenState.Loading)
         socketManager.disconnect()
         connectToBackend(serverUrl)
     }
@@ -1664,13 +1853,13 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
      * Send a message to the server with better error handling
      */
     private fun sendMessage(message: SocketMessage) {
-        val jsonMessage = messageAdapter.toJson(message)
+        val jsonMessage = MessageEncoder.encode(message)
         Log.d(TAG, "Sending message: $jsonMessage")
 
         // Check if we have a valid server URL
         if (serverUrl.isEmpty()) {
             Log.e(TAG, "Cannot send message: Server URL is empty")
-            _screenState.value = PaymentScreenState.ConnectionError
+            stateMachine.fire(PaymentEvent.CONNECTION_LOST, PaymentScreenState.ConnectionError)
             return
         }
 
@@ -1688,7 +1877,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                     Log.d(TAG, "Delayed message send result: $success")
                 } else {
                     Log.e(TAG, "Still not connected, unable to send message")
-                    _screenState.value = PaymentScreenState.ConnectionError
+                    stateMachine.fire(PaymentEvent.CONNECTION_LOST, PaymentScreenState.ConnectionError)
                 }
             }
             return
@@ -1705,75 +1894,133 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     }
 
     /**
-     * Process messages received from the socket
+     * Background stage for a raw socket frame: decode, validate and work out
+     * the target screen state. Runs on [decodeDispatcher]; returns null
+     * for frames the client ignores. Decode time is recorded per type in
+     * [messageStats].
      */
+    private fun decodeInbound(jsonMessage: String): InboundFrame? {
+        val startNanos = System.nanoTime()
+        return try {
+            val message = MessageDecoder.decode(jsonMessage)
+            if (message == null) {
+                // Pings and types this client does not handle. They are
+                // dropped here, so unlike before they no longer update
+                // currentTransactionId (see dispatchMessage).
+                messageStats.record(UNHANDLED_MESSAGE_KEY, System.nanoTime() - startNanos)
+                return null
+            }
+            val targetState = if (message.messageType == "SCREEN_CHANGE") {
+                ScreenChangeMapper.targetState(message)
+            } else {
+                null
+            }
+            // Zero-I/O snapshot read of the configuration
+            val quotes = (targetState as? PaymentScreenState.AmountSelect)?.let {
+                AmountQuotes.table(it.amounts, deviceInfoRepository.deviceInfo.value)
+            }
+            messageStats.record(message.messageType, System.nanoTime() - startNanos)
+            InboundFrame.Decoded(message, targetState, quotes)
+        } catch (e: Exception) {
+            InboundFrame.Invalid(jsonMessage, e)
+        }
+    }
 
-    // Add this enhanced logging to processSocketMessage method in PaymentViewModel.kt
-
-    private fun processSocketMessage(jsonMessage: String) {
+    /**
+     * Main-thread stage: apply a decoded frame to view-model state. Time
+     * spent here is recorded per type in [mainThreadStats] and anything
+     * over one frame is logged.
+     */
+    private fun applyInbound(frame: InboundFrame) {
+        val startNanos = System.nanoTime()
+        val key = when (frame) {
+            is InboundFrame.Decoded -> frame.message.messageType
+            is InboundFrame.Invalid -> INVALID_MESSAGE_KEY
+        }
         try {
-            val message = messageAdapter.fromJson(jsonMessage)
-
-            message?.let {
-                // Store transaction ID for response
-                currentTransactionId = it.transactionId
-                Log.d(TAG, "=== SOCKET MESSAGE RECEIVED ===")
-                Log.d(TAG, "Raw JSON: $jsonMessage")
-                Log.d(TAG, "Message Type: ${it.messageType}")
-                Log.d(TAG, "Screen: ${it.screen}")
-                Log.d(TAG, "Transaction ID: ${it.transactionId}")
-                Log.d(TAG, "Current Screen State: ${_screenState.value::class.simpleName}")
-                Log.d(TAG, "Timestamp: ${it.timestamp}")
-                Log.d(TAG, "================================")
-
-                when (it.messageType) {
-                    "SCREEN_CHANGE" -> {
-                        Log.d(TAG, "Processing SCREEN_CHANGE to: ${it.screen}")
-                        handleScreenChange(it)
-                        Log.d(TAG, "New Screen State: ${_screenState.value::class.simpleName}")
-                    }
-                    "ERROR" -> {
-                        Log.d(TAG, "Processing ERROR message")
-                        handleError(it)
-                    }
-                    "STATUS_UPDATE" -> {
-                        Log.d(TAG, "Processing STATUS_UPDATE message")
-                        handleStatusUpdate(it)
-                    }
-                    "LIMIT_CHECK_RESULT" -> {
-                        Log.d(TAG, "Processing LIMIT_CHECK_RESULT message")
-                        handleLimitCheckResult(it)
-                    }
-                    "DEVICE_INFO" -> {
-                        Log.d(TAG, "Processing DEVICE_INFO message")
-                        handleDeviceInfo(it)
-                    }
-                    "RESTART_APP" -> {
-                        Log.d(TAG, "Processing RESTART_APP message")
-                        handleRestartApp(it)
-                    }
-                    "REFUND_REQUEST", "REVERSAL_REQUEST" -> {
-                        Log.d(TAG, "Processing ${it.messageType} message")
-                        handleRefundRequest(it)
-                    }
-                    else -> {
-                        Log.d(TAG, "Unhandled message type: ${it.messageType}")
-                    }
+            when (frame) {
+                is InboundFrame.Decoded -> {
+                    dispatchMessage(frame.message, frame.targetState)
+                    // Only for an amount screen that is now showing
+                    frame.quotes?.takeIf { stateMachine.current == frame.targetState }?.let { publishQuotes(it) }
+                }
+                is InboundFrame.Invalid -> {
+                    // Handle parsing error
+                    Log.e(TAG, "Error parsing socket message: ${frame.raw}", frame.error)
+                    stateMachine.fire(PaymentEvent.INVALID_MESSAGE, PaymentScreenState.DeviceError("Invalid message format: ${frame.error.message}"))
+                    // Make sure to update screen state flag
+                    _isOnAmountScreen.value = false
                 }
             }
         } catch (e: Exception) {
-            // Handle parsing error
-            Log.e(TAG, "Error parsing socket message: $jsonMessage", e)
-            _screenState.value = PaymentScreenState.DeviceError("Invalid message format: ${e.message}")
-            // Make sure to update screen state flag
+            Log.e(TAG, "Error handling socket message $key", e)
+            stateMachine.fire(PaymentEvent.INVALID_MESSAGE, PaymentScreenState.DeviceError("Invalid message format: ${e.message}"))
             _isOnAmountScreen.value = false
+        } finally {
+            val elapsedNanos = System.nanoTime() - startNanos
+            mainThreadStats.record(key, elapsedNanos)
+            if (elapsedNanos > FRAME_BUDGET_NANOS) {
+                Log.w(TAG, "Socket $key took ${elapsedNanos / 1_000}us on the main thread (over one frame)")
+            }
         }
     }
 
+    /**
+     * AMOUNT_SELECT quotes are built in [decodeInbound] from the configuration
+     * of that moment. If a DEVICE_INFO update has landed since, build them
+     * again from the current one before they are published.
+     */
+    private fun publishQuotes(quotes: QuoteTable) {
+        val deviceInfo = deviceInfoRepository.deviceInfo.value ?: quotes.config
+        _amountQuotes.value = quotes.quotedWith(deviceInfo)
+    }
+
+    private fun dispatchMessage(message: SocketMessage, targetState: PaymentScreenState?) {
+        // Store transaction ID for response. Frames outside a transaction
+        // (DEVICE_INFO, STATUS_UPDATE, ERROR, INFO_SCREEN, ...) leave it,
+        // and its timers, alone; AMOUNT_SELECT starts a new transaction.
+        when {
+            message.messageType == "SCREEN_CHANGE" && message.screen == "AMOUNT_SELECT" ->
+                beginTransaction(message.transactionId)
+            message.messageType == "SCREEN_CHANGE" && message.screen == "INFO_SCREEN" -> Unit
+            message.messageType in TRANSACTION_MESSAGE_TYPES -> currentTransactionId = message.transactionId
+        }
+
+        when (message.messageType) {
+            "SCREEN_CHANGE" -> handleScreenChange(message, targetState)
+            "ERROR" -> handleError(message)
+            "STATUS_UPDATE" -> handleStatusUpdate(message)
+            "LIMIT_CHECK_RESULT" -> handleLimitCheckResult(message)
+            "DEVICE_INFO" -> handleDeviceInfo(message)
+            "RESTART_APP" -> handleRestartApp(message)
+            "REFUND_REQUEST", "REVERSAL_REQUEST" -> handleRefundRequest(message)
+        }
+
+        Log.d(
+            TAG,
+            "Socket ${message.messageType}/${message.screen} tx=${message.transactionId} " +
+                "-> ${stateMachine.current::class.simpleName}"
+        )
+    }
+
+    /**
+     * A new transaction starts (AMOUNT_SELECT from the server, or a RESET
+     * we send): cancel every timer the previous transaction armed.
+     */
+    private fun beginTransaction(transactionId: String) {
+        if (currentTransactionId != transactionId) stateMachine.endTransaction(currentTransactionId)
+        currentTransactionId = transactionId
+    }
+
     /**
      * Process screen state changes to track when we're on the amount selection screen
      */
     fun respondToReceiptQuestion(wantsReceipt: Boolean) {
+        SessionRecorder.input(SessionRecord.INPUT_RECEIPT_RESPONSE, wantsReceipt.toString())
+        sendReceiptResponse(wantsReceipt)
+    }
+
+    private fun sendReceiptResponse(wantsReceipt: Boolean) {
         Log.d(TAG, "Receipt response: $wantsReceipt")
         recordUserInteraction()
 
@@ -1783,6 +2030,8 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
             return
         }
 
+        TransactionTracer.mark(transactionId, Mark.RECEIPT, if (wantsReceipt) "YES" else "NO")
+
         val message = SocketMessage(
             messageType = "USER_ACTION",
             screen = "RECEIPT_RESPONSE",
@@ -1796,30 +2045,23 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         sendMessage(message)
     }
 
-    // In PaymentViewModel.kt, update the handleScreenChange method
-
-    private fun handleScreenChange(message: SocketMessage) {
-        Log.d(TAG, "Handling screen change to: ${message.screen}")
-        
+    /**
+     * Apply a SCREEN_CHANGE on the main thread. [targetState] was computed
+     * off the main thread by [ScreenChangeMapper]; only the screens that
+     * depend on view-model state or I/O are built here.
+     */
+    private fun handleScreenChange(message: SocketMessage, targetState: PaymentScreenState?) {
         // If we're currently showing LIMIT_ERROR, don't allow other screens to override it
-        // unless the user has explicitly requested a reset (allowNavigationFromLimitError flag)
-        if (_screenState.value is PaymentScreenState.LimitError && 
-            message.screen != "LIMIT_ERROR" && 
-            !allowNavigationFromLimitError) {
+        // unless the user has explicitly requested a reset (see PaymentStateMachine.releaseLimitError)
+        if (message.screen != "LIMIT_ERROR" && stateMachine.isLimitErrorHeld()) {
             Log.d(TAG, "Ignoring screen change to ${message.screen} - LIMIT_ERROR screen is active. User must interact to dismiss.")
             return
         }
-        
-        // Reset the flag after allowing navigation
-        if (allowNavigationFromLimitError && message.screen == "AMOUNT_SELECT") {
-            allowNavigationFromLimitError = false
-            Log.d(TAG, "Navigation from LIMIT_ERROR allowed - resetting flag")
-        }
+        traceScreen(message)
         
         when (message.screen) {
             "INFO_SCREEN" -> {
                 // Handle INFO_SCREEN request for device information
-                Log.d(TAG, "Received INFO_SCREEN request")
                 val requestType = message.data?.requestType
                 if (requestType == "DEVICE_INFO") {
                     Log.d(TAG, "INFO_SCREEN request for device info, sending device IP and serial number")
@@ -1831,61 +2073,22 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 // Note: INFO_SCREEN does not change the current screen state
                 return
             }
-            "AMOUNT_SELECT" -> {
-                clearPendingTicketPrintTransaction()
-                val data = message.data
-                if (data != null && data.amounts != null && data.currency != null) {
-                    Log.d(TAG, "Changing to AMOUNT_SELECT screen with ${data.amounts.size} amounts")
-                    _screenState.value = PaymentScreenState.AmountSelect(
-                        amounts = data.amounts,
-                        currency = data.currency,
-                        showOtherOption = data.showOtherOption ?: true
-                    )
-                    // Set flag that we're on the amount selection screen
-                    _isOnAmountScreen.value = true
-                    Log.d(TAG, "Set isOnAmountScreen = true")
-                } else {
-                    Log.e(TAG, "Invalid data for AMOUNT_SELECT: $data")
-                    _isOnAmountScreen.value = false
-                }
-            }
             "RECEIPT_QUESTION" -> {
-                Log.d(TAG, "Received RECEIPT_QUESTION screen change")
                 viewModelScope.launch {
-                    val database = AppDatabase.getDatabase(getApplication())
-                    val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
+                    val deviceInfo = deviceInfoRepository.get()
                     val requireCardReceipt = deviceInfo?.requireCardReceipt ?: true
                     
                     if (requireCardReceipt) {
                         Log.d(TAG, "requireCardReceipt is enabled - showing receipt question screen")
-                        _screenState.value = PaymentScreenState.ReceiptQuestion(showGif = true)
+                        stateMachine.fire(PaymentEvent.SERVER_SCREEN, PaymentScreenState.ReceiptQuestion(showGif = true))
                     } else {
                         Log.d(TAG, "requireCardReceipt is disabled - skipping receipt question screen")
                         // Automatically respond NO to receipt question
-                        respondToReceiptQuestion(wantsReceipt = false)
+                        sendReceiptResponse(wantsReceipt = false)
                     }
                     _isOnAmountScreen.value = false
                 }
-            }
-            "TIMEOUT" -> {
-                Log.d(TAG, "Server sent TIMEOUT message - showing timeout screen")
-                _screenState.value = PaymentScreenState.Timeout
-                _isOnAmountScreen.value = false
-
-                // REMOVE THIS AUTO-NAVIGATION - let the server control the flow
-                // The server will send the next screen when ready
-                // Don't auto-navigate after timeout
-            }
-            "KEYPAD" -> {
-                Log.d(TAG, "Changing to KEYPAD screen")
-                _screenState.value = PaymentScreenState.KeypadEntry(
-                    currency = message.data?.currency ?: "£",
-                    minAmount = 10, // Default
-                    maxAmount = 300 // Default
-                )
-                // Not on amount selection screen anymore
-                _isOnAmountScreen.value = false
-                Log.d(TAG, "Set isOnAmountScreen = false")
+                return
             }
             "PAYMENT_METHOD" -> {
                 // Check if we're handling payment locally (YASPA disabled) - if so, ignore this screen change
@@ -1894,101 +2097,69 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                     return
                 }
                 
-                Log.d(TAG, "Changing to PAYMENT_METHOD screen with amount: $currentAmount")
-                _screenState.value = PaymentScreenState.PaymentMethodSelect(
+                stateMachine.fire(PaymentEvent.SERVER_SCREEN, PaymentScreenState.PaymentMethodSelect(
                     methods = message.data?.methods ?: listOf("DEBIT_CARD", "PAY_BY_BANK"),
                     amount = currentAmount, // Use stored amount (includes fee)
                     currency = message.data?.currency ?: "£",
                     allowCancel = message.data?.allowCancel ?: true
-                )
+                ))
                 // Not on amount selection screen anymore
                 _isOnAmountScreen.value = false
-                Log.d(TAG, "Set isOnAmountScreen = false")
-            }
-            "QR_CODE" -> {
-                val paymentUrl = message.data?.paymentUrl ?: ""
-                Log.d(TAG, "Changing to QR_CODE screen with URL: $paymentUrl")
-                _screenState.value = PaymentScreenState.QrCodeDisplay(
-                    paymentUrl = paymentUrl
-                )
-                _isOnAmountScreen.value = false
-            }
-            "PROCESSING" -> {
-                Log.d(TAG, "Changing to PROCESSING screen")
-                _screenState.value = PaymentScreenState.Processing
-                _isOnAmountScreen.value = false
-            }
-            "SUCCESS" -> {
-                Log.d(TAG, "Changing to SUCCESS screen")
-                _screenState.value = PaymentScreenState.TransactionSuccess(
-                    showReceipt = true
-                )
-                _isOnAmountScreen.value = false
-            }
-            "FAILED" -> {
-                val errorMessage = message.data?.errorMessage
-                Log.d(TAG, "Changing to FAILED screen with error: $errorMessage")
-                _screenState.value = PaymentScreenState.TransactionFailed(
-                    errorMessage = errorMessage
-                )
-                _isOnAmountScreen.value = false
-                
-                // Auto-return to amount selection after 4 seconds (don't wait for server)
-                viewModelScope.launch {
-                    delay(4000)
-                    requestInitialScreen()
-                }
-            }
-            "LIMIT_ERROR" -> {
-                val errorMessage = message.data?.errorMessage ?: "Limit exceeded"
-                Log.d(TAG, "Changing to LIMIT_ERROR screen with message: $errorMessage")
-                _screenState.value = PaymentScreenState.LimitError(
-                    errorMessage = errorMessage
-                )
-                _isOnAmountScreen.value = false
-                // Reset navigation flag when showing LIMIT_ERROR
-                allowNavigationFromLimitError = false
-            }
-            "PRINT_TICKET" -> {
-                Log.d(TAG, "Changing to PRINT_TICKET screen")
-                _screenState.value = PaymentScreenState.PrintingTicket
-                _isOnAmountScreen.value = false
+                return
             }
-            "COLLECT_TICKET" -> {
-                Log.d(TAG, "Changing to COLLECT_TICKET screen")
-                clearPendingTicketPrintTransaction()
-                _screenState.value = PaymentScreenState.CollectTicket
+            // Starting a new flow or handing the ticket over ends the
+            // ticket-print recovery window of the last sale. Earlier sales
+            // still awaiting recovery keep theirs.
+            "AMOUNT_SELECT", "COLLECT_TICKET", "THANK_YOU" ->
+                lastSuccessfulSale?.let { clearPendingTicketPrintTransaction(it.transactionId) }
+        }
+
+        if (targetState == null) {
+            if (message.screen == "AMOUNT_SELECT") {
+                Log.e(TAG, "Invalid data for AMOUNT_SELECT: ${message.data}")
                 _isOnAmountScreen.value = false
             }
+            return
+        }
+
+        if (!stateMachine.fire(PaymentEvent.SERVER_SCREEN, targetState)) return
+        _isOnAmountScreen.value = targetState is PaymentScreenState.AmountSelect
+
+        if (targetState is PaymentScreenState.TransactionFailed) {
+            // Auto-return to amount selection (don't wait for server)
+            stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
+        }
+    }
+
+    /**
+     * Whether [state] is part of a transaction, as opposed to the idle
+     * amount screens and the connection/device error screens.
+     */
+    private fun isTransactionInFlight(state: PaymentScreenState): Boolean = when (state) {
+        is PaymentScreenState.AmountSelect,
+        is PaymentScreenState.KeypadEntry,
+        PaymentScreenState.Loading,
+        PaymentScreenState.ConnectionError,
+        is PaymentScreenState.DeviceError -> false
+        else -> true
+    }
+
+    /**
+     * Trace a server screen. AMOUNT_SELECT opens the transaction's trace,
+     * COLLECT_TICKET means the ticket was printed and THANK_YOU closes it.
+     */
+    private fun traceScreen(message: SocketMessage) {
+        val transactionId = message.transactionId
+        when (message.screen) {
+            "INFO_SCREEN" -> return
+            "AMOUNT_SELECT" -> TransactionTracer.begin(transactionId)
+        }
+        TransactionTracer.mark(transactionId, Mark.SCREEN_RECEIVED, message.screen)
+        when (message.screen) {
+            "COLLECT_TICKET" -> TransactionTracer.mark(transactionId, Mark.TICKET_PRINTED)
             "THANK_YOU" -> {
-                Log.d(TAG, "Changing to THANK_YOU screen")
-                clearPendingTicketPrintTransaction()
-                _screenState.value = PaymentScreenState.ThankYou
-                _isOnAmountScreen.value = false
-            }
-            // Add this case to the when statement in handleScreenChange method
-            "REFUND_PROCESSING" -> {
-                Log.d(TAG, "Changing to REFUND_PROCESSING screen")
-                _screenState.value = PaymentScreenState.RefundProcessing(
-                    errorMessage = message.data?.errorMessage
-                )
-                _isOnAmountScreen.value = false
-            }
-            "PRINTER_ERROR" -> {
-                val errorMessage = message.data?.errorMessage ?: "Printer error occurred"
-                Log.d(TAG, "Changing to PRINTER_ERROR screen with message: $errorMessage")
-                _screenState.value = PaymentScreenState.DeviceError(
-                    errorMessage = errorMessage
-                )
-                _isOnAmountScreen.value = false
-            }
-            "DEVICE_ERROR" -> {
-                val errorMessage = message.data?.errorMessage ?: "Unknown device error"
-                Log.d(TAG, "Changing to DEVICE_ERROR screen with message: $errorMessage")
-                _screenState.value = PaymentScreenState.DeviceError(
-                    errorMessage = errorMessage
-                )
-                _isOnAmountScreen.value = false
+                TransactionTracer.finish(transactionId)
+                TelemetryReporter.sendIfBatchReady()
             }
         }
     }
@@ -1999,16 +2170,13 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
     private fun handleError(message: SocketMessage) {
         val errorMessage = message.data?.errorMessage
         Log.d(TAG, "Handling error: $errorMessage")
-        _screenState.value = PaymentScreenState.TransactionFailed(
+        stateMachine.fire(PaymentEvent.SERVER_ERROR, PaymentScreenState.TransactionFailed(
             errorMessage = errorMessage
-        )
+        ))
         _isOnAmountScreen.value = false
         
-        // Auto-return to amount selection after 4 seconds (don't wait for server)
-        viewModelScope.launch {
-            delay(4000)
-            requestInitialScreen()
-        }
+        // Auto-return to amount selection (don't wait for server)
+        stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
     }
 
     /**
@@ -2025,6 +2193,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
      */
     private fun handleLimitCheckResult(message: SocketMessage) {
         Log.d(TAG, "Received LIMIT_CHECK_RESULT: screen=${message.screen}")
+        TransactionTracer.mark(message.transactionId, Mark.LIMIT_CHECK_RETURNED, message.screen)
         
         val transactionId = message.transactionId
         if (transactionId != currentTransactionId) {
@@ -2064,34 +2233,70 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                        data.transactionFeeType != null ||
                        data.yaspaEnabled != null ||
                        data.paymentProvider != null ||
-                       data.requireCardReceipt != null
+                       data.requireCardReceipt != null ||
+                       data.timerDurations != null ||
+                       data.timeoutPolicies != null ||
+                       data.mediaCacheBudgetMb != null ||
+                       data.screensaverPlaylist != null ||
+                       data.mediaManifest != null ||
+                       data.prefetchRateKbps != null
         
+        data.timerDurations?.let { configManager.saveTimerDurations(it) }
+        data.timeoutPolicies?.let { policies ->
+            TimeoutPolicies.configure(policies)
+            configManager.saveTimeoutPoliciesJson(MessageAdapters.timeoutPolicies.toJson(policies))
+            timeoutManager.applyPolicy(TimeoutPolicies.policyFor(stateMachine.current))
+        }
+        data.mediaCacheBudgetMb?.takeIf { it > 0 }?.let { megabytes ->
+            val bytes = megabytes * 1024L * 1024L
+            configManager.setMediaCacheBudgetBytes(bytes)
+            // Shrinking the budget may evict files
+            viewModelScope.launch(Dispatchers.IO) {
+                MediaCache.getInstance(getApplication()).budgetBytes = bytes
+            }
+        }
+        data.mediaManifest?.let { manifest ->
+            configManager.saveMediaManifestJson(MessageAdapters.mediaManifest.toJson(manifest))
+        }
+        data.prefetchRateKbps?.takeIf { it > 0 }?.let { kilobits ->
+            // Read by the running throttle on its next chunk
+            configManager.setPrefetchRateBytesPerSecond(kilobits * 1000L / 8)
+        }
+        if (data.mediaManifest != null || data.screensaverPlaylist != null) {
+            viewModelScope.launch {
+                val videos = VideoDownloadManager(getApplication())
+                // Drops cached media that does not match
+                data.mediaManifest?.let { videos.applyManifest(it) }
+                // The screensaver skips items not cached yet
+                data.screensaverPlaylist?.let { videos.setPlaylist(it, downloadNow = false) }
+                // Downloads happen when the kiosk is next idle
+                MediaPrefetcher.requestPass()
+            }
+        }
+
         if (hasConfig) {
             Log.d(TAG, "Received device configuration from server")
             viewModelScope.launch {
                 try {
-                    val database = AppDatabase.getDatabase(getApplication())
-                    val deviceInfoDao = database.deviceInfoDao()
-                    
-                    // Get existing device info or create new one
-                    val existingInfo = deviceInfoDao.getDeviceInfo().first()
-                    
-                    val deviceInfo = app.sst.pinto.data.DeviceInfo(
-                        id = 1,
-                        currency = data.currency ?: existingInfo?.currency ?: "GBP",
-                        minTransactionLimit = data.minTransactionLimit ?: existingInfo?.minTransactionLimit ?: 10.0,
-                        maxTransactionLimit = data.maxTransactionLimit ?: existingInfo?.maxTransactionLimit ?: 300.0,
-                        transactionFeeType = data.transactionFeeType ?: existingInfo?.transactionFeeType ?: "FIXED",
-                        transactionFeeValue = data.transactionFeeValue ?: existingInfo?.transactionFeeValue ?: 0.50,
-                        yaspaEnabled = data.yaspaEnabled ?: existingInfo?.yaspaEnabled ?: true,
-                        paymentProvider = data.paymentProvider ?: existingInfo?.paymentProvider ?: "nnsmart",
-                        requireCardReceipt = data.requireCardReceipt ?: existingInfo?.requireCardReceipt ?: true
-                    )
-                    
-                    // Use insertDeviceInfo which handles both insert and update (REPLACE strategy)
-                    deviceInfoDao.insertDeviceInfo(deviceInfo)
+                    // Merge into the existing device info or create a new one
+                    val deviceInfo = deviceInfoRepository.update { existingInfo ->
+                        app.sst.pinto.data.DeviceInfo(
+                            id = 1,
+                            currency = data.currency ?: existingInfo?.currency ?: "GBP",
+                            minTransactionLimit = data.minTransactionLimit ?: existingInfo?.minTransactionLimit ?: 10.0,
+                            maxTransactionLimit = data.maxTransactionLimit ?: existingInfo?.maxTransactionLimit ?: 300.0,
+                            transactionFeeType = data.transactionFeeType ?: existingInfo?.transactionFeeType ?: "FIXED",
+                            transactionFeeValue = data.transactionFeeValue ?: existingInfo?.transactionFeeValue ?: 0.50,
+                            yaspaEnabled = data.yaspaEnabled ?: existingInfo?.yaspaEnabled ?: true,
+                            paymentProvider = data.paymentProvider ?: existingInfo?.paymentProvider ?: "nnsmart",
+                            requireCardReceipt = data.requireCardReceipt ?: existingInfo?.requireCardReceipt ?: true
+                        )
+                    }
                     
                     Log.d(TAG, "Device configuration saved: provider=${deviceInfo.paymentProvider}, yaspaEnabled=${deviceInfo.yaspaEnabled}")
+
+                    // Re-quote the offered amounts, including on a screen that is already showing
+                    _amountQuotes.value = _amountQuotes.value.quotedWith(deviceInfo)
                 } catch (e: Exception) {
                     Log.e(TAG, "Error saving device configuration", e)
                 }
@@ -2130,17 +2335,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 
                 Log.d(TAG, "Sending device IP address: $ipAddress")
                 
-                val messageJson = """
-                    {
-                        "messageType": "DEVICE_INFO",
-                        "screen": "DEVICE_IP",
-                        "data": {
-                            "deviceIpAddress": "$ipAddress"
-                        },
-                        "transactionId": "$txId",
-                        "timestamp": ${System.currentTimeMillis()}
-                    }
-                """.trimIndent()
+                val messageJson = MessageEncoder.encode(DeviceDetailsMessage.ipAddress(txId, ipAddress))
                 
                 socketManager.sendMessage(messageJson)
             } catch (e: Exception) {
@@ -2163,17 +2358,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 
                 Log.d(TAG, "Sending device serial number: $serialNumber")
                 
-                val messageJson = """
-                    {
-                        "messageType": "DEVICE_INFO",
-                        "screen": "DEVICE_SERIAL",
-                        "data": {
-                            "deviceSerialNumber": "$serialNumber"
-                        },
-                        "transactionId": "$txId",
-                        "timestamp": ${System.currentTimeMillis()}
-                    }
-                """.trimIndent()
+                val messageJson = MessageEncoder.encode(DeviceDetailsMessage.serialNumber(txId, serialNumber))
                 
                 socketManager.sendMessage(messageJson)
             } catch (e: Exception) {
@@ -2197,26 +2382,19 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 if (lastSale == null) {
                     Log.e(TAG, "Cannot process refund/reversal: No successful sale transaction found")
                     // Send error response
-                    val errorResponse = """
-                        {
-                            "messageType": "REVERSAL_RESULT",
-                            "screen": "FAILED",
-                            "data": {
-                                "errorCode": "NO_SALE_FOUND",
-                                "errorMessage": "No successful sale transaction found to reverse",
-                                "paymentDetails": {}
-                            },
-                            "transactionId": "${message.transactionId}",
-                            "timestamp": ${System.currentTimeMillis()}
-                        }
-                    """.trimIndent()
+                    val errorResponse = MessageEncoder.encode(
+                        ReversalResultMessage.notAttempted(
+                            transactionId = message.transactionId,
+                            errorCode = "NO_SALE_FOUND",
+                            errorMessage = "No successful sale transaction found to reverse"
+                        )
+                    )
                     socketManager.sendMessage(errorResponse)
                     return@launch
                 }
                 
                 // Get payment provider
-                val database = AppDatabase.getDatabase(getApplication())
-                val deviceInfo = database.deviceInfoDao().getDeviceInfo().first()
+                val deviceInfo = deviceInfoRepository.get()
                 val paymentProvider = deviceInfo?.paymentProvider?.lowercase() ?: "nnsmart"
                 
                 // Get transaction details from message or use last successful sale.
@@ -2253,9 +2431,9 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 _isScreensaverVisible.value = false
                 
                 // Show refund processing screen
-                _screenState.value = PaymentScreenState.RefundProcessing(
+                stateMachine.fire(PaymentEvent.REFUND_STARTED, PaymentScreenState.RefundProcessing(
                     errorMessage = "Processing refund..."
-                )
+                ))
                 
                 val amountFormatted = String.format("%.2f", reversalAmount.toDouble())
                 // Generate a unique reversal reference (don't double-prefix if transactionId already has REVERSAL_)
@@ -2300,27 +2478,19 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                 }
                 
                 // Send reversal result to server
-                val reversalResultJson = """
-                    {
-                        "messageType": "REVERSAL_RESULT",
-                        "screen": "${if (reversalResult.success) "SUCCESS" else "FAILED"}",
-                        "data": {
-                            "errorCode": ${if (reversalResult.resultCode != null) "\"${reversalResult.resultCode}\"" else "null"},
-                            "errorMessage": ${if (reversalResult.message != null) "\"${reversalResult.message}\"" else "null"},
-                            "paymentDetails": {
-                                "Result": "${reversalResult.resultCode ?: ""}",
-                                "BankResultCode": "${reversalResult.bankResultCode ?: ""}",
-                                "Message": "${reversalResult.message ?: ""}",
-                                "RequesterTransRefNum": "$reversalRef",
-                                "OriginalRequesterTransRefNum": "$originalRequesterRef"
-                            },
-                            "originalTransactionId": "$originalTransactionId",
-                            "reversalAmount": $reversalAmount
-                        },
-                        "transactionId": "${message.transactionId}",
-                        "timestamp": ${System.currentTimeMillis()}
-                    }
-                """.trimIndent()
+                val reversalResultJson = MessageEncoder.encode(
+                    ReversalResultMessage(
+                        success = reversalResult.success,
+                        transactionId = message.transactionId,
+                        resultCode = reversalResult.resultCode,
+                        message = reversalResult.message,
+                        bankResultCode = reversalResult.bankResultCode,
+                        requesterTransRefNum = reversalRef,
+                        originalRequesterTransRefNum = originalRequesterRef,
+                        originalTransactionId = originalTransactionId,
+                        reversalAmount = reversalAmount
+                    )
+                )
                 
                 socketManager.sendMessage(reversalResultJson)
                 
@@ -2331,21 +2501,20 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                     // Clear pending ticket-print recovery marker so a future
                     // disconnect/restart cannot re-target this already
                     // reversed transaction.
-                    clearPendingTicketPrintTransaction()
-                    clearPendingRecoveryTransaction()
+                    clearPendingTicketPrintTransaction(originalTransactionId)
+                    clearPendingRecoveryTransaction(originalTransactionId)
                     
                     // Ensure screensaver is hidden to show success screen
                     _isScreensaverVisible.value = false
                     timeoutManager.recordUserInteraction() // Reset timeout timer
                     
                     // Show success screen briefly, then return to amount selection
-                    _screenState.value = PaymentScreenState.TransactionSuccess(showReceipt = false)
+                    stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.TransactionSuccess(showReceipt = false))
                     _isOnAmountScreen.value = false
                     Log.d(TAG, "Screen state changed to TransactionSuccess after reversal")
                     
                     // After showing success, automatically request initial screen from server
-                    viewModelScope.launch {
-                        delay(3000) // Show success for 3 seconds
+                    stateMachine.after(TimerSite.REFUND_SUCCESS, currentTransactionId) {
                         Log.d(TAG, "Requesting initial screen after successful reversal")
                         requestInitialScreen()
                     }
@@ -2356,35 +2525,26 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
                     timeoutManager.recordUserInteraction() // Reset timeout timer
                     
                     // Show failed screen, then return to amount selection
-                    _screenState.value = PaymentScreenState.TransactionFailed(
+                    stateMachine.fire(PaymentEvent.REVERSAL_COMPLETED, PaymentScreenState.TransactionFailed(
                         errorMessage = reversalResult.message ?: "Reversal failed"
-                    )
+                    ))
                     _isOnAmountScreen.value = false
                     Log.d(TAG, "Screen state changed to TransactionFailed after reversal")
                     
-                    // Auto-return to amount selection after 4 seconds
-                    viewModelScope.launch {
-                        delay(4000)
-                        requestInitialScreen()
-                    }
+                    // Auto-return to amount selection
+                    stateMachine.after(TimerSite.FAILED_RESULT, currentTransactionId) { requestInitialScreen() }
                 }
                 
             } catch (e: Exception) {
                 Log.e(TAG, "Error processing refund/reversal request", e)
                 // Send error response
-                val errorResponse = """
-                    {
-                        "messageType": "REVERSAL_RESULT",
-                        "screen": "FAILED",
-                        "data": {
-                            "errorCode": "EXCEPTION",
-                            "errorMessage": "Error processing reversal: ${e.message}",
-                            "paymentDetails": {}
-                        },
-                        "transactionId": "${message.transactionId}",
-                        "timestamp": ${System.currentTimeMillis()}
-                    }
-                """.trimIndent()
+                val errorResponse = MessageEncoder.encode(
+                    ReversalResultMessage.notAttempted(
+                        transactionId = message.transactionId,
+                        errorCode = "EXCEPTION",
+                        errorMessage = "Error processing reversal: ${e.message}"
+                    )
+                )
                 socketManager.sendMessage(errorResponse)
             }
         }
@@ -2394,5 +2554,7 @@ class PaymentViewModel(application: Application) : AndroidViewModel(application)
         super.onCleared()
         Log.d(TAG, "ViewModel being cleared, canceling timers")
         timeoutManager.cancelTimers()
+        stateMachine.cancelAllTimers()
+        MediaPrefetcher.setIdle(false)
     }
 }
\ No newline at end of file
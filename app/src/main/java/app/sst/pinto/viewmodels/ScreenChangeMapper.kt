@@ -0,0 +1,51 @@
+package app.sst.pinto.viewmodels
+
+import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.data.models.SocketMessage
+
+/**
+ * Pure mapping from a SCREEN_CHANGE message to the screen state it shows.
+ *
+ * Depends only on the message, so it runs on the background decode stage;
+ * [PaymentViewModel] then just publishes the result on the main thread.
+ * Screens whose state depends on view-model state or needs I/O
+ * (INFO_SCREEN, RECEIPT_QUESTION, PAYMENT_METHOD) and invalid payloads map
+ * to null.
+ */
+internal object ScreenChangeMapper {
+
+    fun targetState(message: SocketMessage): PaymentScreenState? {
+        val data = message.data
+        return when (message.screen) {
+            "AMOUNT_SELECT" -> {
+                if (data?.amounts != null && data.currency != null) {
+                    PaymentScreenState.AmountSelect(
+                        amounts = data.amounts,
+                        currency = data.currency,
+                        showOtherOption = data.showOtherOption ?: true
+                    )
+                } else {
+                    null
+                }
+            }
+            "TIMEOUT" -> PaymentScreenState.Timeout
+            "KEYPAD" -> PaymentScreenState.KeypadEntry(
+                currency = data?.currency ?: "£",
+                minAmount = 10, // Default
+                maxAmount = 300 // Default
+            )
+            "QR_CODE" -> PaymentScreenState.QrCodeDisplay(paymentUrl = data?.paymentUrl ?: "")
+            "PROCESSING" -> PaymentScreenState.Processing
+            "SUCCESS" -> PaymentScreenState.TransactionSuccess(showReceipt = true)
+            "FAILED" -> PaymentScreenState.TransactionFailed(errorMessage = data?.errorMessage)
+            "LIMIT_ERROR" -> PaymentScreenState.LimitError(errorMessage = data?.errorMessage ?: "Limit exceeded")
+            "PRINT_TICKET" -> PaymentScreenState.PrintingTicket
+            "COLLECT_TICKET" -> PaymentScreenState.CollectTicket
+            "THANK_YOU" -> PaymentScreenState.ThankYou
+            "REFUND_PROCESSING" -> PaymentScreenState.RefundProcessing(errorMessage = data?.errorMessage)
+            "PRINTER_ERROR" -> PaymentScreenState.DeviceError(errorMessage = data?.errorMessage ?: "Printer error occurred")
+            "DEVICE_ERROR" -> PaymentScreenState.DeviceError(errorMessage = data?.errorMessage ?: "Unknown device error")
+            else -> null
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package app.sst.pinto.network
+
+/*
+ * The string-template builders PaymentViewModel used before MessageEncoder.
+ * Kept verbatim as the baseline for MessageEncoderTest's wire-shape
+ * checks and ResultJsonBenchmark's allocation comparison; not used by the
+ * app. Lives in src/sharedTest, which both test source sets compile.
+ */
+
+/**
+ * Build a PAYMENT_RESULT JSON matching the server's expected contract.
+ */
+internal fun buildPaymentResultJson(
+    success: Boolean,
+    transactionId: String,
+    resultCode: String?,
+    message: String?,
+    bankResultCode: String? = null,
+    timestamp: Long = System.currentTimeMillis()
+): String {
+    val screen = if (success) "SUCCESS" else "FAILED"
+    val errCodeJson = if (resultCode != null) "\"$resultCode\"" else "null"
+    val errMsgJson = if (message != null) "\"${message.replace("\"", "\\\"")}\"" else "null"
+    return """
+        {
+            "messageType": "PAYMENT_RESULT",
+            "screen": "$screen",
+            "data": {
+                "errorCode": $errCodeJson,
+                "errorMessage": $errMsgJson,
+                "paymentDetails": {
+                    "Result": "${resultCode ?: ""}",
+                    "BankResultCode": "${bankResultCode ?: ""}",
+                    "Message": "${(message ?: "").replace("\"", "\\\"")}",
+                    "RequesterTransRefNum": "$transactionId"
+                }
+            },
+            "transactionId": "$transactionId",
+            "timestamp": $timestamp
+        }
+    """.trimIndent()
+}
+
+/**
+ * Build a REVERSAL_RESULT JSON for any reversal/cancellation outcome.
+ */
+internal fun buildReversalResultJson(
+    success: Boolean,
+    transactionId: String,
+    resultCode: String?,
+    message: String?,
+    requesterTransRefNum: String,
+    originalRequesterTransRefNum: String,
+    originalTransactionId: String,
+    reversalAmount: Int,
+    timestamp: Long = System.currentTimeMillis()
+): String {
+    val screen = if (success) "SUCCESS" else "FAILED"
+    val errCodeJson = if (resultCode != null) "\"$resultCode\"" else "null"
+    val errMsgJson = if (message != null) "\"${message.replace("\"", "\\\"")}\"" else "null"
+    return """
+        {
+            "messageType": "REVERSAL_RESULT",
+            "screen": "$screen",
+            "data": {
+                "errorCode": $errCodeJson,
+                "errorMessage": $errMsgJson,
+                "paymentDetails": {
+                    "Result": "${resultCode ?: ""}",
+                    "BankResultCode": "${if (success) "00" else ""}",
+                    "Message": "${(message ?: "").replace("\"", "\\\"")}",
+                    "RequesterTransRefNum": "$requesterTransRefNum",
+                    "OriginalRequesterTransRefNum": "$originalRequesterTransRefNum"
+                },
+                "originalTransactionId": "$originalTransactionId",
+                "reversalAmount": $reversalAmount
+            },
+            "transactionId": "$transactionId",
+            "timestamp": $timestamp
+        }
+    """.trimIndent()
+}
@@ -0,0 +1,62 @@
+package app.sst.pinto.data.models
+
+import com.squareup.moshi.JsonClass
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+/**
+ * Guards the reflection-free JSON path: every registered message type must be
+ * served by its KSP-generated adapter.
+ */
+class MessageAdaptersTest {
+
+    @Test
+    fun everyRegisteredType_usesGeneratedAdapter() {
+        for (type in MessageAdapters.registeredTypes) {
+            val annotation = type.getAnnotation(JsonClass::class.java)
+            assertNotNull("${type.simpleName} is missing @JsonClass", annotation)
+            assertTrue(
+                "${type.simpleName} must be @JsonClass(generateAdapter = true)",
+                annotation!!.generateAdapter
+            )
+
+            try {
+                Class.forName("${type.name}JsonAdapter")
+            } catch (e: ClassNotFoundException) {
+                fail("No generated adapter for ${type.simpleName}; is moshi-kotlin-codegen running?")
+            }
+
+            // Generated adapters identify themselves as GeneratedJsonAdapter(Type);
+            // Moshi wraps them in a null-safe adapter.
+            val adapter = MessageAdapters.moshi.adapter<Any>(type)
+            assertTrue(
+                "${type.simpleName} fell back to $adapter",
+                adapter.toString().startsWith("GeneratedJsonAdapter(${type.simpleName})")
+            )
+        }
+    }
+
+    @Test
+    fun kotlinReflectIsNotOnTheClasspath() {
+        try {
+            Class.forName("com.squareup.moshi.kotlin.reflect.KotlinJsonAdapterFactory")
+            fail("moshi-kotlin is on the classpath; message parsing could fall back to kotlin-reflect")
+        } catch (expected: ClassNotFoundException) {
+            // Expected
+        }
+    }
+
+    @Test
+    fun warmUp_roundTripsSocketMessage() {
+        MessageAdapters.warmUp()
+
+        val json = """{"messageType":"LIMIT_CHECK_RESULT","screen":"APPROVED","data":{"remaining":420},"transactionId":"tx-1","timestamp":42}"""
+        val message = MessageAdapters.socketMessage.fromJson(json)!!
+        assertEquals("LIMIT_CHECK_RESULT", message.messageType)
+        assertEquals(420, message.data?.remaining)
+        assertEquals(message, MessageAdapters.socketMessage.fromJson(MessageAdapters.socketMessage.toJson(message)))
+    }
+}
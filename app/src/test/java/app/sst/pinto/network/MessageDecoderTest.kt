@@ -0,0 +1,36 @@
+package app.sst.pinto.network
+
+import app.sst.pinto.data.models.MessageAdapters
+import com.squareup.moshi.JsonDataException
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class MessageDecoderTest {
+
+    @Test
+    fun screenChange_matchesFullAdapter() {
+        val json = """{"transactionId":"tx-1","data":{"amounts":[20,40],"currency":"£"},"screen":"AMOUNT_SELECT","messageType":"SCREEN_CHANGE","timestamp":5,"extra":{"a":[1]}}"""
+        assertEquals(MessageAdapters.socketMessage.fromJson(json), MessageDecoder.decode(json))
+    }
+
+    @Test
+    fun unknownOrMissingType_isSkipped() {
+        assertNull(MessageDecoder.decode("""{"messageType":"PING","screen":"X","transactionId":"t","timestamp":1}"""))
+        assertNull(MessageDecoder.decode("""{"screen":"X","transactionId":"t","timestamp":1}"""))
+        assertNull(MessageDecoder.decode("""{"messageType":null,"screen":"X","transactionId":"t","timestamp":1}"""))
+    }
+
+    @Test
+    fun payloadIsNotDecodedForTypesThatIgnoreIt() {
+        val message = MessageDecoder.decode(
+            """{"messageType":"RESTART_APP","screen":"NONE","data":{"errorMessage":"x"},"transactionId":"t","timestamp":1}"""
+        )
+        assertNull(message!!.data)
+    }
+
+    @Test(expected = JsonDataException::class)
+    fun knownTypeMissingEnvelopeField_throws() {
+        MessageDecoder.decode("""{"messageType":"ERROR","screen":"FAILED","timestamp":1}""")
+    }
+}
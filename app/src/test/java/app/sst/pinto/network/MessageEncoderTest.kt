@@ -0,0 +1,94 @@
+package app.sst.pinto.network
+
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.PaymentResultMessage
+import app.sst.pinto.data.models.ReversalResultMessage
+import app.sst.pinto.data.models.SocketMessage
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class MessageEncoderTest {
+
+    private val anyAdapter = MessageAdapters.moshi.adapter(Any::class.java)
+
+    private fun parse(json: String): Any? = anyAdapter.fromJson(json)
+
+    @Test
+    fun paymentResult_matchesLegacyWireShape() {
+        val legacy = buildPaymentResultJson(
+            success = true,
+            transactionId = TX,
+            resultCode = "A",
+            message = "APPROVED",
+            bankResultCode = "00",
+            timestamp = 1L
+        )
+        val encoded = MessageEncoder.encode(
+            PaymentResultMessage(
+                success = true,
+                transactionId = TX,
+                resultCode = "A",
+                message = "APPROVED",
+                bankResultCode = "00",
+                timestamp = 1L
+            )
+        )
+        assertEquals(parse(legacy), parse(encoded))
+    }
+
+    @Test
+    fun reversalResult_matchesLegacyWireShape() {
+        val legacy = buildReversalResultJson(
+            success = false,
+            transactionId = TX,
+            resultCode = "LIMIT_REVERSAL_FAILED",
+            message = null,
+            requesterTransRefNum = "REVERSAL_$TX",
+            originalRequesterTransRefNum = "TRX-1",
+            originalTransactionId = TX,
+            reversalAmount = 20,
+            timestamp = 1L
+        )
+        val encoded = MessageEncoder.encode(
+            ReversalResultMessage(
+                success = false,
+                transactionId = TX,
+                resultCode = "LIMIT_REVERSAL_FAILED",
+                message = null,
+                requesterTransRefNum = "REVERSAL_$TX",
+                originalRequesterTransRefNum = "TRX-1",
+                originalTransactionId = TX,
+                reversalAmount = 20,
+                timestamp = 1L
+            )
+        )
+        assertEquals(parse(legacy), parse(encoded))
+    }
+
+    @Test
+    fun messagesNeedingEscapes_stayValidJson() {
+        val message = "Card \"declined\"\\ issuer\nline2"
+        val encoded = MessageEncoder.encode(
+            PaymentResultMessage(success = false, transactionId = TX, resultCode = "D", message = message)
+        )
+        @Suppress("UNCHECKED_CAST")
+        val data = (parse(encoded) as Map<String, Any?>)["data"] as Map<String, Any?>
+        assertEquals(message, data["errorMessage"])
+    }
+
+    @Test
+    fun consecutiveMessages_areIndependentDocuments() {
+        val first = MessageEncoder.encode(ReversalResultMessage.notAttempted(TX, "NO_SALE_FOUND", "none"))
+        val second = MessageEncoder.encode(SocketMessage(messageType = "USER_ACTION", screen = "AMOUNT_SELECT", data = null, transactionId = TX, timestamp = 1L))
+        assertTrue(first.startsWith("{") && first.endsWith("}"))
+        assertEquals(
+            """{"messageType":"USER_ACTION","screen":"AMOUNT_SELECT","transactionId":"$TX","timestamp":1}""",
+            second
+        )
+    }
+
+    private companion object {
+        const val TX = "c0ffee00-1234-4abc-9def-000000000001"
+    }
+}
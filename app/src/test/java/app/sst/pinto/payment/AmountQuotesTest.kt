@@ -0,0 +1,76 @@
+package app.sst.pinto.payment
+
+import app.sst.pinto.data.DeviceInfo
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Test
+
+class AmountQuotesTest {
+
+    private fun config(feeType: String = "FIXED", feeValue: Double = 0.50, provider: String = "nnsmart") = DeviceInfo(
+        currency = "GBP",
+        minTransactionLimit = 10.0,
+        maxTransactionLimit = 300.0,
+        transactionFeeType = feeType,
+        transactionFeeValue = feeValue,
+        yaspaEnabled = true,
+        paymentProvider = provider
+    )
+
+    @Test
+    fun fixedFee_isExactInMinorUnits() {
+        val quote = AmountQuotes.quote(20, config(feeValue = 0.10))
+        assertEquals(10L, quote.feeMinor)
+        assertEquals(2010L, quote.finalMinor)
+        assertEquals(20, quote.payableAmount)
+        assertNull(quote.limitError)
+    }
+
+    @Test
+    fun percentageFee_roundsHalfUp() {
+        // 2.5% of 2.30 is 5.75p
+        assertEquals(6L, TransactionFees.feeMinor(230, "PERCENTAGE", 2.5))
+        assertEquals(4000L + 100L, AmountQuotes.quote(40, config("PERCENTAGE", 2.5)).finalMinor)
+    }
+
+    @Test
+    fun applyFee_matchesQuotePayableAmount() {
+        for (amount in listOf(10, 20, 55, 300)) {
+            for ((type, value) in listOf("FIXED" to 0.5, "FIXED" to 1.0, "PERCENTAGE" to 3.0, "UNKNOWN" to 2.0)) {
+                assertEquals(
+                    TransactionFees.applyFee(amount, type, value),
+                    AmountQuotes.quote(amount, config(type, value)).payableAmount
+                )
+            }
+        }
+    }
+
+    @Test
+    fun limits_areQuotedUpFront() {
+        val quotes = AmountQuotes.build(listOf(5, 20, 400, 101), config(provider = "mock"))
+        assertEquals("Minimum transaction limit is £10", quotes.getValue(5).limitError)
+        assertEquals("Maximum transaction limit is £300", quotes.getValue(400).limitError)
+        assertEquals("Daily spending limit exceeded", quotes.getValue(101).limitError)
+        assertNull(quotes.getValue(20).limitError)
+    }
+
+    @Test
+    fun missingConfig_usesDefaultLimitsWithoutFee() {
+        val quote = AmountQuotes.quote(20, null)
+        assertEquals(0L, quote.feeMinor)
+        assertEquals(20, quote.payableAmount)
+        assertNull(quote.limitError)
+    }
+
+    @Test
+    fun quoteTable_requotesOnlyForAnotherConfig() {
+        val table = AmountQuotes.table(listOf(20, 40), config(feeValue = 0.50))
+        assertSame(table, table.quotedWith(config(feeValue = 0.50)))
+
+        val requoted = table.quotedWith(config(feeValue = 1.00))
+        assertEquals(listOf(20, 40), requoted.amounts)
+        assertEquals(2100L, requoted.quotes.getValue(20).finalMinor)
+        assertEquals(emptyMap<Int, AmountQuote>(), AmountQuotes.table(listOf(20), null).quotes)
+    }
+}
@@ -0,0 +1,178 @@
+package app.sst.pinto.utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+
+class MediaCacheTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private var now = 1_000L
+
+    private fun cache(budget: Long = 10_000, active: String? = null) =
+        MediaCache(folder.root, budget, activeName = active, clock = { now })
+
+    private fun MediaCache.download(name: String, bytes: Int, content: Byte = name.hashCode().toByte()): MediaCache.Entry {
+        val file = fileFor(name).apply { writeBytes(ByteArray(bytes) { content }) }
+        return put(name, "https://assets/$name", Validators("\"$name\"", null), Sha256.of(file))
+    }
+
+    @Test
+    fun overBudget_evictsLeastRecentlyPlayed() {
+        val cache = cache(budget = 10_000)
+        cache.download("a.mp4", 4_000)
+        now += 10
+        cache.download("b.mp4", 4_000)
+        now += 10
+        cache.markPlayed("a.mp4")
+        now += 10
+
+        cache.download("c.mp4", 4_000)
+
+        assertNull(cache.get("b.mp4"))
+        assertFalse(cache.fileFor("b.mp4").exists())
+        assertFalse(File(folder.root, "b.mp4.meta").exists())
+        assertNotNull(cache.get("a.mp4"))
+        assertNotNull(cache.get("c.mp4"))
+        assertTrue(cache.totalBytes() <= 10_000)
+    }
+
+    @Test
+    fun evictingExtensionlessAsset_leavesItsNamesakesAlone() {
+        val cache = cache(budget = 10_000)
+        cache.download("video", 4_000)
+        now += 10
+        cache.download("video.mp4", 4_000)
+        now += 10
+
+        cache.download("other.mp4", 4_000)
+
+        assertNull(cache.get("video"))
+        assertNotNull(cache.get("video.mp4"))
+        assertTrue(cache.fileFor("video.mp4").exists())
+        assertTrue(File(folder.root, "video.mp4.meta").exists())
+    }
+
+    @Test
+    fun streamReserve_isKeptFreeOfUnpinnedDownloads() {
+        val cache = cache(budget = 10_000)
+        cache.download("a.mp4", 4_000)
+        now += 10
+        cache.download("b.mp4", 4_000)
+        assertNotNull(cache.get("a.mp4"))
+
+        cache.streamReserveFraction = 0.25
+
+        // 2 500 bytes are kept for streaming, so only one download fits
+        assertEquals(2_500, cache.streamReserveBytes())
+        assertNull(cache.get("a.mp4"))
+        assertNotNull(cache.get("b.mp4"))
+        assertTrue(cache.totalBytes() <= 7_500)
+    }
+
+    @Test
+    fun activeAsset_isNeverEvicted() {
+        val cache = cache(budget = 5_000)
+        cache.download("old.mp4", 3_000)
+        cache.setActive("old.mp4")
+        now += 10
+
+        cache.download("new.mp4", 3_000)
+
+        // The budget only allows one, and the active one stays
+        assertNotNull(cache.get("old.mp4"))
+        assertNull(cache.get("new.mp4"))
+    }
+
+    @Test
+    fun playlistItems_areNeverEvicted() {
+        val cache = MediaCache(folder.root, 8_000, pinnedNames = listOf("a.mp4", "b.mp4"), clock = { now })
+        cache.download("a.mp4", 3_000)
+        now += 10
+        cache.download("b.mp4", 3_000)
+        now += 10
+
+        cache.download("c.mp4", 3_000)
+
+        assertNotNull(cache.get("a.mp4"))
+        assertNotNull(cache.get("b.mp4"))
+        assertNull(cache.get("c.mp4"))
+    }
+
+    @Test
+    fun index_survivesRestart() {
+        val first = cache()
+        first.download("site.mp4", 2_000)
+        now += 50
+        first.markPlayed("site.mp4")
+        File(folder.root, "stray.mp4").writeBytes(ByteArray(100))
+
+        val second = cache(active = "site.mp4")
+
+        val entry = second.get("site.mp4")!!
+        assertEquals("https://assets/site.mp4", entry.url)
+        assertEquals(Validators("\"site.mp4\"", null), entry.validators)
+        assertEquals(now, entry.lastPlayedMillis)
+        assertEquals(1, entry.playCount)
+        assertTrue(second.isPinned("site.mp4"))
+        // Files cached before the index existed are adopted without a URL
+        assertNull(second.get("stray.mp4")!!.url)
+        assertEquals(2, second.entries().size)
+    }
+
+    @Test
+    fun sameContent_isStoredOnce() {
+        val cache = cache()
+        val original = cache.download("charlie.mp4", 3_000, content = 7)
+
+        val duplicate = cache.download("delta.mp4", 3_000, content = 7)
+
+        assertEquals("charlie.mp4", duplicate.aliasOf)
+        assertEquals(original.sha256, duplicate.sha256)
+        assertEquals(cache.fileFor("charlie.mp4"), cache.fileFor("delta.mp4"))
+        assertFalse(File(folder.root, "delta.mp4").exists())
+        assertTrue(cache.totalBytes() < 4_000)
+        // The alias survives a restart
+        assertEquals("charlie.mp4", cache(active = "delta.mp4").get("delta.mp4")!!.aliasOf)
+    }
+
+    @Test
+    fun corruptFile_isQuarantinedWithItsAliases() {
+        val cache = cache()
+        cache.download("charlie.mp4", 3_000, content = 7)
+        cache.download("delta.mp4", 3_000, content = 7)
+        cache.fileFor("charlie.mp4").writeBytes(ByteArray(3_000) { 8 })
+
+        assertFalse(cache.verify("delta.mp4"))
+
+        assertNull(cache.get("charlie.mp4"))
+        assertNull(cache.get("delta.mp4"))
+        assertFalse(File(folder.root, "charlie.mp4").exists())
+        assertEquals(1, File(folder.root, "quarantine").listFiles()!!.size)
+    }
+
+    @Test
+    fun stagedUpdate_countsTowardsBudgetAndIsPromoted() {
+        val cache = cache()
+        cache.download("site.mp4", 2_000)
+        cache.stagedFileFor("site.mp4").writeBytes(ByteArray(3_000))
+        cache.putStaged("site.mp4", Validators("\"v2\"", null))
+
+        assertEquals(Validators("\"v2\"", null), cache.newestValidators("site.mp4"))
+        assertTrue(cache.get("site.mp4")!!.sizeBytes >= 5_000)
+
+        assertTrue(cache.promoteStaged("site.mp4"))
+        assertEquals(3_000L, cache.fileFor("site.mp4").length())
+        assertEquals(Validators("\"v2\"", null), cache.get("site.mp4")!!.validators)
+        assertNull(cache.get("site.mp4")!!.stagedValidators)
+        assertFalse(cache.promoteStaged("site.mp4"))
+    }
+}
@@ -0,0 +1,275 @@
+package app.sst.pinto.utils
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.currentTime
+import kotlinx.coroutines.test.runTest
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okhttp3.mockwebserver.SocketPolicy
+import okio.Buffer
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class ResumableDownloaderTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val server = MockWebServer()
+    private val downloader = ResumableDownloader(OkHttpClient(), retryDelayMillis = 10)
+    private val video = ByteArray(256 * 1024) { (it % 251).toByte() }
+    private val videoSha256 = java.security.MessageDigest.getInstance("SHA-256").digest(video)
+        .joinToString("") { "%02x".format(it) }
+
+    private lateinit var target: File
+
+    @Before
+    fun setUp() {
+        server.start()
+        target = File(folder.root, "screensaver/site.mp4")
+    }
+
+    @After
+    fun tearDown() = server.shutdown()
+
+    /**
+     * Serves [video] with Range support. The first [drops] full responses
+     * disconnect halfway through the body; [etag] is the current version.
+     * Requests numbered in [unavailable] get a 503.
+     */
+    private fun serve(drops: Int = 0, unavailable: Set<Int> = emptySet(), etag: () -> String? = { "\"v1\"" }) {
+        var remainingDrops = drops
+        var requests = 0
+        server.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                if (requests++ in unavailable) return MockResponse().setResponseCode(503)
+                val range = request.getHeader("Range")?.removePrefix("bytes=")?.removeSuffix("-")?.toInt()
+                val ifRange = request.getHeader("If-Range")
+                val response = if (range != null && (ifRange == null || ifRange == etag())) {
+                    MockResponse().setResponseCode(206)
+                        .setHeader("Content-Range", "bytes $range-${video.size - 1}/${video.size}")
+                        .setBody(Buffer().write(video, range, video.size - range))
+                } else {
+                    MockResponse().setBody(Buffer().write(video))
+                }
+                etag()?.let { response.setHeader("ETag", it) }
+                if (remainingDrops > 0) {
+                    remainingDrops--
+                    response.socketPolicy = SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY
+                }
+                return response
+            }
+        }
+    }
+
+    @Test
+    fun interruptedDownload_resumesFromLastByte() = runTest {
+        serve(drops = 1)
+
+        val length = downloader.download(server.url("/site.mp4").toString(), target)!!.length
+
+        assertEquals(video.size.toLong(), length)
+        assertArrayEquals(video, target.readBytes())
+        assertEquals(2, server.requestCount)
+        server.takeRequest()
+        val resume = server.takeRequest()
+        val offset = resume.getHeader("Range")!!.removePrefix("bytes=").removeSuffix("-").toInt()
+        assertTrue(offset > 0)
+        assertEquals("\"v1\"", resume.getHeader("If-Range"))
+        assertFalse(File(target.parentFile, "site.mp4.part").exists())
+    }
+
+    @Test
+    fun interruptedDownload_withoutValidators_startsOver() = runTest {
+        serve(drops = 1, etag = { null })
+
+        val downloaded = downloader.download(server.url("/site.mp4").toString(), target, expectedSha256 = videoSha256)!!
+
+        assertEquals(videoSha256, downloaded.sha256)
+        assertEquals(2, server.requestCount)
+        server.takeRequest()
+        assertNull(server.takeRequest().getHeader("Range"))
+    }
+
+    @Test
+    fun hash_coversResumedDownloadWithoutRereading() = runTest {
+        serve(drops = 2)
+
+        val downloaded = downloader.download(server.url("/site.mp4").toString(), target, expectedSha256 = videoSha256)!!
+
+        assertEquals(videoSha256, downloaded.sha256)
+        assertEquals(3, server.requestCount)
+    }
+
+    @Test
+    fun hashMismatch_isNotMovedToTarget() = runTest {
+        serve()
+
+        val failure = runCatching {
+            downloader.download(server.url("/site.mp4").toString(), target, expectedSha256 = "00".repeat(32))
+        }.exceptionOrNull()
+
+        assertTrue(failure is IntegrityException && !failure.retryable)
+        val integrity = failure as IntegrityException
+        assertEquals(videoSha256, integrity.actualSha256)
+        assertArrayEquals(video, integrity.file.readBytes())
+        assertFalse(target.exists())
+        assertEquals(1, server.requestCount)
+    }
+
+    // 64 KiB/s on the test scheduler's virtual clock
+    private fun TestScope.throttledDownloader() = ResumableDownloader(
+        OkHttpClient(),
+        retryDelayMillis = 10,
+        throttle = BandwidthThrottle({ 64L * 1024 }, { testScheduler.currentTime * 1_000_000 })
+    )
+
+    @Test
+    fun throttledDownload_keepsToTheRate() = runTest {
+        serve()
+
+        throttledDownloader().download(server.url("/site.mp4").toString(), target)
+
+        assertArrayEquals(video, target.readBytes())
+        // One second's worth up front, the other 192 KiB at 64 KiB/s
+        assertTrue("took ${currentTime}ms", currentTime in 3_000L..3_200L)
+    }
+
+    @Test
+    fun cancelledDownload_resumesFromPartFile() = runTest {
+        serve()
+        val url = server.url("/site.mp4").toString()
+        val part = File(target.parentFile, "site.mp4.part")
+
+        val paused = launch { throttledDownloader().download(url, target) }
+        advanceTimeBy(1_500)
+        paused.cancelAndJoin()
+
+        val offset = part.length()
+        assertTrue(offset in 1 until video.size)
+        assertFalse(target.exists())
+
+        val downloaded = downloader.download(url, target, expectedSha256 = videoSha256)!!
+
+        assertEquals(videoSha256, downloaded.sha256)
+        assertArrayEquals(video, target.readBytes())
+        assertEquals(2, server.requestCount)
+        server.takeRequest()
+        assertEquals("bytes=$offset-", server.takeRequest().getHeader("Range"))
+    }
+
+    @Test
+    fun cancelledDownload_stopsABlockedReadAtOnce() = runBlocking {
+        // One KiB every 5 s: each read blocks far longer than the pause may take
+        server.enqueue(MockResponse().setBody(Buffer().write(video)).throttleBody(1024, 5, TimeUnit.SECONDS))
+        val part = File(target.parentFile, "site.mp4.part")
+
+        val paused = launch(Dispatchers.IO) { downloader.download(server.url("/site.mp4").toString(), target) }
+        delay(500)
+        val startNanos = System.nanoTime()
+        paused.cancelAndJoin()
+
+        val tookMillis = (System.nanoTime() - startNanos) / 1_000_000
+        assertTrue("pause took ${tookMillis}ms", tookMillis < 1_000)
+        assertFalse(target.exists())
+        assertTrue(part.length() < video.size)
+    }
+
+    @Test
+    fun partialFile_isNeverVisibleAsTheVideo() = runTest {
+        serve(drops = 1, unavailable = setOf(1))
+        val noRetry = ResumableDownloader(OkHttpClient(), maxAttemptsWithoutProgress = 1, retryDelayMillis = 10)
+
+        val failure = runCatching { noRetry.download(server.url("/site.mp4").toString(), target) }.exceptionOrNull()
+
+        assertTrue(failure is java.io.IOException)
+        assertFalse(target.exists())
+        assertTrue(File(target.parentFile, "site.mp4.part").length() in 1 until video.size)
+    }
+
+    @Test
+    fun resumeAfterRestart_restartsWhenServerFileChanged() = runTest {
+        var version = "\"v1\""
+        serve(drops = 1, unavailable = setOf(1), etag = { version })
+        val url = server.url("/site.mp4").toString()
+        val oneShot = ResumableDownloader(OkHttpClient(), maxAttemptsWithoutProgress = 1, retryDelayMillis = 10)
+        runCatching { oneShot.download(url, target) }
+        assertFalse(target.exists())
+        // Like an app restart mid-download; meanwhile the server published a new file
+        version = "\"v2\""
+
+        downloader.download(url, target)
+
+        // If-Range did not match, so the whole new file replaced the stale part
+        assertArrayEquals(video, target.readBytes())
+        assertEquals(3, server.requestCount)
+        server.takeRequest()
+        server.takeRequest()
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-Range"))
+    }
+
+    @Test
+    fun missingFile_isNotRetried() = runTest {
+        server.enqueue(MockResponse().setResponseCode(404))
+
+        val failure = runCatching { downloader.download(server.url("/nope.mp4").toString(), target) }.exceptionOrNull()
+
+        assertTrue(failure is DownloadException && !failure.retryable)
+        assertEquals(1, server.requestCount)
+        assertFalse(target.exists())
+    }
+
+    @Test
+    fun conditionalDownload_notModifiedLeavesTargetAlone() = runTest {
+        target.parentFile!!.mkdirs()
+        target.writeText("old")
+        server.enqueue(MockResponse().setResponseCode(304))
+        server.enqueue(MockResponse().setBody(Buffer().write(video)).setHeader("ETag", "\"v2\""))
+        val url = server.url("/site.mp4").toString()
+        val held = Validators("\"v1\"", "Tue, 01 Sep 2026 10:00:00 GMT")
+
+        assertNull(downloader.download(url, target, ifChanged = held))
+        assertEquals("old", target.readText())
+        val check = server.takeRequest()
+        assertEquals("\"v1\"", check.getHeader("If-None-Match"))
+        assertEquals("Tue, 01 Sep 2026 10:00:00 GMT", check.getHeader("If-Modified-Since"))
+
+        val changed = downloader.download(url, target, ifChanged = held)!!
+        assertEquals(Validators("\"v2\"", null), changed.validators)
+        assertArrayEquals(video, target.readBytes())
+    }
+
+    @Test
+    fun contentLength_isAHeadRequest() = runTest {
+        server.enqueue(MockResponse().setHeader("Content-Length", video.size))
+        server.enqueue(MockResponse().setResponseCode(404))
+        val url = server.url("/site.mp4").toString()
+
+        assertEquals(video.size.toLong(), downloader.contentLength(url))
+        assertEquals("HEAD", server.takeRequest().method)
+
+        val failure = runCatching { downloader.contentLength(url) }.exceptionOrNull()
+        assertTrue(failure is DownloadException && !failure.retryable)
+    }
+}
@@ -0,0 +1,174 @@
+package app.sst.pinto.utils
+
+import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.data.models.TimeoutPolicyConfig
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class TimeoutManagerTest {
+
+    private fun TestScope.manager() =
+        TimeoutManager(StandardTestDispatcher(testScheduler), clock = { testScheduler.currentTime })
+
+    @Test
+    fun firesOnceAfterInactivity() = runTest {
+        val manager = manager()
+        var fired = 0
+        manager.setup { fired++ }
+
+        testScheduler.advanceTimeBy(29_999)
+        testScheduler.runCurrent()
+        assertEquals(0, fired)
+
+        testScheduler.advanceTimeBy(1)
+        testScheduler.runCurrent()
+        assertEquals(1, fired)
+        assertTrue(manager.timeoutOccurred.value)
+
+        // Stays disarmed until the next interaction
+        testScheduler.advanceTimeBy(120_000)
+        testScheduler.runCurrent()
+        assertEquals(1, fired)
+    }
+
+    @Test
+    fun touchesMoveTheDeadline() = runTest {
+        val manager = manager()
+        var fired = 0
+        manager.setup { fired++ }
+
+        // Keypad entry: a touch every 200ms for a minute
+        repeat(300) {
+            testScheduler.advanceTimeBy(200)
+            testScheduler.runCurrent()
+            manager.recordUserInteraction()
+        }
+        assertEquals(0, fired)
+
+        testScheduler.advanceTimeBy(30_000)
+        testScheduler.runCurrent()
+        assertEquals(1, fired)
+
+        manager.recordUserInteraction()
+        assertFalse(manager.timeoutOccurred.value)
+        testScheduler.advanceTimeBy(30_000)
+        testScheduler.runCurrent()
+        assertEquals(2, fired)
+    }
+
+    @Test
+    fun pausedTimerDoesNotFireAndResumesWithFullDuration() = runTest {
+        val manager = manager()
+        var fired = 0
+        manager.setup { fired++ }
+
+        testScheduler.advanceTimeBy(20_000)
+        manager.pauseTimersForScreensaver()
+        testScheduler.advanceTimeBy(60_000)
+        testScheduler.runCurrent()
+        assertEquals(0, fired)
+
+        manager.resumeTimersAfterScreensaver()
+        testScheduler.advanceTimeBy(29_000)
+        testScheduler.runCurrent()
+        assertEquals(0, fired)
+        testScheduler.advanceTimeBy(1_000)
+        testScheduler.runCurrent()
+        assertEquals(1, fired)
+
+        manager.cancelTimers()
+    }
+
+    @Test
+    fun warningPrecedesTheAction() = runTest {
+        val manager = manager()
+        val actions = mutableListOf<TimeoutAction>()
+        manager.setup { actions += it.action }
+        manager.applyPolicy(TimeoutPolicy(10_000, 3_000, TimeoutAction.CANCEL_PAYMENT))
+
+        testScheduler.advanceTimeBy(7_001)
+        testScheduler.runCurrent()
+        assertTrue(manager.warningActive.value)
+
+        // A touch during the warning hides it and restarts the idle time
+        manager.recordUserInteraction()
+        assertFalse(manager.warningActive.value)
+        testScheduler.advanceTimeBy(9_999)
+        testScheduler.runCurrent()
+        assertTrue(actions.isEmpty())
+
+        testScheduler.advanceTimeBy(1_001)
+        testScheduler.runCurrent()
+        assertEquals(listOf(TimeoutAction.CANCEL_PAYMENT), actions)
+        assertFalse(manager.warningActive.value)
+
+        manager.cancelTimers()
+    }
+
+    @Test
+    fun newScreenRearmsUnlessPaused() = runTest {
+        val manager = manager()
+        var fired = 0
+        manager.setup { fired++ }
+        manager.applyPolicy(TimeoutPolicy(5_000, 0, TimeoutAction.RETURN_TO_START))
+
+        testScheduler.advanceTimeBy(5_001)
+        testScheduler.runCurrent()
+        assertEquals(1, fired)
+
+        // The server's next screen gets its own timeout without a touch
+        manager.applyPolicy(TimeoutPolicy(5_000, 0, TimeoutAction.RETURN_TO_START))
+        testScheduler.advanceTimeBy(5_001)
+        testScheduler.runCurrent()
+        assertEquals(2, fired)
+
+        // Screens that change under the screensaver do not
+        manager.pauseTimersForScreensaver()
+        manager.applyPolicy(TimeoutPolicy(5_000, 0, TimeoutAction.RETURN_TO_START))
+        manager.applyPolicy(TimeoutPolicy.NEVER)
+        testScheduler.advanceTimeBy(60_000)
+        testScheduler.runCurrent()
+        assertEquals(2, fired)
+
+        manager.cancelTimers()
+    }
+
+    @Test
+    fun serverPoliciesOverrideDefaultsPerScreen() {
+        try {
+            TimeoutPolicies.configure(
+                mapOf(
+                    "KeypadEntry" to TimeoutPolicyConfig(idleMillis = 20_000, warningMillis = 5_000, action = "cancel_payment"),
+                    "default" to TimeoutPolicyConfig(idleMillis = 60_000, action = "RETURN_TO_START"),
+                    "ThankYou" to TimeoutPolicyConfig(idleMillis = 0, action = "RETURN_TO_START"),
+                    "Processing" to TimeoutPolicyConfig(idleMillis = 1_000, action = "REBOOT")
+                )
+            )
+
+            assertEquals(
+                TimeoutPolicy(20_000, 5_000, TimeoutAction.CANCEL_PAYMENT),
+                TimeoutPolicies.policyFor(PaymentScreenState.KeypadEntry("£", 10, 300))
+            )
+            // Built-in amount screen policy is kept
+            assertEquals(
+                TimeoutAction.SCREENSAVER,
+                TimeoutPolicies.policyFor(PaymentScreenState.AmountSelect(listOf(20), "£", true)).action
+            )
+            // Invalid entries fall back to "default"
+            assertEquals(TimeoutAction.RETURN_TO_START, TimeoutPolicies.policyFor(PaymentScreenState.ThankYou).action)
+            // Neither "default" nor their own entry applies while a payment is in flight
+            assertEquals(TimeoutPolicy.NEVER, TimeoutPolicies.policyFor(PaymentScreenState.Processing))
+            assertEquals(TimeoutPolicy.NEVER, TimeoutPolicies.policyFor(PaymentScreenState.PrintingTicket))
+        } finally {
+            TimeoutPolicies.reset()
+        }
+        assertEquals(TimeoutPolicy.NEVER, TimeoutPolicies.policyFor(PaymentScreenState.Processing))
+    }
+}
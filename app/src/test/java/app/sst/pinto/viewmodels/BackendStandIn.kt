@@ -0,0 +1,83 @@
+package app.sst.pinto.viewmodels
+
+import app.sst.pinto.data.models.MessageAdapters
+import okhttp3.Response
+import okhttp3.WebSocket
+import okhttp3.WebSocketListener
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Local WebSocket stand-in for the backend, for soak tests.
+ *
+ * It plays the server side of the card-check-first flow: it configures
+ * the kiosk for the mock provider without YASPA, offers an amount screen
+ * and answers CARD_CHECK_RESULT with an approval. After a PAYMENT_RESULT
+ * it walks the ticket screens to THANK_YOU and offers the next amount
+ * screen, and a RESET gets a fresh amount screen. It stops after
+ * [transactions] amount screens and counts [finished] down.
+ */
+class BackendStandIn(private val transactions: Int) : WebSocketListener() {
+    private val server = MockWebServer()
+    private val started = AtomicInteger(0)
+
+    val finished = CountDownLatch(1)
+
+    /** Amount screens sent so far. */
+    val transactionsStarted: Int get() = started.get()
+
+    fun start(): String {
+        server.enqueue(MockResponse().withWebSocketUpgrade(this))
+        server.start()
+        return "ws://${server.hostName}:${server.port}"
+    }
+
+    fun shutdown() {
+        server.shutdown()
+    }
+
+    override fun onOpen(webSocket: WebSocket, response: Response) {
+        webSocket.send(frame("DEVICE_INFO", "DEVICE_INFO", "config", DEVICE_INFO))
+        offerAmounts(webSocket)
+    }
+
+    override fun onMessage(webSocket: WebSocket, text: String) {
+        val message = MessageAdapters.socketMessage.fromJson(text) ?: return
+        val tx = message.transactionId
+        when (message.messageType) {
+            "CARD_CHECK_RESULT" -> webSocket.send(frame("LIMIT_CHECK_RESULT", "APPROVED", tx))
+            "PAYMENT_RESULT" -> {
+                if (message.screen == "SUCCESS") {
+                    webSocket.send(frame("SCREEN_CHANGE", "PRINT_TICKET", tx))
+                    webSocket.send(frame("SCREEN_CHANGE", "COLLECT_TICKET", tx))
+                }
+                webSocket.send(frame("SCREEN_CHANGE", "THANK_YOU", tx))
+                offerAmounts(webSocket)
+            }
+            "USER_ACTION" -> if (message.screen == "RESET") offerAmounts(webSocket)
+        }
+    }
+
+    private fun offerAmounts(webSocket: WebSocket) {
+        val n = started.getAndIncrement()
+        if (n >= transactions) {
+            finished.countDown()
+            return
+        }
+        webSocket.send(
+            frame("SCREEN_CHANGE", "AMOUNT_SELECT", "tx-$n", """{"amounts":[20,40,60],"currency":"£","showOtherOption":true}""")
+        )
+    }
+
+    private fun frame(type: String, screen: String, tx: String, data: String = "null") =
+        """{"messageType":"$type","screen":"$screen","data":$data,"transactionId":"$tx","timestamp":${System.currentTimeMillis()}}"""
+
+    private companion object {
+        const val DEVICE_INFO =
+            """{"currency":"GBP","minTransactionLimit":10.0,"maxTransactionLimit":300.0,""" +
+                """"transactionFeeType":"FIXED","transactionFeeValue":0.5,"yaspaEnabled":false,""" +
+                """"paymentProvider":"mock","requireCardReceipt":true}"""
+    }
+}
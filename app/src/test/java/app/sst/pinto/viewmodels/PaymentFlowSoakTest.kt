@@ -0,0 +1,252 @@
+package app.sst.pinto.viewmodels
+
+import android.app.Application
+import androidx.lifecycle.ViewModel
+import androidx.lifecycle.ViewModelProvider
+import androidx.lifecycle.ViewModelStore
+import androidx.lifecycle.viewModelScope
+import app.sst.pinto.config.ConfigManager
+import app.sst.pinto.data.TransactionJournal
+import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.network.SocketManager
+import app.sst.pinto.payment.MockPaymentManager
+import app.sst.pinto.utils.TimeoutManager
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import org.junit.After
+import org.junit.Assert.assertTrue
+import org.junit.Assume.assumeTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.lang.management.ManagementFactory
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import javax.management.ObjectName
+
+/**
+ * Long-running soak of the payment flow: the real [PaymentViewModel] on
+ * the real [SocketManager] against a local [BackendStandIn], with the mock
+ * terminal and no YASPA (under Robolectric, which provides Room and the
+ * shared preferences).
+ *
+ * Skipped unless a transaction count is given:
+ *
+ *     ./gradlew testDebugUnitTest --tests '*PaymentFlowSoakTest' -PsoakTransactions=100000
+ *
+ * The mock terminal and the timed screens between the amount tap and the
+ * payment are cut to nothing, so the flow runs as fast as the socket and
+ * the view model allow. Heap after GC, jobs under the view model's scope,
+ * retained handler objects and threads are sampled as it runs. After a
+ * warm-up it fails on sustained growth, then prints bytes allocated per
+ * transaction.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+@RunWith(RobolectricTestRunner::class)
+class PaymentFlowSoakTest {
+
+    private val transactions = System.getProperty("soakTransactions")?.toIntOrNull() ?: 0
+
+    private val application: Application get() = RuntimeEnvironment.getApplication()
+    private val main = Executors.newSingleThreadExecutor { Thread(it, "soak-main") }
+    private val mainDispatcher = main.asCoroutineDispatcher()
+    private val customerScope = CoroutineScope(SupervisorJob() + mainDispatcher)
+    private val store = ViewModelStore()
+
+    @Before
+    fun setUp() {
+        assumeTrue("Set -PsoakTransactions to run the soak test", transactions > 0)
+        Dispatchers.setMain(mainDispatcher)
+        MockPaymentManager.latencyScale = 0.0
+        ConfigManager.getInstance(application).saveTimerDurations(SHORT_TIMERS)
+    }
+
+    @After
+    fun tearDown() {
+        if (transactions <= 0) return
+        SocketManager.getInstance().disconnect()
+        customerScope.cancel()
+        runBlocking(mainDispatcher) { store.clear() }
+        main.shutdown()
+        Dispatchers.resetMain()
+        MockPaymentManager.latencyScale = 1.0
+        ConfigManager.getInstance(application).saveTimerDurations(SHORT_TIMERS.mapValues { 0L })
+    }
+
+    private data class Sample(
+        val transactions: Int,
+        val heapBytes: Long,
+        val jobs: Int,
+        val handlers: Int,
+        val threads: Int,
+        val allocatedBytes: Long
+    )
+
+    @Test
+    fun soak() {
+        val backend = BackendStandIn(transactions)
+        val viewModel = createViewModel()
+        val customer = Customer(viewModel)
+        val sampleEvery = maxOf(1, transactions / SAMPLES)
+        val samples = ArrayList<Sample>()
+        try {
+            val url = backend.start()
+            customer.start()
+            customerScope.launch { viewModel.connectToBackend(url) }
+            var next = sampleEvery
+            while (!backend.finished.await(10, TimeUnit.MILLISECONDS)) {
+                if (backend.transactionsStarted >= next) {
+                    samples += sample(backend.transactionsStarted, viewModel)
+                    next += sampleEvery
+                }
+            }
+            samples += sample(transactions, viewModel)
+        } finally {
+            backend.shutdown()
+        }
+
+        samples.forEach { println(it) }
+        val steady = samples.drop(samples.size * WARM_UP_PERCENT / 100)
+        val first = steady.first()
+        val last = steady.last()
+        val perTransaction = (last.allocatedBytes - first.allocatedBytes) / maxOf(1, last.transactions - first.transactions)
+        val retainedPerTransaction = slope(steady.map { it.transactions.toDouble() to it.heapBytes.toDouble() })
+        println(
+            "Soak: $transactions transactions, ~$perTransaction bytes allocated per transaction, " +
+                "heap slope ${"%.1f".format(retainedPerTransaction)} bytes/transaction, " +
+                "jobs ${first.jobs}->${last.jobs}, handlers ${first.handlers}->${last.handlers}, " +
+                "threads ${first.threads}->${last.threads}, failed flows ${customer.failures}"
+        )
+
+        assertTrue("Retained heap grows ${retainedPerTransaction} bytes/transaction", retainedPerTransaction < MAX_RETAINED_BYTES_PER_TX)
+        assertTrue("View-model jobs grew ${first.jobs} -> ${last.jobs}", steady.maxOf { it.jobs } - first.jobs <= MAX_JOB_GROWTH)
+        assertTrue("Retained handlers grew ${first.handlers} -> ${last.handlers}", steady.maxOf { it.handlers } - first.handlers <= MAX_HANDLER_GROWTH)
+        assertTrue("Threads grew ${first.threads} -> ${last.threads}", steady.maxOf { it.threads } - first.threads <= MAX_THREAD_GROWTH)
+        assertTrue("${customer.failures} flows failed", customer.failures == 0)
+    }
+
+    private fun createViewModel(): PaymentViewModel {
+        val factory = object : ViewModelProvider.Factory {
+            @Suppress("UNCHECKED_CAST")
+            override fun <T : ViewModel> create(modelClass: Class<T>): T = PaymentViewModel(
+                application,
+                SocketManager.getInstance(),
+                TimeoutManager(mainDispatcher),
+                TransactionJournal.getInstance(application),
+                Dispatchers.Default
+            ) as T
+        }
+        // Built on the main thread it will run on, as the activity would
+        return runBlocking(mainDispatcher) { ViewModelProvider(store, factory)[PaymentViewModel::class.java] }
+    }
+
+    private fun sample(transactions: Int, viewModel: PaymentViewModel): Sample {
+        val runtime = Runtime.getRuntime()
+        // The histogram collects garbage first, so the heap reading after it is live data
+        val handlers = liveHandlers()
+        val threads = ManagementFactory.getThreadMXBean()
+        val allocated = (threads as? com.sun.management.ThreadMXBean)
+            ?.getThreadAllocatedBytes(threads.allThreadIds)
+            ?.filter { it > 0 }
+            ?.sum() ?: 0L
+        return Sample(
+            transactions = transactions,
+            heapBytes = runtime.totalMemory() - runtime.freeMemory(),
+            jobs = activeJobs(viewModel.viewModelScope.coroutineContext.job),
+            handlers = handlers,
+            threads = threads.threadCount,
+            allocatedBytes = allocated
+        )
+    }
+
+    // Every active job under [job], i.e. the coroutines the view model has running.
+    private fun activeJobs(job: Job): Int = job.children.sumOf { if (it.isActive) 1 + activeJobs(it) else 0 }
+
+    /**
+     * Live instances of the app's nested and anonymous classes: the
+     * per-transaction terminal handlers and listeners (the Planet ones
+     * the shared Integra instance holds on to), callbacks and coroutine
+     * bodies. Counted from a class histogram, which runs a full GC.
+     */
+    private fun liveHandlers(): Int {
+        val histogram = ManagementFactory.getPlatformMBeanServer().invoke(
+            ObjectName("com.sun.management:type=DiagnosticCommand"),
+            "gcClassHistogram",
+            arrayOf<Any>(emptyArray<String>()),
+            arrayOf(Array<String>::class.java.name)
+        ) as String
+        return histogram.lineSequence()
+            .map { it.trim().split(Regex("\\s+")) }
+            .filter { it.size >= 4 && it[3].startsWith(APP_PACKAGE) && '$' in it[3] }
+            .sumOf { it[1].toIntOrNull() ?: 0 }
+    }
+
+    // Least-squares slope of y over x.
+    private fun slope(points: List<Pair<Double, Double>>): Double {
+        val meanX = points.sumOf { it.first } / points.size
+        val meanY = points.sumOf { it.second } / points.size
+        val numerator = points.sumOf { (x, y) -> (x - meanX) * (y - meanY) }
+        val denominator = points.sumOf { (x, _) -> (x - meanX) * (x - meanX) }
+        return if (denominator == 0.0) 0.0 else numerator / denominator
+    }
+
+    /**
+     * Taps a preset amount as soon as one is offered. Every [LIMIT_EVERY]th
+     * customer taps the mock daily-limit amount and resets from LIMIT_ERROR.
+     * Runs on the main thread, as taps do.
+     */
+    private inner class Customer(private val viewModel: PaymentViewModel) {
+        private var taps = 0
+
+        @Volatile
+        var failures = 0
+
+        fun start() {
+            customerScope.launch {
+                viewModel.screenState.collect { state ->
+                    when (state) {
+                        is PaymentScreenState.AmountSelect -> {
+                            val tapped = if (++taps % LIMIT_EVERY == 0) MOCK_DAILY_LIMIT_AMOUNT else state.amounts[taps % state.amounts.size]
+                            viewModel.selectAmount(tapped)
+                        }
+                        is PaymentScreenState.LimitError -> viewModel.selectAmount(RESET_AMOUNT)
+                        is PaymentScreenState.TransactionFailed,
+                        is PaymentScreenState.ConnectionError,
+                        is PaymentScreenState.DeviceError -> failures++
+                        else -> Unit
+                    }
+                }
+            }
+        }
+    }
+
+    private companion object {
+        const val SAMPLES = 40
+        const val WARM_UP_PERCENT = 25
+        const val MAX_RETAINED_BYTES_PER_TX = 64.0
+        const val MAX_JOB_GROWTH = 8
+        const val MAX_HANDLER_GROWTH = 64
+        const val MAX_THREAD_GROWTH = 4
+        const val LIMIT_EVERY = 50
+        // AmountQuotes rejects this amount locally for the mock provider (daily limit).
+        const val MOCK_DAILY_LIMIT_AMOUNT = 101
+        // selectAmount's code for leaving LIMIT_ERROR
+        const val RESET_AMOUNT = -2
+        const val APP_PACKAGE = "app.sst.pinto."
+
+        // The Timeout interstitial before the mock payment, and the failed-result screen
+        val SHORT_TIMERS = mapOf(TimerSite.YASPA_BYPASS.name to 1L, TimerSite.FAILED_RESULT.name to 1L)
+    }
+}
@@ -0,0 +1,129 @@
+package app.sst.pinto.viewmodels
+
+import android.app.Application
+import app.sst.pinto.data.models.SessionRecord
+import app.sst.pinto.data.models.TimeoutPolicyConfig
+import app.sst.pinto.network.MessageDecoder
+import app.sst.pinto.utils.SessionRecorder
+import app.sst.pinto.utils.TimeoutPolicies
+import app.sst.pinto.viewmodels.SessionScript.Visit
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.test.runTest
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import kotlin.time.Duration.Companion.minutes
+
+@OptIn(ExperimentalCoroutinesApi::class)
+@RunWith(RobolectricTestRunner::class)
+class SessionReplayTest {
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val application: Application get() = RuntimeEnvironment.getApplication()
+
+    @After
+    fun tearDown() {
+        TimeoutPolicies.reset()
+    }
+
+    @Test
+    fun recordedSession_replaysToSameScreensAndFrames() = runTest(timeout = 1.minutes) {
+        val recorded = SessionScript(listOf(Visit.APPROVED, Visit.DECLINED, Visit.WALKED_AWAY, Visit.APPROVED))
+            .record(this, application)
+        val file = SessionScript.write(recorded, folder.newFile("session.jsonl"))
+
+        val report = SessionReplayer(SessionRecorder.read(file)).replay(this, application)
+
+        assertTrue(report.firstDivergence().orEmpty(), report.matches)
+        // Four visits and the next customer's amount screen
+        assertEquals(5, report.transactions)
+        assertEquals("AmountSelect", report.finalScreen)
+        assertEquals(2, report.actualScreens.count { it == "PAYMENT_APPROVED>TransactionSuccess" })
+        assertEquals(1, report.actualScreens.count { it == "PAYMENT_FAILED>TransactionFailed" })
+        // The decline and the screensaver each ended in a RESET with an id the kiosk minted
+        assertEquals(2, report.actualFrames.count { "\"RESET\"" in it && "minted-" in it })
+        assertEquals(1, report.actualFrames.count { "\"CANCEL\"" in it })
+    }
+
+    @Test
+    fun viewModelBehaviourChange_isCaught() = runTest(timeout = 1.minutes) {
+        val recorded = SessionScript(listOf(Visit.APPROVED, Visit.WALKED_AWAY)).record(this, application)
+
+        // The replaying build sends an idle amount screen back to the start after
+        // 10 seconds instead of showing the screensaver after 30
+        TimeoutPolicies.configure(mapOf("AmountSelect" to TimeoutPolicyConfig(idleMillis = 10_000, action = "RETURN_TO_START")))
+        val report = SessionReplayer(recorded).replay(this, application)
+
+        assertFalse(report.matches)
+        assertTrue(report.expectedFrames.any { "\"CANCEL\"" in it })
+        assertFalse(report.actualFrames.any { "\"CANCEL\"" in it })
+    }
+
+    @Test
+    fun terminalResults_comeFromTheRecording() = runTest(timeout = 1.minutes) {
+        val recorded = SessionScript(listOf(Visit.APPROVED)).record(this, application)
+        // The same session, had the terminal declined the sale
+        val declined = recorded.map { record ->
+            if (record.kind == SessionRecord.KIND_RESULT && record.op == "SALE") {
+                record.copy(success = false, resultCode = "D", message = "Declined")
+            } else {
+                record
+            }
+        }
+
+        val report = SessionReplayer(declined).replay(this, application)
+
+        assertFalse(report.matches)
+        assertTrue(report.actualScreens.contains("PAYMENT_FAILED>TransactionFailed"))
+        assertTrue(report.actualFrames.any { "\"PAYMENT_RESULT\"" in it && "\"FAILED\"" in it })
+    }
+
+    @Test
+    fun recordedFrames_haveCardFieldsRedacted() {
+        val frame = """{"messageType":"USER_ACTION","screen":"CARD_CHECK_RESULT","data":{"selectedAmount":20,"cardToken":"4761-TOKEN","paymentDetails":{"pan":"476173******0119","authCode":"A1B2"}},"transactionId":"tx-1","timestamp":1700000000000}"""
+
+        val redacted = SessionRecorder.redact(frame)
+
+        assertFalse(redacted, redacted.contains("TOKEN") || redacted.contains("0119") || redacted.contains("A1B2"))
+        // Everything else survives, so the frame still decodes for replay
+        val message = MessageDecoder.decode(redacted.replace("USER_ACTION", "SCREEN_CHANGE"))!!
+        assertEquals(20, message.data?.selectedAmount)
+        assertEquals(1700000000000L, message.timestamp)
+        assertEquals(emptyMap<String, String>(), message.data?.paymentDetails)
+        assertEquals("[unparsed frame]", SessionRecorder.redact("not json cardToken=4761"))
+    }
+
+    @Test
+    fun replayThroughput() = runTest(timeout = 5.minutes) {
+        val count = 500
+        val recorded = SessionScript.mixed(count).record(this, application)
+        // Class loading and JIT warm-up stay out of the measured run
+        SessionReplayer(recorded.take(recorded.size / 10)).replay(this, application)
+
+        val startNanos = System.nanoTime()
+        val report = SessionReplayer(recorded).replay(this, application)
+        val elapsedMillis = maxOf(1L, (System.nanoTime() - startNanos) / 1_000_000L)
+        val visitsPerSecond = count * 1000L / elapsedMillis
+
+        assertTrue(report.firstDivergence().orEmpty(), report.matches)
+        println(
+            "Replayed $count visits (${recorded.size} records, ${report.framesFed} frames) " +
+                "in ${elapsedMillis}ms: $visitsPerSecond visits/s, " +
+                "${report.virtualMillis / 60_000}min of kiosk time"
+        )
+        assertTrue("$visitsPerSecond visits/s", visitsPerSecond >= MIN_VISITS_PER_SECOND)
+    }
+
+    companion object {
+        private const val MIN_VISITS_PER_SECOND = 1_000L
+    }
+}
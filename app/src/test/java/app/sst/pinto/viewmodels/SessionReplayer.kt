@@ -0,0 +1,157 @@
+package app.sst.pinto.viewmodels
+
+import android.app.Application
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.SessionRecord
+import app.sst.pinto.network.SocketManager
+import app.sst.pinto.payment.MockPaymentManager
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestScope
+
+/**
+ * Replays a session recorded by SessionRecorder through a fresh
+ * [PaymentViewModel] at virtual time (see [VirtualKiosk]).
+ *
+ * Whatever reached the view model from outside is fed back at its
+ * recorded time: inbound frames, user inputs, connection changes, and the
+ * terminal's results, which MockPaymentManager returns when the recording
+ * says the terminal answered. Everything else is the view model's own
+ * doing and is compared with the recording:
+ * - the screens it showed, i.e. its state-machine fires (every value
+ *   screenState took, plus the fires the transition table refused)
+ * - the frames it sent. Send timestamps are ignored, and transaction ids
+ *   the view model mints itself are matched by order of first use.
+ *
+ * Recordings must start with the view model (session recording switched
+ * on at startup) and be made with the mock payment provider, since the
+ * Planet and NNSmart terminals cannot run on the JVM.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class SessionReplayer(private val records: List<SessionRecord>) {
+
+    data class Report(
+        val expectedScreens: List<String>,
+        val actualScreens: List<String>,
+        val expectedFrames: List<String>,
+        val actualFrames: List<String>,
+        /** The view model's screen when the replay ended. */
+        val finalScreen: String,
+        /** AMOUNT_SELECT screens received, i.e. transactions started. */
+        val transactions: Int,
+        val framesFed: Int,
+        val virtualMillis: Long
+    ) {
+        val matches: Boolean get() = expectedScreens == actualScreens && expectedFrames == actualFrames
+
+        /** Where the replay first went another way, with a little context. */
+        fun firstDivergence(): String? =
+            divergence("screen", expectedScreens, actualScreens) ?: divergence("frame", expectedFrames, actualFrames)
+
+        private fun divergence(what: String, expected: List<String>, actual: List<String>): String? {
+            val index = expected.indices.firstOrNull { it >= actual.size || expected[it] != actual[it] }
+                ?: if (actual.size > expected.size) expected.size else return null
+            return "$what #$index: expected ${expected.subList(index, minOf(index + 3, expected.size))} " +
+                "but was ${actual.subList(minOf(index, actual.size), minOf(index + 3, actual.size))}"
+        }
+    }
+
+    private val json = MessageAdapters.moshi.adapter(Any::class.java)
+
+    suspend fun replay(scope: TestScope, application: Application): Report {
+        val results = records.filterTo(ArrayList()) { it.kind == SessionRecord.KIND_RESULT }
+        // Ids the backend chose; any other id in a sent frame was minted by the view model
+        val serverIds = records.filter { it.kind == SessionRecord.KIND_IN }
+            .mapNotNullTo(HashSet()) { field(it.frame.orEmpty(), "transactionId") }
+        var framesFed = 0
+        var transactions = 0
+
+        val kiosk = VirtualKiosk(scope, application)
+        try {
+            MockPaymentManager.outcomes = { op, requesterRef ->
+                val recorded = results.firstOrNull { it.op == op && it.transactionId == requesterRef }
+                    ?: results.firstOrNull { it.op == op }
+                recorded?.let {
+                    results.remove(it)
+                    delay(it.at - kiosk.now())
+                    MockPaymentManager.Outcome(it.success == true, it.resultCode, it.message)
+                }
+            }
+
+            for (record in records) {
+                if (record.kind !in FED_KINDS) continue
+                kiosk.runUntil(record.at)
+                when (record.kind) {
+                    SessionRecord.KIND_IN -> {
+                        val frame = record.frame.orEmpty()
+                        kiosk.transport.deliver(frame)
+                        framesFed++
+                        if (field(frame, "screen") == "AMOUNT_SELECT") transactions++
+                    }
+                    SessionRecord.KIND_INPUT -> input(kiosk.viewModel, record)
+                    SessionRecord.KIND_CONNECTION ->
+                        kiosk.transport.setState(SocketManager.ConnectionState.valueOf(record.state.orEmpty()))
+                }
+            }
+            // A millisecond past the last record, so whatever is due then has run
+            kiosk.runUntil((records.lastOrNull()?.at ?: 0L) + 1)
+
+            val replayed = kiosk.records()
+            return Report(
+                expectedScreens = screens(records),
+                actualScreens = screens(replayed),
+                expectedFrames = sentFrames(records, serverIds),
+                actualFrames = sentFrames(replayed, serverIds),
+                finalScreen = kiosk.viewModel.screenState.value::class.simpleName.orEmpty(),
+                transactions = transactions,
+                framesFed = framesFed,
+                virtualMillis = kiosk.now()
+            )
+        } finally {
+            kiosk.close()
+        }
+    }
+
+    private fun input(viewModel: PaymentViewModel, record: SessionRecord) {
+        val argument = record.message
+        when (record.op) {
+            SessionRecord.INPUT_CONNECT -> viewModel.connectToBackend(argument.orEmpty())
+            SessionRecord.INPUT_SELECT_AMOUNT -> viewModel.selectAmount(argument.orEmpty().toInt())
+            SessionRecord.INPUT_SELECT_PAYMENT_METHOD -> viewModel.selectPaymentMethod(argument.orEmpty())
+            SessionRecord.INPUT_RECEIPT_RESPONSE -> viewModel.respondToReceiptQuestion(argument.toBoolean())
+            SessionRecord.INPUT_CANCEL_PAYMENT -> viewModel.cancelPayment()
+            SessionRecord.INPUT_DISMISS_SCREENSAVER -> viewModel.dismissScreensaver()
+            else -> throw IllegalArgumentException("Unknown input ${record.op} at ${record.at}ms")
+        }
+    }
+
+    private fun screens(records: List<SessionRecord>): List<String> =
+        records.filter { it.kind == SessionRecord.KIND_FIRE }.map { fire ->
+            buildString {
+                if (fire.accepted != true) append('!')
+                append(fire.event).append('>').append(fire.state)
+                fire.site?.let { append(" after ").append(it) }
+            }
+        }
+
+    private fun sentFrames(records: List<SessionRecord>, serverIds: Set<String>): List<String> {
+        val minted = HashMap<String, String>()
+        return records.filter { it.kind == SessionRecord.KIND_OUT }.map { record ->
+            val frame = record.frame.orEmpty()
+            val fields = parse(frame) ?: return@map frame
+            val tx = fields["transactionId"] as? String
+            val id = if (tx == null || tx in serverIds) tx else minted.getOrPut(tx) { "minted-${minted.size + 1}" }
+            json.toJson(fields - "timestamp" + ("transactionId" to id))
+        }
+    }
+
+    private fun field(frame: String, name: String): String? = parse(frame)?.get(name) as? String
+
+    @Suppress("UNCHECKED_CAST")
+    private fun parse(frame: String): Map<String, Any?>? =
+        runCatching { json.fromJson(frame) as? Map<String, Any?> }.getOrNull()
+
+    companion object {
+        private val FED_KINDS = setOf(SessionRecord.KIND_IN, SessionRecord.KIND_INPUT, SessionRecord.KIND_CONNECTION)
+    }
+}
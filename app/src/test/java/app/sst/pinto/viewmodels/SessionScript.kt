@@ -0,0 +1,202 @@
+package app.sst.pinto.viewmodels
+
+import android.app.Application
+import app.sst.pinto.data.models.MessageAdapters
+import app.sst.pinto.data.models.PaymentScreenState
+import app.sst.pinto.data.models.SessionRecord
+import app.sst.pinto.network.SocketManager
+import app.sst.pinto.payment.MockPaymentManager
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.withTimeoutOrNull
+import java.io.File
+
+/**
+ * Records a kiosk session from the real [PaymentViewModel], the way a kiosk
+ * with session recording switched on and the mock payment provider records
+ * one. A scripted backend, terminal and customer drive a [VirtualKiosk].
+ *
+ * The backend configures the kiosk without YASPA, offers an amount screen,
+ * walks an approved sale through the ticket screens to THANK_YOU and
+ * answers each RESET with a new amount screen. Each [Visit] is one
+ * customer at one amount screen.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class SessionScript(private val visits: List<Visit>) {
+
+    enum class Visit {
+        /** Picks an amount; card and sale are approved. */
+        APPROVED,
+
+        /** Picks an amount; the terminal declines the card. */
+        DECLINED,
+
+        /** Leaves the amount screen to time out, and wakes the screensaver later. */
+        WALKED_AWAY
+    }
+
+    suspend fun record(scope: TestScope, application: Application): List<SessionRecord> {
+        val kiosk = VirtualKiosk(scope, application)
+        val backendScope = CoroutineScope(SupervisorJob() + kiosk.dispatcher)
+        try {
+            val backend = Backend(kiosk.transport, backendScope)
+            var visit: Visit? = null
+            MockPaymentManager.outcomes = { op, _ ->
+                if (op == MockPaymentManager.OP_CARD_CHECK) {
+                    delay(CARD_CHECK_MILLIS)
+                    if (visit == Visit.DECLINED) {
+                        MockPaymentManager.Outcome(false, "05", "Card declined")
+                    } else {
+                        MockPaymentManager.Outcome(true, "A", "APPROVED")
+                    }
+                } else {
+                    delay(SALE_MILLIS)
+                    MockPaymentManager.Outcome(true, "A", "APPROVED")
+                }
+            }
+
+            val viewModel = kiosk.viewModel
+            kiosk.runUntil(120)
+            viewModel.connectToBackend(URL)
+
+            visits.forEachIndexed { index, next ->
+                awaitOrFail("Visit $index: no amount screen", viewModel, amountScreen(backend, viewModel, index + 1))
+                visit = next
+                when (next) {
+                    Visit.APPROVED, Visit.DECLINED -> {
+                        delay(CHOOSING_MILLIS)
+                        viewModel.selectAmount(if (next == Visit.APPROVED) 20 else 40)
+                    }
+                    Visit.WALKED_AWAY -> {
+                        awaitOrFail("Visit $index: the screensaver never showed", viewModel, viewModel.isScreensaverVisible)
+                        delay(ASLEEP_MILLIS)
+                        viewModel.dismissScreensaver()
+                    }
+                }
+            }
+            // The session ends on the next customer's amount screen
+            awaitOrFail("No amount screen after the last visit", viewModel, amountScreen(backend, viewModel, visits.size + 1))
+            delay(1000)
+            return kiosk.records()
+        } finally {
+            backendScope.cancel()
+            kiosk.close()
+        }
+    }
+
+    /** Whether the [offered]th amount screen is showing. */
+    private fun amountScreen(backend: Backend, viewModel: PaymentViewModel, offered: Int): Flow<Boolean> =
+        combine(backend.amountScreens, viewModel.screenState) { screens, state ->
+            screens >= offered && state is PaymentScreenState.AmountSelect
+        }
+
+    private suspend fun awaitOrFail(failure: String, viewModel: PaymentViewModel, condition: Flow<Boolean>) {
+        val held = withTimeoutOrNull(WAIT_LIMIT_MILLIS) { condition.first { it } }
+        checkNotNull(held) { "$failure, on ${viewModel.screenState.value}" }
+    }
+
+    /** The server side, answering the frames the kiosk sends. */
+    private class Backend(private val transport: VirtualKiosk.Transport, private val scope: CoroutineScope) {
+        private val offered = MutableStateFlow(0)
+        val amountScreens: StateFlow<Int> = offered
+
+        init {
+            transport.onConnect = ::connect
+            transport.onSend = ::answer
+        }
+
+        private fun connect() {
+            transport.setState(SocketManager.ConnectionState.CONNECTING)
+            scope.launch {
+                delay(60)
+                transport.setState(SocketManager.ConnectionState.CONNECTED)
+                delay(20)
+                transport.deliver(frame("DEVICE_INFO", "DEVICE_INFO", "srv-config", DEVICE_INFO))
+                delay(1800)
+                offerAmounts()
+            }
+        }
+
+        private fun answer(sent: String) {
+            val message = MessageAdapters.socketMessage.fromJson(sent) ?: return
+            val tx = message.transactionId
+            when (message.messageType) {
+                "PAYMENT_RESULT" -> scope.launch {
+                    if (message.screen == "SUCCESS") {
+                        delay(500)
+                        transport.deliver(frame("SCREEN_CHANGE", "PRINT_TICKET", tx))
+                        delay(3000)
+                        transport.deliver(frame("SCREEN_CHANGE", "COLLECT_TICKET", tx))
+                        delay(2000)
+                    }
+                    transport.deliver(frame("SCREEN_CHANGE", "THANK_YOU", tx))
+                    delay(3000)
+                    offerAmounts()
+                }
+                "USER_ACTION" -> if (message.screen == "RESET") scope.launch {
+                    delay(300)
+                    offerAmounts()
+                }
+            }
+        }
+
+        private fun offerAmounts() {
+            val tx = "srv-%04d".format(++offered.value)
+            transport.deliver(frame("SCREEN_CHANGE", "AMOUNT_SELECT", tx, AMOUNTS))
+        }
+
+        private fun frame(type: String, screen: String, tx: String, data: String = "null") =
+            """{"messageType":"$type","screen":"$screen","data":$data,"transactionId":"$tx","timestamp":${System.currentTimeMillis()}}"""
+    }
+
+    companion object {
+        const val URL = "ws://10.0.2.2:8080"
+
+        private const val CHOOSING_MILLIS = 4_000L
+        private const val ASLEEP_MILLIS = 15_000L
+        private const val CARD_CHECK_MILLIS = 1_500L
+        private const val SALE_MILLIS = 3_000L
+        private const val WAIT_LIMIT_MILLIS = 120_000L
+
+        private const val AMOUNTS = """{"amounts":[20,40,60,80,100],"currency":"£","showOtherOption":true}"""
+        private const val DEVICE_INFO =
+            """{"currency":"GBP","minTransactionLimit":10.0,"maxTransactionLimit":300.0,""" +
+                """"transactionFeeType":"FIXED","transactionFeeValue":0.5,"yaspaEnabled":false,""" +
+                """"paymentProvider":"mock","requireCardReceipt":true}"""
+
+        /**
+         * [count] visits: mostly approved sales, with a decline every
+         * fifth and a customer walking away every seventh.
+         */
+        fun mixed(count: Int) = SessionScript(
+            List(count) { i ->
+                when {
+                    i % 7 == 6 -> Visit.WALKED_AWAY
+                    i % 5 == 4 -> Visit.DECLINED
+                    else -> Visit.APPROVED
+                }
+            }
+        )
+
+        /** Write [records] as SessionRecorder writes a recording. */
+        fun write(records: List<SessionRecord>, file: File): File {
+            file.bufferedWriter().use { writer ->
+                records.forEach { record ->
+                    writer.write(MessageAdapters.sessionRecord.toJson(record))
+                    writer.newLine()
+                }
+            }
+            return file
+        }
+    }
+}
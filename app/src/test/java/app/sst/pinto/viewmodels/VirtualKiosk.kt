@@ -0,0 +1,152 @@
+package app.sst.pinto.viewmodels
+
+import android.app.Application
+import androidx.lifecycle.ViewModel
+import androidx.lifecycle.ViewModelProvider
+import androidx.lifecycle.ViewModelStore
+import androidx.room.Room
+import app.sst.pinto.data.AppDatabase
+import app.sst.pinto.data.DeviceInfoRepository
+import app.sst.pinto.data.TransactionJournal
+import app.sst.pinto.data.models.SessionRecord
+import app.sst.pinto.network.MessageTransport
+import app.sst.pinto.network.SocketManager
+import app.sst.pinto.payment.MockPaymentManager
+import app.sst.pinto.utils.SessionRecorder
+import app.sst.pinto.utils.TimeoutManager
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.resetMain
+import kotlinx.coroutines.test.setMain
+import java.util.function.LongSupplier
+
+/**
+ * A [PaymentViewModel] running at the virtual time of a [TestScope], for
+ * recording and replaying sessions in JVM tests (under Robolectric, which
+ * provides Room and the shared preferences).
+ *
+ * The view model talks to a [Transport] instead of the WebSocket, its
+ * TimeoutManager reads the test clock, and the test dispatcher is its main
+ * and decode dispatcher. MockPaymentManager runs on the test dispatcher
+ * too, and the transaction journal is an in-memory database written
+ * inline from the test dispatcher. SessionRecorder records in memory from
+ * construction, stamped with virtual time, so [records] is what the view
+ * model did.
+ *
+ * Nothing the view model waits for runs on another thread, so time moves
+ * the way runTest moves it: a coroutine of the test that delays or awaits
+ * lets every task due before it run, and the clock jumps straight to the
+ * next one.
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class VirtualKiosk(scope: TestScope, application: Application) : AutoCloseable {
+
+    /**
+     * Stands in for SocketManager and records frames where it does. A
+     * scripted backend answers through [onConnect] and [onSend]; a replay
+     * sets the connection state itself.
+     */
+    class Transport : MessageTransport {
+        private val state = MutableStateFlow(SocketManager.ConnectionState.DISCONNECTED)
+        private val inbound = MutableSharedFlow<String>(extraBufferCapacity = 64)
+
+        override val connectionState: StateFlow<SocketManager.ConnectionState> = state
+        override val messageReceived: SharedFlow<String> = inbound
+
+        var onConnect: (() -> Unit)? = null
+        var onSend: ((String) -> Unit)? = null
+
+        fun setState(connectionState: SocketManager.ConnectionState) {
+            state.value = connectionState
+        }
+
+        /** A frame from the backend. */
+        fun deliver(frame: String) {
+            SessionRecorder.inbound(frame)
+            check(inbound.tryEmit(frame)) { "Inbound buffer full" }
+        }
+
+        override fun connect(url: String) {
+            onConnect?.invoke()
+        }
+
+        override fun disconnect() {
+            state.value = SocketManager.ConnectionState.DISCONNECTED
+        }
+
+        override fun ensureConnected() {
+            if (state.value == SocketManager.ConnectionState.DISCONNECTED) onConnect?.invoke()
+        }
+
+        override fun isConnected(): Boolean = state.value == SocketManager.ConnectionState.CONNECTED
+
+        override fun sendMessage(message: String): Boolean {
+            if (!isConnected()) return false
+            SessionRecorder.outbound(message)
+            onSend?.invoke(message)
+            return true
+        }
+    }
+
+    private val scheduler = scope.testScheduler
+    private val startMillis = scheduler.currentTime
+    private val database = Room.inMemoryDatabaseBuilder(application, AppDatabase::class.java)
+        .setQueryExecutor(Runnable::run)
+        .setTransactionExecutor(Runnable::run)
+        .allowMainThreadQueries()
+        .build()
+    private val store = ViewModelStore()
+    private val recorded = ArrayList<SessionRecord>()
+
+    val dispatcher = StandardTestDispatcher(scheduler)
+    val transport = Transport()
+    val viewModel: PaymentViewModel
+
+    init {
+        Dispatchers.setMain(dispatcher)
+        MockPaymentManager.dispatcher = dispatcher
+        // Loaded from Room on a real thread, once per JVM; have it in memory before time starts
+        runBlocking { DeviceInfoRepository.getInstance(application).get() }
+        SessionRecorder.startInMemory(LongSupplier { scheduler.currentTime })
+
+        val timeoutManager = TimeoutManager(dispatcher, TimeoutManager.Clock { scheduler.currentTime })
+        val journal = TransactionJournal(database, dispatcher)
+        val factory = object : ViewModelProvider.Factory {
+            @Suppress("UNCHECKED_CAST")
+            override fun <T : ViewModel> create(modelClass: Class<T>): T =
+                PaymentViewModel(application, transport, timeoutManager, journal, dispatcher) as T
+        }
+        viewModel = ViewModelProvider(store, factory)[PaymentViewModel::class.java]
+    }
+
+    /** Virtual milliseconds since the kiosk started, the clock of [records]. */
+    fun now(): Long = scheduler.currentTime - startMillis
+
+    /** Let the kiosk run until [millis] on its clock. */
+    suspend fun runUntil(millis: Long) = delay(millis - now())
+
+    /** Everything recorded so far. */
+    fun records(): List<SessionRecord> {
+        recorded += SessionRecorder.drain()
+        return recorded.toList()
+    }
+
+    override fun close() {
+        records()
+        SessionRecorder.stop()
+        store.clear()
+        scheduler.runCurrent()
+        database.close()
+        MockPaymentManager.outcomes = null
+        MockPaymentManager.dispatcher = Dispatchers.IO
+        Dispatchers.resetMain()
+    }
+}